@@ -21,6 +21,7 @@ import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TSocket;
@@ -66,6 +67,7 @@ public class CuratorHandler implements Curator.Iface {
 	private final String VERSION = "0.6";
 	
 	private final int CLIENTTIMEOUT;
+	private final boolean COMPACTPROTOCOL;
 
 	private final Map<String, AtomicInteger> counters = new HashMap<String, AtomicInteger>();
 	private final Map<String, AtomicInteger> timers = new HashMap<String, AtomicInteger>();
@@ -145,6 +147,9 @@ public class CuratorHandler implements Curator.Iface {
 		}
 
 		CLIENTTIMEOUT = config.getInt("client.timeout", 45) * 1000;
+		// must match the protocol the master curator was started with
+		COMPACTPROTOCOL = config.getString("client.protocol", "binary")
+				.equalsIgnoreCase("compact");
 
 		int CLIENTCOUNT = 1; // how many clients per host:port combination
 
@@ -424,7 +429,12 @@ public class CuratorHandler implements Curator.Iface {
 		TTransport transport = new TSocket(hostname, port, CLIENTTIMEOUT);
 		transport = new TFramedTransport(transport);
 
-		TProtocol protocol = new TBinaryProtocol(transport);
+		TProtocol protocol;
+		if (COMPACTPROTOCOL) {
+			protocol = new TCompactProtocol(transport);
+		} else {
+			protocol = new TBinaryProtocol(transport);
+		}
 		try {
 			Constructor<?> c = clientClass.getConstructor(TProtocol.class);
 			return new Pair<TTransport, Object>(transport,
@@ -6,6 +6,8 @@ import org.apache.thrift.TException;
 import org.apache.thrift.TProcessor;
 import org.apache.thrift.TProcessorFactory;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.server.THsHaServer;
 import org.apache.thrift.server.TNonblockingServer;
 import org.apache.thrift.server.TServer;
@@ -53,6 +55,11 @@ public class CuratorServer {
 				.withDescription("archiver configuration file (configs/database.properties)")
 				.create("r");
 
+		Option protocol = OptionBuilder.withLongOpt("protocol")
+				.withArgName("PROTOCOL").hasArg()
+				.withDescription("RPC protocol to speak to clients: binary (default) or compact")
+				.create("o");
+
 		Option help = new Option("h", "help", false, "print this message");
 
 		Options options = new Options();
@@ -62,6 +69,7 @@ public class CuratorServer {
 		options.addOption(config);
 		options.addOption(annotators);
 		options.addOption(archive);
+		options.addOption(protocol);
 		options.addOption(help);
 
 		return options;
@@ -113,10 +121,17 @@ public class CuratorServer {
 		annotatorsFile = line.getOptionValue("annotators", "");
 		archiveConfigFile = line.getOptionValue("archiveconfig", "");
 
+		TProtocolFactory protocolFactory;
+		if (line.getOptionValue("protocol", "binary").equalsIgnoreCase("compact")) {
+			protocolFactory = new TCompactProtocol.Factory();
+		} else {
+			protocolFactory = new TBinaryProtocol.Factory();
+		}
+
 		Curator.Iface handler = new CuratorHandler(configFile, annotatorsFile, archiveConfigFile);
 		Curator.Processor processor = new Curator.Processor(handler);
 
-		runServer(processor, port, threads, handler );
+		runServer(processor, port, threads, handler, protocolFactory );
 	}
 
     /**
@@ -125,9 +140,12 @@ public class CuratorServer {
      * @param processor The Curator processor (constructed from a CuratorHandler)
      * @param port
      * @param threads
+     * @param protocolFactory The RPC protocol clients will speak (binary or
+     *                        compact); clients must be constructed to match
      */
 	public static void runServer( TProcessor processor, int port, int threads,
-                                  Curator.Iface handler ) {
+                                  Curator.Iface handler,
+                                  TProtocolFactory protocolFactory ) {
 
 		TNonblockingServerTransport serverTransport;
 		TServer server;
@@ -135,13 +153,14 @@ public class CuratorServer {
 			serverTransport = new TNonblockingServerSocket(port);
 
 			if (threads == 1) {
-				server = new TNonblockingServer( processor, serverTransport );
+				server = new TNonblockingServer( processor, serverTransport,
+						protocolFactory );
 			} else {
 				THsHaServer.Options serverOptions = new THsHaServer.Options();
 				serverOptions.workerThreads = threads;
 				server = new THsHaServer(new TProcessorFactory(processor),
 						serverTransport, new TFramedTransport.Factory(),
-						new TBinaryProtocol.Factory(), serverOptions);
+						protocolFactory, serverOptions);
 			}
 			Runtime.getRuntime().addShutdownHook(
 					new Thread(new ShutdownListener(server, serverTransport),
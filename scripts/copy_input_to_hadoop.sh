@@ -8,8 +8,8 @@
 
 echo ""
 echo "In order to use this script, you must open it in a text"
-echo "editor and configure the location of your local Curator"
-echo "and your Hadoop directory."
+echo "editor and configure the location of your Hadoop directory"
+echo "and of the HadoopInterface JAR."
 echo ""
 echo "Note also that when you run this script, the Hadoop name node"
 echo "(i.e., the thing that controls the Hadoop cluster) must "
@@ -19,11 +19,14 @@ echo ""
 #       Change these variables to the appropriate *absolute paths*      #
 #########################################################################
 
-CURATOR_DIRECTORY=/project/cogcomp/curator-0.6.9_1
 HADOOP_DIRECTORY=/hadoop
-# This is where we will store the serialized forms of our records before
-# sending them to Hadoop.
-STAGING_DIRECTORY=/scratch/tyoun
+# The JAR from which we run the RawTextIngester, which turns raw text into
+# records in HDFS
+HADOOP_INTERFACE_JAR=/project/cogcomp/HadoopInterface/HadoopInterface.jar
+# Passed along to the RawTextIngester. Add "-pack" to pack the records into
+# a few large containers rather than one file each, or "-sharded" to file
+# them in shard directories.
+INGEST_OPTIONS="-threads 8"
 INPUT_PATH=$1                   # The 1st parameter from the command line 
                                 #   (must be a local path to be copied to 
                                 #   HDFS)
@@ -31,6 +34,9 @@ MODE=$2                         # 2nd parameter from CL should be "serial"
                                 #   or "raw"
 DESTINATION_FOR_INPUT_IN_HADOOP=$3 # The directory in HDFS in which we 
                                    # will put our job's input Records
+SOURCES_FILE=$4                 # Optional: in raw mode, the local file to
+                                #   which we write the original files each
+                                #   (deduplicated) record came from
 
 # If you need to specify more fully the location in HDFS to which we 
 # copy our input, do so here. By default, we copy the directory named
@@ -60,7 +66,6 @@ if [ -n "$PREFIX_TO_HADOOP_DIR" ]; then
     DESTINATION_FOR_INPUT_IN_HADOOP=$PREFIX_TO_HADOOP_DIR/$DESTINATION_FOR_INPUT_IN_HADOOP
 fi
 
-echo -e "$MSG_COLOR\n\n\nYou said your copy of Curator is located here: $CURATOR_DIRECTORY"
 echo "You requested we run the annotation tool $ANNOTATION_TOOL_TO_RUN on your input"
 echo "You requested we annotate the input text files located here: $INPUT_PATH"
 echo -e "\t(That input directory should be an *absolute* path.) $DEFAULT_COLOR"
@@ -79,45 +84,20 @@ if [ "$MODE" != "serial" ]; then
 fi
 
 if [ "$MODE" != "serial" ]; then # if we're working with raw text files...
-    # Launch the Master Curator
-    echo -e "$MSG_COLOR\n\n\nLaunching the master curator. $DEFAULT_COLOR"
-    # First make sure we have the "empty" annotators list
-    cd $CURATOR_DIRECTORY/dist/configs
-    if [ ! -f annotators-empty.xml ]; then # Does the file exist?
-	touch annotators-empty.xml
-	echo "<?xml version=\"1.0\" encoding=\"utf-8\" ?>" >> annotators-empty.xml
-	echo "<curator-annotators><annotator>" >> annotators-empty.xml
-	echo "<type>multilabeler</type>" >> annotators-empty.xml
-	echo "<field>sentences</field>" >> annotators-empty.xml
-	echo "<field>tokens</field>" >> annotators-empty.xml
-	echo "<local>edu.illinois.cs.cogcomp.annotation.handler.IllinoisTokenizerHandler</local>" >> annotators-empty.xml
-	echo "</annotator></curator-annotators>" >> annotators-empty.xml
-    fi
-    cd $CURATOR_DIRECTORY/dist
-    ./bin/curator.sh --annotators configs/annotators-empty.xml --port 9010 --threads 10 >& logs/curator.log & >/dev/null
-    sleep 3s
-
-
-    # Launch the Master Curator Client, asking it to serialize the
-    # records from the text in the input directory
-    echo -e "$MSG_COLOR\n\n\nLaunching the master curator client:$DEFAULT_COLOR"
-    cd client
-    ./runclient.sh -host localhost -port 9010 -in $INPUT_PATH -out $STAGING_DIRECTORY -mode PRE
-    chmod -R 777 $STAGING_DIRECTORY
-
-    echo -e "$MSG_COLOR\n\nShutting down locally running Curator. $DEFAULT_COLOR"
-    # Get list of currently running Java procs | find the Curator server | split on spaces (?) | send the first thing (i.e., the process ID) to the kill command
-    jps -l | grep edu.illinois.cs.cogcomp.curator.CuratorServer | cut -d ' ' -f 1 | xargs -n1 kill
-
-    # Copy the serialized records to the Hadoop Distributed File System (HDFS)
-    echo -e "$MSG_COLOR\n\n\nCopying the serialized records to HDFS: $DEFAULT_COLOR"
+    # Turn the text files into records and stream them straight into HDFS.
+    # New records need no annotator, so no Curator is involved, and nothing
+    # is staged on the local disk.
+    echo -e "$MSG_COLOR\n\n\nWriting records for the raw text to HDFS: $DEFAULT_COLOR"
     cd $HADOOP_DIRECTORY
     set +e # Do *not* exit the script if any command fails
     ./bin/hadoop dfs -rmr $DESTINATION_FOR_INPUT_IN_HADOOP
-    ./bin/hadoop dfs -mkdir $DESTINATION_FOR_INPUT_IN_HADOOP
     set -e # Exit the script if any command fails
-    ./bin/hadoop dfs -copyFromLocal $STAGING_DIRECTORY/* $DESTINATION_FOR_INPUT_IN_HADOOP
-    echo -e "$MSG_COLOR\nCopied successfully. $DEFAULT_COLOR"
+    INGEST_ARGS="-in $INPUT_PATH -out $DESTINATION_FOR_INPUT_IN_HADOOP $INGEST_OPTIONS"
+    if [ -n "$SOURCES_FILE" ]; then
+        INGEST_ARGS="$INGEST_ARGS -sources $SOURCES_FILE"
+    fi
+    ./bin/hadoop jar $HADOOP_INTERFACE_JAR edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RawTextIngester $INGEST_ARGS
+    echo -e "$MSG_COLOR\nWrote the records successfully. $DEFAULT_COLOR"
 
 
 # Else we are working with already serialized records, not raw text:
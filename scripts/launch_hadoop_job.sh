@@ -24,6 +24,8 @@ ANNOTATION_TOOL_TO_RUN=$1       # The 1st parameter from the command line:
 INPUT_DIR_IN_HDFS=$2            # The 2nd parameter from the command line:
                                 #   the location to take input from
 OUTPUT_DIR_IN_HDFS=$3           # The location we should write output to
+EXTRA_ARGS="${@:4}"             # Anything after that is passed along to the
+                                #   HadoopInterface (e.g., -reannotate)
 
 # If you need to specify more fully the location in HDFS in which we 
 # do I/O, do so here. By default, we assume the INPUT and OUTPUT 
@@ -71,7 +73,7 @@ cd $HADOOP_DIRECTORY
 
 # Launch MapReduce job on Hadoop cluster
 echo -e "$MSG_COLOR\n\n\nLaunching the mapreduce job on the Hadoop cluster $DEFAULT_COLOR"
-LAUNCH_HADOOP_COMMAND="bin/hadoop jar /project/cogcomp/HadoopInterface/HadoopInterface.jar edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface -d $INPUT_DIR_IN_HDFS -m $ANNOTATION_TOOL_TO_RUN -out $OUTPUT_DIR_IN_HDFS -reduces $NUM_REDUCE_TASKS -curator $CURATOR_DIR_ON_HADOOP_NODES -shared -lib $LIB_DIR_ON_HADOOP_NODES"
+LAUNCH_HADOOP_COMMAND="bin/hadoop jar /project/cogcomp/HadoopInterface/HadoopInterface.jar edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface -d $INPUT_DIR_IN_HDFS -m $ANNOTATION_TOOL_TO_RUN -out $OUTPUT_DIR_IN_HDFS -reduces $NUM_REDUCE_TASKS -curator $CURATOR_DIR_ON_HADOOP_NODES -shared -lib $LIB_DIR_ON_HADOOP_NODES $EXTRA_ARGS"
 echo -e "using command $CMD"
 ./$LAUNCH_HADOOP_COMMAND
 
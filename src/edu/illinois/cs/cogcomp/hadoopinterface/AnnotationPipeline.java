@@ -0,0 +1,396 @@
+package edu.illinois.cs.cogcomp.hadoopinterface;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.MessageLogger;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ProjectingSerializer;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A small, bounded, multi-threaded pipeline for pushing documents through the
+ * reducer. Each stage (e.g., annotate, validate, encode, write) runs on its
+ * own thread and hands its documents to the next stage through a bounded
+ * queue. This lets us be writing document N to HDFS and encoding document N+1
+ * while the Curator is busy annotating document N+2, instead of leaving the
+ * annotator idle during every round-trip to HDFS.
+ *
+ * Because the queues are bounded, a slow stage applies back-pressure to the
+ * stages before it: #submit() blocks once the first queue is full, so we never
+ * hold more than a handful of documents in memory at once.
+ *
+ * Stages see documents in the order they were submitted. A stage may drop a
+ * document (see Document#drop()), in which case later stages skip it. If any
+ * stage fails, the failure is remembered, all later documents are discarded,
+ * and the exception is re-thrown from the next call to #submit() or #finish().
+ *
+ * Typical use:
+ *
+ *   1. Construct the pipeline, and add the stages in the order they should run
+ *   2. Call start()
+ *   3. Call submit() for each document
+ *   4. Call finish() to wait for the last document to make it through
+ *
+ * @author Tyler Young
+ */
+public class AnnotationPipeline {
+    /**
+     * One unit of work in the pipeline. Stages fill in the fields as the
+     * document makes its way through (e.g., the annotate stage sets the
+     * annotated record, the encode stage sets the serialized form).
+     */
+    public static class Document {
+        /**
+         * Constructs a document to be sent through the pipeline
+         * @param input The record as we received it in the reducer. Note that
+         *              this must <em>not</em> be an object that Hadoop will
+         *              reuse for the next value!
+         */
+        public Document( Record input ) {
+            this.input = input;
+            this.hash = input.getIdentifier();
+            this.submitTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The identifier (hash) of the document being processed
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return The record as it was before annotation
+         */
+        public Record getInput() {
+            return input;
+        }
+
+        /**
+         * @return The annotated version of the record, or null if it has not
+         *         yet been annotated
+         */
+        public Record getAnnotated() {
+            return annotated;
+        }
+
+        /**
+         * @param annotated The annotated version of the record
+         */
+        public void setAnnotated( Record annotated ) {
+            this.annotated = annotated;
+        }
+
+        /**
+         * @return The serialized form of the annotated record, or null if it
+         *         has not yet been encoded
+         */
+        public byte[] getSerialized() {
+            return serialized;
+        }
+
+        /**
+         * @param serialized The serialized form of the annotated record
+         */
+        public void setSerialized( byte[] serialized ) {
+            this.serialized = serialized;
+        }
+
+        /**
+         * @return The views that were skipped (not decoded) when the input
+         *         record was read, or null if the input record was read in
+         *         full
+         */
+        public ProjectingSerializer.ProjectedRecord getProjection() {
+            return projection;
+        }
+
+        /**
+         * @param projection The projected read from which the input record
+         *                   came. Its skipped views will be written back out
+         *                   along with the annotated record.
+         */
+        public void setProjection(
+                ProjectingSerializer.ProjectedRecord projection ) {
+            this.projection = projection;
+        }
+
+        /**
+         * Takes this document out of the pipeline: no later stage will
+         * process it, and it will not count as completed. Used for documents
+         * which a stage has dealt with in some other way (e.g., by setting
+         * them aside for a later job).
+         */
+        public void drop() {
+            dropped = true;
+        }
+
+        /**
+         * @return True if a stage has dropped this document
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return The system time (in milliseconds) at which this document
+         *         entered the pipeline
+         */
+        public long getSubmitTime() {
+            return submitTime;
+        }
+
+        private final String hash;
+        private final Record input;
+        private final long submitTime;
+        private Record annotated;
+        private byte[] serialized;
+        private ProjectingSerializer.ProjectedRecord projection;
+        private volatile boolean dropped = false;
+    }
+
+    /**
+     * A single step in the pipeline. Implementations should do their work on
+     * the document they are handed, storing any results in that document.
+     */
+    public interface Stage {
+        /**
+         * Performs this stage's work on the document
+         * @param doc The document to be processed
+         * @throws IOException If the document could not be processed; this
+         *                     stops the pipeline.
+         */
+        public void process( Document doc )
+                throws IOException, InterruptedException;
+    }
+
+    /**
+     * Constructs a pipeline with no stages.
+     * @param queueCapacity The number of documents that may wait between any
+     *                      two stages. Once a queue is full, the stage feeding
+     *                      it blocks until there is room.
+     */
+    public AnnotationPipeline( int queueCapacity ) {
+        if( queueCapacity < 1 ) {
+            throw new IllegalArgumentException( "Pipeline queues must be able to "
+                    + "hold at least one document, but capacity was "
+                    + queueCapacity );
+        }
+        this.queueCapacity = queueCapacity;
+        stageNames = new ArrayList<String>();
+        stages = new ArrayList<Stage>();
+        queues = new ArrayList<BlockingQueue<Document>>();
+        threads = new ArrayList<Thread>();
+    }
+
+    /**
+     * Adds a stage to the end of the pipeline. Must be called before #start().
+     * @param name A short, human-readable name for the stage (used in logs
+     *             and thread names)
+     * @param stage The work to be done at this stage
+     */
+    public void addStage( String name, Stage stage ) {
+        if( started ) {
+            throw new IllegalStateException( "Cannot add stage " + name
+                    + " to a pipeline that is already running." );
+        }
+        stageNames.add( name );
+        stages.add( stage );
+        queues.add( new ArrayBlockingQueue<Document>( queueCapacity ) );
+    }
+
+    /**
+     * Launches one thread per stage.
+     */
+    public void start() {
+        if( stages.isEmpty() ) {
+            throw new IllegalStateException( "Pipeline has no stages." );
+        }
+
+        for( int i = 0; i < stages.size(); i++ ) {
+            Thread t = new Thread( new StageRunner( i ),
+                                   "pipeline-" + stageNames.get( i ) );
+            t.setDaemon( true );
+            threads.add( t );
+        }
+        started = true;
+        for( Thread t : threads ) {
+            t.start();
+        }
+    }
+
+    /**
+     * Hands a document to the first stage of the pipeline. Blocks if the
+     * pipeline is already holding as many documents as it is allowed to.
+     * @param doc The document to process
+     * @throws IOException If a stage has failed (either on this document's
+     *                     predecessors or before)
+     */
+    public void submit( Document doc ) throws IOException, InterruptedException {
+        if( !started || finished ) {
+            throw new IllegalStateException( "Pipeline is not accepting "
+                    + "documents." );
+        }
+        rethrowFailure();
+        queues.get( 0 ).put( doc );
+    }
+
+    /**
+     * Signals that no more documents are coming, and waits for every document
+     * already submitted to make it through the last stage.
+     * @throws IOException If any stage failed
+     */
+    public void finish() throws IOException, InterruptedException {
+        if( !started ) {
+            return;
+        }
+        if( !finished ) {
+            finished = true;
+            queues.get( 0 ).put( END_OF_INPUT );
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * @return The number of documents that have made it through every stage
+     */
+    public int getNumCompleted() {
+        synchronized( this ) {
+            return numCompleted;
+        }
+    }
+
+    /**
+     * @return The number of documents that made it through the pipeline after
+     *         being dropped by one of the stages
+     */
+    public int getNumDropped() {
+        synchronized( this ) {
+            return numDropped;
+        }
+    }
+
+    /**
+     * Throws the first failure recorded by any stage, if there was one
+     * @throws IOException The failure from the stage (wrapped in an IOException
+     *                     if it was not one already)
+     */
+    private void rethrowFailure() throws IOException {
+        Throwable t;
+        synchronized( this ) {
+            t = failure;
+        }
+        if( t == null ) {
+            return;
+        }
+        if( t instanceof IOException ) {
+            throw (IOException)t;
+        }
+        IOException wrapped = new IOException( "Pipeline stage failed: "
+                                               + t.getMessage() );
+        wrapped.initCause( t );
+        throw wrapped;
+    }
+
+    /**
+     * Records the failure of a stage. Only the first failure is kept, since
+     * later ones are usually just fallout from the first.
+     * @param stageIndex The index of the stage that failed
+     * @param doc The document the stage was working on
+     * @param t The cause of the failure
+     */
+    private void recordFailure( int stageIndex, Document doc, Throwable t ) {
+        synchronized( this ) {
+            if( failure == null ) {
+                failure = t;
+            }
+        }
+        logger.logError( "Pipeline stage " + stageNames.get( stageIndex )
+                + " failed on document " + doc.getHash() + ": "
+                + t.getMessage() );
+    }
+
+    /**
+     * Pulls documents from a stage's queue, processes them, and passes them on
+     * to the next stage's queue. Once a failure has been recorded anywhere,
+     * documents are drained and dropped rather than processed, so that
+     * upstream stages never block on a full queue.
+     */
+    private class StageRunner implements Runnable {
+        public StageRunner( int stageIndex ) {
+            this.stageIndex = stageIndex;
+        }
+
+        public void run() {
+            BlockingQueue<Document> in = queues.get( stageIndex );
+            BlockingQueue<Document> out = stageIndex + 1 < queues.size()
+                                          ? queues.get( stageIndex + 1 )
+                                          : null;
+            Stage stage = stages.get( stageIndex );
+            try {
+                while( true ) {
+                    Document doc = in.take();
+                    if( doc != END_OF_INPUT && !hasFailed() && !doc.isDropped() ) {
+                        try {
+                            stage.process( doc );
+                        } catch ( Throwable t ) {
+                            recordFailure( stageIndex, doc, t );
+                        }
+                    }
+
+                    if( doc == END_OF_INPUT || !hasFailed() ) {
+                        if( out != null ) {
+                            out.put( doc );
+                        } else if( doc != END_OF_INPUT ) {
+                            synchronized( AnnotationPipeline.this ) {
+                                if( doc.isDropped() ) {
+                                    ++numDropped;
+                                } else {
+                                    ++numCompleted;
+                                }
+                            }
+                        }
+                    }
+
+                    if( doc == END_OF_INPUT ) {
+                        return;
+                    }
+                }
+            } catch ( InterruptedException e ) {
+                synchronized( AnnotationPipeline.this ) {
+                    if( failure == null ) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+
+        private boolean hasFailed() {
+            synchronized( AnnotationPipeline.this ) {
+                return failure != null;
+            }
+        }
+
+        private final int stageIndex;
+    }
+
+    private static final Document END_OF_INPUT = new Document( new Record() );
+    private static final MessageLogger logger = HadoopInterface.logger;
+
+    private final int queueCapacity;
+    private final List<String> stageNames;
+    private final List<Stage> stages;
+    private final List<BlockingQueue<Document>> queues;
+    private final List<Thread> threads;
+    private boolean started = false;
+    private boolean finished = false;
+    private int numCompleted = 0;
+    private int numDropped = 0;
+    private Throwable failure;
+}
@@ -2,11 +2,13 @@ package edu.illinois.cs.cogcomp.hadoopinterface;
 
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.*;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions.EmptyInputException;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
 import edu.illinois.cs.cogcomp.thrift.base.*;
 import edu.illinois.cs.cogcomp.thrift.curator.Curator;
 import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TSocket;
@@ -47,6 +49,10 @@ public class CuratorClient {
     // be transferred to Hadoop by another program)
     private ArrayList<Record> newInputRecords;
 
+    // Which original files each of the new input records came from, so that
+    // duplicate texts become only one record
+    private final DocumentDeduplicator dedup;
+
     // Provides serialize() and deserialize() methods for Record objects
     private final SerializationHandler serializer;
     private static boolean testing;
@@ -97,11 +103,25 @@ public class CuratorClient {
      *             commonly use port 9010).
      */
     public CuratorClient( String host, int port ) {
+        this( host, port, RecordProtocol.BINARY );
+    }
+
+    /**
+     * Constructs a CuratorClient object which speaks the indicated Thrift
+     * protocol to the Curator. The stock Curator server only speaks
+     * the binary protocol, so use this only with one launched with the
+     * matching --protocol option (see CuratorServer).
+     * @param host The host name for the Curator we will connect to
+     * @param port The port on which we should connect to the Curator
+     * @param rpcProtocol The protocol to use for calls to the Curator
+     */
+    public CuratorClient( String host, int port, RecordProtocol rpcProtocol ) {
         newInputRecords = new ArrayList<Record>();
+        dedup = new DocumentDeduplicator();
 
         // Set up Thrift Curator Client
         transport = new TFramedTransport( new TSocket(host, port ) );
-        TProtocol protocol = new TBinaryProtocol(transport);
+        TProtocol protocol = rpcProtocol.wrap( transport );
         client = new Curator.Client(protocol);
 
         serializer = new SerializationHandler();
@@ -157,6 +177,16 @@ public class CuratorClient {
 
     }
 
+    /**
+     * Abandons whatever request is currently waiting on the Curator by closing
+     * the connection out from under it. The thread making the request will
+     * get a TException. This is the only method in this class which may be
+     * called from a different thread than the one using the client.
+     */
+    public void abortPendingRequest() {
+        transport.close();
+    }
+
     /**
      * Attempts to connect to the Curator. If it does so successfully,
      * it will return true.
@@ -311,8 +341,24 @@ public class CuratorClient {
         }
 
         // LOOP: for each file in the job directory...
-        for (File doc : jobDir.listFiles() ) {
-            if( !doc.isDirectory() ) {
+        for (File doc : LocalFileSystemHandler.listRecordDirectory( jobDir ) ) {
+            if( doc.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+                // A container of many packed records, rather than just one
+                try {
+                    HadoopSerializationHandler containerReader =
+                            new HadoopSerializationHandler();
+                    for( Record packed : containerReader.readContainer(
+                            new org.apache.hadoop.fs.Path( doc.getAbsolutePath() ),
+                            FileSystem.getLocal( new Configuration() ) ) ) {
+                        addToInputList( packed );
+                    }
+                } catch ( IOException e ) {
+                    System.out.println("Exception attempting to unpack "
+                            + "records from container " + doc.toString() );
+                    e.printStackTrace();
+                }
+            }
+            else if( !doc.isDirectory() ) {
                 Record currentRecord = null;
 
                 // Check the database for the record, if necessary
@@ -401,6 +447,13 @@ public class CuratorClient {
      *
      * Any subdirectories of your input directory will be ignored.
      *
+     * Files whose text duplicates that of a file already read become no new
+     * record (their record would be identical, down to its name); see
+     * #getDeduplicator() for the files each record came from.
+     *
+     * Every record is held in memory until it is serialized. For large
+     * corpora, the RawTextIngester writes records straight to HDFS instead.
+     *
      * @param inputDir The directory to draw original text files from
      */
     public void createRecordsFromRawInputFiles( File inputDir ) {
@@ -419,13 +472,30 @@ public class CuratorClient {
                     String fileContents = LocalFileSystemHandler
                             .readFileToString( f );
                     Record newRecord = RecordTools.generateNew( fileContents );
-                    addToInputList( newRecord );
+                    if( dedup.add( newRecord.getIdentifier(),
+                                   f.getAbsolutePath() ) ) {
+                        addToInputList( newRecord );
+                    }
                 }
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             }
 
         }
+
+        if( dedup.getNumDuplicates() > 0 ) {
+            System.out.println( "Skipped " + dedup.getNumDuplicates()
+                    + " files whose text duplicated another file's; there are "
+                    + dedup.getNumUnique() + " unique documents." );
+        }
+    }
+
+    /**
+     * @return The original files from which each record created by
+     *         #createRecordsFromRawInputFiles() came
+     */
+    public DocumentDeduplicator getDeduplicator() {
+        return dedup;
     }
 
     /**
@@ -897,6 +967,12 @@ public class CuratorClient {
                                         + args.getOutputDir().toString() );
 
             theClient.writeSerializedRecords( args.getOutputDir() );
+
+            if( args.getSourcesFile() != null ) {
+                System.out.println( "Writing the source files of each record "
+                        + "to: " + args.getSourcesFile().toString() );
+                theClient.getDeduplicator().write( args.getSourcesFile() );
+            }
         }
         else { // Post-Hadoop. Time to add the records to the database.
             theClient.addRecordsFromJobDirectory( args.getInputDir(), false );
@@ -8,15 +8,46 @@
 
 package edu.illinois.cs.cogcomp.hadoopinterface;
 
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentWindows;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.DeltaOverlay;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import java.io.IOException;
+import java.util.List;
 
 
-public class CuratorMapper extends Mapper<Text, HadoopRecord, Text, HadoopRecord> {
+public class CuratorMapper
+        extends Mapper<Text, HadoopRecord, DocumentHashKey, HadoopRecord> {
 
+    /**
+     * If the job splits long documents into windows (the "windowChars"
+     * configuration option; see DocumentWindows), gets ready to do so
+     * @param context The configuration context
+     */
+    @Override
+    protected void setup( Context context ) throws IOException {
+        Configuration conf = context.getConfiguration();
+        windowChars = conf.getInt( "windowChars", 0 );
+        if( windowChars > 0 ) {
+            mode = AnnotationMode.fromString( conf.get( "annotationMode" ) );
+            reannotateExisting = conf.getBoolean( "reannotateExisting", false );
+            fs = FileSystem.get( conf );
+
+            // The windows are new keys, which the reducers won't find in any
+            // deltas, so the documents get their deltas here
+            deltas = new DeltaOverlay( new Path( conf.get( "inputDirectory" ) ),
+                                       null, fs, conf );
+        }
+    }
 
     /**
      * The map method in a map/reduce cycle. All nodes in the Hadoop
@@ -34,10 +65,81 @@ public class CuratorMapper extends Mapper<Text, HadoopRecord, Text, HadoopRecord
         HadoopInterface.logger.logStatus( "\tGot input key " + inKey.toString()
                                           + "\n\tand input value: "
                                           + inValue.toString() );
+
+        if( windowChars > 0 && mapWindows( inValue, context ) ) {
+            return;
+        }
         
-        context.write(inKey, inValue);
+        // Hadoop serializes the key during write(), so one key object will do
+        outKey.set( inKey.toString() );
+        context.write( outKey, inValue );
         
     }
 
+    @Override
+    protected void cleanup( Context context ) throws IOException {
+        if( deltas != null ) {
+            deltas.close();
+        }
+    }
+
+    /**
+     * Splits a document longer than the window size into windows of whole
+     * sentences, and emits each window under a key of its own, so that the
+     * windows can be annotated by different reducers
+     * @param inValue The document
+     * @param context The configuration context
+     * @return True if the document was split (and so has been dealt with),
+     *         false if it should be passed on as it is
+     */
+    private boolean mapWindows( HadoopRecord inValue, Context context )
+            throws IOException, InterruptedException {
+        Record document = inValue;
+        if( inValue.isReference() ) {
+            // A record is never much smaller than its text, even compressed,
+            // so most references can be passed on without reading them
+            if( inValue.getReferencedSize() * MAX_COMPRESSION_RATIO
+                    <= windowChars ) {
+                return false;
+            }
+            document = inValue.dereference( fs );
+        }
+        if( document.getRawText() == null
+                || document.getRawText().length() <= windowChars ) {
+            return false;
+        }
+
+        deltas.overlay( document );
+        if( !reannotateExisting && RecordTools.hasAnnotation( document, mode ) ) {
+            return false; // the reducer will pass it through
+        }
+
+        List<Record> windows = DocumentWindows.split( document, windowChars,
+                                                      mode.toCuratorString() );
+        if( windows.isEmpty() ) {
+            return false;
+        }
+
+        HadoopInterface.logger.log( "Splitting document "
+                + document.getIdentifier() + " (" + document.getRawText().length()
+                + " characters) into " + windows.size() + " windows" );
+        for( Record window : windows ) {
+            outKey.set( window.getIdentifier() );
+            context.write( outKey, new HadoopRecord( window ) );
+        }
+        return true;
+    }
+
+    // The most we expect a serialized record to be compressed, relative to
+    // the length of its text
+    private static final int MAX_COMPRESSION_RATIO = 10;
+
+    private final DocumentHashKey outKey = new DocumentHashKey();
+    private int windowChars = 0;
+    private AnnotationMode mode;
+    private boolean reannotateExisting;
+    private FileSystem fs;
+    private DeltaOverlay deltas;
+
 
 }
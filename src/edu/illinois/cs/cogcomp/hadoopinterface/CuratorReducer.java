@@ -1,15 +1,22 @@
 package edu.illinois.cs.cogcomp.hadoopinterface;
 
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.*;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.ColumnarRecordStore;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.DeltaOverlay;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions.AnnotationTimeoutException;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.SerializedRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.StragglerReport;
 import edu.illinois.cs.cogcomp.thrift.base.AnnotationFailedException;
 import edu.illinois.cs.cogcomp.thrift.base.ServiceSecurityException;
 import edu.illinois.cs.cogcomp.thrift.base.ServiceUnavailableException;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.thrift.TException;
 
 import java.io.File;
@@ -17,6 +24,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Reducer that serves as a wrapper for the document annotation tool. It
@@ -36,7 +50,7 @@ import java.util.*;
  * @author Lisa Y. Bao
  */
 public class CuratorReducer
-        extends Reducer<Text, HadoopRecord, Text, HadoopRecord> {
+        extends Reducer<DocumentHashKey, HadoopRecord, Text, SerializedRecord> {
     public static final String userDir = System.getProperty( "user.home" );
     private static final String curatorLockName = "CURATOR_IS_IN_USE";
     private String thisNodesMacAddress;
@@ -60,6 +74,13 @@ public class CuratorReducer
     /**
      * Asks the Curator to get an annotation (the type of which is specified in the
      * context's configuration) for the document record in inValue.
+     *
+     * The first call to reduce() launches the Curator and annotator (if
+     * necessary) and starts the annotation pipeline. After that, reduce() simply
+     * hands each document to the pipeline, where it is annotated, validated,
+     * encoded and written to HDFS on separate threads. This means that the
+     * document may not actually be written until some time after reduce()
+     * returns; #cleanup() waits for the last document to be written.
      * @param inKey The document's hash
      * @param inValues The record(s) for the document(s), which include both the
      *                 original text file and the known annotations.
@@ -68,25 +89,176 @@ public class CuratorReducer
      *                     only IOExceptions and InterruptedExceptions, we're
      *                     forced to abuse the semantics here. IOExceptions can be
      *                     thrown if we cannot launch the Curator or an annotator,
-     *                     if we fail to annotate the document correctly, and
-     *                     so on.
+     *                     if the annotator appears to have died, and so on.
+     *                     Individual documents which fail to annotate are
+     *                     quarantined rather than failing the task.
      */
     @Override
-    public void reduce( Text inKey,
+    public void reduce( DocumentHashKey inKey,
                         Iterable<HadoopRecord> inValues,
                         Context context )
             throws IOException, InterruptedException {
         logger.log( "Beginning reduce() . . ." );
+        if( pipeline == null ) {
+            prepareToAnnotate( context );
+            pipeline = createPipeline( context );
+            pipeline.start();
+        }
+
+        // Annotate the document. There is usually only one value, but if the
+        // same document appeared more than once in the input (e.g., in two
+        // containers of serialized records), every copy has the same hash
+        // and so arrives here together; we annotate the first copy only.
+        boolean first = true;
+        for( HadoopRecord inValue : inValues ) {
+            if( !first ) {
+                logger.log( "Skipping a duplicate copy of document "
+                            + inKey.toString() );
+                ++numDuplicates;
+                continue;
+            }
+            first = false;
+
+            // Decode stage: if the mapper only sent us a reference, read the
+            // record from HDFS, decoding only the views the annotator needs.
+            // Otherwise, Hadoop reuses the value object for the next document,
+            // so the pipeline takes the record's contents for itself.
+            ProjectingSerializer.ProjectedRecord projected = null;
+            Record input;
+            if( inValue.isReference() ) {
+                projected = inValue.dereference( hdfs, projector );
+                input = projected.getRecord();
+            } else {
+                input = inValue.detach();
+            }
+            deltas.overlay( input );
+
+            // A record which already has this annotation needs nothing from
+            // the annotator, unless we were asked to redo it. In a complete
+            // output, it is simply passed through; if we're only writing the
+            // new view, the existing one stays where it is.
+            AnnotationPipeline.Document doc =
+                    new AnnotationPipeline.Document( input );
+            doc.setProjection( projected );
+            if( !reannotateExisting && hasRequestedAnnotation( doc ) ) {
+                logger.log( "Document " + input.getIdentifier()
+                        + " already has the requested " + toolToRun.toString()
+                        + " annotation; passing it through." );
+                ++numPassedThrough;
+                if( writeViewOnly ) {
+                    continue;
+                }
+                doc.setAnnotated( input );
+            }
+            pipeline.submit( doc );
+            context.progress();
+        }
+    }
+
+    /**
+     * Waits for every document handed to the pipeline to finish being
+     * written, then shuts the pipeline down.
+     * @param context The job context
+     * @throws IOException If any document failed to be annotated or written
+     */
+    @Override
+    protected void cleanup( Context context )
+            throws IOException, InterruptedException {
+        if( pipeline != null ) {
+            try {
+                pipeline.finish();
+            } finally {
+                watchdog.shutdownNow();
+                deltas.close();
+                if( sentenceCache != null ) {
+                    sentenceCache.close();
+                }
+            }
+            logger.logStatus( "Finished annotating "
+                    + pipeline.getNumCompleted() + " documents ("
+                    + numQuarantined.get() + " quarantined, "
+                    + ( pipeline.getNumDropped() - numQuarantined.get() )
+                    + " deferred, " + numPassedThrough
+                    + " already annotated, " + numDuplicates
+                    + " duplicate copies skipped)." );
+            if( sentenceAnnotator != null ) {
+                logger.logStatus( "The sentence cache answered "
+                        + sentenceCache.getNumHits() + " of "
+                        + ( sentenceCache.getNumHits()
+                            + sentenceCache.getNumMisses() )
+                        + " lookups; "
+                        + sentenceAnnotator.getNumDocumentsSkipped()
+                        + " documents needed no call to the annotator." );
+            }
+
+            // Written to the work path, so that the report (like the records
+            // themselves) is only promoted if this attempt succeeds.
+            if( stragglers.size() > 0 ) {
+                Path reportLoc = new Path(
+                        new Path( workOutputPath,
+                                  StragglerReport.STRAGGLER_DIR_NAME ),
+                        context.getTaskAttemptID().toString() + ".txt" );
+                stragglers.write( reportLoc, hdfs );
+                logger.logStatus( "Wrote report of " + stragglers.size()
+                        + " straggling documents to " + reportLoc );
+            }
+        }
+    }
+
+    /**
+     * Gets everything ready for annotating documents: sets up the Curator
+     * directories, launches the annotator and the Curator (if they aren't
+     * already running), and confirms that the annotation tool can be reached.
+     * @param context The job context
+     * @throws IOException If we cannot launch the Curator or the annotator
+     */
+    private void prepareToAnnotate( Context context )
+            throws IOException, InterruptedException {
         FileSystem fs = FileSystem.get( context.getConfiguration() );
         this.fsHandler = new FileSystemHandler( fs );
+        this.hdfs = fs;
+        // Containers are compressed as a whole by the SequenceFile, so the
+        // records inside them never need compressing on their own
+        recordCompression = context.getConfiguration()
+                .getBoolean( "packRecords", false ) ? RecordCompression.NONE
+                : RecordCompression.fromString( context.getConfiguration()
+                        .get( "recordCompression", "none" ) );
+        recordProtocol = RecordProtocol.fromString( context.getConfiguration()
+                .get( "recordProtocol",
+                      RecordFileFormat.DEFAULT_PROTOCOL.toString() ) );
+        rpcProtocol = RecordProtocol.fromString( context.getConfiguration()
+                .get( "rpcProtocol", RecordProtocol.BINARY.toString() ) );
+        setUpStragglerHandling( context );
         setEnvVars( context.getConfiguration() );
         setUpCuratorDirs( context.getConfiguration() );
 
-        AnnotationMode toolToRun = AnnotationMode
+        toolToRun = AnnotationMode
                 .fromString( context.getConfiguration().get("annotationMode") );
+        // Records we read ourselves need only the views this tool depends on
+        projector = ProjectingSerializer.forAnnotation( toolToRun );
+        projector.setCompression( recordCompression );
+        projector.setProtocol( recordProtocol );
+        // When writing to a columnar store or to deltas, only the new view is
+        // written out
+        writeViewOnly = context.getConfiguration()
+                .getBoolean( "columnarStore", false )
+                || context.getConfiguration().getBoolean( "deltaOutput", false );
+        reannotateExisting = context.getConfiguration()
+                .getBoolean( "reannotateExisting", false );
+
+        // Earlier delta-mode jobs left their views beside the input records.
+        // If we're only writing the new view, we only need the ones it
+        // depends on; otherwise, we need them all in the complete output.
+        deltas = new DeltaOverlay(
+                new Path( context.getConfiguration().get( "inputDirectory" ) ),
+                writeViewOnly ? projector.getWantedViews() : null,
+                fs, context.getConfiguration() );
+        if( !deltas.getViews().isEmpty() ) {
+            logger.log( "Overlaying deltas for " + deltas.getViews() );
+        }
 
         // Create a new Curator client object
-        client = new HadoopCuratorClient( fs );
+        client = new HadoopCuratorClient( rpcProtocol );
 
         // Launch the annotator and the Curator
         try {
@@ -117,87 +289,450 @@ public class CuratorReducer
             }
         }
 
+        // Remember who provides the annotation, for quarantine reports
+        try {
+            String source = client.describeAnnotations()
+                                  .get( toolToRun.toCuratorString() );
+            if( source != null ) {
+                annotatorSource = source;
+            }
+        } catch ( TException ignored ) { }
+
+        setUpSentenceCache( context.getConfiguration() );
+
         logger.logStatus( "Beginning document annotation." );
-        // Annotate each document (There should only ever be one, but the contract
-        // with reduce() says you have to accept an iterable of your values.)
-        for( HadoopRecord inValue : inValues ) {
-            String startingText = inValue.getRawText();
-
-            // Warn the user if the input record already has this annotation.
-            if( RecordTools.hasAnnotation( inValue, toolToRun ) ) {
-                logger.logWarning( "Document "
-                        + inValue.getIdentifier() + ", which begins '"
-                        + RecordTools.getBeginningOfOriginalText( inValue )
-                        + "', already has the requested "
-                        + toolToRun.toString() + " annotation:\n\t"
-                        + inValue.getLabelViews()
-                                 .get( toolToRun.toCuratorString() ) );
+    }
+
+    /**
+     * If the job asks for it (the "sentenceCacheSize" configuration option)
+     * and the annotation can be done a sentence at a time, puts a cache of
+     * sentence annotations in front of the annotator (see
+     * SentenceCachingAnnotator). Sentences evicted from memory are spilled to
+     * the task's local working directory, up to the
+     * "sentenceCacheSpillEntries" configuration option.
+     * @param conf The job configuration
+     */
+    private void setUpSentenceCache( Configuration conf ) {
+        int cacheSize = conf.getInt( "sentenceCacheSize", 0 );
+        if( cacheSize <= 0 ) {
+            return;
+        }
+        if( !SentenceCachingAnnotator.canCache( toolToRun ) ) {
+            logger.log( toolToRun.toString() + " annotations can't be cached "
+                        + "by sentence; not using the sentence cache." );
+            return;
+        }
+
+        sentenceCache = new SentenceCache( cacheSize,
+                new File( "sentence_cache" ),
+                conf.getInt( "sentenceCacheSpillEntries", 0 ) );
+        sentenceAnnotator = new SentenceCachingAnnotator( sentenceCache,
+                toolToRun, annotatorSource );
+        deadlineAnnotator = new SentenceCachingAnnotator.Annotator() {
+            public Record annotate( Record record ) throws IOException {
+                return annotateWithDeadline( record );
             }
+        };
+        logger.log( "Caching up to " + cacheSize + " sentence annotations." );
+    }
 
-            // Annotate the document, and do a toooooooon of error handling.
-            try {
+    /**
+     * Reads the per-document deadline and straggler threshold from the job
+     * configuration, and starts the watchdog thread that enforces the deadline.
+     * @param context The job context
+     */
+    private void setUpStragglerHandling( Context context )
+            throws IOException, InterruptedException {
+        Configuration conf = context.getConfiguration();
+        documentTimeoutMillis = 1000L * conf.getInt( "documentTimeoutSeconds", 0 );
+        stragglerThresholdMillis = 1000L * conf.getInt(
+                "stragglerThresholdSeconds", DEFAULT_STRAGGLER_THRESHOLD_SECONDS );
+        workOutputPath = FileOutputFormat.getWorkOutputPath( context );
+        stragglers = new StragglerReport();
+        sideOutputSerializer =
+                new HadoopSerializationHandler( recordCompression, recordProtocol );
+        maxConsecutiveFailures = conf.getInt( "maxConsecutiveFailures",
+                                              DEFAULT_MAX_CONSECUTIVE_FAILURES );
+        watchdog = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread( Runnable r ) {
+                        Thread t = new Thread( r, "annotation-watchdog" );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                } );
+    }
+
+    /**
+     * Builds the pipeline of stages that each document passes through: annotate
+     * (talks to the Curator), validate (sanity-checks the result), encode
+     * (serializes it in memory) and write (hands it to the RecordOutputFormat).
+     * Each stage runs on its own thread, so the Curator can be annotating one
+     * document while the previous one is being written.
+     *
+     * Only the annotate stage touches the Curator client's connection, and only
+     * the write stage touches the task's output.
+     * @param context The job context
+     * @return A pipeline, ready to be started
+     */
+    private AnnotationPipeline createPipeline( final Context context ) {
+        final HadoopSerializationHandler encoder =
+                new HadoopSerializationHandler( recordCompression,
+                                                recordProtocol );
+
+        AnnotationPipeline p = new AnnotationPipeline(
+                context.getConfiguration().getInt( "pipelineQueueCapacity",
+                                                   DEFAULT_PIPELINE_CAPACITY ) );
+
+        p.addStage( "annotate", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc )
+                    throws IOException {
+                if( doc.getAnnotated() != null ) {
+                    return; // already annotated; see reduce()
+                }
                 logger.logStatus( "Annotating the document that begins \""
-                        + RecordTools.getBeginningOfOriginalText( inValue )
-                        + "\" (has ID " + inValue.getDocumentHash() + ").");
-                client.annotateSingleDoc( inValue, toolToRun );
-            } catch (ServiceUnavailableException e) {
+                        + RecordTools.getBeginningOfOriginalText( doc.getInput() )
+                        + "\" (has ID " + doc.getHash() + ")." );
+                long startTime = System.currentTimeMillis();
+                boolean deferred = false;
                 try {
-                    String msg = toolToRun.toString() + " (a.k.a. '"
-                            + toolToRun.toCuratorString() + "')"
-                            + " annotations are not available.\nReason: "
-                            + e.getReason() + "\nWe know of these annotations: "
-                            + client.describeAnnotations().toString();
-                    logger.logError( msg );
-
-                    // Panic. This error probably indicates the NLP tool died a
-                    // fiery death.
-                    shutdownAllLocalNLPTools();
-                    throw new IOException( msg );
-                } catch ( TException ignored ) { }
-            } catch (TException e) {
-                String msg = "Transport exception when getting "
-                        + toolToRun.toString() + " annotation.\nMessage: "
-                        + e.getMessage() + "\nStack trace:\n"
-                        + MessageLogger.getPrettifiedList(
-                        Arrays.asList( e.getStackTrace() ) );
-                logger.logError( msg );
-
-                throw new IOException(msg);
-            } catch (AnnotationFailedException e) {
-                String msg = "Failed attempting annotation "
-                        + toolToRun.toString() + ".\nReason: " + e.getReason();
-                logger.logError( msg );
-                throw new IOException(msg);
-            } catch ( ServiceSecurityException e ) {
-                String msg = "Failed attempting database access for annotation "
-                        + toolToRun.toString() + ".\n" + e.getReason();
-                logger.logError( msg );
-
-                throw new IOException(msg);
+                    if( sentenceAnnotator != null ) {
+                        doc.setAnnotated( sentenceAnnotator.annotate(
+                                doc.getInput(), deadlineAnnotator ) );
+                    }
+                    else {
+                        doc.setAnnotated( annotateWithDeadline( doc.getInput() ) );
+                    }
+                    consecutiveFailures = 0;
+                } catch ( AnnotationTimeoutException e ) {
+                    // Don't let one pathological document hold up (or fail)
+                    // the whole task. Set it aside for a later job instead.
+                    deferDocument( doc );
+                    deferred = true;
+                } catch ( IOException e ) {
+                    quarantineDocument( doc, "annotate", e );
+                    ++consecutiveFailures;
+                    dieIfAnnotatorLooksDead();
+                }
+
+                long elapsed = System.currentTimeMillis() - startTime;
+                if( deferred || elapsed > stragglerThresholdMillis ) {
+                    stragglers.add( doc.getHash(),
+                                    doc.getInput().getRawText().length(),
+                                    elapsed, deferred );
+                }
+            }
+        } );
+
+        p.addStage( "validate", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc )
+                    throws IOException {
+                // Check that the raw text roughly matches what we started with.
+                logger.logStatus( "Checking for catastrophic errors that may have "
+                                  + "occurred during annotation of "
+                                  + doc.getHash() + "." );
+                try {
+                    dieIfTextDoesntMatch( doc.getInput().getRawText(),
+                                          doc.getAnnotated().getRawText() );
+                } catch ( IOException e ) {
+                    quarantineDocument( doc, "validate", e );
+                }
             }
+        } );
 
+        p.addStage( "encode", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc )
+                    throws IOException {
+                if( writeViewOnly ) {
+                    doc.setSerialized( encodeNewView( doc ) );
+                } else {
+                    doc.setSerialized( encode( doc, doc.getAnnotated(), encoder ) );
+                }
+            }
+        } );
+
+        p.addStage( "write", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc )
+                    throws IOException, InterruptedException {
+                // Hand the serialized record to the RecordOutputFormat, which
+                // writes it to this task attempt's temporary output directory
+                logger.logStatus( "Writing the annotation's output for "
+                                  + doc.getHash() + "." );
+                SerializedRecord out = new SerializedRecord( doc.getHash(),
+                        doc.getSerialized(), countViews( doc ) );
+                out.setDocumentStats( doc.getAnnotated(), listAnnotations( doc ) );
+                context.write( new Text( doc.getHash() ), out );
+                context.progress();
+
+                logger.logStatus( "Finished serializing record "
+                        + doc.getHash() + "." );
+            }
+        } );
 
-            // Check that the raw text roughly matches what we started with.
-            logger.logStatus( "Checking for catastrophic errors that may have "
-                              + "occurred during annotation." );
-            dieIfTextDoesntMatch( startingText,
-                                  client.getLastAnnotatedRecord().getRawText() );
+        return p;
+    }
 
+    /**
+     * Annotates a single document, giving up on it if the Curator hasn't
+     * answered within the per-document deadline (the "documentTimeoutSeconds"
+     * configuration option; 0 means wait forever). We give up by closing the
+     * client's connection out from under the pending request, which is the
+     * only way to interrupt a blocking Thrift call.
+     * @param inValue The record to annotate
+     * @return The annotated version of the record
+     * @throws AnnotationTimeoutException If the deadline passed before the
+     *                                    annotation came back
+     * @throws IOException If the annotation fails for any other reason
+     */
+    private Record annotateWithDeadline( Record inValue ) throws IOException {
+        if( documentTimeoutMillis <= 0 ) {
+            return annotate( inValue );
+        }
 
-            // Serialize the updated record to the output directory
-            logger.logStatus( "Writing the annotation's output." );
-            Path outputDir = new Path( context.getConfiguration().get("outputDirectory") );
-            try {
-                client.writeOutputFromLastAnnotate( outputDir );
-            } catch ( TException e ) {
-                logger.logError( "Thrift error in HadoopCuratorClient writing " +
-                                "output from annotation: " + e.getMessage() );
-                e.printStackTrace();
+        final AtomicBoolean timedOut = new AtomicBoolean( false );
+        ScheduledFuture<?> alarm = watchdog.schedule( new Runnable() {
+            public void run() {
+                timedOut.set( true );
+                client.abortPendingRequest();
             }
+        }, documentTimeoutMillis, TimeUnit.MILLISECONDS );
 
-            // Pass Curator output back to Hadoop as Record
-            logger.logStatus( "Finished serializing record "
-                    + inValue.getDocumentHash() + " to " + outputDir.toString() );
+        try {
+            return annotate( inValue );
+        } catch ( IOException e ) {
+            if( timedOut.get() ) {
+                throw new AnnotationTimeoutException( "Gave up annotating "
+                        + "document " + inValue.getIdentifier() + " after "
+                        + documentTimeoutMillis + " ms." );
+            }
+            throw e;
+        } finally {
+            alarm.cancel( false );
+        }
+    }
+
+    /**
+     * Sets a document aside, unannotated, so that it can be retried in a later
+     * job (e.g., with a longer deadline, or on its own). Its input record is
+     * written to the "_deferred" directory of this task attempt's output, and
+     * it is dropped from the pipeline.
+     * @param doc The document to defer
+     */
+    private void deferDocument( AnnotationPipeline.Document doc )
+            throws IOException {
+        Path deferredLoc = new Path(
+                new Path( workOutputPath, StragglerReport.DEFERRED_DIR_NAME ),
+                doc.getHash() + ".txt" );
+        logger.logWarning( "Document " + doc.getHash() + " took longer than "
+                + documentTimeoutMillis + " ms to annotate. Deferring it to "
+                + deferredLoc.toString() );
+        writeSideRecord( doc, deferredLoc );
+        doc.drop();
+    }
+
+    /**
+     * Sets aside a document that could not be annotated, so that one bad
+     * document doesn't cost us a failed task attempt (and with it, a cold
+     * restart of the annotator). Its input record is written to
+     * "_quarantine/records" and a description of what went wrong to
+     * "_quarantine/reasons" in this task attempt's output. Because the
+     * records directory holds ordinary serialized input records, a follow-up
+     * job can retry just the quarantined documents by using it as its input
+     * directory.
+     * @param doc The document that failed
+     * @param stageName The pipeline stage in which it failed
+     * @param cause The failure
+     */
+    private void quarantineDocument( AnnotationPipeline.Document doc,
+                                     String stageName, IOException cause )
+            throws IOException {
+        Path quarantineDir = new Path( workOutputPath, QUARANTINE_DIR_NAME );
+        Path recordLoc = new Path( new Path( quarantineDir, "records" ),
+                                   doc.getHash() + ".txt" );
+        Path reasonLoc = new Path( new Path( quarantineDir, "reasons" ),
+                                   doc.getHash() + ".txt" );
+        logger.logWarning( "Quarantining document " + doc.getHash()
+                + " after failure in the " + stageName + " stage: "
+                + cause.getMessage() );
+
+        StringBuilder reason = new StringBuilder();
+        reason.append( "Document: " ).append( doc.getHash() ).append( '\n' );
+        reason.append( "Annotation: " ).append( toolToRun.toString() )
+              .append( '\n' );
+        reason.append( "Annotator: " ).append( annotatorSource ).append( '\n' );
+        reason.append( "Stage: " ).append( stageName ).append( '\n' );
+        reason.append( "Time: " ).append( new Date().toString() ).append( '\n' );
+        reason.append( "Error: " ).append( cause.getMessage() ).append( '\n' );
+
+        writeSideRecord( doc, recordLoc );
+        fsHandler.writeFileToHDFS( reason.toString(), reasonLoc );
+        numQuarantined.incrementAndGet();
+        doc.drop();
+    }
+
+    /**
+     * A single bad document is the document's problem, but a long run of them
+     * almost certainly means the annotator itself has died. In that case,
+     * there's no point quarantining the rest of the input: we shut the local
+     * NLP tools down and fail the task, so that Hadoop retries it somewhere
+     * (or after a restart) where the annotator works.
+     * @throws IOException If too many documents in a row have failed
+     */
+    private void dieIfAnnotatorLooksDead() throws IOException {
+        if( consecutiveFailures >= maxConsecutiveFailures ) {
+            String msg = consecutiveFailures + " documents in a row failed "
+                    + "annotation with " + toolToRun.toString()
+                    + ". The annotator is probably dead; giving up on this "
+                    + "task.";
+            logger.logError( msg );
+            shutdownAllLocalNLPTools();
+            throw new IOException( msg );
+        }
+    }
+
+    /**
+     * Writes a document's (unannotated) input record to one of the side
+     * directories (for deferred or quarantined documents).
+     * @param doc The document whose input record we should write
+     * @param destination The file to write it to
+     */
+    private void writeSideRecord( AnnotationPipeline.Document doc,
+                                  Path destination ) throws IOException {
+        sideOutputSerializer.writeSerialized(
+                encode( doc, doc.getInput(), sideOutputSerializer ),
+                destination, hdfs );
+    }
+
+    /**
+     * Serializes one version of a document's record. If the record was read
+     * with a projection, the views that were skipped are written back out
+     * unchanged alongside it, so that no annotation is lost.
+     * @param doc The document the record belongs to
+     * @param record The version of the record to serialize (input or
+     *               annotated)
+     * @param serializer The serializer to use for records read in full
+     * @return The serialized record
+     */
+    private byte[] encode( AnnotationPipeline.Document doc, Record record,
+                           HadoopSerializationHandler serializer )
+            throws IOException {
+        try {
+            if( doc.getProjection() != null ) {
+                return projector.serializeToBytes( record, doc.getProjection() );
+            }
+            return serializer.serializeToBytes( record );
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error serializing record "
+                    + doc.getHash() + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Serializes only the view this reducer produced, for the document's entry
+     * in the view's column of a ColumnarRecordStore
+     * @param doc An annotated document
+     * @return The serialized view
+     */
+    private byte[] encodeNewView( AnnotationPipeline.Document doc )
+            throws IOException {
+        try {
+            return ColumnarRecordStore.encodeView( doc.getAnnotated(),
+                                                   toolToRun.toCuratorString() );
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error serializing the "
+                    + toolToRun.toString() + " view of record "
+                    + doc.getHash() + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * @param doc A document, as received by reduce()
+     * @return True if the document already has the annotation this reducer
+     *         would give it, whether among its decoded views or its skipped
+     *         ones
+     */
+    private boolean hasRequestedAnnotation( AnnotationPipeline.Document doc ) {
+        if( RecordTools.hasAnnotation( doc.getInput(), toolToRun ) ) {
+            return true;
+        }
+        return doc.getProjection() != null
+                && doc.getProjection().getAnnotationsList().contains( toolToRun );
+    }
+
+    /**
+     * @param doc An annotated document
+     * @return Every annotation the document now has, including any views that
+     *         were skipped when it was read
+     */
+    private Set<AnnotationMode> listAnnotations( AnnotationPipeline.Document doc ) {
+        Set<AnnotationMode> annotations = new HashSet<AnnotationMode>(
+                RecordTools.getAnnotationsList( doc.getAnnotated() ) );
+        if( doc.getProjection() != null ) {
+            annotations.addAll( doc.getProjection().getAnnotationsList() );
+        }
+        return annotations;
+    }
+
+    /**
+     * @param doc An annotated document
+     * @return The number of views in the document's serialized output,
+     *         including any views that were skipped when it was read
+     */
+    private int countViews( AnnotationPipeline.Document doc ) {
+        if( writeViewOnly ) {
+            return 1;
+        }
+        if( doc.getProjection() != null ) {
+            return doc.getProjection().getNumViews( doc.getAnnotated() );
+        }
+        return RecordTools.getNumViews( doc.getAnnotated() );
+    }
+
+    /**
+     * Asks the Curator to annotate a single document with the tool this reducer
+     * is running, and does a toooooooon of error handling.
+     * @param inValue The record to annotate
+     * @return The annotated version of the record
+     * @throws IOException If the annotation fails for any reason
+     */
+    private Record annotate( Record inValue ) throws IOException {
+        try {
+            return client.annotateSingleDoc( inValue, toolToRun );
+        } catch (ServiceUnavailableException e) {
+            String msg = toolToRun.toString() + " (a.k.a. '"
+                    + toolToRun.toCuratorString() + "')"
+                    + " annotations are not available.\nReason: "
+                    + e.getReason();
+            try {
+                msg = msg + "\nWe know of these annotations: "
+                        + client.describeAnnotations().toString();
+            } catch ( TException ignored ) { }
+            logger.logError( msg );
+
+            // This error probably indicates the NLP tool died a fiery death,
+            // but we leave it to dieIfAnnotatorLooksDead() to decide when to
+            // panic, so that a single odd document can't take the tools down.
+            throw new IOException( msg );
+        } catch (TException e) {
+            String msg = "Transport exception when getting "
+                    + toolToRun.toString() + " annotation.\nMessage: "
+                    + e.getMessage() + "\nStack trace:\n"
+                    + MessageLogger.getPrettifiedList(
+                    Arrays.asList( e.getStackTrace() ) );
+            logger.logError( msg );
+
+            throw new IOException(msg);
+        } catch (AnnotationFailedException e) {
+            String msg = "Failed attempting annotation "
+                    + toolToRun.toString() + ".\nReason: " + e.getReason();
+            logger.logError( msg );
+            throw new IOException(msg);
+        } catch ( ServiceSecurityException e ) {
+            String msg = "Failed attempting database access for annotation "
+                    + toolToRun.toString() + ".\n" + e.getReason();
+            logger.logError( msg );
+
+            throw new IOException(msg);
         }
     }
 
@@ -511,8 +1046,8 @@ public class CuratorReducer
      */
     private void dieIfTextDoesntMatch( String original, String other )
             throws IOException {
-        if( other.equals( other ) ) {
-            int diff = StringUtils.getLevenshteinDistance( other,
+        if( !original.equals( other ) ) {
+            int diff = StringUtils.getLevenshteinDistance( original,
                     other );
             // Unless the diff is greater than a few characters, we can
             // probably attribute it to differences in line endings and
@@ -520,7 +1055,7 @@ public class CuratorReducer
             if( diff > 10 ) {
                 throw new IOException("Raw text for a record has changed. "
                         + "This is a big problem.\n\nIt used to be: "
-                        + other + "\n\n...but it's now: "
+                        + original + "\n\n...but it's now: "
                         + other );
             }
         }
@@ -765,6 +1300,12 @@ public class CuratorReducer
         launchScript.append(" --port " );
         launchScript.append( Integer.toString( HadoopCuratorClient.PORT ) );
         launchScript.append(" --threads 10");
+        // Curators built without the --protocol option refuse to start if
+        // given it, and speak binary anyway
+        if( rpcProtocol != RecordProtocol.BINARY ) {
+            launchScript.append(" --protocol ");
+            launchScript.append( rpcProtocol.toString().toLowerCase() );
+        }
 
         logger.logStatus( "Launching Curator on node with "
                 + "command \n\t" + launchScript.toString() );
@@ -1136,11 +1677,40 @@ public class CuratorReducer
 
     private FileSystemHandler fsHandler;
     private HadoopCuratorClient client;
+    private AnnotationMode toolToRun;
+    private AnnotationPipeline pipeline;
+    private FileSystem hdfs;
+    private Path workOutputPath;
+    private ScheduledExecutorService watchdog;
+    private long documentTimeoutMillis;
+    private long stragglerThresholdMillis;
+    private StragglerReport stragglers;
+    private HadoopSerializationHandler sideOutputSerializer;
+    private ProjectingSerializer projector;
+    private RecordCompression recordCompression;
+    private RecordProtocol recordProtocol;
+    private RecordProtocol rpcProtocol;
+    private boolean writeViewOnly;
+    private boolean reannotateExisting;
+    private int numPassedThrough = 0;
+    private int numDuplicates = 0;
+    private SentenceCache sentenceCache;
+    private SentenceCachingAnnotator sentenceAnnotator;
+    private SentenceCachingAnnotator.Annotator deadlineAnnotator;
+    private DeltaOverlay deltas;
+    private int maxConsecutiveFailures;
+    private int consecutiveFailures = 0; // only touched by the annotate stage
+    private final AtomicInteger numQuarantined = new AtomicInteger( 0 );
+    private String annotatorSource = "unknown";
     private String [] envVarsForRuntimeExec;
     private List<Process> spawnedCuratorProcesses;
     private List<Process> spawnedAnnotatorProcesses;
     private Set<AnnotationMode> toolsThatMustBeLaunched;
     private static final MessageLogger logger = HadoopInterface.logger;
     private static final int MAX_ATTEMPTS = 10;
+    private static final int DEFAULT_PIPELINE_CAPACITY = 4;
+    private static final int DEFAULT_STRAGGLER_THRESHOLD_SECONDS = 60;
+    private static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 5;
+    public static final String QUARANTINE_DIR_NAME = "_quarantine";
     private File curatorLock; // locks the installation of Curator we are using
 }
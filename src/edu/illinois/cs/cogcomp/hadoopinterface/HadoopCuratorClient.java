@@ -1,19 +1,13 @@
 package edu.illinois.cs.cogcomp.hadoopinterface;
 
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
-import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
-
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordProtocol;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
 import edu.illinois.cs.cogcomp.thrift.base.AnnotationFailedException;
 import edu.illinois.cs.cogcomp.thrift.base.ServiceSecurityException;
 import edu.illinois.cs.cogcomp.thrift.base.ServiceUnavailableException;
 import edu.illinois.cs.cogcomp.thrift.curator.Record;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransport;
-
-import java.io.IOException;
 
 /**
  * Similar in functionality to the CuratorClient.java (packaged with the Curator,
@@ -27,8 +21,8 @@ import java.io.IOException;
  *   2. Call annotateSingleDoc() on your document record. The Curator Client will
  *      handle all the type conversions for the record and ask the locally
  *      running Curator to annotate it.
- *   3. Call writeOutputFromLastAnnotate() to write that new annotation to the
- *      Hadoop Distributed File System (HDFS).
+ *   3. Hand the annotated record to the job's output (see CuratorReducer),
+ *      which writes it to the Hadoop Distributed File System (HDFS).
  *
  * Note that it is *your* responsibility to make sure there is a Curator running
  * on this node, and that the annotation tool you want to use is running on
@@ -39,28 +33,32 @@ import java.io.IOException;
 public class HadoopCuratorClient extends CuratorClient {
     /**
      * Constructs a Curator Client.
-     * @param hdfs A FileSystem object to handle interactions with the local
-     *                file system
      */
-    public HadoopCuratorClient( FileSystem hdfs ) {
-        super("localhost", PORT);
-
-        this.hdfs = hdfs;
-        transport = super.getTransport();
+    public HadoopCuratorClient() {
+        this( RecordProtocol.BINARY );
+    }
 
-        serializer = new HadoopSerializationHandler();
+    /**
+     * Constructs a Curator Client which speaks the indicated Thrift protocol to
+     * the local Curator. That Curator must have been launched with the
+     * matching --protocol option (see CuratorReducer#startCurator()).
+     * @param rpcProtocol The protocol to use for calls to the Curator
+     */
+    public HadoopCuratorClient( RecordProtocol rpcProtocol ) {
+        super("localhost", PORT, rpcProtocol);
     }
 
     /**
      * Requests an annotation from the indicated annotation tool (running on the
-     * local node) for the indicated document record. Stores the result in this
-     * object for later output through the writeOutputFromLastAnnotate() method.
+     * local node) for the indicated document record.
      * @param record The document record on which we will run the annotation tool
      * @param toolToRun The type of annotation that we should get for the record
+     * @return The annotated record (the same object that
+     *         #getLastAnnotatedRecord() will return until the next annotation)
      * @postcondition lastAnnotatedRecord contains all of the record parameter's
      *                previous annotations, along with the new one
      */
-	public void annotateSingleDoc( Record record,
+	public Record annotateSingleDoc( Record record,
                                    AnnotationMode toolToRun )
             throws ServiceUnavailableException, TException,
             AnnotationFailedException, ServiceSecurityException {
@@ -70,54 +68,8 @@ public class HadoopCuratorClient extends CuratorClient {
         if( !RecordTools.hasAnnotation( lastAnnotatedRecord, toolToRun ) ) {
             throw new AnnotationFailedException("Annotation was unsuccessful!");
         }
-    }
-
-    /**
-     * Writes the results of the last call to annotate() to the specified
-     * directory in HDFS. This is equivalent to serializing the results of a call to
-     * annotate() to the directory.
-     * @param outputDir The directory to which the results of the last call
-     *                  to annotate() should be written. Each serialized document
-     *                  should be named with the document's hash.
-     */
-    public void writeOutputFromLastAnnotate( Path outputDir )
-            throws TException, IOException {
-        Path fileLoc = getLocForSerializedForm( lastAnnotatedRecord, outputDir );
 
-        try {
-            if( !transport.isOpen() ) {
-                transport.open();
-            }
-            serializer.serialize( lastAnnotatedRecord, fileLoc, hdfs );
-
-            Record reconstructed = serializer.deserialize( fileLoc, hdfs );
-            if( !RecordTools.hasAnnotations( reconstructed ) ) {
-                throw new IOException( "Reconstructed record has no annotations, but original has the following: "
-                                       + RecordTools.getContents( lastAnnotatedRecord ) );
-            }
-        }
-        finally {
-            if( transport.isOpen() ) {
-                transport.close();
-            }
-        }
-    }
-
-    /**
-     * Returns the location of the serialized form of the indicated record, which
-     * depends on the location that it should be written to. At present, this will
-     * always be a text file, named with the record's hash, within the containing
-     * directory. However, this is subject to change. As an example, the current
-     * structure simply contains a number of [document_hash].txt files within the
-     * output directory.
-     *
-     * @param r The record in question
-     * @param containingDir The directory containing this serialized record
-     * @return The location at which the serialized form of the record should
-     *         be found
-     */
-    private Path getLocForSerializedForm( Record r, Path containingDir ) {
-        return new Path( containingDir, r.getIdentifier() + ".txt" );
+        return lastAnnotatedRecord;
     }
 
     /**
@@ -130,9 +82,5 @@ public class HadoopCuratorClient extends CuratorClient {
     }
 
     private Record lastAnnotatedRecord;
-    private FileSystem hdfs;
-    private TTransport transport;
     public static final int PORT = 9010;
-
-    private HadoopSerializationHandler serializer;
 }
@@ -77,16 +77,50 @@ public class HadoopInterface {
             job.setUpIODirectories();
             logger.logStatus( "Checking file system" );
             job.checkFileSystem();
+            if( job.isResuming() ) {
+                job.skipCompletedDocuments();
+            }
+            if( job.isBalancingLoad() ) {
+                job.balanceReduceLoad();
+            }
 
             // Start a map/reduce job -- runJob(jobConf) takes the job
             // configuration we just set up and distributes it to Hadoop nodes
             logger.logStatus( "Starting MapReduce job" );
             final long startTime = System.currentTimeMillis();
             logger.delayWritingToDisk();
-            job.start();
+            final boolean succeeded = job.start();
             final double duration = ( System.currentTimeMillis() - startTime )
                                     / 1000.0;
             logger.log( "Job finished in " + duration + " seconds" );
+            if( !succeeded ) {
+                logger.logError( "The job failed or was killed; its output "
+                        + "in " + job.getOutputDirectory() + " may be "
+                        + "incomplete." );
+            }
+
+            // The windows of a failed job may be partial or missing, so
+            // they're left as they are
+            if( job.isWindowing() ) {
+                if( succeeded ) {
+                    job.mergeWindows();
+                }
+                else {
+                    logger.logError( "Not merging the split documents' "
+                            + "windows back together." );
+                }
+            }
+
+            // Compacting a failed job's deltas could fold partial views into
+            // the base records
+            if( job.isWritingDeltas() ) {
+                if( succeeded ) {
+                    job.compactDeltasIfNeeded();
+                }
+                else {
+                    logger.logError( "Not compacting the input's deltas." );
+                }
+            }
         } finally {
             logger.continueWritingToDisk();
             job.cleanUpTempFiles();
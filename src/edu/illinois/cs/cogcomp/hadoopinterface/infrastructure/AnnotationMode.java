@@ -13,6 +13,8 @@ import java.util.regex.Pattern;
  * @author Tyler Young
  */
 public enum AnnotationMode {
+    // Job manifests store sets of these as bitmasks, by ordinal (see
+    // #toBitmask()). Add new modes to the end of the list, never the middle!
     CHUNK, COREF, NER, NOM_SRL, PARSE, POS, SENTENCE, STANFORD_PARSE, TOKEN, VERB_SRL, WIKI;
 
     /**
@@ -96,6 +98,35 @@ public enum AnnotationMode {
         return sBuilder.toString();
     }
 
+    /**
+     * Packs a set of annotation modes into a bitmask, one bit per mode
+     * @param modes The annotation modes to pack
+     * @return A bitmask with the bit for each mode (i.e., 1 shifted left by
+     *         the mode's ordinal) set
+     */
+    public static long toBitmask( Collection<AnnotationMode> modes ) {
+        long mask = 0;
+        for( AnnotationMode mode : modes ) {
+            mask |= 1L << mode.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Unpacks a bitmask written by #toBitmask()
+     * @param mask A bitmask of annotation modes
+     * @return The annotation modes whose bits are set in the mask
+     */
+    public static Set<AnnotationMode> fromBitmask( long mask ) {
+        Set<AnnotationMode> modes = EnumSet.noneOf( AnnotationMode.class );
+        for( AnnotationMode mode : values() ) {
+            if( ( mask & ( 1L << mode.ordinal() ) ) != 0 ) {
+                modes.add( mode );
+            }
+        }
+        return modes;
+    }
+
     /**
      * Converts our own enumerated type to the string identifier used in the
      * Curator. E.g., if you pass in AnnotationMode.NER, you get back "ner-ext".
@@ -38,7 +38,21 @@ public class ArgumentParser {
             err.append( " directory>] [-maps <number of maps>] [-reduces " );
             err.append( "<number of reduces>] [-lib /path/to/lib/on/hadoop_nodes] " +
                     "[-curator /path/on/hadoop_nodes/to/curator] [-shared]" +
-                    " [-test]\n" );
+                    " [-verify <fraction of output to read back>] [-pack]" +
+                    " [-compress <none|deflate|gzip|snappy|lz4>]" +
+                    " [-protocol <compact|binary>]" +
+                    " [-rpcProtocol <compact|binary>]" +
+                    " [-timeout <seconds per document>]" +
+                    " [-straggler <seconds per document>]" +
+                    " [-maxFailures <documents in a row>]" +
+                    " [-pipelineCapacity <documents>]" +
+                    " [-splitThreads <threads>] [-balance]" +
+                    " [-references] [-columnar]" +
+                    " [-delta [-compactAfter <number of deltas>]] [-sharded]" +
+                    " [-reannotate] [-resume]" +
+                    " [-sentenceCache <number of sentences>" +
+                    " [-sentenceCacheSpill <number of sentences>]]" +
+                    " [-window <characters per window>] [-test]\n" );
             err.append( "You tried to pass these parameters:\n\t" );
 
             for( String arg : args ) {
@@ -85,6 +99,69 @@ public class ArgumentParser {
                 else if( args[i].equals("-curator") ) {
                     curatorLoc = args[ ++i ];
                 }
+                else if( args[i].equals("-verify") ) {
+                    deepVerifyRate = Double.parseDouble( args[++i] );
+                }
+                else if( args[i].equals("-pack") ) {
+                    packRecords = true;
+                }
+                else if( args[i].equals("-compress") ) {
+                    compression = RecordCompression.fromString( args[++i] );
+                }
+                else if( args[i].equals("-protocol") ) {
+                    protocol = RecordProtocol.fromString( args[++i] );
+                }
+                else if( args[i].equals("-rpcProtocol") ) {
+                    rpcProtocol = RecordProtocol.fromString( args[++i] );
+                }
+                else if( args[i].equals("-timeout") ) {
+                    documentTimeout = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-straggler") ) {
+                    stragglerThreshold = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-maxFailures") ) {
+                    maxConsecutiveFailures = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-pipelineCapacity") ) {
+                    pipelineCapacity = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-splitThreads") ) {
+                    splitThreads = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-balance") ) {
+                    balanceLoad = true;
+                }
+                else if( args[i].equals("-references") ) {
+                    shuffleReferences = true;
+                }
+                else if( args[i].equals("-columnar") ) {
+                    columnar = true;
+                }
+                else if( args[i].equals("-delta") ) {
+                    deltaOutput = true;
+                }
+                else if( args[i].equals("-compactAfter") ) {
+                    compactAfter = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-sharded") ) {
+                    sharded = true;
+                }
+                else if( args[i].equals("-reannotate") ) {
+                    reannotate = true;
+                }
+                else if( args[i].equals("-resume") ) {
+                    resume = true;
+                }
+                else if( args[i].equals("-sentenceCache") ) {
+                    sentenceCacheSize = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-sentenceCacheSpill") ) {
+                    sentenceCacheSpillEntries = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals("-window") ) {
+                    windowChars = Integer.parseInt( args[++i] );
+                }
             }
 
             if( mode == null ) {
@@ -104,6 +181,75 @@ public class ArgumentParser {
                         + "must be 1 or more. You specified "
                         + Integer.toString( numReduces ) + "." );
             }
+            if( deepVerifyRate < 0 || deepVerifyRate > 1 ) {
+                throw new IllegalArgumentException( "The fraction of output "
+                        + "records to verify must be between 0 and 1. You "
+                        + "specified " + Double.toString( deepVerifyRate ) + "." );
+            }
+            if( documentTimeout < 0 ) {
+                throw new IllegalArgumentException( "The per-document timeout "
+                        + "must be 0 (no timeout) or more seconds. You "
+                        + "specified " + Integer.toString( documentTimeout ) + "." );
+            }
+            if( stragglerThreshold != null && stragglerThreshold < 1 ) {
+                throw new IllegalArgumentException( "The straggler threshold "
+                        + "must be 1 or more seconds. You specified "
+                        + Integer.toString( stragglerThreshold ) + "." );
+            }
+            if( maxConsecutiveFailures != null && maxConsecutiveFailures < 1 ) {
+                throw new IllegalArgumentException( "The number of failures "
+                        + "in a row to allow must be 1 or more. You specified "
+                        + Integer.toString( maxConsecutiveFailures ) + "." );
+            }
+            if( pipelineCapacity != null && pipelineCapacity < 1 ) {
+                throw new IllegalArgumentException( "The reducers' pipeline "
+                        + "capacity must be 1 or more documents. You specified "
+                        + Integer.toString( pipelineCapacity ) + "." );
+            }
+            if( splitThreads != null && splitThreads < 1 ) {
+                throw new IllegalArgumentException( "The number of threads "
+                        + "with which to compute splits must be 1 or more. You "
+                        + "specified " + Integer.toString( splitThreads ) + "." );
+            }
+            if( compactAfter < 1 ) {
+                throw new IllegalArgumentException( "The number of deltas to "
+                        + "allow before compacting must be 1 or more. You "
+                        + "specified " + Integer.toString( compactAfter ) + "." );
+            }
+            if( columnar && deltaOutput ) {
+                throw new BadCommandLineUsageException( "A columnar store "
+                        + "already writes only the new view; -delta can't be "
+                        + "combined with -columnar." );
+            }
+            if( sentenceCacheSize < 0 ) {
+                throw new IllegalArgumentException( "The number of sentence "
+                        + "annotations to cache must be 0 (no cache) or more. "
+                        + "You specified "
+                        + Integer.toString( sentenceCacheSize ) + "." );
+            }
+            if( sentenceCacheSpillEntries < 0 ) {
+                throw new IllegalArgumentException( "The number of sentence "
+                        + "annotations to spill to disk must be 0 (no spill) "
+                        + "or more. You specified "
+                        + Integer.toString( sentenceCacheSpillEntries ) + "." );
+            }
+            if( windowChars < 0 ) {
+                throw new IllegalArgumentException( "The window size must be "
+                        + "0 (don't split documents) or more characters. You "
+                        + "specified " + Integer.toString( windowChars ) + "." );
+            }
+            if( windowChars > 0 && ( packRecords || columnar || deltaOutput ) ) {
+                throw new BadCommandLineUsageException( "Split documents are "
+                        + "merged back together in a directory of one file "
+                        + "per document; -window can't be combined with -pack, "
+                        + "-columnar or -delta." );
+            }
+            if( resume && ( packRecords || columnar || deltaOutput ) ) {
+                throw new BadCommandLineUsageException( "Only a directory of "
+                        + "one file per document can be resumed; -resume "
+                        + "can't be combined with -pack, -columnar or "
+                        + "-delta." );
+            }
             if( numMaps != null && numMaps < 1 ) {
                 throw new IllegalArgumentException( "Number of map operations "
                         + "must be 1 or more. You specified "
@@ -230,6 +376,198 @@ public class ArgumentParser {
         return shared;
     }
 
+    /**
+     * @return The fraction (between 0 and 1) of output records that should be
+     *         read back from HDFS and fully verified after being written. By
+     *         default, this is 0 (we trust the checksums computed while writing).
+     */
+    public double getDeepVerifyRate() {
+        return deepVerifyRate;
+    }
+
+    /**
+     * @return True if the job should pack its output records into a few large
+     *         container files rather than writing one file per document
+     */
+    public boolean isPackingRecords() {
+        return packRecords;
+    }
+
+    /**
+     * @return The compression to apply to the job's output. Packed output is
+     *         compressed by the container files themselves; otherwise, each
+     *         record file is compressed on its own (see RecordFileFormat).
+     */
+    public RecordCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return The Thrift protocol with which to serialize the job's output
+     *         records. By default, this is RecordFileFormat#DEFAULT_PROTOCOL;
+     *         use BINARY (without compression) for output the Curator itself
+     *         can read.
+     */
+    public RecordProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return The Thrift protocol the reducers' Curators should speak to
+     *         their clients (the Curator is launched with the matching
+     *         --protocol option). By default, this is BINARY, which is all the
+     *         annotators and any stock Curator understand.
+     */
+    public RecordProtocol getRpcProtocol() {
+        return rpcProtocol;
+    }
+
+    /**
+     * @return The number of seconds a reducer may spend annotating a single
+     *         document before giving up on it and deferring it to a later job.
+     *         By default, this is 0 (no limit).
+     */
+    public int getDocumentTimeout() {
+        return documentTimeout;
+    }
+
+    /**
+     * @return The number of seconds beyond which a document's annotation is
+     *         listed in the reducers' straggler reports, or null if the user
+     *         didn't specify one (in which case the reducers use their own
+     *         default)
+     */
+    public Integer getStragglerThreshold() {
+        return stragglerThreshold;
+    }
+
+    /**
+     * @return The number of documents in a row which may fail annotation
+     *         before a reducer decides its annotator has died, or null if the
+     *         user didn't specify one (in which case the reducers use their
+     *         own default)
+     */
+    public Integer getMaxConsecutiveFailures() {
+        return maxConsecutiveFailures;
+    }
+
+    /**
+     * @return The number of documents which may wait between each stage of a
+     *         reducer's annotation pipeline, or null if the user didn't
+     *         specify one (in which case the reducers use their own default)
+     */
+    public Integer getPipelineCapacity() {
+        return pipelineCapacity;
+    }
+
+    /**
+     * @return The number of threads with which to look up the input
+     *         documents' block locations while computing splits, or null if
+     *         the user didn't specify one (in which case the input format
+     *         uses its own default)
+     */
+    public Integer getSplitThreads() {
+        return splitThreads;
+    }
+
+    /**
+     * @return True if documents should be assigned to reducers according to
+     *         their estimated annotation cost, rather than by hash
+     */
+    public boolean isBalancingLoad() {
+        return balanceLoad;
+    }
+
+    /**
+     * @return True if mappers should send reducers only references to the
+     *         input records (which the reducers then read from HDFS), rather
+     *         than the full records
+     */
+    public boolean isShufflingReferences() {
+        return shuffleReferences;
+    }
+
+    /**
+     * @return True if the input directory is a columnar record store, to
+     *         which the job should add the new annotation's view column
+     */
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    /**
+     * @return True if the job should write only the new view, as a delta
+     *         beside the input records, rather than complete output records
+     */
+    public boolean isWritingDeltas() {
+        return deltaOutput;
+    }
+
+    /**
+     * @return The number of deltas that may accumulate beside the input
+     *         records before they are compacted into them
+     */
+    public int getCompactAfter() {
+        return compactAfter;
+    }
+
+    /**
+     * @return True if the job should file its output records in hash-prefix
+     *         shard directories (see ShardedLayout) rather than all in the
+     *         output directory itself
+     */
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * @return True if documents which already have the requested annotation
+     *         should be annotated again (replacing the old annotation), rather
+     *         than passed through untouched
+     */
+    public boolean isReannotating() {
+        return reannotate;
+    }
+
+    /**
+     * @return True if the job should keep the records already in its output
+     *         directory (from an earlier, interrupted run of the same job)
+     *         and process only the documents which are not yet among them
+     */
+    public boolean isResuming() {
+        return resume;
+    }
+
+    /**
+     * @return The number of sentence annotations each reducer should keep in
+     *         memory for reuse (see SentenceCachingAnnotator), or 0 if
+     *         sentences shouldn't be cached
+     */
+    public int getSentenceCacheSize() {
+        return sentenceCacheSize;
+    }
+
+    /**
+     * @return The number of sentence annotations evicted from each reducer's
+     *         in-memory cache which it should keep on its local disk instead,
+     *         or 0 if evicted sentences should be dropped. Only used with
+     *         -sentenceCache.
+     */
+    public int getSentenceCacheSpillEntries() {
+        return sentenceCacheSpillEntries;
+    }
+
+    /**
+     * @return The length (in characters) beyond which a document is split into
+     *         windows of whole sentences that are annotated separately (see
+     *         DocumentWindows), or 0 if documents shouldn't be split. The
+     *         input must then have one file per document, not containers
+     *         (see CuratorJob#checkFileSystem()).
+     */
+    public int getWindowChars() {
+        return windowChars;
+    }
+
     private AnnotationMode mode;
 
     private String directory;
@@ -243,4 +581,25 @@ public class ArgumentParser {
     private Integer numReduces;
     private boolean testing = false;
     private boolean shared;
+    private double deepVerifyRate = 0;
+    private boolean packRecords = false;
+    private RecordCompression compression = RecordCompression.NONE;
+    private RecordProtocol protocol = RecordFileFormat.DEFAULT_PROTOCOL;
+    private RecordProtocol rpcProtocol = RecordProtocol.BINARY;
+    private int documentTimeout = 0;
+    private Integer stragglerThreshold;
+    private Integer maxConsecutiveFailures;
+    private Integer pipelineCapacity;
+    private Integer splitThreads;
+    private boolean balanceLoad = false;
+    private boolean shuffleReferences = false;
+    private boolean columnar = false;
+    private boolean deltaOutput = false;
+    private int compactAfter = 4;
+    private boolean sharded = false;
+    private boolean reannotate = false;
+    private boolean resume = false;
+    private int sentenceCacheSize = 0;
+    private int sentenceCacheSpillEntries = 0;
+    private int windowChars = 0;
 }
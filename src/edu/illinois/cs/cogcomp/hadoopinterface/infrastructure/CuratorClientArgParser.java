@@ -38,6 +38,9 @@ public class CuratorClientArgParser {
                                         + "respectively) as the mode.");
                 }
             }
+            else if( commandLineArgs[crntArg].equals("-sources") ) {
+                sourcesFile = new File( commandLineArgs[++crntArg] );
+            }
             else if( commandLineArgs[crntArg].equals("-test") ) {
                 testing = true;
             }
@@ -55,6 +58,7 @@ public class CuratorClientArgParser {
                                         + " -port <curatorPort> -in "
                                         + "<inputDir> [-out <outputDir>] "
                                         + "[-mode <PRE or POST Hadoop>]"
+                                        + "[-sources <sources file>]"
                                         + "[-test]" );
 
             StringBuilder argUsage = new StringBuilder();
@@ -90,6 +94,11 @@ public class CuratorClientArgParser {
         usage.append("\tOutput directory: ");
         usage.append(outputDir.toString());
         usage.append("\n");
+        if( sourcesFile != null ) {
+            usage.append("\tSources file: ");
+            usage.append(sourcesFile.toString());
+            usage.append("\n");
+        }
         usage.append("\tRun in testing mode? ");
         usage.append(testing ? "Yes." : "No.");
         usage.append("\n");
@@ -132,6 +141,15 @@ public class CuratorClientArgParser {
         return outputDir;
     }
 
+    /**
+     * @return The local file to which the source files of each record
+     *         should be written (see DocumentDeduplicator), or null if they
+     *         needn't be
+     */
+    public File getSourcesFile() {
+        return sourcesFile;
+    }
+
     public CuratorClient.CuratorClientMode getMode() {
         return mode;
     }
@@ -141,5 +159,6 @@ public class CuratorClientArgParser {
     private File inputDir;
     private boolean testing;
     private File outputDir;
+    private File sourcesFile;
     private CuratorClient.CuratorClientMode mode;
 }
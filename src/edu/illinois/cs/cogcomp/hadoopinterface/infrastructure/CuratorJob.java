@@ -5,7 +5,15 @@ import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions
         .BadInputDirectoryException;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions
         .EmptyInputException;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.ColumnarRecordStore;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.DeltaOverlay;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input.ColumnarInputFormat;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input.DirectoryInputFormat;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.SerializedRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition.CostBalancedPartitioner;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition.DocumentCostEstimator;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests.RecordTesterMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -14,10 +22,14 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.thrift.TException;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * A job configuration object for a Hadoop job that interfaces with the Curator.
@@ -37,6 +49,76 @@ import java.util.Random;
  *      <li>outputDirectory: similar to inputDirectory</li>
  *      <li>libPath: the directory in which Hadoop nodes can find the
  *          Thrift libraries</li>
+ *      <li>packRecords: true if reducers should pack their output into
+ *          container files instead of writing one file per document</li>
+ *      <li>deepVerifyRate: the fraction of output records which reducers
+ *          should read back from HDFS to verify (all records are checksummed
+ *          as they are written regardless)</li>
+ *      <li>documentTimeoutSeconds: the number of seconds a reducer may spend
+ *          annotating a single document before deferring it (0 for no
+ *          limit)</li>
+ *      <li>stragglerThresholdSeconds: documents which take longer than this
+ *          to annotate are listed in the reducers' straggler reports
+ *          (default 60)</li>
+ *      <li>maxConsecutiveFailures: the number of documents in a row which may
+ *          fail annotation (and be quarantined) before a reducer decides the
+ *          annotator has died and fails the task (default 5)</li>
+ *      <li>pipelineQueueCapacity: the number of documents which may wait
+ *          between each stage of a reducer's annotation pipeline (see
+ *          AnnotationPipeline) (default 4)</li>
+ *      <li>shuffleReferences: true if mappers should emit only references to
+ *          the input records (hash, location and size), leaving reducers to
+ *          read the records from HDFS themselves</li>
+ *      <li>costAssignmentFile: if the job balances reducer load by document
+ *          cost, the HDFS file listing the reducer assigned to each document
+ *          (set by #balanceReduceLoad())</li>
+ *      <li>columnarStore: true if the input directory is a ColumnarRecordStore.
+ *          Mappers read only the columns the annotation needs, and reducers
+ *          add the new view as a column of the same store (so the output
+ *          directory is the input directory).</li>
+ *      <li>deltaOutput: true if reducers should write only the new view, into
+ *          the input directory's "_delta" directory, instead of complete
+ *          records (see DeltaOverlay)</li>
+ *      <li>recordCompression: the compression (see RecordCompression) to
+ *          apply to each record file reducers write, when not packing
+ *          records. Readers detect the compression from the file's header
+ *          (see RecordFileFormat), so this is needed only for writing.</li>
+ *      <li>splitThreads: the number of threads with which
+ *          DirectoryInputFormat looks up the block locations of the input
+ *          documents while computing splits (default 16)</li>
+ *      <li>recordProtocol: the Thrift protocol (see RecordProtocol) with which
+ *          reducers serialize the records they write. As with
+ *          recordCompression, readers detect it from the file's header.</li>
+ *      <li>rpcProtocol: the Thrift protocol (see RecordProtocol) reducers'
+ *          Curators and their clients speak to each other (default
+ *          BINARY)</li>
+ *      <li>shardedLayout: true if reducers should write each record into its
+ *          hash-prefix shard directory (see ShardedLayout) instead of the
+ *          root of the output directory. Readers detect the layout from the
+ *          directory's "_sharded" marker, so this is needed only for
+ *          writing.</li>
+ *      <li>reannotateExisting: true if reducers should annotate documents
+ *          which already have the requested annotation again. By default,
+ *          such documents are passed through without going to the
+ *          annotator, so that each document gets only what it is
+ *          missing.</li>
+ *      <li>completedDocumentsFile: if the job is resuming an interrupted run,
+ *          the HDFS file listing the hashes of the documents which already
+ *          have the requested annotation in the output directory, one per
+ *          line. DirectoryInputFormat creates no splits for these. (Set by
+ *          #skipCompletedDocuments().)</li>
+ *      <li>sentenceCacheSize: the number of sentence annotations each reducer
+ *          keeps in memory, so that sentences repeated across documents are
+ *          annotated only once (see SentenceCachingAnnotator). 0, the
+ *          default, turns the cache off.</li>
+ *      <li>sentenceCacheSpillEntries: the number of sentence annotations
+ *          evicted from the in-memory cache which each reducer keeps on its
+ *          local disk instead (default 0)</li>
+ *      <li>windowChars: the length (in characters) beyond which mappers split
+ *          a document into windows of whole sentences, to be annotated
+ *          separately and merged back together once the job is done (see
+ *          DocumentWindows). 0, the default, leaves documents whole, as does
+ *          an annotation which can't be split by sentence.</li>
  * </ul>
  *
  * @author Tyler Young
@@ -60,6 +142,13 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
                 getConfiguration().get("annotationMode") );
         numReduces = argParser.getNumReduces(); // TODO: Set this based on num input files!
         testing = argParser.isTesting();
+        balancingLoad = argParser.isBalancingLoad();
+        columnar = argParser.isColumnar();
+        writingDeltas = argParser.isWritingDeltas();
+        compactAfter = argParser.getCompactAfter();
+        sharded = argParser.isSharded() && !columnar && !writingDeltas;
+        resuming = argParser.isResuming();
+        windowing = getConfiguration().getInt( "windowChars", 0 ) > 0;
 
         configureJob();
 
@@ -94,19 +183,26 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
 
         setNumReduceTasks( numReduces );
 
-        // We split the input at the document directory level
-        setInputFormatClass( DirectoryInputFormat.class );
+        // We split the input at the document directory level, or for a
+        // columnar store, at the level of the text column's files
+        if( columnar ) {
+            setInputFormatClass( ColumnarInputFormat.class );
+        }
+        else {
+            setInputFormatClass( DirectoryInputFormat.class );
+        }
 
-        // We output in (Text, Record) pairs
-        setMapOutputKeyClass( Text.class );
+        // Reducers write annotated records through a committer, so output
+        // from failed or speculative attempts never reaches the output dir
+        setOutputFormatClass( RecordOutputFormat.class );
+
+        // We map (Text, Record) pairs to (binary hash, Record) pairs, and
+        // output (Text, serialized Record)
+        setMapOutputKeyClass( DocumentHashKey.class );
+        setSortComparatorClass( DocumentHashKey.Comparator.class );
         setMapOutputValueClass( HadoopRecord.class );
         setOutputKeyClass( Text.class );
-        setOutputValueClass( HadoopRecord.class );
-
-        // Turn off speculative execution, because DFS doesn't handle
-        // multiple writers to the same file.
-        // TODO: [long term] This is not supported in Hadoop v0.20. If we ever upgrade, turn it on.
-        //setReduceSpeculativeExecution( false );
+        setOutputValueClass( SerializedRecord.class );
     }
 
     /**
@@ -120,10 +216,34 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
         // Set up input/output directories. We will output the new annotation
         // to the same place in HDFS that we get the input from.
         FileInputFormat.addInputPath( this, getInputDirectory() );
-        FileOutputFormat.setOutputPath( this, getMapReduceOutputDirectory() );
+        FileOutputFormat.setOutputPath( this, getOutputDirectory() );
+
+        // A columnar store (or a directory of records we're writing deltas
+        // beside) is its own output directory, so leave it be; just set aside
+        // any old version of the column we're about to write
+        if( columnar || writingDeltas ) {
+            Path columnRoot = writingDeltas
+                              ? DeltaOverlay.getDeltaDir( outputDirectory )
+                              : outputDirectory;
+            Path column = ColumnarRecordStore.getColumnDir( columnRoot,
+                    mode.toCuratorString() );
+            if( fsHandler.HDFSFileExists( column ) ) {
+                Path movedTo = fsHandler.moveFileOrDir( column, new Path(
+                        outputDirectory.getParent().makeQualified( fs ),
+                        "old_jobs" ) );
+                logger.logStatus( "Moved the old " + mode.toString()
+                        + " column to " + movedTo.toString() );
+            }
+            return;
+        }
 
         // If the output path already exists, move it to another directory
-        if( fsHandler.HDFSFileExists(outputDirectory) ) {
+        // (unless it holds the work we're resuming)
+        if( resuming && fsHandler.HDFSFileExists(outputDirectory) ) {
+            logger.logStatus( "Resuming; keeping the records already in "
+                              + outputDirectory.toString() );
+        }
+        else if( fsHandler.HDFSFileExists(outputDirectory) ) {
             Path destination =
                     new Path( outputDirectory.getParent().makeQualified(fs),
                               "old_jobs" );
@@ -134,18 +254,22 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
                               + movedTo.toString() );
 
             // Now that the old contents of the directory are safely stored
-            // away, we need to delete the directory so that MapReduce doesn't
-            // throw a FileAlreadyExistsException
+            // away, start over with an empty directory
             fsHandler.delete( outputDirectory );
             fsHandler.mkdir( outputDirectory );
         }
+
+        if( sharded ) {
+            ShardedLayout.markSharded( outputDirectory, fs );
+        }
     }
 
     /**
      * Confirms that the required directories exist (or don't exist, as the case
      * may be) and that we have valid inputs, and throws an IO Exception if we
      * do not. This method resolves paths using the file system object given to
-     * this object during its construction.
+     * this object during its construction. When splitting documents into
+     * windows, the input may not contain containers of packed records.
      * @throws IOException Possible IOException from file operations
      */
     public void checkFileSystem( ) throws IOException {
@@ -170,7 +294,7 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
         }
 
         List<Path> inputFiles =
-                fsHandler.getFilesOnlyInDirectory( inputDirectory );
+                fsHandler.getRecordFiles( inputDirectory );
         for( Path inputFile : inputFiles ) {
             if( fsHandler.getFileSizeInBytes( inputFile ) < 1 ) {
                 throw new EmptyInputException( "Input in document directory "
@@ -179,7 +303,121 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
                         + "the Hadoop file system before starting this "
                         + "program." );
             }
+            // Split documents are merged back by reading the original
+            // document from its own file (see DocumentWindows#mergeAll()),
+            // which a container doesn't have
+            if( windowing && inputFile.getName().endsWith(
+                    RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+                throw new BadInputDirectoryException( "Input directory "
+                        + fs.makeQualified( inputDirectory ) + " contains "
+                        + "packed records (" + inputFile.getName() + "), but "
+                        + "documents can only be split into windows when each "
+                        + "has its own file. Run without -window, or ingest "
+                        + "the input without -pack." );
+            }
+        }
+    }
+
+    /**
+     * When resuming an interrupted job, finds the documents whose records in
+     * the output directory already carry the requested annotation (according
+     * to the manifests written by the earlier run), and sets the job up to
+     * skip them. Records which were written, but whose task never committed,
+     * have no manifest entry and so are done again. Must be called after
+     * #checkFileSystem() and before #start().
+     * @return The number of documents which will be skipped
+     * @throws IOException If the manifests cannot be read or the list of
+     *                     completed documents cannot be written
+     */
+    public int skipCompletedDocuments() throws IOException {
+        OutputManifest manifest = OutputManifest.readAll( outputDirectory, fs );
+        Set<String> completed = new HashSet<String>();
+        for( OutputManifest.Entry e : manifest.getEntries() ) {
+            // Manifests from before the document stats existed don't say
+            // which annotations a record has, but it must have this job's
+            if( !e.hasDocumentStats() || e.getAnnotations().contains( mode ) ) {
+                completed.add( e.getHash() );
+            }
+        }
+
+        StringBuilder list = new StringBuilder();
+        for( String hash : completed ) {
+            list.append( hash );
+            list.append( '\n' );
         }
+        Path completedLoc = fs.makeQualified(
+                new Path( HadoopInterface.TMP_DIR, "completed_documents.txt" ) );
+        fsHandler.writeFileToHDFS( list.toString(), completedLoc );
+
+        getConfiguration().set( "completedDocumentsFile",
+                                completedLoc.toString() );
+        logger.logStatus( "Resuming; skipping " + completed.size()
+                + " documents already annotated in "
+                + outputDirectory.toString() );
+        return completed.size();
+    }
+
+    /**
+     * Runs the cost-estimation pre-pass over the input and sets the job up to
+     * use a CostBalancedPartitioner, so that reducers get roughly equal amounts
+     * of work instead of equal numbers of documents. The document-to-reducer
+     * assignment is stored in the HadoopInterface temp directory. Must be
+     * called after #checkFileSystem() and before #start().
+     * @throws IOException If the input cannot be read or the assignment cannot
+     *                     be written
+     */
+    public void balanceReduceLoad() throws IOException {
+        logger.logStatus( "Estimating the cost of each input document" );
+        DocumentCostEstimator estimator = new DocumentCostEstimator( mode );
+        Map<String, Double> costs =
+                estimator.estimateAll( getInputDirectory(), fs );
+
+        Map<String, Integer> assignment =
+                CostBalancedPartitioner.assign( costs, getNumReduces() );
+        Path assignmentLoc = fs.makeQualified(
+                new Path( HadoopInterface.TMP_DIR, "cost_assignment.txt" ) );
+        CostBalancedPartitioner.writeAssignment( assignment, assignmentLoc, fs );
+
+        getConfiguration().set( "costAssignmentFile", assignmentLoc.toString() );
+        setPartitionerClass( CostBalancedPartitioner.class );
+        logger.logStatus( "Assigned " + assignment.size() + " documents to "
+                + getNumReduces() + " reducers by estimated cost" );
+    }
+
+    /**
+     * Once a delta-mode job has finished, folds the accumulated deltas into
+     * the input records if there are now too many of them (more than the
+     * "-compactAfter" argument allows). Every job that reads the records pays
+     * a lookup in each delta, so they shouldn't be allowed to pile up.
+     * @return True if the deltas were compacted
+     */
+    public boolean compactDeltasIfNeeded() throws IOException {
+        List<String> deltaViews =
+                DeltaOverlay.getDeltaViews( getInputDirectory(), fs );
+        if( deltaViews.size() < compactAfter ) {
+            logger.log( deltaViews.size() + " deltas await compaction into "
+                    + getInputDirectory().toString() );
+            return false;
+        }
+
+        try {
+            DeltaOverlay.compact( getInputDirectory(), fs );
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error compacting deltas into "
+                    + getInputDirectory().toString() + ": " + e.getMessage() );
+        }
+        return true;
+    }
+
+    /**
+     * Once a job which split long documents into windows has finished, merges
+     * the windows' annotations back into complete records for their documents
+     * (see DocumentWindows#mergeAll()).
+     * @return The number of documents merged
+     */
+    public int mergeWindows() throws IOException {
+        return DocumentWindows.mergeAll( getInputDirectory(),
+                getOutputDirectory(), mode, fs, getConfiguration() );
     }
 
     /**
@@ -230,14 +468,6 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
         return outputDirectory;
     }
 
-    /**
-     * @return The directory that the MapReduce job will use for its
-     *         miscellaneous output (not useful to the user)
-     */
-    private Path getMapReduceOutputDirectory() {
-        return new Path( getOutputDirectory(), "mapreduce_out" );
-    }
-
     /**
      * @return The annotation mode to be used on this Hadoop job
      */
@@ -252,6 +482,45 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
         return fs;
     }
 
+    /**
+     * @return TRUE if the command-line arguments asked us to balance the
+     *         reducers' load by estimated document cost
+     */
+    public boolean isBalancingLoad() {
+        return balancingLoad;
+    }
+
+    /**
+     * @return TRUE if the input is a columnar record store
+     */
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    /**
+     * @return TRUE if the job writes only the new view, as a delta beside the
+     *         input records
+     */
+    public boolean isWritingDeltas() {
+        return writingDeltas;
+    }
+
+    /**
+     * @return TRUE if the job is resuming an interrupted run, keeping the
+     *         records already in its output directory
+     */
+    public boolean isResuming() {
+        return resuming;
+    }
+
+    /**
+     * @return TRUE if mappers will split long documents into windows, which
+     *         must be merged back together once the job is done
+     */
+    public boolean isWindowing() {
+        return windowing;
+    }
+
     /**
      * @return TRUE if the command-line arguments told us to run in test mode
      */
@@ -273,10 +542,20 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
         // Configuration instead of JobConf!
         // Configuration config = new Configuration();
         JobConf config = new JobConf();
-        config.setReduceSpeculativeExecution( false );
 
         ArgumentParser argParser = new ArgumentParser(args);
 
+        // Output goes through a task-attempt-scoped committer, so duplicate
+        // attempts of a reduce can no longer clobber each other's files. That
+        // makes it safe to let Hadoop speculatively re-run slow reduces. In
+        // shared mode, though, every reduce needs one of a limited number of
+        // Curator installations, so duplicates would just starve other tasks.
+        config.setReduceSpeculativeExecution( !argParser.isShared() );
+
+        // Don't let the committer drop a _SUCCESS file among our records
+        config.setBoolean( "mapreduce.fileoutputcommitter.marksuccessfuljobs",
+                           false );
+
         // This is embarrassing. In shared mode, around 20% of our nodes are
         // completely unable to access the shared Curator directories, so they
         // will *always* fail.
@@ -295,7 +574,11 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
 
 
         String outputDirectory;
-        if( !argParser.getOutputDirectory().equals( "" ) ) {
+        if( argParser.isColumnar() || argParser.isWritingDeltas() ) {
+            // New columns (or deltas) are written beside the input
+            outputDirectory = inputDirectory;
+        }
+        else if( !argParser.getOutputDirectory().equals( "" ) ) {
             outputDirectory = argParser.getOutputDirectory();
         }
         else {
@@ -320,6 +603,68 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
 
         AnnotationMode mode = argParser.getMode();
 
+        config.setFloat( "deepVerifyRate", (float)argParser.getDeepVerifyRate() );
+
+        config.setInt( "documentTimeoutSeconds", argParser.getDocumentTimeout() );
+        // Left unset, the reducers fall back on their own default
+        if( argParser.getStragglerThreshold() != null ) {
+            config.setInt( "stragglerThresholdSeconds",
+                           argParser.getStragglerThreshold() );
+        }
+        if( argParser.getMaxConsecutiveFailures() != null ) {
+            config.setInt( "maxConsecutiveFailures",
+                           argParser.getMaxConsecutiveFailures() );
+        }
+        if( argParser.getPipelineCapacity() != null ) {
+            config.setInt( "pipelineQueueCapacity",
+                           argParser.getPipelineCapacity() );
+        }
+        if( argParser.getSplitThreads() != null ) {
+            config.setInt( "splitThreads", argParser.getSplitThreads() );
+        }
+
+        // The testing mapper inspects the records' views, so it needs them all.
+        // Columnar input is already read selectively, so we never need to.
+        config.setBoolean( "shuffleReferences",
+                argParser.isShufflingReferences() && !argParser.isTesting()
+                && !argParser.isColumnar() );
+        config.setBoolean( "columnarStore", argParser.isColumnar() );
+        config.setBoolean( "deltaOutput", argParser.isWritingDeltas() );
+
+        config.setBoolean( "packRecords", argParser.isPackingRecords() );
+        if( argParser.getCompression() != RecordCompression.NONE ) {
+            // Fail now, rather than in every reducer, if the codec is missing
+            argParser.getCompression().getCodecClass();
+            if( argParser.isPackingRecords() ) {
+                config.setBoolean( "mapred.output.compress", true );
+                config.set( "mapred.output.compression.codec",
+                            argParser.getCompression().getCodecClassName() );
+            }
+            else {
+                config.set( "recordCompression",
+                            argParser.getCompression().toString() );
+            }
+        }
+
+        config.set( "recordProtocol", argParser.getProtocol().toString() );
+        config.set( "rpcProtocol", argParser.getRpcProtocol().toString() );
+        config.setBoolean( "shardedLayout", argParser.isSharded()
+                && !argParser.isColumnar() && !argParser.isWritingDeltas() );
+        config.setBoolean( "reannotateExisting", argParser.isReannotating() );
+        config.setInt( "sentenceCacheSize", argParser.getSentenceCacheSize() );
+        config.setInt( "sentenceCacheSpillEntries",
+                       argParser.getSentenceCacheSpillEntries() );
+        // Documents can only be split for annotations made one sentence at a
+        // time; coreference, for instance, needs the whole document at once
+        if( SentenceCachingAnnotator.canCache( mode ) ) {
+            config.setInt( "windowChars", argParser.getWindowChars() );
+        }
+        else if( argParser.getWindowChars() > 0 ) {
+            HadoopInterface.logger.logWarning( mode.toString() + " looks "
+                    + "across whole documents, so they won't be split into "
+                    + "windows." );
+        }
+
         config.set( "annotationMode", mode.toString() );
         config.set( "inputDirectory", inputDirectory );
         config.set( "outputDirectory", outputDirectory );
@@ -330,6 +675,13 @@ public class CuratorJob extends org.apache.hadoop.mapreduce.Job {
     private Path inputDirectory;
     private Path outputDirectory;
     private boolean testing;
+    private boolean balancingLoad;
+    private boolean columnar;
+    private boolean writingDeltas;
+    private int compactAfter;
+    private boolean sharded;
+    private boolean resuming;
+    private boolean windowing;
     private AnnotationMode mode;
     private MessageLogger logger = HadoopInterface.logger;
     private FileSystem fs;
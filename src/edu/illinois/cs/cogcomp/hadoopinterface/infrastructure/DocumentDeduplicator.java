@@ -0,0 +1,204 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of duplicate documents while raw text is being turned into
+ * records. A document's identifier is a hash of its text, so every copy of the
+ * same text becomes the same record (and the same [document_hash].txt file);
+ * only the first copy needs to be serialized, sent to Hadoop and annotated.
+ *
+ * What we keep is the mapping from each hash to the original files that had
+ * that text, so that once the annotated records come back from Hadoop, each
+ * one can be "fanned out" to every original file name (see #fanOut()).
+ *
+ * The mapping is stored as a text file with one line per unique document:
+ * <pre>
+ *     [document hash]	[source path]	[another source path] ...
+ * </pre>
+ *
+ * @author Tyler Young
+ */
+public class DocumentDeduplicator {
+    /** The name of the directory, within a local output directory, to which
+     *  the records are fanned out under their original file names */
+    public static final String FAN_OUT_DIR_NAME = "by_name";
+
+    /**
+     * Constructs an empty deduplicator
+     */
+    public DocumentDeduplicator() {
+        sourcesByHash = new LinkedHashMap<String, List<String>>();
+        numDuplicates = 0;
+    }
+
+    /**
+     * Records that a source file contains the document with the indicated
+     * hash
+     * @param documentHash The hash identifying the document (i.e., the
+     *                     identifier of the record made from its text)
+     * @param sourcePath The path of the original file
+     * @return True if this is the first copy of the document we've seen (so
+     *         it should be kept), false if it is a duplicate
+     */
+    public boolean add( String documentHash, String sourcePath ) {
+        List<String> sources = sourcesByHash.get( documentHash );
+        if( sources == null ) {
+            sources = new ArrayList<String>( 1 );
+            sourcesByHash.put( documentHash, sources );
+            sources.add( sourcePath );
+            return true;
+        }
+        sources.add( sourcePath );
+        ++numDuplicates;
+        return false;
+    }
+
+    /**
+     * @param documentHash The hash identifying a document
+     * @return The paths of the original files containing the document, in the
+     *         order they were added (empty if we've never seen it)
+     */
+    public List<String> getSources( String documentHash ) {
+        List<String> sources = sourcesByHash.get( documentHash );
+        return sources == null ? new ArrayList<String>() : sources;
+    }
+
+    /**
+     * @return The number of distinct documents seen
+     */
+    public int getNumUnique() {
+        return sourcesByHash.size();
+    }
+
+    /**
+     * @return The number of files seen which duplicated a document already seen
+     */
+    public int getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    /**
+     * Writes the hash to source paths mapping to a local file
+     * @param destination The file to write. It will be overwritten if it
+     *                    exists.
+     */
+    public void write( File destination ) throws IOException {
+        Writer out = new OutputStreamWriter(
+                new FileOutputStream( destination ), "UTF-8" );
+        try {
+            for( Map.Entry<String, List<String>> e : sourcesByHash.entrySet() ) {
+                out.write( e.getKey() );
+                for( String source : e.getValue() ) {
+                    out.write( '\t' );
+                    out.write( source );
+                }
+                out.write( '\n' );
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a mapping written by #write()
+     * @param source The file to read
+     * @return The deduplicator described by the file
+     */
+    public static DocumentDeduplicator read( File source ) throws IOException {
+        DocumentDeduplicator dedup = new DocumentDeduplicator();
+        BufferedReader reader = new BufferedReader( new InputStreamReader(
+                new FileInputStream( source ), "UTF-8" ) );
+        try {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                String[] fields = line.split( "\t" );
+                for( int i = 1; i < fields.length; i++ ) {
+                    dedup.add( fields[0], fields[i] );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return dedup;
+    }
+
+    /**
+     * Copies each annotated record in a (local) record directory to the name
+     * of every original file whose text it came from, so that duplicates get
+     * their results too. The copies go in the "by_name" directory inside the
+     * record directory; a record made from the file document0.txt, for
+     * instance, is copied to by_name/document0.txt. Records for which we have
+     * no sources (and record containers) are left alone.
+     * @param recordDir The directory of annotated records (in either layout;
+     *                  see ShardedLayout)
+     * @return The number of copies written
+     */
+    public int fanOut( File recordDir ) throws IOException {
+        Map<String, File> recordsByHash = new HashMap<String, File>();
+        for( File record : LocalFileSystemHandler.listRecordDirectory( recordDir ) ) {
+            if( record.isFile() && !record.getName().startsWith( "_" )
+                    && !record.getName().startsWith( "." ) ) {
+                recordsByHash.put( FileSystemHandler.stripExtension(
+                        record.getName() ), record );
+            }
+        }
+
+        File fanOutDir = new File( recordDir, FAN_OUT_DIR_NAME );
+        if( !fanOutDir.isDirectory() && !fanOutDir.mkdir() ) {
+            throw new IOException( "Failed to create directory "
+                                   + fanOutDir.toString() );
+        }
+
+        int numCopies = 0;
+        for( Map.Entry<String, List<String>> e : sourcesByHash.entrySet() ) {
+            File record = recordsByHash.get( e.getKey() );
+            if( record == null ) {
+                continue; // not annotated (e.g., quarantined)
+            }
+            for( String source : e.getValue() ) {
+                copy( record, new File( fanOutDir, new File( source ).getName() ) );
+                ++numCopies;
+            }
+        }
+        return numCopies;
+    }
+
+    /**
+     * Copies a local file byte for byte
+     */
+    private static void copy( File from, File to ) throws IOException {
+        InputStream in = new FileInputStream( from );
+        try {
+            OutputStream out = new FileOutputStream( to );
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int numRead;
+                while( ( numRead = in.read( buffer ) ) > 0 ) {
+                    out.write( buffer, 0, numRead );
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private final Map<String, List<String>> sourcesByHash;
+    private int numDuplicates;
+}
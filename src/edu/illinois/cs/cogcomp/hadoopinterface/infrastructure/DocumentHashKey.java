@@ -0,0 +1,156 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The map output key: a document's SHA-1 hash, stored as its 20 raw bytes
+ * rather than as 40 hex characters of Text. Besides halving the key bytes
+ * shuffled, this lets Hadoop sort and merge keys by comparing their
+ * serialized bytes directly (see DocumentHashKey.Comparator, which is
+ * registered as the default comparator for this class), without deserializing
+ * anything.
+ *
+ * Document identifiers which aren't 40-character hex strings (e.g., from
+ * hand-made input) are themselves SHA-1 hashed to get a key. Either way, the
+ * key only decides where and in what order documents are reduced; the
+ * reducer takes the document's real identifier from its record.
+ *
+ * @author Tyler Young
+ */
+public class DocumentHashKey implements WritableComparable<DocumentHashKey> {
+    public static final int NUM_BYTES = 20;
+
+    static {
+        WritableComparator.define( DocumentHashKey.class, new Comparator() );
+    }
+
+    /**
+     * Zero-argument constructor for use by the Hadoop backend, which then
+     * reads the bytes in using the Writable interface.
+     */
+    public DocumentHashKey() {
+        bytes = new byte[NUM_BYTES];
+    }
+
+    /**
+     * Constructs the key for a document
+     * @param identifier The document's identifier (normally the 40 hex
+     *                   character SHA-1 hash of its text)
+     * @return The key for the document
+     */
+    public static DocumentHashKey fromIdentifier( String identifier ) {
+        DocumentHashKey key = new DocumentHashKey();
+        key.set( identifier );
+        return key;
+    }
+
+    /**
+     * Sets this key to the key for a document, so that one key object can be
+     * reused for many documents
+     * @param identifier The document's identifier
+     */
+    public void set( String identifier ) {
+        if( !decodeHex( identifier, bytes ) ) {
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance( "SHA-1" );
+                System.arraycopy( sha1.digest( identifier.getBytes( "UTF-8" ) ),
+                                  0, bytes, 0, NUM_BYTES );
+            } catch ( NoSuchAlgorithmException e ) {
+                throw new RuntimeException( "SHA-1 is not available", e );
+            } catch ( UnsupportedEncodingException e ) {
+                throw new RuntimeException( "UTF-8 is not available", e );
+            }
+        }
+    }
+
+    public void write( DataOutput out ) throws IOException {
+        out.write( bytes );
+    }
+
+    public void readFields( DataInput in ) throws IOException {
+        in.readFully( bytes );
+    }
+
+    public int compareTo( DocumentHashKey other ) {
+        return WritableComparator.compareBytes( bytes, 0, NUM_BYTES,
+                                                other.bytes, 0, NUM_BYTES );
+    }
+
+    @Override
+    public boolean equals( Object other ) {
+        return other instanceof DocumentHashKey
+               && Arrays.equals( bytes, ( (DocumentHashKey)other ).bytes );
+    }
+
+    /**
+     * Since the key is already a (cryptographic) hash, its first four bytes
+     * make a perfectly good hash code.
+     */
+    @Override
+    public int hashCode() {
+        return WritableComparator.readInt( bytes, 0 );
+    }
+
+    /**
+     * @return The key as 40 lower-case hex characters
+     */
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder( 2 * NUM_BYTES );
+        for( byte b : bytes ) {
+            hex.append( HEX_DIGITS[ ( b >> 4 ) & 0xF ] );
+            hex.append( HEX_DIGITS[ b & 0xF ] );
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Compares two serialized keys byte-by-byte, without deserializing them
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super( DocumentHashKey.class );
+        }
+
+        @Override
+        public int compare( byte[] b1, int s1, int l1,
+                            byte[] b2, int s2, int l2 ) {
+            return compareBytes( b1, s1, NUM_BYTES, b2, s2, NUM_BYTES );
+        }
+    }
+
+    /**
+     * Decodes a hash given as hex characters into raw bytes
+     * @param hex The (possible) hex string
+     * @param destination The array in which to store the bytes
+     * @return True if the string was exactly 40 hex characters and has been
+     *         decoded into the destination, false otherwise
+     */
+    private static boolean decodeHex( String hex, byte[] destination ) {
+        if( hex.length() != 2 * NUM_BYTES ) {
+            return false;
+        }
+        for( int i = 0; i < NUM_BYTES; i++ ) {
+            int high = Character.digit( hex.charAt( 2 * i ), 16 );
+            int low = Character.digit( hex.charAt( 2 * i + 1 ), 16 );
+            if( high < 0 || low < 0 ) {
+                return false;
+            }
+            destination[i] = (byte)( ( high << 4 ) | low );
+        }
+        return true;
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+}
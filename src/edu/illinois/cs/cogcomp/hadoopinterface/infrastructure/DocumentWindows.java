@@ -0,0 +1,475 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.DeltaOverlay;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.SerializedRecord;
+import edu.illinois.cs.cogcomp.thrift.base.Forest;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.base.Tree;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits very long documents into "windows" of whole sentences, so that the
+ * pieces of a single huge document can be annotated by different reducers at
+ * the same time, rather than by one annotator call that may run past the
+ * task timeout. Once the job is done, the windows' annotations are merged
+ * back into a single record for the document (see #mergeAll()).
+ *
+ * Windows are cut at the boundaries of the document's "sentences" view, and
+ * each is as many consecutive sentences as fit in the window size (or a
+ * single sentence, if it alone is longer). A window is a record of its own,
+ * whose text is the stretch of the document's text from the start of its
+ * first sentence to the end of its last, and whose views are the labels and
+ * trees of the document's views which lie entirely within that stretch.
+ * Clusterings and generic views span the whole document, so they are not
+ * copied.
+ *
+ * Only annotations produced one sentence at a time can be split this way
+ * (see SentenceCachingAnnotator#canCache()). Coreference and Wikification
+ * look across the whole document, so documents are never split for them.
+ *
+ * A window's identifier names the document it came from, along with its
+ * place among the document's windows and its offset in the document's text:
+ * <pre>
+ *     [document identifier]_window_[index]_[number of windows]_[offset]
+ * </pre>
+ * Since it starts with the document's identifier, a window is written to the
+ * same shard directory (see ShardedLayout) as its document.
+ *
+ * @author Tyler Young
+ */
+public class DocumentWindows {
+    public static final String WINDOW_MARKER = "_window_";
+
+    /**
+     * Splits a document into windows of whole sentences
+     * @param document The document to split. It must have a "sentences" view
+     *                 whose sentences are in order and don't overlap.
+     * @param windowChars The maximum length (in characters) of a window
+     * @param skipView The name of a view not to copy into the windows (the one
+     *                 the windows are about to be annotated with), or null
+     * @return The windows, in order, or an empty list if the document can't
+     *         be split (it has no usable sentences view, or fits in a single
+     *         window)
+     */
+    public static List<Record> split( Record document, int windowChars,
+                                      String skipView ) {
+        List<Record> windows = new ArrayList<Record>();
+        List<Span> bounds = getWindowBounds( document, windowChars );
+        for( int i = 0; i < bounds.size(); i++ ) {
+            Span b = bounds.get( i );
+            windows.add( extractWindow( document, b.getStart(), b.getEnding(),
+                    makeIdentifier( document.getIdentifier(), i,
+                                    bounds.size(), b.getStart() ),
+                    skipView ) );
+        }
+        return windows;
+    }
+
+    /**
+     * @param document A document
+     * @param windowChars The maximum length (in characters) of a window
+     * @return The start and end of each window the document would be split
+     *         into, or an empty list if it wouldn't be split
+     */
+    public static List<Span> getWindowBounds( Record document, int windowChars ) {
+        List<Span> bounds = new ArrayList<Span>();
+        String text = document.getRawText();
+        Labeling sentenceView = document.isSetLabelViews()
+                ? document.getLabelViews().get( SENTENCE_VIEW ) : null;
+        if( windowChars <= 0 || text == null || text.length() <= windowChars
+                || sentenceView == null || sentenceView.getLabelsSize() < 2 ) {
+            return bounds;
+        }
+
+        int lastEnding = 0;
+        Span window = null;
+        for( Span s : sentenceView.getLabels() ) {
+            if( s.getStart() < lastEnding || s.getEnding() < s.getStart()
+                    || s.getEnding() > text.length() ) {
+                return new ArrayList<Span>(); // can't trust the sentences
+            }
+            lastEnding = s.getEnding();
+
+            if( window != null
+                    && s.getEnding() - window.getStart() <= windowChars ) {
+                window.setEnding( s.getEnding() );
+            }
+            else {
+                window = new Span( s.getStart(), s.getEnding() );
+                bounds.add( window );
+            }
+        }
+        return bounds.size() > 1 ? bounds : new ArrayList<Span>();
+    }
+
+    /**
+     * @param identifier A record's identifier
+     * @return True if the record is a window of some larger document
+     */
+    public static boolean isWindow( String identifier ) {
+        return parse( identifier ) != null;
+    }
+
+    /**
+     * @param identifier A window's identifier
+     * @return The identifier of the document the window came from
+     */
+    public static String getDocumentIdentifier( String identifier ) {
+        return identifier.substring( 0, identifier.lastIndexOf( WINDOW_MARKER ) );
+    }
+
+    /**
+     * Puts the annotation of a document's windows back together into the
+     * document
+     * @param document The document the windows were split from
+     * @param windows Every one of the document's windows, annotated, in order
+     * @param viewName The name of the view to merge
+     * @param isForest True if the view is a parse view (a Forest), false if it
+     *                 is a label view (a Labeling)
+     * @return A copy of the document with the merged view added
+     * @throws IOException If a window is missing the view
+     */
+    public static Record merge( Record document, List<Record> windows,
+                                String viewName, boolean isForest )
+            throws IOException {
+        Record merged = document.deepCopy();
+        Forest forest = null;
+        Labeling labeling = null;
+        for( Record window : windows ) {
+            int offset = parse( window.getIdentifier() )[OFFSET];
+            if( isForest ) {
+                Forest view = window.isSetParseViews()
+                        ? window.getParseViews().get( viewName ) : null;
+                if( view == null ) {
+                    throw new IOException( "Window " + window.getIdentifier()
+                            + " has no " + viewName + " view." );
+                }
+                if( forest == null ) {
+                    forest = new Forest( view );
+                    forest.setTrees( new ArrayList<Tree>() );
+                }
+                if( view.isSetTrees() ) {
+                    for( Tree tree : view.getTrees() ) {
+                        forest.getTrees().add( SentenceCachingAnnotator
+                                .shiftTree( tree, offset ) );
+                    }
+                }
+            }
+            else {
+                Labeling view = window.isSetLabelViews()
+                        ? window.getLabelViews().get( viewName ) : null;
+                if( view == null ) {
+                    throw new IOException( "Window " + window.getIdentifier()
+                            + " has no " + viewName + " view." );
+                }
+                if( labeling == null ) {
+                    labeling = new Labeling( view );
+                    labeling.setLabels( new ArrayList<Span>() );
+                }
+                if( view.isSetLabels() ) {
+                    for( Span label : view.getLabels() ) {
+                        labeling.getLabels().add( SentenceCachingAnnotator
+                                .shiftSpan( label, offset ) );
+                    }
+                }
+            }
+        }
+
+        if( isForest ) {
+            if( forest.isSetRawText() ) {
+                forest.setRawText( document.getRawText() );
+            }
+            if( !merged.isSetParseViews() ) {
+                merged.setParseViews( new HashMap<String, Forest>() );
+            }
+            merged.getParseViews().put( viewName, forest );
+        }
+        else {
+            if( labeling.isSetRawText() ) {
+                labeling.setRawText( document.getRawText() );
+            }
+            if( !merged.isSetLabelViews() ) {
+                merged.setLabelViews( new HashMap<String, Labeling>() );
+            }
+            merged.getLabelViews().put( viewName, labeling );
+        }
+        return merged;
+    }
+
+    /**
+     * Once a job that split documents into windows has finished, merges the
+     * windows in its output directory back into complete records for their
+     * documents. Each document is read again from the input directory (with
+     * any deltas overlaid, as the reducers would have), given the merged view,
+     * and written to the output directory as [document identifier].txt; its
+     * windows are then deleted. The job's manifest is updated to match.
+     *
+     * A document whose windows didn't all make it to the output (e.g., one of
+     * them was quarantined) is left as it is, windows and all, so that a
+     * resumed run will annotate the whole document again.
+     * @param inputDir The job's input directory
+     * @param outputDir The job's output directory
+     * @param mode The annotation the job produced
+     * @param fs The file system against which to resolve the paths
+     * @param conf The job's configuration, from which we take the record
+     *             compression and protocol
+     * @return The number of documents merged
+     */
+    public static int mergeAll( Path inputDir, Path outputDir,
+                                AnnotationMode mode, FileSystem fs,
+                                Configuration conf ) throws IOException {
+        // Find each document's windows from the manifests, which list only
+        // output that was committed
+        Map<String, String[]> windowsByDocument =
+                new LinkedHashMap<String, String[]>();
+        for( OutputManifest.Entry e :
+                OutputManifest.readAll( outputDir, fs ).getEntries() ) {
+            int[] fields = parse( e.getHash() );
+            if( fields == null ) {
+                continue;
+            }
+            String document = getDocumentIdentifier( e.getHash() );
+            String[] windows = windowsByDocument.get( document );
+            if( windows == null ) {
+                windows = new String[fields[NUM_WINDOWS]];
+                windowsByDocument.put( document, windows );
+            }
+            if( fields[INDEX] < windows.length ) {
+                windows[fields[INDEX]] = e.getHash();
+            }
+        }
+        if( windowsByDocument.isEmpty() ) {
+            return 0;
+        }
+
+        RecordCompression compression = RecordCompression.fromString(
+                conf.get( "recordCompression", "none" ) );
+        RecordProtocol protocol = RecordProtocol.fromString( conf.get(
+                "recordProtocol", RecordFileFormat.DEFAULT_PROTOCOL.toString() ) );
+        HadoopSerializationHandler serializer =
+                new HadoopSerializationHandler( compression, protocol );
+        boolean inputSharded = ShardedLayout.isSharded( inputDir, fs );
+        boolean outputSharded = ShardedLayout.isSharded( outputDir, fs );
+        String viewName = mode.toCuratorString();
+        boolean isForest = AnnotationMode.getViewType( mode ) == ViewType.PARSE;
+
+        OutputManifest mergedManifest = new OutputManifest();
+        Map<String, Boolean> mergedWindows = new HashMap<String, Boolean>();
+        DeltaOverlay deltas = new DeltaOverlay( inputDir, null, fs, conf );
+        try {
+            for( Map.Entry<String, String[]> e : windowsByDocument.entrySet() ) {
+                String document = e.getKey();
+                if( !isComplete( e.getValue() ) ) {
+                    HadoopInterface.logger.logWarning( "Not all windows of "
+                            + "document " + document + " were annotated; "
+                            + "leaving them unmerged." );
+                    continue;
+                }
+
+                try {
+                    Record original = serializer.deserialize(
+                            ShardedLayout.getRecordLoc( inputDir, document,
+                                                        inputSharded ), fs );
+                    original.setIdentifier( document );
+                    deltas.overlay( original );
+
+                    List<Record> windows = new ArrayList<Record>();
+                    for( String window : e.getValue() ) {
+                        Record w = serializer.deserialize(
+                                ShardedLayout.getRecordLoc( outputDir, window,
+                                                            outputSharded ), fs );
+                        w.setIdentifier( window );
+                        windows.add( w );
+                    }
+                    Record merged = merge( original, windows, viewName,
+                                           isForest );
+
+                    SerializedRecord out = new SerializedRecord( document,
+                            serializer.serializeToBytes( merged ),
+                            RecordTools.getNumViews( merged ) );
+                    out.setDocumentStats( merged,
+                            RecordTools.getAnnotationsList( merged ) );
+                    long checksum = serializer.writeSerialized( out.getData(),
+                            ShardedLayout.getRecordLoc( outputDir, document,
+                                                        outputSharded ), fs );
+                    mergedManifest.add( new OutputManifest.Entry( out, checksum ) );
+                } catch ( TException ex ) {
+                    HadoopInterface.logger.logError( "Thrift error merging the "
+                            + "windows of document " + document + ": "
+                            + ex.getMessage() );
+                    continue;
+                } catch ( IOException ex ) {
+                    HadoopInterface.logger.logError( "Couldn't merge the "
+                            + "windows of document " + document + ": "
+                            + ex.getMessage() );
+                    continue;
+                }
+
+                for( String window : e.getValue() ) {
+                    fs.delete( ShardedLayout.getRecordLoc( outputDir, window,
+                                                           outputSharded ),
+                               false );
+                    mergedWindows.put( window, Boolean.TRUE );
+                }
+            }
+        } finally {
+            deltas.close();
+        }
+
+        // Rewrite the tasks' manifests without the merged windows, and list
+        // the merged documents in a manifest of their own
+        Path manifestDir = OutputManifest.getManifestDir( outputDir );
+        FileSystemHandler fsHandler = new FileSystemHandler( fs );
+        for( Path manifestFile : fsHandler.getFilesOnlyInDirectory( manifestDir ) ) {
+            OutputManifest kept = new OutputManifest();
+            boolean changed = false;
+            for( OutputManifest.Entry entry :
+                    OutputManifest.read( manifestFile, fs ).getEntries() ) {
+                if( mergedWindows.containsKey( entry.getHash() ) ) {
+                    changed = true;
+                }
+                else {
+                    kept.add( entry );
+                }
+            }
+            if( changed ) {
+                kept.write( manifestFile, fs );
+            }
+        }
+        if( mergedManifest.size() > 0 ) {
+            mergedManifest.write( new Path( manifestDir, "merged_windows_"
+                    + System.currentTimeMillis() + ".txt" ), fs );
+        }
+
+        HadoopInterface.logger.logStatus( "Merged the windows of "
+                + mergedManifest.size() + " documents into "
+                + outputDir.toString() );
+        return mergedManifest.size();
+    }
+
+    /**
+     * @return The identifier for a window of a document
+     */
+    private static String makeIdentifier( String documentIdentifier, int index,
+                                          int numWindows, int offset ) {
+        return documentIdentifier + WINDOW_MARKER + index + "_" + numWindows
+               + "_" + offset;
+    }
+
+    /**
+     * @param identifier A record's identifier
+     * @return The window's index, number of windows and offset (indexed by
+     *         INDEX, NUM_WINDOWS and OFFSET), or null if the identifier is not
+     *         that of a window
+     */
+    private static int[] parse( String identifier ) {
+        int marker = identifier.lastIndexOf( WINDOW_MARKER );
+        if( marker <= 0 ) {
+            return null;
+        }
+        String[] fields = identifier.substring(
+                marker + WINDOW_MARKER.length() ).split( "_" );
+        if( fields.length != 3 ) {
+            return null;
+        }
+        try {
+            int[] parsed = new int[3];
+            for( int i = 0; i < 3; i++ ) {
+                parsed[i] = Integer.parseInt( fields[i] );
+            }
+            return parsed;
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    private static boolean isComplete( String[] windows ) {
+        if( windows.length == 0 ) {
+            return false;
+        }
+        for( String window : windows ) {
+            if( window == null ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies a stretch of a document's text into a record of its own, along
+     * with every label and tree of the document's label and parse views which
+     * lies entirely within it
+     */
+    private static Record extractWindow( Record document, int start, int end,
+                                         String identifier, String skipView ) {
+        Record window = RecordTools.generateNew( identifier,
+                document.getRawText().substring( start, end ) );
+        if( document.isSetWhitespaced() ) {
+            window.setWhitespaced( document.isWhitespaced() );
+        }
+        if( document.isSetLabelViews() ) {
+            for( Map.Entry<String, Labeling> e :
+                    document.getLabelViews().entrySet() ) {
+                if( e.getKey().equals( skipView ) || !e.getValue().isSetLabels() ) {
+                    continue;
+                }
+                Labeling copy = new Labeling( e.getValue() );
+                copy.setLabels( new ArrayList<Span>() );
+                if( copy.isSetRawText() ) {
+                    copy.setRawText( window.getRawText() );
+                }
+                for( Span label : e.getValue().getLabels() ) {
+                    if( label.getStart() >= start && label.getEnding() <= end ) {
+                        copy.getLabels().add( SentenceCachingAnnotator
+                                .shiftSpan( label, -start ) );
+                    }
+                }
+                window.getLabelViews().put( e.getKey(), copy );
+            }
+        }
+        if( document.isSetParseViews() ) {
+            for( Map.Entry<String, Forest> e :
+                    document.getParseViews().entrySet() ) {
+                if( e.getKey().equals( skipView ) || !e.getValue().isSetTrees() ) {
+                    continue;
+                }
+                Forest copy = new Forest( e.getValue() );
+                copy.setTrees( new ArrayList<Tree>() );
+                if( copy.isSetRawText() ) {
+                    copy.setRawText( window.getRawText() );
+                }
+                for( Tree tree : e.getValue().getTrees() ) {
+                    Span extent = SentenceCachingAnnotator.getExtent( tree );
+                    if( extent != null && extent.getStart() >= start
+                            && extent.getEnding() <= end ) {
+                        copy.getTrees().add( SentenceCachingAnnotator
+                                .shiftTree( tree, -start ) );
+                    }
+                }
+                window.getParseViews().put( e.getKey(), copy );
+            }
+        }
+        return window;
+    }
+
+    private static final String SENTENCE_VIEW = "sentences";
+
+    // Indices into the fields returned by #parse()
+    private static final int INDEX = 0;
+    private static final int NUM_WINDOWS = 1;
+    private static final int OFFSET = 2;
+}
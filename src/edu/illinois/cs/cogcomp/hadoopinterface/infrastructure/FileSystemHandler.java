@@ -520,6 +520,61 @@ public class FileSystemHandler {
         return listOfPaths;
     }
 
+    /**
+     * Returns a list of the records in a record directory, in either the flat
+     * or the sharded layout (see ShardedLayout). For a flat directory, this is
+     * every file in the directory; for a sharded one, it is every file at the
+     * root plus every file in the shard directories. Hidden files (those whose
+     * names begin with "_" or ".", like the "_sharded" marker itself) are
+     * never records, and are left out in both cases.
+     *
+     * As with #getFilesOnlyInDirectory(), the records are in no specific
+     * order.
+     *
+     * @param dir The root of the record directory
+     * @return A list of all records found in the directory
+     * @throws IOException
+     */
+    public List<Path> getRecordFiles( Path dir ) throws IOException {
+        List<Path> records = new ArrayList<Path>();
+        List<Path> shards = new ArrayList<Path>();
+        boolean sharded = false;
+        for( FileStatus status : fs.listStatus( dir ) ) {
+            String name = status.getPath().getName();
+            if( name.equals( ShardedLayout.MARKER_NAME ) ) {
+                sharded = true;
+            }
+            else if( status.isDir() ) {
+                if( ShardedLayout.isShardName( name ) ) {
+                    shards.add( status.getPath() );
+                }
+            }
+            else if( !name.startsWith( "_" ) && !name.startsWith( "." ) ) {
+                records.add( status.getPath() );
+            }
+        }
+        if( !sharded ) {
+            return records;
+        }
+
+        // Descend through the remaining levels of shard directories
+        for( int level = 1; level < ShardedLayout.NUM_LEVELS; level++ ) {
+            List<Path> nextLevel = new ArrayList<Path>();
+            for( Path shard : shards ) {
+                for( Path sub : getSubdirectories( shard ) ) {
+                    if( ShardedLayout.isShardName( sub.getName() ) ) {
+                        nextLevel.add( sub );
+                    }
+                }
+            }
+            shards = nextLevel;
+        }
+        for( Path shard : shards ) {
+            records.addAll( getFilesOnlyInDirectory( shard ) );
+        }
+        return records;
+    }
+
     /**
      * Gets a list of Paths that contains all subdirectories in the directory in
      * question. Resolves paths using the file system object given to this object
@@ -1,5 +1,6 @@
 package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
 
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
 import edu.illinois.cs.cogcomp.thrift.base.Clustering;
 import edu.illinois.cs.cogcomp.thrift.base.Forest;
 import edu.illinois.cs.cogcomp.thrift.base.Labeling;
@@ -8,39 +9,75 @@ import edu.illinois.cs.cogcomp.thrift.curator.Record;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A version of the Curator's document record, for use on the Hadoop Distributed
  * File System (HDFS), which does not rely on database calls.
  *
  * Implements WritableComparable so that it can be used as a key or value in a
- * MapReduce job.
+ * MapReduce job. A HadoopRecord may also be a mere reference to a serialized
+ * record in HDFS (see #reference()), which keeps the map output small.
  * @author Lisa Bao
  * @author Tyler Young
  */
 public class HadoopRecord extends Record implements WritableComparable< Record > {
 
-    private MessageLogger logger;
-    private HadoopSerializationHandler serializer;
+    // Shared by every record, rather than allocated for each one
+    private MessageLogger logger = HadoopInterface.logger;
+
+    // Serializers keep buffers between records (see TBufferedDataTransport),
+    // so while records on the same thread share one, threads can't
+    private static final ThreadLocal<HadoopSerializationHandler> serializers =
+            new ThreadLocal<HadoopSerializationHandler>() {
+                @Override
+                protected HadoopSerializationHandler initialValue() {
+                    return new HadoopSerializationHandler();
+                }
+            };
+
+    // True if the view maps were allocated by our own #read(), and so may be
+    // cleared and refilled by the next one
+    private boolean ownsViewMaps = false;
+
+    // Our view maps from the last #read(), kept (in #clearFields()) while the
+    // next one runs, for it to refill
+    private Map<String, Labeling> spareLabelViews;
+    private Map<String, Clustering> spareClusterViews;
+    private Map<String, Forest> spareParseViews;
+    private Map<String, View> spareViews;
+
+    // Only set for records in "reference" form (see #reference())
+    private Path referencedPath;
+    private long referencedSize;
+
+    // Leading byte of the Writable form, telling us which form follows
+    private static final byte FULL_RECORD = 0;
+    private static final byte REFERENCE = 1;
 
     /**
      * Zero-argument constructor for use by the Hadoop backend. It calls this
      * constructor, then reads the fields in using the Writable interface.
-     * (Within the readFields() method, we call the initializeAllVars() method
-     * so that you wind up with a normal, filled object.)
+     * Hadoop then reuses the object, calling readFields() again for each
+     * record, so construction is kept cheap.
      */
     public HadoopRecord() {
         super();
-
-        logger = new MessageLogger( true );
-        serializer = new HadoopSerializationHandler();
     }
 
     /**
@@ -56,7 +93,6 @@ public class HadoopRecord extends Record implements WritableComparable< Record >
                          Configuration config )
             throws IOException {
         super();
-        logger = new MessageLogger( true );
 
         try {
             initializeAllVars( documentHash, fs, config );
@@ -65,6 +101,141 @@ public class HadoopRecord extends Record implements WritableComparable< Record >
         }
     }
 
+    /**
+     * Constructs a record object from the serialized record at a known
+     * location, such as one found while listing a (possibly sharded) input
+     * directory.
+     * @param documentHash The hash for the document whose annotations this
+     *                     record stores
+     * @param serializedRecord The location (in HDFS) of the document's
+     *                         serialized record
+     * @param fs A filesystem object with which this Record can access the
+     *           Hadoop Distributed File System (HDFS)
+     */
+    public HadoopRecord( String documentHash, Path serializedRecord,
+                         FileSystem fs )
+            throws IOException {
+        super();
+
+        try {
+            initializeFromFile( documentHash, serializedRecord, fs );
+        } catch ( TException e ) {
+            logger.logError("Error initializing Hadoop Record");
+        }
+    }
+
+    /**
+     * Constructs a record object with the same text, views, and other
+     * properties as an existing record (e.g., one unpacked from a container
+     * file). Note that the other record's views are shared, not copied.
+     * @param other The Record whose properties we will copy
+     */
+    public HadoopRecord( Record other ) {
+        super();
+
+        configureThisFromOther( other );
+    }
+
+    /**
+     * Constructs a record in "reference" form: rather than carrying the
+     * document's text and annotations, it carries only the document's hash and
+     * the location and size of its serialized record in HDFS. These are tiny to
+     * shuffle, no matter how many views the document has accumulated, and the
+     * reducer can read the full record directly from HDFS with #dereference().
+     * @param documentHash The hash identifying the document
+     * @param serializedRecord The location (in HDFS) of the document's
+     *                         serialized record
+     * @param numBytes The size of the serialized record
+     * @return A record which refers to the serialized record
+     */
+    public static HadoopRecord reference( String documentHash,
+                                          Path serializedRecord,
+                                          long numBytes ) {
+        HadoopRecord ref = new HadoopRecord();
+        ref.setIdentifier( documentHash );
+        ref.referencedPath = serializedRecord;
+        ref.referencedSize = numBytes;
+        return ref;
+    }
+
+    /**
+     * @return True if this record is only a reference to a serialized record
+     *         (and thus has neither text nor views), false if it is a full
+     *         record
+     */
+    public boolean isReference() {
+        return referencedPath != null;
+    }
+
+    /**
+     * @return The location of the serialized record this record refers to, or
+     *         null if this is a full record
+     */
+    public Path getReferencedPath() {
+        return referencedPath;
+    }
+
+    /**
+     * @return The size, in bytes, of the serialized record this record refers
+     *         to, or 0 if this is a full record
+     */
+    public long getReferencedSize() {
+        return referencedSize;
+    }
+
+    /**
+     * Reads the full record that this (reference) record refers to.
+     * @param fs The file system against which to resolve the referenced path
+     * @return A new Record with all the document's text and views
+     * @throws IOException If this is not a reference, or if the referenced
+     *                     record cannot be read
+     */
+    public Record dereference( FileSystem fs ) throws IOException {
+        if( !isReference() ) {
+            throw new IOException( "Record " + getIdentifier()
+                    + " is not a reference." );
+        }
+        try {
+            Record full = getSerializer().deserialize( referencedPath, fs );
+            full.setIdentifier( getIdentifier() );
+            return full;
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error reading record "
+                    + getIdentifier() + " from " + referencedPath.toString()
+                    + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Reads the record that this (reference) record refers to, decoding only
+     * the views that the projection asks for. The rest are kept, undecoded,
+     * in the returned ProjectedRecord.
+     * @param fs The file system against which to resolve the referenced path
+     * @param projection The serializer that knows which views to decode
+     * @return The projected record
+     * @throws IOException If this is not a reference, or if the referenced
+     *                     record cannot be read
+     */
+    public ProjectingSerializer.ProjectedRecord dereference(
+            FileSystem fs, ProjectingSerializer projection )
+            throws IOException {
+        if( !isReference() ) {
+            throw new IOException( "Record " + getIdentifier()
+                    + " is not a reference." );
+        }
+        try {
+            ProjectingSerializer.ProjectedRecord projected =
+                    projection.deserializeFromInputStream(
+                            fs.open( referencedPath ) );
+            projected.getRecord().setIdentifier( getIdentifier() );
+            return projected;
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error reading record "
+                    + getIdentifier() + " from " + referencedPath.toString()
+                    + ": " + e.getMessage() );
+        }
+    }
+
     /**
      * Essentially the "real" constructor. Handles the initialization of all
      * variables. The reason for separating this from the actual constructor is
@@ -80,13 +251,25 @@ public class HadoopRecord extends Record implements WritableComparable< Record >
     private void initializeAllVars( String documentHash, FileSystem fs,
                                     Configuration config )
             throws IOException, TException {
-        Path doc = new Path( config.get( "inputDirectory" ),
-                             documentHash + ".txt" );
+        Path inputDir = new Path( config.get( "inputDirectory" ) );
+        Path doc = ShardedLayout.getRecordLoc( inputDir, documentHash,
+                ShardedLayout.isSharded( inputDir, fs ) );
+        initializeFromFile( documentHash, doc, fs );
+    }
 
+    /**
+     * Reads the record's properties from its serialized form in HDFS
+     * @param documentHash The hash for the document whose annotation this
+     *                     record stores
+     * @param doc The location of the serialized record
+     * @param fs A filesystem object with which to read the record
+     */
+    private void initializeFromFile( String documentHash, Path doc,
+                                     FileSystem fs )
+            throws IOException, TException {
         logger.logStatus( "Reconstructing this HadoopRecord from file "
                           + doc.toString() );
-        serializer = new HadoopSerializationHandler();
-        Record reconstructed = serializer.deserialize( doc, fs );
+        Record reconstructed = getSerializer().deserialize( doc, fs );
 
         configureThisFromOther( reconstructed );
 
@@ -99,6 +282,7 @@ public class HadoopRecord extends Record implements WritableComparable< Record >
      * @param other The Record whose properties we will copy
      */
     private void configureThisFromOther( Record other ) {
+        ownsViewMaps = false; // the maps are now shared with the other record
         setRawText( other.getRawText() );
 
         setClusterViews( other.getClusterViews() );
@@ -110,6 +294,28 @@ public class HadoopRecord extends Record implements WritableComparable< Record >
         setWhitespaced( other.isWhitespaced() );
     }
 
+    /**
+     * Hands this record's text and views over to a new, plain Record, without
+     * copying them. This record gives up its view maps (the next #readFields()
+     * allocates new ones), so the new Record may be kept after Hadoop has
+     * reused this object for the next value.
+     * @return A Record with this record's identifier, text and views
+     */
+    public Record detach() {
+        Record detached = new Record();
+        detached.setIdentifier( getIdentifier() );
+        detached.setRawText( getRawText() );
+        detached.setLabelViews( getLabelViews() );
+        detached.setClusterViews( getClusterViews() );
+        detached.setParseViews( getParseViews() );
+        detached.setViews( getViews() );
+        if( isSetWhitespaced() ) {
+            detached.setWhitespaced( isWhitespaced() );
+        }
+        ownsViewMaps = false;
+        return detached;
+    }
+
     /**
      * @return The hash identifying the document that this
      *         record describes
@@ -167,36 +373,174 @@ public class HadoopRecord extends Record implements WritableComparable< Record >
 	
     @Override
     public int compareTo( Record record ) {
-        logger.log( "Comparing record for " + getDocumentHash()
-                                    + "to record for " + record.getIdentifier() );
         return getDocumentHash().compareTo( record.getIdentifier() );
     }
 
     @Override
     public void write( DataOutput out ) throws IOException {
+        if( isReference() ) {
+            out.writeByte( REFERENCE );
+            Text.writeString( out, getIdentifier() );
+            Text.writeString( out, referencedPath.toString() );
+            out.writeLong( referencedSize );
+            return;
+        }
+
         if( !isSetWhitespaced() ) {
             setWhitespaced(false);
         }
 
+        out.writeByte( FULL_RECORD );
         try {
-            serializer.serializeToDataOutput( this, out );
+            getSerializer().serializeToDataOutput( this, out );
         } catch ( TException e ) {
             logger.logError( "Thrift exception serializing Record "
                              + getIdentifier() );
         }
     }
 
+    /**
+     * Reads the Writable form of the record directly into this object (see
+     * #read(TProtocol)), reusing its view maps from the last call
+     */
     @Override
     public void readFields( DataInput in ) throws IOException {
-        Record readVersion = new Record();
+        if( in.readByte() == REFERENCE ) {
+            clearFields();
+            setIdentifier( Text.readString( in ) );
+            referencedPath = new Path( Text.readString( in ) );
+            referencedSize = in.readLong();
+            return;
+        }
+
+        referencedPath = null;
+        referencedSize = 0;
 
         try {
-            readVersion = serializer.deserializeFromDataInput( in );
+            getSerializer().deserializeFromDataInput( in, this );
         } catch ( TException e ) {
             logger.logError( "Error deserializing record!" );
         }
+    }
+
+    /**
+     * Reads a record the way the generated Record.read() does (so that a
+     * field missing from the serialized form is left unset), except that
+     * rather than allocating new view maps for every record, it clears and
+     * refills the ones left from the last call (unless they have been given
+     * away; see #detach()).
+     * @param in The protocol to read from
+     */
+    @Override
+    public void read( TProtocol in ) throws TException {
+        clearFields();
+        ownsViewMaps = true;
+
+        in.readStructBegin();
+        while( true ) {
+            TField field = in.readFieldBegin();
+            if( field.type == TType.STOP ) {
+                break;
+            }
+
+            _Fields id = _Fields.findByThriftId( field.id );
+            if( id == _Fields.IDENTIFIER && field.type == TType.STRING ) {
+                setIdentifier( in.readString() );
+            }
+            else if( id == _Fields.RAW_TEXT && field.type == TType.STRING ) {
+                setRawText( in.readString() );
+            }
+            else if( id == _Fields.WHITESPACED && field.type == TType.BOOL ) {
+                setWhitespaced( in.readBool() );
+            }
+            else if( id == _Fields.LABEL_VIEWS && field.type == TType.MAP ) {
+                setLabelViews( readViews( in, spareLabelViews, Labeling.class ) );
+            }
+            else if( id == _Fields.CLUSTER_VIEWS && field.type == TType.MAP ) {
+                setClusterViews(
+                        readViews( in, spareClusterViews, Clustering.class ) );
+            }
+            else if( id == _Fields.PARSE_VIEWS && field.type == TType.MAP ) {
+                setParseViews( readViews( in, spareParseViews, Forest.class ) );
+            }
+            else if( id == _Fields.VIEWS && field.type == TType.MAP ) {
+                setViews( readViews( in, spareViews, View.class ) );
+            }
+            else {
+                TProtocolUtil.skip( in, field.type );
+            }
+            in.readFieldEnd();
+        }
+        in.readStructEnd();
+
+        if( !isSetWhitespaced() ) {
+            throw new TProtocolException( "Required field 'whitespaced' was "
+                    + "not found in serialized data! Struct: " + toString() );
+        }
+        validate();
+    }
+
+    /**
+     * Reads a map of views
+     * @param spare A map to clear and refill, or null to allocate a new one
+     * @return The map of views read
+     */
+    private static <V extends TBase<?, ?>> Map<String, V> readViews(
+            TProtocol in, Map<String, V> spare, Class<V> viewClass )
+            throws TException {
+        TMap map = in.readMapBegin();
+        Map<String, V> into;
+        if( spare != null ) {
+            spare.clear();
+            into = spare;
+        }
+        else {
+            into = new HashMap<String, V>( 2 * map.size );
+        }
+        for( int i = 0; i < map.size; i++ ) {
+            String name = in.readString();
+            V view;
+            try {
+                view = viewClass.getDeclaredConstructor().newInstance();
+            } catch ( Exception e ) {
+                throw new TException( "Unable to create a "
+                        + viewClass.getSimpleName() + ": " + e.getMessage() );
+            }
+            view.read( in );
+            into.put( name, view );
+        }
+        in.readMapEnd();
+        return into;
+    }
 
-        configureThisFromOther( readVersion );
+    /**
+     * Unsets every field, as the generated Record.clear() does. View maps we
+     * allocated ourselves are kept aside for the next #read() to refill; any
+     * others (shared with another record, or given away by #detach()) are
+     * dropped.
+     */
+    private void clearFields() {
+        if( ownsViewMaps ) {
+            spareLabelViews = getLabelViews();
+            spareClusterViews = getClusterViews();
+            spareParseViews = getParseViews();
+            spareViews = getViews();
+        }
+        else {
+            spareLabelViews = null;
+            spareClusterViews = null;
+            spareParseViews = null;
+            spareViews = null;
+        }
+        ownsViewMaps = false;
+        clear();
+    }
+
+    /**
+     * @return The serializer for this thread
+     */
+    private static HadoopSerializationHandler getSerializer() {
+        return serializers.get();
     }
 
     @Override
@@ -2,18 +2,30 @@ package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
 
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions
         .EmptyInputException;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
 import edu.illinois.cs.cogcomp.thrift.curator.Record;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.transport.TDataTransport;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TBufferedDataTransport;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 /**
  * Used for writing Thrift objects to the file system. This is a thin wrapper
@@ -31,6 +43,26 @@ public class HadoopSerializationHandler extends SerializationHandler {
     public HadoopSerializationHandler() {
     }
 
+    /**
+     * Constructs a serialization handler which compresses the records it
+     * writes to HDFS. (Any handler can read compressed records.)
+     * @param compression The compression to apply to records we write
+     */
+    public HadoopSerializationHandler( RecordCompression compression ) {
+        super( compression );
+    }
+
+    /**
+     * Constructs a serialization handler which writes records to HDFS with the
+     * indicated compression and Thrift protocol
+     * @param compression The compression to apply to records we write
+     * @param protocol The protocol with which to serialize records we write
+     */
+    public HadoopSerializationHandler( RecordCompression compression,
+                                       RecordProtocol protocol ) {
+        super( compression, protocol );
+    }
+
     /**
      * Writes a serialized version of the Record object to the indicated file.
      * Will overwrite that file if it already exists.
@@ -50,6 +82,114 @@ public class HadoopSerializationHandler extends SerializationHandler {
         serializeToOutputStream( data, fileWriter );
     }
 
+    /**
+     * Writes an already-serialized Record (e.g., from #serializeToBytes()) to
+     * the indicated file in HDFS, computing a CRC-32 checksum of the bytes as
+     * they are written. Will overwrite that file if it already exists.
+     * @param serializedData The serialized form of a Record
+     * @param destination The file that the Record will be written to
+     * @param fs The file system object against which we should resolve the path
+     * @return The CRC-32 checksum of the bytes written
+     */
+    public long writeSerialized( byte[] serializedData, Path destination,
+                                 FileSystem fs ) throws IOException {
+        CheckedOutputStream fileWriter =
+                new CheckedOutputStream( fs.create( destination ), new CRC32() );
+        try {
+            fileWriter.write( serializedData );
+        } finally {
+            fileWriter.close();
+        }
+        return fileWriter.getChecksum().getValue();
+    }
+
+    /**
+     * Reads the raw (still serialized) bytes of a file in HDFS, computing a
+     * CRC-32 checksum as they are read.
+     * @param serializedData The file to read
+     * @param fs The file system object against which we should resolve the path
+     * @param checksum The checksum object to be updated with the file's
+     *                 contents (pass in a fresh CRC32)
+     * @return The contents of the file
+     */
+    public byte[] readSerialized( Path serializedData, FileSystem fs,
+                                  Checksum checksum ) throws IOException {
+        CheckedInputStream fileReader =
+                new CheckedInputStream( fs.open( serializedData ), checksum );
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int numRead;
+            while( ( numRead = fileReader.read( buffer ) ) > 0 ) {
+                contents.write( buffer, 0, numRead );
+            }
+        } finally {
+            fileReader.close();
+        }
+        return contents.toByteArray();
+    }
+
+    /**
+     * Reads a written record back from HDFS and confirms that it matches what
+     * we intended to write: same size, same checksum, and the same number of
+     * annotations once deserialized.
+     * @param fileLoc The location of the written record
+     * @param fs The file system object against which we should resolve the path
+     * @param expected The manifest entry created when the record was written
+     * @throws IOException If the file's size, checksum, or annotations don't
+     *                     match what we wrote
+     */
+    public void verifyWritten( Path fileLoc, FileSystem fs,
+                               OutputManifest.Entry expected )
+            throws IOException, TException {
+        CRC32 checksum = new CRC32();
+        byte[] written = readSerialized( fileLoc, fs, checksum );
+        if( written.length != expected.getNumBytes()
+                || checksum.getValue() != expected.getChecksum() ) {
+            throw new IOException( "Record written to " + fileLoc.toString()
+                    + " is corrupt. Expected " + expected.getNumBytes()
+                    + " bytes with checksum " + expected.getChecksum()
+                    + ", but found " + written.length
+                    + " bytes with checksum " + checksum.getValue() );
+        }
+
+        Record reconstructed = deserializeFromBytes( written );
+        if( RecordTools.getNumViews( reconstructed )
+                != expected.getNumAnnotations() ) {
+            throw new IOException( "Reconstructed record has "
+                    + RecordTools.getNumViews( reconstructed )
+                    + " annotations, but original had "
+                    + expected.getNumAnnotations() );
+        }
+    }
+
+    /**
+     * Unpacks every Record from a container file (a SequenceFile of
+     * (document hash, serialized record) pairs, as written by
+     * RecordOutputFormat when packing records).
+     * @param container The location of the container file
+     * @param fs The file system object against which we should resolve the path
+     * @return The records packed in the container, in the order they were
+     *         written
+     */
+    public List<Record> readContainer( Path container, FileSystem fs )
+            throws IOException, TException {
+        List<Record> records = new ArrayList<Record>();
+        SequenceFile.Reader reader =
+                new SequenceFile.Reader( fs, container, fs.getConf() );
+        try {
+            Text hash = new Text();
+            BytesWritable serialized = new BytesWritable();
+            while( reader.next( hash, serialized ) ) {
+                records.add( deserializeFromBytes( Arrays.copyOf(
+                        serialized.getBytes(), serialized.getLength() ) ) );
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
     /**
      * Rebuilds a Record data structure from the serialized form in HDFS.
      *
@@ -75,17 +215,26 @@ public class HadoopSerializationHandler extends SerializationHandler {
 
 
     /**
-     * Implements the serialization on a generic DataOutput object
+     * Implements the serialization on a generic DataOutput object. There is no
+     * header here (this is how HadoopRecords are shuffled, not stored), so the
+     * handler on the reading side must use the same protocol as this one.
+     *
+     * The record is encoded into a buffer which this handler keeps between
+     * calls, then written to the DataOutput as a single length-prefixed frame
+     * (see TBufferedDataTransport). This handler is therefore not safe to use
+     * from more than one thread at a time.
      * @param data The Record to serialize
      * @param out The data output stream to ask Thrift to write to
      * @throws org.apache.thrift.TException
      */
     public void serializeToDataOutput( Record data, DataOutput out )
             throws TException {
-        TBinaryProtocol thriftWriter =
-                new TBinaryProtocol( new TDataTransport( out ) );
+        TBufferedDataTransport transport = getDataTransport();
+        transport.setOutput( out );
+        TProtocol thriftWriter = getProtocol().wrap( transport );
 
-        data.write( thriftWriter ); // write to the output stream
+        data.write( thriftWriter ); // write to the buffer . . .
+        transport.flush(); // . . . and the buffer to the output stream
     }
 
     /**
@@ -93,18 +242,45 @@ public class HadoopSerializationHandler extends SerializationHandler {
      * <em>not</em> use this unless you have no other choice. Instead, stick
      * to the deserialize() methods.
      *
-     * This method is the inverse of #serializeFromOutputStream().
+     * The record's frame is read from the DataInput in one go, and Thrift then
+     * decodes the record straight out of our buffer.
+     *
+     * This method is the inverse of #serializeToDataOutput().
      * @param in The input stream to read from the serialized file
      * @return The reconstructed Record
      */
     public Record deserializeFromDataInput( DataInput in ) throws TException {
-        TBinaryProtocol thriftReader =
-                new TBinaryProtocol( new TDataTransport( in ) );
-
         Record readVersion = new Record();
-        readVersion.read( thriftReader ); // read from the input stream
-
+        deserializeFromDataInput( in, readVersion );
         return readVersion;
+    }
 
+    /**
+     * Like #deserializeFromDataInput(DataInput), but reads into an existing
+     * Record (e.g., a HadoopRecord being reused by Hadoop) rather than
+     * allocating a new one
+     * @param in The input stream to read from
+     * @param into The Record to fill
+     */
+    public void deserializeFromDataInput( DataInput in, Record into )
+            throws TException {
+        TBufferedDataTransport transport = getDataTransport();
+        transport.setInput( in );
+        into.read( getProtocol().wrap( transport ) );
     }
+
+    /**
+     * @return The transport for shuffle reads and writes, whose buffers we
+     *         reuse from one record to the next
+     */
+    private TBufferedDataTransport getDataTransport() {
+        if( dataTransport == null ) {
+            dataTransport = new TBufferedDataTransport();
+        }
+        return dataTransport;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TBufferedDataTransport dataTransport;
 }
@@ -0,0 +1,169 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records the progress of a multi-stage plan (like the string of jobs run by
+ * the JobHandler) in a local file, so that a plan which dies partway through
+ * can pick up where it left off instead of starting over.
+ *
+ * The file begins with a line describing the plan, and then has a line for
+ * each stage as it is started and as it is finished:
+ * <pre>
+ *     plan	[description of the plan]
+ *     started	[stage name]
+ *     done	[stage name]
+ *     ...
+ * </pre>
+ * Lines are only ever appended, so a crash can at worst lose the record of
+ * the stage that was running. A checkpoint left by a different plan (e.g., one
+ * for other input, or another target annotation) is ignored and replaced.
+ *
+ * @author Tyler Young
+ */
+public class JobCheckpoint {
+    /**
+     * Loads the checkpoint of a plan, or starts a new one if the file does not
+     * exist or was written for a different plan
+     * @param checkpointFile The local file in which progress is recorded
+     * @param planDescription A single line describing the plan: everything
+     *                        which, if changed, would make the stages
+     *                        already done no longer count
+     * @throws IOException If the file cannot be read or written
+     */
+    public JobCheckpoint( File checkpointFile, String planDescription )
+            throws IOException {
+        this.checkpointFile = checkpointFile;
+        this.planDescription = planDescription.replace( '\n', ' ' );
+        started = new HashSet<String>();
+        done = new HashSet<String>();
+
+        if( checkpointFile.exists() && load() ) {
+            return;
+        }
+
+        started.clear();
+        done.clear();
+        File parent = checkpointFile.getAbsoluteFile().getParentFile();
+        if( parent != null ) {
+            parent.mkdirs(); // does nothing if it already exists
+        }
+        append( PLAN, this.planDescription, false );
+    }
+
+    /**
+     * @param stage The name of a stage of the plan
+     * @return True if the stage was finished by this or an earlier run
+     */
+    public boolean isDone( String stage ) {
+        return done.contains( stage );
+    }
+
+    /**
+     * @param stage The name of a stage of the plan
+     * @return True if the stage was started (whether or not it was finished)
+     *         by this or an earlier run
+     */
+    public boolean isStarted( String stage ) {
+        return started.contains( stage );
+    }
+
+    /**
+     * Records that a stage is about to run
+     * @param stage The name of a stage of the plan
+     */
+    public void markStarted( String stage ) throws IOException {
+        started.add( stage );
+        append( STARTED, stage, true );
+    }
+
+    /**
+     * Records that a stage finished successfully
+     * @param stage The name of a stage of the plan
+     */
+    public void markDone( String stage ) throws IOException {
+        started.add( stage );
+        done.add( stage );
+        append( DONE, stage, true );
+    }
+
+    /**
+     * Removes the checkpoint file, once the whole plan has finished (or if
+     * the user wants to start over)
+     */
+    public void delete() {
+        checkpointFile.delete();
+        started.clear();
+        done.clear();
+    }
+
+    /**
+     * Reads the stages recorded in the checkpoint file
+     * @return True if the file describes this plan; false if it belongs to
+     *         some other plan (in which case it should be replaced)
+     */
+    private boolean load() throws IOException {
+        BufferedReader reader = new BufferedReader( new InputStreamReader(
+                new FileInputStream( checkpointFile ), "UTF-8" ) );
+        try {
+            String line = reader.readLine();
+            if( line == null || !line.equals( PLAN + "\t" + planDescription ) ) {
+                return false;
+            }
+
+            while( ( line = reader.readLine() ) != null ) {
+                int tab = line.indexOf( '\t' );
+                if( tab < 0 ) {
+                    continue; // cut off by a crash
+                }
+                String kind = line.substring( 0, tab );
+                String stage = line.substring( tab + 1 );
+                if( kind.equals( STARTED ) ) {
+                    started.add( stage );
+                }
+                else if( kind.equals( DONE ) ) {
+                    started.add( stage );
+                    done.add( stage );
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a line to the checkpoint file
+     * @param kind The kind of line (e.g., DONE)
+     * @param value The rest of the line
+     * @param append False if the file should be started over
+     */
+    private void append( String kind, String value, boolean append )
+            throws IOException {
+        Writer out = new OutputStreamWriter(
+                new FileOutputStream( checkpointFile, append ), "UTF-8" );
+        try {
+            out.write( kind + "\t" + value + "\n" );
+        } finally {
+            out.close();
+        }
+    }
+
+    private static final String PLAN = "plan";
+    private static final String STARTED = "started";
+    private static final String DONE = "done";
+
+    private final File checkpointFile;
+    private final String planDescription;
+    private final Set<String> started;
+    private final Set<String> done;
+}
@@ -1,12 +1,20 @@
 package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
 
 import org.jetbrains.annotations.Nullable;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions
+        .EmptyInputException;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions
         .IllegalModeException;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
 import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.thrift.TException;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
 
@@ -15,13 +23,28 @@ import java.util.*;
  * Sits between the Curator-to-Hadoop batch script and the Hadoop-to-Curator
  * batch script.
  *
- * NOTE: This class requires that all files in the input directory have
- * the same "level" of existing annotations. Any document may be sampled to
- * determine which annotations have already been completed.
+ * Documents in the input directory need not all have the same "level" of
+ * existing annotations. We find out which annotations each document has (from
+ * the manifest of the job that wrote them, if there is one, or else by
+ * reading every record), run a job for each dependency that any document is
+ * missing, and each job annotates only the documents which lack its
+ * annotation; the rest pass through it untouched.
  *
  * This version of the Job Handler allows the user to optionally specify what
  * annotation level to begin at, so that a mixed input directory can be used by
- * overwriting existing higher-level annotations.
+ * overwriting existing higher-level annotations. In that case, every job
+ * annotates every document, replacing any annotation it already had.
+ *
+ * Progress through the plan is recorded in a checkpoint file (see
+ * JobCheckpoint) in the logs directory. If the plan dies partway through,
+ * running the same command again skips the stages which finished, and the
+ * stage that was interrupted is resumed: documents it already wrote are kept,
+ * and only the rest are annotated. Pass -restart to ignore the checkpoint and
+ * start over.
+ *
+ * Raw text files with identical text are sent to Hadoop (and annotated) only
+ * once. When the output is copied back, each record is also copied to the
+ * name of every original file it came from (see DocumentDeduplicator).
  *
  * @use java -jar JobHandler.jar < annotation to be run >
  *          < /absolute/path/to/raw/text> [ optional: first annotation to run ]
@@ -34,6 +57,9 @@ import java.util.*;
  *          (If you want the locally-running Curator to verify that it gets all
  *          the same annotations. You almost assuredly should *not* use this
  *          with large document collections.)
+ * @example java -jar JobHandler.jar WIKI /home/jsmith/input_text_file_dir -restart
+ *          (If an earlier run of the same plan died, and you want to start it
+ *          over from the beginning rather than resume it.)
  * @precondition The following files/directories are in place on this machine:
  *
  * <ul>
@@ -55,6 +81,9 @@ import java.util.*;
 public class JobHandler {
     private static final String locationOfInitialInputInHDFS =
             "first_serialized_input";
+    private static final String CHECKPOINT_FILE_NAME = "job_checkpoint.txt";
+    private static final String COPY_INPUT_STAGE = "copy_input";
+    private static final String SOURCES_FILE_NAME = "dedup_sources.tsv";
 
     /**
      * Set up a string of Hadoop jobs to run the requested annotation on the
@@ -81,6 +110,7 @@ public class JobHandler {
             testing = true;
             argList.remove( "-test" );
         }
+        boolean restarting = argList.remove( "-restart" );
 
         AnnotationMode requestedAnnotation = null;
         AnnotationMode forcedFirstAnnotation = null;
@@ -113,7 +143,8 @@ public class JobHandler {
                 + "\tInput directory: " + inputDirAsString + "\n"
                 + "\tRequested annotation: " + requestedAnnotation + "\n"
                 + "\tForced first annotation: " + forcedFirstAnnotation + "\n"
-                + "\tTesting mode? " + Boolean.toString(testing) );
+                + "\tTesting mode? " + Boolean.toString(testing) + "\n"
+                + "\tRestarting? " + Boolean.toString(restarting) );
 
         // Check input
         File inputDir = new File( inputDirAsString );
@@ -150,13 +181,42 @@ public class JobHandler {
         List<AnnotationMode> depsToRun =
                 determineDependencies( requestedAnnotation, forcedFirstAnnotation,
                                        inputDir, inputIsSerializedRecords );
+        // If the user told us where to start, they want existing annotations
+        // from there on replaced, not passed through
+        boolean reannotate = forcedFirstAnnotation != null;
 
 
 
+        // Raw text is deduplicated as it is turned into records; this is where
+        // we learn which original files each record came from
+        File sourcesFile = new File( "logs", SOURCES_FILE_NAME );
+
+        // Pick up where an earlier run of the same plan left off, if any
+        File checkpointFile = new File( "logs", CHECKPOINT_FILE_NAME );
+        if( restarting ) {
+            checkpointFile.delete();
+        }
+        JobCheckpoint checkpoint = new JobCheckpoint( checkpointFile,
+                "input=" + inputDir.getAbsolutePath()
+                + " target=" + requestedAnnotation.toString()
+                + " dependencies=" + depsToRun.toString()
+                + " reannotate=" + Boolean.toString( reannotate ) );
+
+
         // Call copy_input_to_hadoop
-        // If necessary, this launches the Master Curator and serializes the raw
-        // text into records before copying the files to HDFS
-        copyInputToHadoop( inputDirAsString, inputIsSerializedRecords );
+        // Raw text is turned into records and streamed straight into HDFS by
+        // the RawTextIngester; serialized records are simply copied over
+        if( checkpoint.isDone( COPY_INPUT_STAGE ) ) {
+            System.out.println( "\nYour input was already copied to the "
+                                + "Hadoop cluster by an earlier run.\n" );
+        }
+        else {
+            checkpoint.markStarted( COPY_INPUT_STAGE );
+            sourcesFile.delete(); // any left by an earlier plan is stale
+            copyInputToHadoop( inputDirAsString, inputIsSerializedRecords,
+                               sourcesFile );
+            checkpoint.markDone( COPY_INPUT_STAGE );
+        }
 
 
         // Annotate the documents for each new, intermediate dependency
@@ -164,7 +224,8 @@ public class JobHandler {
         for( AnnotationMode dependencyToGet : depsToRun ) {
             String outputFromThisJob = dependencyToGet.toString();
 
-            launchJob( dependencyToGet, inputToThisJob, outputFromThisJob );
+            runStage( checkpoint, dependencyToGet, inputToThisJob,
+                      outputFromThisJob, reannotate );
 
             // Set up for the next job (next job's input is this job's output)
             inputToThisJob = outputFromThisJob;
@@ -179,7 +240,8 @@ public class JobHandler {
         // Launch final MapReduce job
         System.out.println("Launching final MapReduce job.");
         String finalOutputInHadoop = requestedAnnotation.toString();
-        launchJob( requestedAnnotation, inputToThisJob, finalOutputInHadoop );
+        runStage( checkpoint, requestedAnnotation, inputToThisJob,
+                  finalOutputInHadoop, reannotate );
         System.out.println("Final MapReduce job is finished!\n\n");
 
 
@@ -189,6 +251,11 @@ public class JobHandler {
         // and add them to a locally-running Curator's database
         // Uses the copy_output_from_hadoop.sh script
         copyOutputFromHadoop( inputDirAsString, finalOutputInHadoop, testing );
+        if( !inputIsSerializedRecords && sourcesFile.exists() ) {
+            fanOutDuplicates( sourcesFile, new File( inputDirAsString
+                    + "/output", finalOutputInHadoop ) );
+        }
+        checkpoint.delete();
 
         System.out.println("\n\nJob completed successfully!\n\n");
     } // END OF MAIN
@@ -203,10 +270,14 @@ public class JobHandler {
      * @param inputIsSerializedRecords True if the files in the local directory
      *                                 are Thrift-serialized records, false if
      *                                 they are raw text instead.
+     * @param sourcesFile If the input is raw text, the local file to which the
+     *                    original files each record came from should be
+     *                    written (see DocumentDeduplicator)
      * @throws Exception
      */
     private static void copyInputToHadoop( String localDirectoryToCopyFrom,
-                                           boolean inputIsSerializedRecords )
+                                           boolean inputIsSerializedRecords,
+                                           File sourcesFile )
             throws Exception {
         System.out.println( "\nCopying your input files from \n\t"
                             + localDirectoryToCopyFrom
@@ -225,6 +296,10 @@ public class JobHandler {
         }
 
         fileCopyCmd.append( locationOfInitialInputInHDFS );
+        if( !inputIsSerializedRecords ) {
+            fileCopyCmd.append( " " );
+            fileCopyCmd.append( sourcesFile.getAbsolutePath() );
+        }
 
         Process fileCopyProc =
                 Runtime.getRuntime().exec( fileCopyCmd.toString() );
@@ -284,25 +359,31 @@ public class JobHandler {
             }
         }
         else { // Up to us to determine what to run first
-            // We take a random sample of the files in the input and inspect
-            // them for annotations
-            Set<AnnotationMode> existingAnnos = new HashSet<AnnotationMode>();
+            // Find out what each record already has. Raw text has nothing.
+            List<Set<AnnotationMode>> existingAnnos =
+                    new ArrayList<Set<AnnotationMode>>();
             if( inputIsSerializedRecords ) {
-                existingAnnos = getCommonAnnotations( inputDirAsFile );
-
-                System.out.println( "It looks like the records you gave us "
-                        + "have the following annotations already:\n\t"
-                        + existingAnnos.toString()
-                        + "\n" );
+                existingAnnos = getAnnotationsOfEachRecord( inputDirAsFile );
             }
-            // Note: At this point, if we have only raw text, existingAnnos is empty
 
-            // compare existing annotations to those in the dependencies list and
-            // add annotations to our to-do list as necessary
+            // Get each dependency that any record is missing. (The job for it
+            // will pass the records that already have it straight through.)
             for( AnnotationMode annotation : dependencies ) {
-                if( !existingAnnos.contains(annotation) ) {
+                int numMissing = 0;
+                for( Set<AnnotationMode> recordsAnnos : existingAnnos ) {
+                    if( !recordsAnnos.contains( annotation ) ) {
+                        ++numMissing;
+                    }
+                }
+
+                if( !inputIsSerializedRecords || numMissing > 0 ) {
                     depsToRun.add( annotation );
                 }
+                if( inputIsSerializedRecords ) {
+                    System.out.println( annotation.toString() + " is missing from "
+                            + numMissing + " of " + existingAnnos.size()
+                            + " records." );
+                }
             }
         } // END else
 
@@ -330,6 +411,38 @@ public class JobHandler {
         return depsToRun;
     }
 
+    /**
+     * Runs the job for one stage of the plan, unless the checkpoint says an
+     * earlier run already finished it. If an earlier run started the stage
+     * but never finished, the job is resumed rather than started over.
+     * @param checkpoint The record of the plan's progress
+     * @param a The type of annotation to run on the document collection
+     * @param inDir The HDFS directory from which the job takes its input
+     * @param outDir The HDFS directory to which the job writes its output
+     * @param reannotate True if documents which already have the annotation
+     *                   should be annotated again
+     * @throws Exception
+     */
+    private static void runStage( JobCheckpoint checkpoint, AnnotationMode a,
+                                  String inDir, String outDir,
+                                  boolean reannotate ) throws Exception {
+        String stage = a.toString();
+        if( checkpoint.isDone( stage ) ) {
+            System.out.println( "The " + stage + " job was already finished "
+                                + "by an earlier run. Skipping it." );
+            return;
+        }
+
+        boolean resume = checkpoint.isStarted( stage );
+        if( resume ) {
+            System.out.println( "The " + stage + " job was interrupted in an "
+                                + "earlier run. Resuming it." );
+        }
+        checkpoint.markStarted( stage );
+        launchJob( a, inDir, outDir, reannotate, resume );
+        checkpoint.markDone( stage );
+    }
+
     /**
      * Launches a Hadoop job on the cluster. Will annotate all documents in the
      * HDFS input directory with the indicated annotation mode, then write the
@@ -341,11 +454,18 @@ public class JobHandler {
      * @param outDir The location in the Hadoop Distributed File
      *               System (HDFS) where we should write the serialized records
      *               after we finish annotating them
+     * @param reannotate True if documents which already have the annotation
+     *                   should be annotated again; false if they should be
+     *                   passed through untouched
+     * @param resume True if the output directory holds the work of an
+     *               interrupted run of this job, which should be kept
      * @throws Exception
      */
     private static void launchJob( AnnotationMode a,
                                    String inDir,
-                                   String outDir ) throws Exception {
+                                   String outDir,
+                                   boolean reannotate,
+                                   boolean resume ) throws Exception {
         // Launch MapReduce job on Hadoop cluster
         System.out.println( "Launching MapReduce job on the Hadoop cluster "
                             + "to get annotation " + a.toString()
@@ -362,6 +482,12 @@ public class JobHandler {
         cmd.append( inDir );
         cmd.append( " " );
         cmd.append( outDir ); // Output to a directory in HDFS named this
+        if( reannotate ) {
+            cmd.append( " -reannotate" );
+        }
+        if( resume ) {
+            cmd.append( " -resume" );
+        }
 
         Process proc = Runtime.getRuntime().exec(
                 cmd.toString(), new String[0] );
@@ -429,6 +555,27 @@ public class JobHandler {
     }
 
 
+    /**
+     * Gives every original file whose text was a duplicate its own copy of the
+     * annotated record, in the output's "by_name" directory (see
+     * DocumentDeduplicator#fanOut()).
+     * @param sourcesFile The file listing the original files each record came
+     *                    from, written when the raw text was ingested
+     * @param localOutputDir The annotated records, copied back from Hadoop
+     * @throws IOException
+     */
+    private static void fanOutDuplicates( File sourcesFile, File localOutputDir )
+            throws IOException {
+        DocumentDeduplicator dedup = DocumentDeduplicator.read( sourcesFile );
+        System.out.println( "\nCopying the " + dedup.getNumUnique()
+                + " annotated records to the names of the original files ("
+                + dedup.getNumDuplicates() + " of which were duplicates)." );
+        int numCopies = dedup.fanOut( localOutputDir );
+        System.out.println( "Wrote " + numCopies + " records to "
+                + new File( localOutputDir,
+                            DocumentDeduplicator.FAN_OUT_DIR_NAME ).toString() );
+    }
+
     /**
      * Logs the output from the indicated process to both the
      * standard output/standard error stream and to a log file with the indicated
@@ -471,8 +618,7 @@ public class JobHandler {
 
             // Construct a (non-Hadoop) Record 'sampleRecord' from randomly
             // chosen File 'sample'
-            Record sampleRecord =
-                            ( new SerializationHandler() ).deserialize( sample );
+            Record sampleRecord = deserializeSample( sample );
 
             // If we were able to deserialize, it must be a serialized record!
             return true;
@@ -482,67 +628,109 @@ public class JobHandler {
     }
 
     /**
-     * Looks at a relatively large subset of all the serialized records
-     * present in the directory and returns a set of annotations which are common
-     * to all examined records.
-     * @param directory The directory containing serialized records
-     * @return The set of common annotations shared between all records in the
-     *         directory
-     * @throws IOException
-     * @throws TException
+     * Reconstructs a record from a sample file. If the file is a container of
+     * packed records (see RecordOutputFormat), the first record in it is used.
+     * @param sample A file containing one or more serialized records
+     * @return The (first) record stored in the file
+     * @throws IOException If the file doesn't contain a serialized record
      */
-    private static Set<AnnotationMode> getCommonAnnotations( File directory )
+    private static Record deserializeSample( File sample )
             throws IOException, TException {
-        List<File> samples = getSampleFilesFromDir( directory, 25 );
-
-        if( samples.size() == 0 ) {
-            throw new IOException( "No records found in input directory "
-                    + directory.toString() );
+        if( sample.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+            List<Record> packed = ( new HadoopSerializationHandler() ).readContainer(
+                    new Path( sample.getAbsolutePath() ),
+                    FileSystem.getLocal( new Configuration() ) );
+            if( packed.isEmpty() ) {
+                throw new EmptyInputException( "Container " + sample.toString()
+                                               + " holds no records." );
+            }
+            return packed.get( 0 );
         }
+        return ( new SerializationHandler() ).deserialize( sample );
+    }
 
-        System.out.println( "Took a sample of " + samples.size()
-                            + " records in determining the set of common "
-                            + "annotations.");
-
-        // Decide what annotations need to be run
-        List<AnnotationMode> commonAnnotations = null;
-
-        // Construct a Record 'sampleRecord' from randomly
-        // chosen File 'sample'
-        for( File sample : samples ) {
-            Record sampleRecord =
-                    ( new SerializationHandler() ).deserialize( sample );
+    /**
+     * Finds the annotations present in a sample file. Records stored on their
+     * own are read without decoding any of their views, since we only need
+     * the views' names.
+     * @param sample A file containing one or more serialized records
+     * @return The annotations in the (first) record stored in the file
+     */
+    private static List<AnnotationMode> getSampleAnnotations( File sample )
+            throws IOException, TException {
+        if( sample.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+            return RecordTools.getAnnotationsList( deserializeSample( sample ) );
+        }
+        ProjectingSerializer namesOnly = new ProjectingSerializer(
+                new HashSet<AnnotationMode>() );
+        FileInputStream in = new FileInputStream( sample );
+        try {
+            return namesOnly.deserializeFromInputStream( in ).getAnnotationsList();
+        } finally {
+            in.close();
+        }
+    }
 
-            // Retrieve list of existing annotations for comparison
-            List<AnnotationMode> thisRecordsAnnos =
-                    RecordTools.getAnnotationsList( sampleRecord );
+    /**
+     * Finds out which annotations each of the serialized records present in
+     * the directory has. If the directory is the output of an earlier job, the
+     * job's manifest (see OutputManifest) lists exactly which annotations every
+     * record has, so we need not open a single record. Otherwise, we read every
+     * record in the directory (without decoding any views, where we can help
+     * it).
+     * @param directory The directory containing serialized records
+     * @return For each record in the directory, the annotations it has
+     * @throws IOException
+     * @throws TException
+     */
+    private static List<Set<AnnotationMode>> getAnnotationsOfEachRecord(
+            File directory ) throws IOException, TException {
+        List<Set<AnnotationMode>> annotations = new ArrayList<Set<AnnotationMode>>();
+
+        OutputManifest manifest = OutputManifest.readAll(
+                new Path( directory.getAbsolutePath() ),
+                FileSystem.getLocal( new Configuration() ) );
+        if( manifest.hasDocumentStats() ) {
+            Map<String, Set<AnnotationMode>> byRecord =
+                    new HashMap<String, Set<AnnotationMode>>();
+            for( OutputManifest.Entry e : manifest.getEntries() ) {
+                if( !byRecord.containsKey( e.getHash() ) ) {
+                    byRecord.put( e.getHash(), new HashSet<AnnotationMode>() );
+                }
+                byRecord.get( e.getHash() ).addAll( e.getAnnotations() );
+            }
+            annotations.addAll( byRecord.values() );
+            System.out.println( "Read the annotations of all " + annotations.size()
+                                + " records from the job manifest." );
+            return annotations;
+        }
 
-            if( commonAnnotations == null ) {
-                // Set the baseline (the first record we have)
-                commonAnnotations = new LinkedList<AnnotationMode>(
-                        RecordTools.getAnnotationsList( sampleRecord ) );
+        for( File f : LocalFileSystemHandler.listRecordDirectory( directory ) ) {
+            if( f.isDirectory() || f.getName().startsWith( "_" )
+                    || f.getName().startsWith( "." ) ) {
+                continue;
             }
-            else {
-                System.out.println( "This record provides "
-                        + thisRecordsAnnos.toString() + ".\nPrevious common: "
-                        + commonAnnotations.toString() );
-                for( int i = 0; i < commonAnnotations.size(); i++ ) {
-                    // Check that we aren't out of bounds, since we're modifying
-                    // the size of the array as we go
-                    if( i < commonAnnotations.size() ) {
-                       AnnotationMode commonAnno = commonAnnotations.get(i);
-
-                        if( !thisRecordsAnnos.contains( commonAnno ) ) {
-                            commonAnnotations.remove( commonAnno );
-                        }
-                    }
+            if( f.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+                for( Record packed : ( new HadoopSerializationHandler() ).readContainer(
+                        new Path( f.getAbsolutePath() ),
+                        FileSystem.getLocal( new Configuration() ) ) ) {
+                    annotations.add( new HashSet<AnnotationMode>(
+                            RecordTools.getAnnotationsList( packed ) ) );
                 }
-
-                System.out.println( "New common: " + commonAnnotations.toString() );
+            }
+            else {
+                annotations.add(
+                        new HashSet<AnnotationMode>( getSampleAnnotations( f ) ) );
             }
         }
 
-        return new HashSet<AnnotationMode>( commonAnnotations );
+        if( annotations.size() == 0 ) {
+            throw new IOException( "No records found in input directory "
+                    + directory.toString() );
+        }
+        System.out.println( "Read the annotations of all " + annotations.size()
+                            + " records in the input directory." );
+        return annotations;
     }
 
     /**
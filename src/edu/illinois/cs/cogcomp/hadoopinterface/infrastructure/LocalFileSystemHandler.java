@@ -1,6 +1,9 @@
 package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 public class LocalFileSystemHandler {
@@ -110,4 +113,39 @@ public class LocalFileSystemHandler {
 
         return false;
     }
+
+    /**
+     * Lists the contents of a local record directory (e.g., the output of a
+     * Hadoop job, copied from HDFS). If the directory uses the sharded layout
+     * (see ShardedLayout), the records in its shard directories are listed
+     * along with everything at its root.
+     * @param dir The root of the record directory
+     * @return The files and directories at the root of the directory, plus
+     *         any files in its shard directories
+     */
+    public static List<File> listRecordDirectory( File dir ) {
+        List<File> contents = new ArrayList<File>( Arrays.asList( dir.listFiles() ) );
+        if( !new File( dir, ShardedLayout.MARKER_NAME ).exists() ) {
+            return contents;
+        }
+
+        List<File> shards = new ArrayList<File>();
+        shards.add( dir );
+        for( int level = 0; level < ShardedLayout.NUM_LEVELS; level++ ) {
+            List<File> nextLevel = new ArrayList<File>();
+            for( File shard : shards ) {
+                for( File inner : shard.listFiles() ) {
+                    if( inner.isDirectory()
+                            && ShardedLayout.isShardName( inner.getName() ) ) {
+                        nextLevel.add( inner );
+                    }
+                }
+            }
+            shards = nextLevel;
+        }
+        for( File shard : shards ) {
+            contents.addAll( Arrays.asList( shard.listFiles() ) );
+        }
+        return contents;
+    }
 }
@@ -138,7 +138,7 @@ public class MessageLogger
         logStatus( "End of backlog." );
     }
 
-    private void write( String message ) {
+    private synchronized void write( String message ) {
         if( printToStdOut ) {
             System.out.println( message );
         }
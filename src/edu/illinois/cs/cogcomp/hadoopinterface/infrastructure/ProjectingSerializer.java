@@ -0,0 +1,499 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions.IllegalModeException;
+import edu.illinois.cs.cogcomp.thrift.base.Clustering;
+import edu.illinois.cs.cogcomp.thrift.base.Forest;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.View;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TRecordingTransport;
+import org.apache.thrift.transport.TTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads serialized Records while decoding only the views we actually need.
+ * The views in a Record can be enormous (a parse forest for a long document
+ * can run to tens of megabytes), and a job which, say, adds part of speech
+ * tags needs only the tokens and sentences. Every other view is skipped at the
+ * Thrift protocol level, and its encoded bytes are kept as an opaque blob.
+ *
+ * When the (annotated) record is written back out with
+ * #serializeToBytes(Record, ProjectedRecord), the blobs are copied into the
+ * output unchanged, so nothing is lost, and nothing we didn't need is ever
+ * decoded or re-encoded.
+ *
+ * Blobs are kept in the encoding of the protocol the record was read with
+ * (see RecordProtocol). When a record is written in that same protocol, they
+ * are copied byte for byte; when written in another (as when a legacy binary
+ * record is rewritten in the compact protocol), each blob is decoded and
+ * re-encoded. All of this is independent of compression: the protocol is read
+ * from and written to the uncompressed stream (see RecordFileFormat).
+ *
+ * @author Tyler Young
+ */
+public class ProjectingSerializer {
+    /**
+     * A single view that was skipped rather than decoded
+     */
+    public static class OpaqueView {
+        private OpaqueView( short fieldId, String name, byte[] encoded ) {
+            this.fieldId = fieldId;
+            this.name = name;
+            this.encoded = encoded;
+        }
+
+        /**
+         * @return The name of the view (e.g., "srl")
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The size of the view's encoded form
+         */
+        public int getNumBytes() {
+            return encoded.length;
+        }
+
+        private final short fieldId;
+        private final String name;
+        private final byte[] encoded;
+    }
+
+    /**
+     * The result of a projected read: a Record holding the text and all the
+     * views that were decoded, plus the views that weren't.
+     */
+    public static class ProjectedRecord {
+        private ProjectedRecord( Record record, List<OpaqueView> skipped,
+                                 RecordProtocol protocol ) {
+            this.record = record;
+            this.skipped = skipped;
+            this.protocol = protocol;
+        }
+
+        /**
+         * @return The record, with only the requested views present
+         */
+        public Record getRecord() {
+            return record;
+        }
+
+        /**
+         * @return The views which were skipped
+         */
+        public List<OpaqueView> getSkippedViews() {
+            return Collections.unmodifiableList( skipped );
+        }
+
+        /**
+         * @return The annotations present in the record, whether decoded or not
+         */
+        public List<AnnotationMode> getAnnotationsList() {
+            Set<AnnotationMode> all = new HashSet<AnnotationMode>(
+                    RecordTools.getAnnotationsList( record ) );
+            for( OpaqueView view : skipped ) {
+                all.add( AnnotationMode.fromString( view.getName() ) );
+            }
+            return new ArrayList<AnnotationMode>( all );
+        }
+
+        /**
+         * Counts the views which would be written if this record's skipped
+         * views were merged into an annotated version of it
+         * @param annotated The annotated version of #getRecord()
+         * @return The number of distinct views in the merged record
+         */
+        public int getNumViews( Record annotated ) {
+            int count = RecordTools.getNumViews( annotated );
+            for( OpaqueView view : skipped ) {
+                if( !isDecoded( annotated, view ) ) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        private final Record record;
+        private final List<OpaqueView> skipped;
+        private final RecordProtocol protocol;
+    }
+
+    /**
+     * Constructs a serializer which decodes only the indicated annotations
+     * @param wanted The annotations to decode. All other views are skipped.
+     */
+    public ProjectingSerializer( Collection<AnnotationMode> wanted ) {
+        wantedViews = new HashSet<String>();
+        for( AnnotationMode mode : wanted ) {
+            try {
+                wantedViews.add( mode.toCuratorString() );
+            } catch ( IllegalModeException e ) {
+                // No Curator view name (e.g., the Stanford parser), so there is
+                // nothing in a stored record for us to decode
+            }
+        }
+    }
+
+    /**
+     * Constructs a serializer which decodes only what it takes to run an
+     * annotation: the annotation's dependencies, the tokens and sentences
+     * (which nearly everything refers to), and the annotation itself (in case
+     * it is being re-run).
+     * @param toRun The annotation to be run on the records
+     * @return A serializer for reading records to be annotated
+     */
+    public static ProjectingSerializer forAnnotation( AnnotationMode toRun ) {
+        return new ProjectingSerializer( getInputsFor( toRun ) );
+    }
+
+    /**
+     * @param toRun The annotation to be run on some records
+     * @return The annotations that must be read from the records in order to
+     *         run it (see #forAnnotation())
+     */
+    public static Set<AnnotationMode> getInputsFor( AnnotationMode toRun ) {
+        Set<AnnotationMode> wanted =
+                new HashSet<AnnotationMode>( toRun.getDependencies() );
+        wanted.add( AnnotationMode.TOKEN );
+        wanted.add( AnnotationMode.SENTENCE );
+        wanted.add( toRun );
+        return wanted;
+    }
+
+    /**
+     * Sets the protocol with which we serialize the records we write. (By
+     * default, RecordFileFormat#DEFAULT_PROTOCOL.)
+     * @param protocol The protocol to use
+     */
+    public void setProtocol( RecordProtocol protocol ) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Sets the compression applied to the records we write. (Records are
+     * read the same way whether or not they are compressed.)
+     * @param compression The compression to use
+     */
+    public void setCompression( RecordCompression compression ) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return The Curator names of the views this serializer decodes
+     */
+    public Set<String> getWantedViews() {
+        return Collections.unmodifiableSet( wantedViews );
+    }
+
+    /**
+     * Reads a serialized record, decoding only the wanted views. The stream
+     * is closed when we're done.
+     * @param in The stream holding the serialized record (as written by
+     *           SerializationHandler, compressed or not)
+     * @return The projected record
+     */
+    public ProjectedRecord deserializeFromInputStream( InputStream in )
+            throws TException, IOException {
+        try {
+            RecordFileFormat.OpenedRecord opened =
+                    RecordFileFormat.openForReading( in, getCodecConf() );
+            return read( new TIOStreamTransport( opened.getStream() ),
+                         opened.getProtocol() );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes an annotated record, together with the views which were skipped
+     * when it was read, in the same form SerializationHandler would write the
+     * complete record. Where the annotated record has a view of the same name
+     * as a skipped one, the annotated record's version wins.
+     * @param annotated The record to write (typically the annotated version of
+     *                  original.getRecord())
+     * @param original The projected record from which the skipped views come
+     * @return The serialized form of the merged record
+     */
+    public byte[] serializeToBytes( Record annotated, ProjectedRecord original )
+            throws TException, IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializeToOutputStream( annotated, original, bytes );
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Like #serializeToBytes(Record, ProjectedRecord), but writes to (and then
+     * closes) an output stream
+     */
+    public void serializeToOutputStream( Record annotated,
+                                         ProjectedRecord original,
+                                         OutputStream out )
+            throws TException, IOException {
+        out = RecordFileFormat.openForWriting( out, compression, protocol,
+                                               getCodecConf() );
+        TTransport transport = new TIOStreamTransport( out );
+        write( annotated, original, protocol.wrap( transport ), transport );
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Reads a Record from the transport field by field, the way the generated
+     * Record.read() would, except that unwanted view values are recorded
+     * rather than decoded.
+     */
+    private ProjectedRecord read( TTransport transport,
+                                  RecordProtocol readProtocol ) throws TException {
+        TRecordingTransport recorder = new TRecordingTransport( transport );
+        TProtocol in = readProtocol.wrap( recorder );
+        Record record = new Record();
+        List<OpaqueView> skipped = new ArrayList<OpaqueView>();
+
+        in.readStructBegin();
+        while( true ) {
+            TField field = in.readFieldBegin();
+            if( field.type == TType.STOP ) {
+                break;
+            }
+
+            if( field.id == IDENTIFIER_ID && field.type == TType.STRING ) {
+                record.setIdentifier( in.readString() );
+            }
+            else if( field.id == RAW_TEXT_ID && field.type == TType.STRING ) {
+                record.setRawText( in.readString() );
+            }
+            else if( field.id == WHITESPACED_ID && field.type == TType.BOOL ) {
+                record.setWhitespaced( in.readBool() );
+            }
+            else if( field.id >= LABEL_VIEWS_ID && field.id <= VIEWS_ID
+                     && field.type == TType.MAP ) {
+                setEmptyViews( record, field.id );
+                TMap map = in.readMapBegin();
+                for( int i = 0; i < map.size; i++ ) {
+                    String name = in.readString();
+                    if( wantedViews.contains( name ) ) {
+                        TBase<?, ?> view = newView( field.id );
+                        view.read( in );
+                        putView( record, field.id, name, view );
+                    }
+                    else {
+                        recorder.startRecording();
+                        TProtocolUtil.skip( in, map.valueType );
+                        skipped.add( new OpaqueView( field.id, name,
+                                                     recorder.stopRecording() ) );
+                    }
+                }
+                in.readMapEnd();
+            }
+            else {
+                TProtocolUtil.skip( in, field.type );
+            }
+            in.readFieldEnd();
+        }
+        in.readStructEnd();
+
+        // Like the generated reader, make sure every view map exists
+        for( short id = LABEL_VIEWS_ID; id <= VIEWS_ID; id++ ) {
+            if( getViews( record, id ) == null ) {
+                setEmptyViews( record, id );
+            }
+        }
+        record.validate();
+        return new ProjectedRecord( record, skipped, readProtocol );
+    }
+
+    /**
+     * Writes a Record field by field, the way the generated Record.write()
+     * would, splicing the skipped views back into their maps.
+     */
+    private void write( Record record, ProjectedRecord original,
+                        TProtocol out, TTransport transport )
+            throws TException {
+        List<OpaqueView> skipped = original.skipped;
+        boolean sameProtocol = original.protocol == protocol;
+        record.validate();
+        out.writeStructBegin( RECORD_STRUCT );
+        if( record.getIdentifier() != null ) {
+            out.writeFieldBegin( new TField( "identifier", TType.STRING,
+                                             IDENTIFIER_ID ) );
+            out.writeString( record.getIdentifier() );
+            out.writeFieldEnd();
+        }
+        if( record.getRawText() != null ) {
+            out.writeFieldBegin( new TField( "rawText", TType.STRING,
+                                             RAW_TEXT_ID ) );
+            out.writeString( record.getRawText() );
+            out.writeFieldEnd();
+        }
+
+        for( short id = LABEL_VIEWS_ID; id <= VIEWS_ID; id++ ) {
+            Map<String, ? extends TBase<?, ?>> views = getViews( record, id );
+            List<OpaqueView> blobs = new ArrayList<OpaqueView>();
+            for( OpaqueView view : skipped ) {
+                if( view.fieldId == id
+                        && ( views == null || !views.containsKey( view.name ) ) ) {
+                    blobs.add( view );
+                }
+            }
+            if( views == null && blobs.isEmpty() ) {
+                continue;
+            }
+
+            int size = blobs.size() + ( views == null ? 0 : views.size() );
+            out.writeFieldBegin( new TField( VIEW_FIELD_NAMES[ id - LABEL_VIEWS_ID ],
+                                             TType.MAP, id ) );
+            out.writeMapBegin( new TMap( TType.STRING, TType.STRUCT, size ) );
+            if( views != null ) {
+                for( Map.Entry<String, ? extends TBase<?, ?>> view
+                        : views.entrySet() ) {
+                    out.writeString( view.getKey() );
+                    view.getValue().write( out );
+                }
+            }
+            for( OpaqueView blob : blobs ) {
+                out.writeString( blob.name );
+                if( sameProtocol ) {
+                    transport.write( blob.encoded, 0, blob.encoded.length );
+                }
+                else {
+                    TBase<?, ?> view = newView( id );
+                    view.read( original.protocol.wrap(
+                            new TMemoryInputTransport( blob.encoded ) ) );
+                    view.write( out );
+                }
+            }
+            out.writeMapEnd();
+            out.writeFieldEnd();
+        }
+
+        if( record.isSetWhitespaced() ) {
+            out.writeFieldBegin( new TField( "whitespaced", TType.BOOL,
+                                             WHITESPACED_ID ) );
+            out.writeBool( record.isWhitespaced() );
+            out.writeFieldEnd();
+        }
+        out.writeFieldStop();
+        out.writeStructEnd();
+    }
+
+    /**
+     * @return True if the annotated record has its own version of the view
+     */
+    private static boolean isDecoded( Record annotated, OpaqueView view ) {
+        Map<String, ? extends TBase<?, ?>> views =
+                getViews( annotated, view.fieldId );
+        return views != null && views.containsKey( view.name );
+    }
+
+    private static TBase<?, ?> newView( short fieldId ) {
+        switch( fieldId ) {
+            case LABEL_VIEWS_ID:
+                return new Labeling();
+            case CLUSTER_VIEWS_ID:
+                return new Clustering();
+            case PARSE_VIEWS_ID:
+                return new Forest();
+            default:
+                return new View();
+        }
+    }
+
+    private static Map<String, ? extends TBase<?, ?>> getViews( Record r,
+                                                                short fieldId ) {
+        switch( fieldId ) {
+            case LABEL_VIEWS_ID:
+                return r.getLabelViews();
+            case CLUSTER_VIEWS_ID:
+                return r.getClusterViews();
+            case PARSE_VIEWS_ID:
+                return r.getParseViews();
+            default:
+                return r.getViews();
+        }
+    }
+
+    private static void setEmptyViews( Record r, short fieldId ) {
+        switch( fieldId ) {
+            case LABEL_VIEWS_ID:
+                r.setLabelViews( new HashMap<String, Labeling>() );
+                break;
+            case CLUSTER_VIEWS_ID:
+                r.setClusterViews( new HashMap<String, Clustering>() );
+                break;
+            case PARSE_VIEWS_ID:
+                r.setParseViews( new HashMap<String, Forest>() );
+                break;
+            default:
+                r.setViews( new HashMap<String, View>() );
+        }
+    }
+
+    /**
+     * Adds a view (as made by #newView() for the same field) to its map
+     */
+    private static void putView( Record r, short fieldId, String name,
+                                 TBase<?, ?> view ) {
+        switch( fieldId ) {
+            case LABEL_VIEWS_ID:
+                r.getLabelViews().put( name, (Labeling)view );
+                break;
+            case CLUSTER_VIEWS_ID:
+                r.getClusterViews().put( name, (Clustering)view );
+                break;
+            case PARSE_VIEWS_ID:
+                r.getParseViews().put( name, (Forest)view );
+                break;
+            default:
+                r.getViews().put( name, (View)view );
+        }
+    }
+
+    private Configuration getCodecConf() {
+        if( codecConf == null ) {
+            codecConf = new Configuration();
+        }
+        return codecConf;
+    }
+
+    // Field IDs, from the Curator's Thrift definition of Record
+    private static final short IDENTIFIER_ID = 1;
+    private static final short RAW_TEXT_ID = 2;
+    private static final short LABEL_VIEWS_ID = 3;
+    private static final short CLUSTER_VIEWS_ID = 4;
+    private static final short PARSE_VIEWS_ID = 5;
+    private static final short VIEWS_ID = 6;
+    private static final short WHITESPACED_ID = 7;
+    private static final String[] VIEW_FIELD_NAMES =
+            { "labelViews", "clusterViews", "parseViews", "views" };
+    private static final TStruct RECORD_STRUCT = new TStruct( "Record" );
+
+    private final Set<String> wantedViews;
+    private RecordCompression compression = RecordCompression.NONE;
+    private RecordProtocol protocol = RecordFileFormat.DEFAULT_PROTOCOL;
+    private Configuration codecConf;
+}
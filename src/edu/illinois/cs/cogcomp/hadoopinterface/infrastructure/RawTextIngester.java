@@ -0,0 +1,309 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.SerializedRecord;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.thrift.TException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Turns a local directory of raw text files into serialized records in HDFS,
+ * ready to be the input of a Curator job. This replaces the master Curator
+ * client's pre-Hadoop mode (see CuratorClient#createRecordsFromRawInputFiles()),
+ * which needed a running Curator, held every record in memory, and staged
+ * them all on the local disk before they could be copied to HDFS.
+ *
+ * A new record needs no annotator (see RecordTools#generateNew()), so there
+ * is no Curator here. Several threads each take the next unread file, turn it
+ * into a record, and write the serialized record straight to HDFS, so that
+ * only one document per thread is ever in memory. Records are written either
+ * one per file, as [document hash].txt (optionally in the sharded layout; see
+ * ShardedLayout), or packed into one container per thread, as RecordOutputFormat
+ * would write them.
+ *
+ * Files whose text duplicates one already read are written only once; the
+ * original files each record came from can be saved for fanning the results
+ * back out (see DocumentDeduplicator). A manifest describing every record
+ * (see OutputManifest) is written to the destination's "_manifest" directory,
+ * so that the first job can estimate the cost of each document without
+ * reading it.
+ *
+ * @example To run from the command line, where the Hadoop configuration is
+ *          available:
+ *          $ ./bin/hadoop jar CuratorHadoopInterface.jar
+ *              edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RawTextIngester
+ *              -in /local/raw_text -out first_serialized_input -threads 8
+ *
+ * @author Tyler Young
+ */
+public class RawTextIngester {
+    /** The name of the manifest file (in the destination's manifest directory)
+     *  describing the records written */
+    public static final String MANIFEST_FILE_NAME = "ingest.txt";
+
+    /**
+     * Constructs an ingester
+     * @param fs The file system to write the records to
+     * @param destination The directory (in that file system) in which to put
+     *                    the records. It will be created if necessary.
+     * @param numThreads The number of files to read and serialize at once
+     * @param pack True if records should be packed into containers (one per
+     *             thread), false if each should get its own file
+     * @param sharded True if records written to their own files should go in
+     *                their shard directories (ignored when packing)
+     */
+    public RawTextIngester( FileSystem fs, Path destination, int numThreads,
+                            boolean pack, boolean sharded ) {
+        this.fs = fs;
+        this.destination = destination;
+        this.numThreads = Math.max( 1, numThreads );
+        this.pack = pack;
+        this.sharded = sharded && !pack;
+        this.dedup = new DocumentDeduplicator();
+        this.manifest = new OutputManifest();
+    }
+
+    /**
+     * Writes a record for every (unique) text file directly inside the input
+     * directory. Subdirectories and hidden files are ignored.
+     * @param inputDir The local directory of raw text files
+     * @return The number of records written
+     * @throws IOException If a record can't be written to HDFS
+     * @throws InterruptedException If interrupted while waiting for the
+     *                              worker threads
+     */
+    public int ingest( File inputDir ) throws IOException, InterruptedException {
+        if( !inputDir.isDirectory() ) {
+            throw new IllegalArgumentException( "The location "
+                    + inputDir.toString() + " does not refer to a directory." );
+        }
+        files = inputDir.listFiles();
+        nextFile = 0;
+        failure = null;
+
+        fs.mkdirs( destination );
+        if( sharded ) {
+            ShardedLayout.markSharded( destination, fs );
+        }
+
+        List<Thread> workers = new ArrayList<Thread>( numThreads );
+        for( int i = 0; i < numThreads; i++ ) {
+            final int workerNum = i;
+            Thread t = new Thread( new Runnable() {
+                public void run() {
+                    work( workerNum );
+                }
+            }, "ingest-" + i );
+            workers.add( t );
+            t.start();
+        }
+        for( Thread t : workers ) {
+            t.join();
+        }
+        if( failure != null ) {
+            throw failure;
+        }
+
+        manifest.write( new Path( OutputManifest.getManifestDir( destination ),
+                                  MANIFEST_FILE_NAME ), fs );
+        return manifest.size();
+    }
+
+    /**
+     * @return The original files from which each record written by #ingest()
+     *         came
+     */
+    public DocumentDeduplicator getDeduplicator() {
+        return dedup;
+    }
+
+    /**
+     * The body of each worker thread: takes files until there are none left
+     * (or another worker has failed)
+     * @param workerNum The worker's number, which names its container
+     */
+    private void work( int workerNum ) {
+        HadoopSerializationHandler serializer = new HadoopSerializationHandler();
+        SequenceFile.Writer container = null;
+        try {
+            File f;
+            while( ( f = takeNextFile() ) != null ) {
+                Record record;
+                try {
+                    record = RecordTools.generateNew(
+                            LocalFileSystemHandler.readFileToString( f ) );
+                } catch ( FileNotFoundException e ) {
+                    System.err.println( "Couldn't read " + f.toString()
+                                        + "; skipping it." );
+                    continue;
+                }
+
+                boolean first;
+                synchronized( dedup ) {
+                    first = dedup.add( record.getIdentifier(), f.getAbsolutePath() );
+                }
+                if( !first ) {
+                    continue;
+                }
+
+                SerializedRecord serialized = new SerializedRecord(
+                        record.getIdentifier(),
+                        serializer.serializeToBytes( record ),
+                        RecordTools.getNumViews( record ) );
+                serialized.setDocumentStats( record,
+                                             new ArrayList<AnnotationMode>() );
+
+                long checksum;
+                if( pack ) {
+                    if( container == null ) {
+                        container = SequenceFile.createWriter( fs, fs.getConf(),
+                                new Path( destination, String.format(
+                                        "ingest-%05d", workerNum )
+                                        + RecordOutputFormat.CONTAINER_EXTENSION ),
+                                Text.class, BytesWritable.class );
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update( serialized.getData() );
+                    checksum = crc.getValue();
+                    container.append( new Text( record.getIdentifier() ),
+                                      new BytesWritable( serialized.getData() ) );
+                }
+                else {
+                    checksum = serializer.writeSerialized( serialized.getData(),
+                            ShardedLayout.getRecordLoc( destination,
+                                    record.getIdentifier(), sharded ), fs );
+                }
+                manifest.add( new OutputManifest.Entry( serialized, checksum ) );
+            }
+        } catch ( IOException e ) {
+            fail( e );
+        } catch ( TException e ) {
+            fail( new IOException( "Thrift error serializing a record: "
+                                   + e.getMessage() ) );
+        } finally {
+            if( container != null ) {
+                try {
+                    container.close();
+                } catch ( IOException e ) {
+                    fail( e );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The next regular file to read, or null if there are none left
+     *         (or some worker has failed, so there's no sense going on)
+     */
+    private synchronized File takeNextFile() {
+        while( failure == null && nextFile < files.length ) {
+            File f = files[nextFile++];
+            if( !f.isDirectory() && !f.isHidden() ) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void fail( IOException e ) {
+        if( failure == null ) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Creates records in HDFS from the raw text files in a local directory.
+     * Usage:
+     * <pre>
+     *     RawTextIngester -in [local input dir] -out [destination in HDFS]
+     *         [-threads [number of threads]] [-pack] [-sharded]
+     *         [-sources [local file to write the original files to]]
+     * </pre>
+     * @param args The arguments, as above
+     */
+    public static void main( String[] args )
+            throws IOException, InterruptedException {
+        String in = null;
+        String out = null;
+        String sources = null;
+        int threads = DEFAULT_THREADS;
+        boolean pack = false;
+        boolean sharded = false;
+        try {
+            for( int i = 0; i < args.length; i++ ) {
+                if( args[i].equals( "-in" ) ) {
+                    in = args[++i];
+                }
+                else if( args[i].equals( "-out" ) ) {
+                    out = args[++i];
+                }
+                else if( args[i].equals( "-threads" ) ) {
+                    threads = Integer.parseInt( args[++i] );
+                }
+                else if( args[i].equals( "-pack" ) ) {
+                    pack = true;
+                }
+                else if( args[i].equals( "-sharded" ) ) {
+                    sharded = true;
+                }
+                else if( args[i].equals( "-sources" ) ) {
+                    sources = args[++i];
+                }
+            }
+        } catch ( RuntimeException e ) {
+            in = null; // a flag was missing its value, or it wasn't a number
+        }
+        if( in == null || out == null || threads < 1 ) {
+            System.err.println( "Usage: RawTextIngester -in <local input dir> "
+                    + "-out <destination in HDFS> [-threads <number of threads>] "
+                    + "[-pack] [-sharded] [-sources <local file>]" );
+            System.exit( 1 );
+        }
+
+        FileSystem fs = FileSystem.get( new Configuration() );
+        RawTextIngester ingester = new RawTextIngester( fs, new Path( out ),
+                threads, pack, sharded );
+        long startTime = System.currentTimeMillis();
+        int numWritten = ingester.ingest( new File( in ) );
+        System.out.println( "Wrote " + numWritten + " records to " + out
+                + " in " + ( System.currentTimeMillis() - startTime ) / 1000.0
+                + " seconds." );
+
+        DocumentDeduplicator dedup = ingester.getDeduplicator();
+        if( dedup.getNumDuplicates() > 0 ) {
+            System.out.println( "Skipped " + dedup.getNumDuplicates()
+                    + " files whose text duplicated another file's." );
+        }
+        if( sources != null ) {
+            System.out.println( "Writing the source files of each record to: "
+                                + sources );
+            dedup.write( new File( sources ) );
+        }
+    }
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private final FileSystem fs;
+    private final Path destination;
+    private final int numThreads;
+    private final boolean pack;
+    private final boolean sharded;
+    private final DocumentDeduplicator dedup;
+    private final OutputManifest manifest;
+    private File[] files;
+    private int nextFile;
+    private IOException failure;
+}
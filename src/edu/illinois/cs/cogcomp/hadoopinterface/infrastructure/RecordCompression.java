@@ -0,0 +1,135 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * The compression codecs we know how to apply to serialized records. Each one
+ * is backed by a Hadoop CompressionCodec, looked up by class name so that
+ * codecs which aren't available in a given Hadoop installation only cause
+ * trouble if someone actually asks for them. (LZ4, for instance, only ships
+ * with Hadoop versions later than the 1.0.3 we build against.)
+ *
+ * Each compression type also has a fixed one-byte ID, which is what record
+ * file headers store (see RecordFileFormat). Never renumber these!
+ *
+ * @author Tyler Young
+ */
+public enum RecordCompression {
+    NONE( 0, null ),
+    DEFLATE( 1, "org.apache.hadoop.io.compress.DefaultCodec" ),
+    GZIP( 2, "org.apache.hadoop.io.compress.GzipCodec" ),
+    SNAPPY( 3, "org.apache.hadoop.io.compress.SnappyCodec" ),
+    LZ4( 4, "org.apache.hadoop.io.compress.Lz4Codec" );
+
+    RecordCompression( int id, String codecClassName ) {
+        this.id = (byte)id;
+        this.codecClassName = codecClassName;
+    }
+
+    /**
+     * Looks up a compression type by the ID stored in a record file's header
+     * @param id The ID of a compression type (see #getId())
+     * @return The compression type with that ID
+     * @throws IllegalArgumentException If no compression type has that ID
+     */
+    public static RecordCompression fromId( byte id ) {
+        for( RecordCompression c : values() ) {
+            if( c.id == id ) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException( "Unknown compression ID " + id
+                + ". Was this record written by a newer version?" );
+    }
+
+    /**
+     * Takes a string version of a compression type (e.g., "gzip", "Snappy",
+     * "none") and returns the equivalent value in the enumerated type.
+     * "Zlib" is accepted as a synonym for DEFLATE.
+     * @param s A string version of a compression type
+     * @return The RecordCompression version of the string
+     * @throws IllegalArgumentException If the string is not a compression type
+     *                                  we know of
+     */
+    public static RecordCompression fromString( String s ) {
+        String upper = s.trim().toUpperCase();
+        if( upper.equals( "ZLIB" ) || upper.equals( "DEFAULT" ) ) {
+            return DEFLATE;
+        }
+        try {
+            return RecordCompression.valueOf( upper );
+        } catch ( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Compression type " + s
+                    + " not recognized. Please try one of the following: "
+                    + java.util.Arrays.toString( values() ) );
+        }
+    }
+
+    /**
+     * @return The one-byte ID under which record file headers store this
+     *         compression type
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return True if this Hadoop installation has the codec for this
+     *         compression type
+     */
+    public boolean isAvailable() {
+        try {
+            getCodecClass();
+            return true;
+        } catch ( IllegalArgumentException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The fully-qualified name of the Hadoop CompressionCodec class
+     *         which implements this compression type, or null for NONE
+     */
+    public String getCodecClassName() {
+        return codecClassName;
+    }
+
+    /**
+     * @return The Hadoop CompressionCodec class which implements this
+     *         compression type, or null for NONE
+     * @throws IllegalArgumentException If the codec is not available in this
+     *                                  Hadoop installation
+     */
+    @SuppressWarnings( "unchecked" )
+    public Class<? extends CompressionCodec> getCodecClass() {
+        if( codecClassName == null ) {
+            return null;
+        }
+        try {
+            return (Class<? extends CompressionCodec>)
+                    Class.forName( codecClassName );
+        } catch ( ClassNotFoundException e ) {
+            throw new IllegalArgumentException( "Compression type " + toString()
+                    + " is not supported by this version of Hadoop (could not "
+                    + "find " + codecClassName + ")." );
+        }
+    }
+
+    /**
+     * Creates an instance of the codec for this compression type
+     * @param conf The configuration with which to configure the codec
+     * @return A ready-to-use codec, or null for NONE
+     */
+    public CompressionCodec createCodec( Configuration conf ) {
+        Class<? extends CompressionCodec> codecClass = getCodecClass();
+        if( codecClass == null ) {
+            return null;
+        }
+        return ReflectionUtils.newInstance( codecClass, conf );
+    }
+
+    private final byte id;
+    private final String codecClassName;
+}
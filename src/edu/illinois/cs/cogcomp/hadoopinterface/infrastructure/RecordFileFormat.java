@@ -0,0 +1,231 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Knows how serialized records are laid out on disk. A record file is either:
+ *
+ * <ul>
+ *     <li>A "legacy" file: nothing but the Record, serialized with
+ *         TBinaryProtocol. This is what the Curator itself reads and writes,
+ *         and what we write when asked for uncompressed, binary records.</li>
+ *     <li>A file with a header: the four bytes "CHIR", a format version
+ *         byte, a byte identifying the compression codec (see
+ *         RecordCompression#getId()) and, from version 2 on, a byte
+ *         identifying the Thrift protocol (see RecordProtocol#getId()),
+ *         followed by the serialized Record as compressed by that codec.
+ *         Version 1 headers had no protocol byte; those records are always
+ *         binary.</li>
+ * </ul>
+ *
+ * A serialized Record always begins with a Thrift field type, which is never
+ * larger than 16, so it can't be mistaken for the header's 'C'. Readers can
+ * therefore detect which kind of file they have from its first bytes, and
+ * nobody needs to be told how a file was written in order to read it.
+ *
+ * @author Tyler Young
+ */
+public class RecordFileFormat {
+    /** The bytes which begin every record file with a header */
+    public static final byte[] MAGIC = { 'C', 'H', 'I', 'R' };
+    /** The version of the header that we write */
+    public static final byte VERSION = 2;
+    /** The protocol new record files are written with */
+    public static final RecordProtocol DEFAULT_PROTOCOL = RecordProtocol.COMPACT;
+
+    /**
+     * A record file opened for reading: the stream holding the serialized
+     * record, and how it was serialized
+     */
+    public static class OpenedRecord {
+        private OpenedRecord( InputStream stream, RecordCompression compression,
+                              RecordProtocol protocol ) {
+            this.stream = stream;
+            this.compression = compression;
+            this.protocol = protocol;
+        }
+
+        /**
+         * @return The stream from which to read the (uncompressed) serialized
+         *         record
+         */
+        public InputStream getStream() {
+            return stream;
+        }
+
+        /**
+         * @return The compression the record was written with
+         */
+        public RecordCompression getCompression() {
+            return compression;
+        }
+
+        /**
+         * @return The protocol the record was serialized with
+         */
+        public RecordProtocol getProtocol() {
+            return protocol;
+        }
+
+        private final InputStream stream;
+        private final RecordCompression compression;
+        private final RecordProtocol protocol;
+    }
+
+    /**
+     * Prepares an output stream for writing a serialized record
+     * @param out The stream the record file will be written to
+     * @param compression The compression to apply to the record
+     * @param protocol The protocol the record will be serialized with
+     * @param conf The configuration with which to set up the codec
+     * @return The stream to write the serialized record to. Closing it will
+     *         finish the compression and close the underlying stream.
+     */
+    public static OutputStream openForWriting( OutputStream out,
+                                               RecordCompression compression,
+                                               RecordProtocol protocol,
+                                               Configuration conf )
+            throws IOException {
+        if( compression == RecordCompression.NONE
+                && protocol == RecordProtocol.BINARY ) {
+            return out; // a legacy file, readable by the Curator
+        }
+
+        out.write( MAGIC );
+        out.write( VERSION );
+        out.write( compression.getId() );
+        out.write( protocol.getId() );
+        if( compression == RecordCompression.NONE ) {
+            return out;
+        }
+        return compression.createCodec( conf ).createOutputStream( out );
+    }
+
+    /**
+     * Prepares an input stream for reading a serialized record, whether or
+     * not it has a header
+     * @param in The stream from which the record file will be read
+     * @param conf The configuration with which to set up the codec (if any)
+     * @return The opened record: the stream from which to read the
+     *         (uncompressed) serialized record, and the protocol to read it with
+     * @throws IOException If the file has a header we don't understand, or
+     *                     was compressed with a codec we don't have
+     */
+    public static OpenedRecord openForReading( InputStream in, Configuration conf )
+            throws IOException {
+        if( !in.markSupported() ) {
+            in = new BufferedInputStream( in );
+        }
+
+        in.mark( HEADER_LENGTH );
+        byte[] header = new byte[ HEADER_LENGTH ];
+        int numRead = readFully( in, header, 0, V1_HEADER_LENGTH );
+        if( !hasHeader( Arrays.copyOf( header, numRead ) ) ) {
+            // A legacy file: just the serialized record
+            in.reset();
+            return new OpenedRecord( in, RecordCompression.NONE,
+                                     RecordProtocol.BINARY );
+        }
+
+        byte version = header[ MAGIC.length ];
+        if( version > VERSION ) {
+            throw new IOException( "Record file has format version " + version
+                    + ", but we only understand versions up to " + VERSION + "." );
+        }
+        RecordProtocol protocol = RecordProtocol.BINARY;
+        if( version >= 2 ) {
+            if( readFully( in, header, V1_HEADER_LENGTH, 1 ) < 1 ) {
+                throw new IOException( "Record file header is truncated." );
+            }
+            protocol = RecordProtocol.fromId( header[ V1_HEADER_LENGTH ] );
+        }
+
+        RecordCompression compression =
+                RecordCompression.fromId( header[ MAGIC.length + 1 ] );
+        if( compression != RecordCompression.NONE ) {
+            in = compression.createCodec( conf ).createInputStream( in );
+        }
+        return new OpenedRecord( in, compression, protocol );
+    }
+
+    /**
+     * @param prefix The first bytes of a record file
+     * @return The compression the file was written with (NONE for legacy
+     *         files)
+     */
+    public static RecordCompression detectCompression( byte[] prefix ) {
+        if( !hasHeader( prefix ) ) {
+            return RecordCompression.NONE;
+        }
+        return RecordCompression.fromId( prefix[ MAGIC.length + 1 ] );
+    }
+
+    /**
+     * @param prefix The first bytes of a record file
+     * @return The protocol the file was written with (BINARY for legacy files
+     *         and those with version 1 headers)
+     */
+    public static RecordProtocol detectProtocol( byte[] prefix ) {
+        if( !hasHeader( prefix ) || prefix[ MAGIC.length ] < 2
+                || prefix.length < HEADER_LENGTH ) {
+            return RecordProtocol.BINARY;
+        }
+        return RecordProtocol.fromId( prefix[ V1_HEADER_LENGTH ] );
+    }
+
+    /**
+     * @param file A record file in HDFS
+     * @param fs The file system against which to resolve the path
+     * @return The first bytes of the file, enough to pass to
+     *         #detectCompression() and #detectProtocol()
+     */
+    public static byte[] readPrefix( Path file, FileSystem fs )
+            throws IOException {
+        FSDataInputStream in = fs.open( file );
+        try {
+            byte[] prefix = new byte[ HEADER_LENGTH ];
+            int numRead = readFully( in, prefix, 0, HEADER_LENGTH );
+            return Arrays.copyOf( prefix, numRead );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return True if the bytes begin with a (version 1 or later) header
+     */
+    private static boolean hasHeader( byte[] prefix ) {
+        return prefix.length >= V1_HEADER_LENGTH
+                && Arrays.equals( MAGIC, Arrays.copyOf( prefix, MAGIC.length ) );
+    }
+
+    /**
+     * Reads until the requested number of bytes have been read or the stream
+     * ends
+     * @return The number of bytes read
+     */
+    private static int readFully( InputStream in, byte[] buffer, int offset,
+                                  int length ) throws IOException {
+        int total = 0;
+        while( total < length ) {
+            int numRead = in.read( buffer, offset + total, length - total );
+            if( numRead < 0 ) {
+                break;
+            }
+            total += numRead;
+        }
+        return total;
+    }
+
+    private static final int V1_HEADER_LENGTH = MAGIC.length + 2;
+    private static final int HEADER_LENGTH = V1_HEADER_LENGTH + 1;
+}
@@ -0,0 +1,87 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * The Thrift protocols we know how to encode Records with.
+ *
+ * BINARY is what the Curator itself speaks, both over RPC and in the record
+ * files it writes, so it is what we use to talk to the Curator and what any
+ * headerless ("legacy") record file is encoded with. COMPACT encodes integers
+ * as zigzag varints and packs field headers into a byte, which shrinks the
+ * dense, small integers of a Labeling's spans considerably; it is what we
+ * write new record files with (see RecordFileFormat#DEFAULT_PROTOCOL).
+ *
+ * As with RecordCompression, each protocol has a fixed one-byte ID, which is
+ * what record file headers store. Never renumber these!
+ *
+ * @author Tyler Young
+ */
+public enum RecordProtocol {
+    BINARY( 0 ),
+    COMPACT( 1 );
+
+    RecordProtocol( int id ) {
+        this.id = (byte)id;
+    }
+
+    /**
+     * Looks up a protocol by the ID stored in a record file's header
+     * @param id The ID of a protocol (see #getId())
+     * @return The protocol with that ID
+     * @throws IllegalArgumentException If no protocol has that ID
+     */
+    public static RecordProtocol fromId( byte id ) {
+        for( RecordProtocol p : values() ) {
+            if( p.id == id ) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException( "Unknown Thrift protocol ID " + id
+                + ". Was this record written by a newer version?" );
+    }
+
+    /**
+     * Takes a string version of a protocol (e.g., "binary", "Compact") and
+     * returns the equivalent value in the enumerated type.
+     * @param s A string version of a protocol
+     * @return The RecordProtocol version of the string
+     * @throws IllegalArgumentException If the string is not a protocol we
+     *                                  know of
+     */
+    public static RecordProtocol fromString( String s ) {
+        try {
+            return RecordProtocol.valueOf( s.trim().toUpperCase() );
+        } catch ( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Thrift protocol " + s
+                    + " not recognized. Please try one of the following: "
+                    + java.util.Arrays.toString( values() ) );
+        }
+    }
+
+    /**
+     * @return The one-byte ID under which record file headers store this
+     *         protocol
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @param transport The transport to read from or write to
+     * @return A Thrift protocol of this type on top of the transport
+     */
+    public TProtocol wrap( TTransport transport ) {
+        switch( this ) {
+            case COMPACT:
+                return new TCompactProtocol( transport );
+            default:
+                return new TBinaryProtocol( transport );
+        }
+    }
+
+    private final byte id;
+}
@@ -93,6 +93,23 @@ public class RecordTools {
                 || r.getViews().containsKey( annotationString );
     }
 
+    /**
+     * Counts the labels in one of a record's labeling views (e.g., the number
+     * of tokens in its TOKEN view)
+     *
+     * @param r The record in question
+     * @param annotation The annotation whose labeling view we should count
+     * @return The number of labels in the view, or -1 if the record doesn't
+     *         have the view
+     */
+    public static int getNumLabels( Record r, AnnotationMode annotation ) {
+        if( !r.isSetLabelViews() ) {
+            return -1;
+        }
+        Labeling labeling = r.getLabelViews().get( annotation.toCuratorString() );
+        return labeling == null ? -1 : labeling.getLabelsSize();
+    }
+
     /**
      * Gets a long string that represents the contents of a record, including the
      * raw text and the views present therein.
@@ -0,0 +1,229 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of the annotations of single sentences
+ * (see SentenceCachingAnnotator), keyed by a hash of the sentence's text, the
+ * view, and the annotator that produced it (see #makeKey()).
+ *
+ * At most a fixed number of entries are kept in memory. Optionally, entries
+ * evicted from memory are "spilled" to files in a local directory instead of
+ * being thrown away, up to a second (typically much larger) limit; a spilled
+ * entry that is asked for again is brought back into memory.
+ *
+ * The cache is not thread-safe. In the reducer, only the annotate stage of the
+ * pipeline uses it.
+ *
+ * @author Tyler Young
+ */
+public class SentenceCache {
+    /**
+     * Constructs a cache which keeps evicted entries nowhere
+     * @param maxEntries The number of entries to keep in memory
+     */
+    public SentenceCache( int maxEntries ) {
+        this( maxEntries, null, 0 );
+    }
+
+    /**
+     * Constructs a cache
+     * @param maxEntries The number of entries to keep in memory
+     * @param spillDir The local directory to which entries evicted from memory
+     *                 are written. It will be created if necessary. Pass null
+     *                 to not spill at all.
+     * @param maxSpilledEntries The number of entries to keep in the spill
+     *                          directory (the least recently spilled are
+     *                          deleted beyond this)
+     */
+    public SentenceCache( final int maxEntries, File spillDir,
+                          final int maxSpilledEntries ) {
+        this.spillDir = maxSpilledEntries > 0 ? spillDir : null;
+        if( this.spillDir != null ) {
+            this.spillDir.mkdirs(); // does nothing if it already exists
+        }
+
+        inMemory = new LinkedHashMap<String, byte[]>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, byte[]> eldest ) {
+                if( size() <= maxEntries ) {
+                    return false;
+                }
+                spill( eldest.getKey(), eldest.getValue() );
+                return true;
+            }
+        };
+        spilled = new LinkedHashMap<String, Boolean>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Boolean> eldest ) {
+                if( size() <= maxSpilledEntries ) {
+                    return false;
+                }
+                getSpillFile( eldest.getKey() ).delete();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param normalizedSentence The text of a sentence, normalized (see
+     *                           SentenceCachingAnnotator)
+     * @param viewName The Curator's name for the view (e.g., "pos")
+     * @param annotatorSource The identifier of the annotator which produced
+     *                        the view (as reported by the Curator's
+     *                        describeAnnotations()), so that results from
+     *                        different versions of a tool never mix
+     * @return The key identifying the annotation of the sentence
+     */
+    public static String makeKey( String normalizedSentence, String viewName,
+                                  String annotatorSource ) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance( "MD5" );
+            md5.update( viewName.getBytes( "UTF-8" ) );
+            md5.update( (byte)0 );
+            md5.update( annotatorSource.getBytes( "UTF-8" ) );
+            md5.update( (byte)0 );
+            byte[] digest = md5.digest( normalizedSentence.getBytes( "UTF-8" ) );
+
+            StringBuilder hex = new StringBuilder( 2 * digest.length );
+            for( byte b : digest ) {
+                hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) );
+                hex.append( Character.forDigit( b & 0xF, 16 ) );
+            }
+            return hex.toString();
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( "MD5 is not available: " + e.getMessage() );
+        } catch ( UnsupportedEncodingException e ) {
+            throw new RuntimeException( "UTF-8 is not available: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * @param key A key from #makeKey()
+     * @return The cached value, or null if there is none
+     */
+    public byte[] get( String key ) {
+        byte[] value = inMemory.get( key );
+        if( value == null && spilled.remove( key ) != null ) {
+            File spillFile = getSpillFile( key );
+            try {
+                value = readFile( spillFile );
+                inMemory.put( key, value );
+            } catch ( IOException e ) {
+                HadoopInterface.logger.logError( "Couldn't read spilled "
+                        + "sentence annotation " + spillFile.toString() + ": "
+                        + e.getMessage() );
+            }
+            spillFile.delete();
+        }
+
+        if( value == null ) {
+            ++numMisses;
+        }
+        else {
+            ++numHits;
+        }
+        return value;
+    }
+
+    /**
+     * @param key A key from #makeKey()
+     * @param value The value to cache under the key
+     */
+    public void put( String key, byte[] value ) {
+        inMemory.put( key, value );
+    }
+
+    /**
+     * @return The number of calls to #get() which found a value
+     */
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * @return The number of calls to #get() which found nothing
+     */
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * Empties the cache, deleting any spilled entries
+     */
+    public void close() {
+        inMemory.clear();
+        for( String key : spilled.keySet() ) {
+            getSpillFile( key ).delete();
+        }
+        spilled.clear();
+        if( spillDir != null ) {
+            spillDir.delete();
+        }
+    }
+
+    /**
+     * Writes an entry evicted from memory to the spill directory, if there is
+     * one. A failure to spill only costs us the entry.
+     */
+    private void spill( String key, byte[] value ) {
+        if( spillDir == null ) {
+            return;
+        }
+        File spillFile = getSpillFile( key );
+        try {
+            OutputStream out = new FileOutputStream( spillFile );
+            try {
+                out.write( value );
+            } finally {
+                out.close();
+            }
+            spilled.put( key, Boolean.TRUE );
+        } catch ( IOException e ) {
+            HadoopInterface.logger.logError( "Couldn't spill sentence "
+                    + "annotation to " + spillFile.toString() + ": "
+                    + e.getMessage() );
+            spillFile.delete();
+        }
+    }
+
+    private File getSpillFile( String key ) {
+        return new File( spillDir, key );
+    }
+
+    private static byte[] readFile( File f ) throws IOException {
+        byte[] contents = new byte[(int)f.length()];
+        InputStream in = new FileInputStream( f );
+        try {
+            int offset = 0;
+            while( offset < contents.length ) {
+                int numRead = in.read( contents, offset, contents.length - offset );
+                if( numRead < 0 ) {
+                    throw new IOException( "Unexpected end of file " + f.toString() );
+                }
+                offset += numRead;
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    private final File spillDir;
+    private final LinkedHashMap<String, byte[]> inMemory;
+    private final LinkedHashMap<String, Boolean> spilled;
+    private int numHits = 0;
+    private int numMisses = 0;
+}
@@ -0,0 +1,621 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import edu.illinois.cs.cogcomp.thrift.base.Forest;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Node;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.base.Tree;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts a SentenceCache in front of an annotator whose output for each sentence
+ * depends only on that sentence (e.g., a POS tagger or a parser). Boilerplate
+ * sentences (headers, disclaimers, signatures) repeat across huge numbers of
+ * documents, and there is no sense in tagging or parsing them every time.
+ *
+ * For each document, we look up each of the sentences in its "sentences" view.
+ * The sentences we've never seen are copied, along with the parts of the
+ * document's existing views that lie within them, into a smaller record, which
+ * alone goes to the annotator. (If none of them were cached, the document goes
+ * to the annotator as it is.) The annotation that comes back is split up by
+ * sentence and cached, and the document's view is then assembled from the
+ * cached and new annotations of its sentences, with their offsets rebased into
+ * the document's coordinates.
+ *
+ * Sentences are cached by their text with each run of whitespace collapsed to
+ * a single space, so that the same sentence wrapped differently is still
+ * recognized. Cached offsets are relative to this normalized text.
+ *
+ * If any part of the annotation can't be attributed to exactly one sentence,
+ * the document is annotated again as a whole, and nothing is cached from it.
+ *
+ * @author Tyler Young
+ */
+public class SentenceCachingAnnotator {
+    /**
+     * Whatever actually annotates a record (e.g., a call to the Curator)
+     */
+    public interface Annotator {
+        /**
+         * @param record The record to annotate
+         * @return The annotated record
+         * @throws IOException If the annotation fails
+         */
+        Record annotate( Record record ) throws IOException;
+    }
+
+    /**
+     * @param mode An annotation
+     * @return True if the annotation can be produced one sentence at a time,
+     *         and so can be cached by sentence. Tokenization and sentence
+     *         splitting produce the sentences themselves, while coreference
+     *         and Wikification look across the whole document, so those
+     *         can't be. Note that the NER tagger does use some document-level
+     *         context, so a cached sentence may occasionally be tagged
+     *         differently than it would have been in its new document.
+     */
+    public static boolean canCache( AnnotationMode mode ) {
+        switch( mode ) {
+            case POS:
+            case CHUNK:
+            case NER:
+            case PARSE:
+            case VERB_SRL:
+            case NOM_SRL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Constructs a caching annotator
+     * @param cache The cache to use
+     * @param mode The annotation to produce. Must be one for which #canCache()
+     *             is true.
+     * @param annotatorSource The identifier of the annotator, as reported by
+     *                        the Curator (see SentenceCache#makeKey())
+     */
+    public SentenceCachingAnnotator( SentenceCache cache, AnnotationMode mode,
+                                     String annotatorSource ) {
+        if( !canCache( mode ) ) {
+            throw new IllegalArgumentException( mode.toString()
+                    + " annotations can't be cached by sentence." );
+        }
+        this.cache = cache;
+        this.viewName = mode.toCuratorString();
+        this.isForest = AnnotationMode.getViewType( mode ) == ViewType.PARSE;
+        this.annotatorSource = annotatorSource;
+    }
+
+    /**
+     * Annotates a record, using (and filling) the cache
+     * @param input The record to annotate. Records without a "sentences" view
+     *              are passed straight to the annotator.
+     * @param annotator The annotator to call for the sentences not in the cache
+     * @return The annotated record
+     * @throws IOException If the annotator fails
+     */
+    public Record annotate( Record input, Annotator annotator )
+            throws IOException {
+        Labeling sentenceView = input.isSetLabelViews()
+                ? input.getLabelViews().get( SENTENCE_VIEW ) : null;
+        String text = input.getRawText();
+        if( sentenceView == null || sentenceView.getLabelsSize() == 0
+                || !inOrder( sentenceView.getLabels(), text.length() ) ) {
+            return annotator.annotate( input );
+        }
+
+        List<Span> sentences = sentenceView.getLabels();
+        List<NormalizedSentence> normalized =
+                new ArrayList<NormalizedSentence>( sentences.size() );
+        List<TBase<?, ?>> pieces =
+                new ArrayList<TBase<?, ?>>( sentences.size() );
+        List<Integer> missed = new ArrayList<Integer>();
+        for( int i = 0; i < sentences.size(); i++ ) {
+            Span s = sentences.get( i );
+            NormalizedSentence ns = new NormalizedSentence(
+                    text.substring( s.getStart(), s.getEnding() ) );
+            normalized.add( ns );
+            byte[] cached = cache.get( SentenceCache.makeKey(
+                    ns.getText(), viewName, annotatorSource ) );
+            pieces.add( cached == null ? null : decodePiece( cached ) );
+            if( cached == null ) {
+                missed.add( i );
+            }
+        }
+
+        TBase<?, ?> fresh = null;
+        if( missed.size() == sentences.size() ) {
+            // Nothing to reuse, so the annotator gets exactly what it would
+            // have without the cache
+            Record annotated = annotator.annotate( input );
+            splitIntoPieces( annotated, sentences, missed, normalized, pieces );
+            ++numDocumentsAnnotated;
+            return annotated;
+        }
+
+        if( !missed.isEmpty() ) {
+            int[] subStarts = new int[missed.size()];
+            Record sub = extractSentences( input, sentences, missed, subStarts );
+            Record annotated = annotator.annotate( sub );
+            List<Span> subSentences = new ArrayList<Span>( missed.size() );
+            for( int i = 0; i < missed.size(); i++ ) {
+                Span s = sentences.get( missed.get( i ) );
+                subSentences.add( new Span( subStarts[i],
+                        subStarts[i] + s.getEnding() - s.getStart() ) );
+            }
+            if( !splitIntoPieces( annotated, subSentences, missed, normalized,
+                                  pieces ) ) {
+                // Can't be trusted to the pieces; do the whole thing
+                return annotator.annotate( input );
+            }
+            fresh = getView( annotated );
+            ++numDocumentsAnnotated;
+        }
+        else {
+            ++numDocumentsSkipped;
+        }
+        numSentencesReused += sentences.size() - missed.size();
+
+        Record output = input.deepCopy();
+        TBase<?, ?> view =
+                assemble( sentences, normalized, pieces, fresh, text );
+        if( isForest ) {
+            output.getParseViews().put( viewName, (Forest)view );
+        }
+        else {
+            output.getLabelViews().put( viewName, (Labeling)view );
+        }
+        return output;
+    }
+
+    /**
+     * @return The number of documents whose annotation came entirely from the
+     *         cache, without calling the annotator
+     */
+    public int getNumDocumentsSkipped() {
+        return numDocumentsSkipped;
+    }
+
+    /**
+     * @return The number of documents for which the annotator was called (on
+     *         some or all of their sentences)
+     */
+    public int getNumDocumentsAnnotated() {
+        return numDocumentsAnnotated;
+    }
+
+    /**
+     * @return The number of sentences whose annotation came from the cache
+     */
+    public int getNumSentencesReused() {
+        return numSentencesReused;
+    }
+
+    /**
+     * Copies the indicated sentences of a record into a new record of their
+     * own (separated by blank lines), along with every label and tree of the
+     * record's existing views which lies entirely within one of them.
+     * Clusterings and generic views span the whole document, so they are not
+     * copied, and neither is any old version of the view we're producing.
+     * @param input The record to copy from
+     * @param sentences The record's sentences
+     * @param which The indices of the sentences to copy
+     * @param subStarts Filled with the offset at which each copied sentence
+     *                  begins in the new record
+     * @return The new record
+     */
+    private Record extractSentences( Record input, List<Span> sentences,
+                                     List<Integer> which, int[] subStarts ) {
+        String text = input.getRawText();
+        StringBuilder subText = new StringBuilder();
+        for( int i = 0; i < which.size(); i++ ) {
+            if( i > 0 ) {
+                subText.append( "\n\n" );
+            }
+            Span s = sentences.get( which.get( i ) );
+            subStarts[i] = subText.length();
+            subText.append( text, s.getStart(), s.getEnding() );
+        }
+
+        Record sub = RecordTools.generateNew( subText.toString() );
+        if( input.isSetWhitespaced() ) {
+            sub.setWhitespaced( input.isWhitespaced() );
+        }
+        for( Map.Entry<String, Labeling> e : input.getLabelViews().entrySet() ) {
+            if( e.getKey().equals( viewName ) || !e.getValue().isSetLabels() ) {
+                continue;
+            }
+            Labeling copy = new Labeling( e.getValue() );
+            copy.setLabels( new ArrayList<Span>() );
+            if( copy.isSetRawText() ) {
+                copy.setRawText( sub.getRawText() );
+            }
+            for( Span label : e.getValue().getLabels() ) {
+                int shift = getShift( label, sentences, which, subStarts );
+                if( shift != NO_SENTENCE ) {
+                    copy.getLabels().add( shiftSpan( label, shift ) );
+                }
+            }
+            sub.getLabelViews().put( e.getKey(), copy );
+        }
+        for( Map.Entry<String, Forest> e : input.getParseViews().entrySet() ) {
+            if( e.getKey().equals( viewName ) || !e.getValue().isSetTrees() ) {
+                continue;
+            }
+            Forest copy = new Forest( e.getValue() );
+            copy.setTrees( new ArrayList<Tree>() );
+            if( copy.isSetRawText() ) {
+                copy.setRawText( sub.getRawText() );
+            }
+            for( Tree tree : e.getValue().getTrees() ) {
+                Span extent = getExtent( tree );
+                int shift = extent == null ? NO_SENTENCE
+                        : getShift( extent, sentences, which, subStarts );
+                if( shift != NO_SENTENCE ) {
+                    copy.getTrees().add( shiftTree( tree, shift ) );
+                }
+            }
+            sub.getParseViews().put( e.getKey(), copy );
+        }
+        return sub;
+    }
+
+    /**
+     * @return The amount by which to shift a span in the original record to
+     *         put it in the same place in the extracted record, or NO_SENTENCE
+     *         if it doesn't lie entirely within one of the extracted sentences
+     */
+    private static int getShift( Span span, List<Span> sentences,
+                                 List<Integer> which, int[] subStarts ) {
+        for( int i = 0; i < which.size(); i++ ) {
+            Span s = sentences.get( which.get( i ) );
+            if( span.getStart() >= s.getStart()
+                    && span.getEnding() <= s.getEnding() ) {
+                return subStarts[i] - s.getStart();
+            }
+        }
+        return NO_SENTENCE;
+    }
+
+    /**
+     * Splits the new view in an annotated record by sentence, storing each
+     * sentence's part in the cache and in the list of pieces
+     * @param annotated The annotated record
+     * @param annotatedSentences The sentences that were annotated, in the
+     *                           annotated record's coordinates
+     * @param which The index (in the original document) of each annotated
+     *              sentence
+     * @param normalized Every sentence of the original document, normalized
+     * @param pieces Each sentence's part of the view, by index in the
+     *               original document; filled in for the annotated sentences
+     * @return False if some part of the view doesn't fall within any one
+     *         sentence (in which case nothing is cached)
+     */
+    private boolean splitIntoPieces( Record annotated,
+                                     List<Span> annotatedSentences,
+                                     List<Integer> which,
+                                     List<NormalizedSentence> normalized,
+                                     List<TBase<?, ?>> pieces ) {
+        TBase<?, ?> view = getView( annotated );
+        if( view == null || ( isForest ? !( (Forest)view ).isSetTrees()
+                                       : !( (Labeling)view ).isSetLabels() ) ) {
+            return false;
+        }
+
+        List<TBase<?, ?>> split = new ArrayList<TBase<?, ?>>( which.size() );
+        for( int i = 0; i < which.size(); i++ ) {
+            split.add( emptyPiece( view ) );
+        }
+
+        if( isForest ) {
+            for( Tree tree : ( (Forest)view ).getTrees() ) {
+                Span extent = getExtent( tree );
+                int i = extent == null ? -1
+                        : findSentence( extent, annotatedSentences );
+                if( i < 0 ) {
+                    return false;
+                }
+                NormalizedSentence ns = normalized.get( which.get( i ) );
+                int sentStart = annotatedSentences.get( i ).getStart();
+                Tree relative = tree.deepCopy();
+                for( Node node : relative.getNodes() ) {
+                    if( node.isSetSpan() ) {
+                        node.setSpan( ns.toNormalized( node.getSpan(), sentStart ) );
+                    }
+                }
+                ( (Forest)split.get( i ) ).getTrees().add( relative );
+            }
+        }
+        else {
+            for( Span label : ( (Labeling)view ).getLabels() ) {
+                int i = findSentence( label, annotatedSentences );
+                if( i < 0 ) {
+                    return false;
+                }
+                NormalizedSentence ns = normalized.get( which.get( i ) );
+                ( (Labeling)split.get( i ) ).getLabels().add( ns.toNormalized(
+                        label, annotatedSentences.get( i ).getStart() ) );
+            }
+        }
+
+        try {
+            for( int i = 0; i < which.size(); i++ ) {
+                pieces.set( which.get( i ), split.get( i ) );
+                cache.put( SentenceCache.makeKey(
+                        normalized.get( which.get( i ) ).getText(), viewName,
+                        annotatorSource ),
+                        new TSerializer().serialize( split.get( i ) ) );
+            }
+        } catch ( TException e ) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Puts the document's view together from each sentence's piece
+     * @param sentences The document's sentences
+     * @param normalized The document's sentences, normalized
+     * @param pieces Each sentence's part of the view, in normalized
+     *               coordinates
+     * @param fresh The view returned by the annotator, if it was called, from
+     *              which we take the view's own fields (source, score)
+     * @param text The document's raw text
+     * @return The view, in the document's coordinates
+     */
+    private TBase<?, ?> assemble( List<Span> sentences,
+                                  List<NormalizedSentence> normalized,
+                                  List<TBase<?, ?>> pieces, TBase<?, ?> fresh,
+                                  String text ) {
+        TBase<?, ?> template = fresh != null ? fresh : pieces.get( 0 );
+        if( isForest ) {
+            Forest view = new Forest( (Forest)template );
+            view.setTrees( new ArrayList<Tree>() );
+            if( view.isSetRawText() ) {
+                view.setRawText( text );
+            }
+            for( int i = 0; i < sentences.size(); i++ ) {
+                int sentStart = sentences.get( i ).getStart();
+                for( Tree tree : ( (Forest)pieces.get( i ) ).getTrees() ) {
+                    Tree rebased = tree.deepCopy();
+                    for( Node node : rebased.getNodes() ) {
+                        if( node.isSetSpan() ) {
+                            node.setSpan( normalized.get( i ).toOriginal(
+                                    node.getSpan(), sentStart ) );
+                        }
+                    }
+                    view.getTrees().add( rebased );
+                }
+            }
+            return view;
+        }
+
+        Labeling view = new Labeling( (Labeling)template );
+        view.setLabels( new ArrayList<Span>() );
+        if( view.isSetRawText() ) {
+            view.setRawText( text );
+        }
+        for( int i = 0; i < sentences.size(); i++ ) {
+            int sentStart = sentences.get( i ).getStart();
+            for( Span label : ( (Labeling)pieces.get( i ) ).getLabels() ) {
+                view.getLabels().add(
+                        normalized.get( i ).toOriginal( label, sentStart ) );
+            }
+        }
+        return view;
+    }
+
+    /**
+     * @return The record's view of the kind we're producing, or null if it
+     *         doesn't have one
+     */
+    private TBase<?, ?> getView( Record r ) {
+        if( isForest ) {
+            return r.isSetParseViews() ? r.getParseViews().get( viewName ) : null;
+        }
+        return r.isSetLabelViews() ? r.getLabelViews().get( viewName ) : null;
+    }
+
+    /**
+     * @return A copy of the view's own fields (source, score, etc.), with no
+     *         labels or trees
+     */
+    private TBase<?, ?> emptyPiece( TBase<?, ?> view ) {
+        if( isForest ) {
+            Forest piece = new Forest( (Forest)view );
+            piece.setTrees( new ArrayList<Tree>() );
+            piece.setRawText( null );
+            return piece;
+        }
+        Labeling piece = new Labeling( (Labeling)view );
+        piece.setLabels( new ArrayList<Span>() );
+        piece.setRawText( null );
+        return piece;
+    }
+
+    private TBase<?, ?> decodePiece( byte[] encoded ) throws IOException {
+        TBase<?, ?> piece = isForest ? new Forest() : new Labeling();
+        try {
+            new TDeserializer().deserialize( piece, encoded );
+        } catch ( TException e ) {
+            throw new IOException( "Couldn't decode a cached sentence "
+                    + "annotation: " + e.getMessage() );
+        }
+        return piece;
+    }
+
+    /**
+     * @return True if the sentences are in order, don't overlap, and lie
+     *         within the text
+     */
+    private static boolean inOrder( List<Span> sentences, int textLength ) {
+        int lastEnding = 0;
+        for( Span s : sentences ) {
+            if( s.getStart() < lastEnding || s.getEnding() < s.getStart()
+                    || s.getEnding() > textLength ) {
+                return false;
+            }
+            lastEnding = s.getEnding();
+        }
+        return true;
+    }
+
+    /**
+     * @return The index of the sentence containing the span, or -1 if no one
+     *         sentence contains it
+     */
+    private static int findSentence( Span span, List<Span> sentences ) {
+        int low = 0;
+        int high = sentences.size() - 1;
+        while( low <= high ) {
+            int mid = ( low + high ) >>> 1;
+            Span s = sentences.get( mid );
+            if( span.getStart() < s.getStart() ) {
+                high = mid - 1;
+            }
+            else if( span.getStart() >= s.getEnding() ) {
+                low = mid + 1;
+            }
+            else {
+                return span.getEnding() <= s.getEnding() ? mid : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The smallest span covering every node of the tree, or null if
+     *         none of its nodes have spans
+     */
+    static Span getExtent( Tree tree ) {
+        Span extent = null;
+        for( Node node : tree.getNodes() ) {
+            if( !node.isSetSpan() ) {
+                continue;
+            }
+            if( extent == null ) {
+                extent = new Span( node.getSpan().getStart(),
+                                   node.getSpan().getEnding() );
+            }
+            else {
+                extent.setStart( Math.min( extent.getStart(),
+                                           node.getSpan().getStart() ) );
+                extent.setEnding( Math.max( extent.getEnding(),
+                                            node.getSpan().getEnding() ) );
+            }
+        }
+        return extent;
+    }
+
+    static Span shiftSpan( Span span, int shift ) {
+        Span shifted = span.deepCopy();
+        shifted.setStart( span.getStart() + shift );
+        shifted.setEnding( span.getEnding() + shift );
+        return shifted;
+    }
+
+    static Tree shiftTree( Tree tree, int shift ) {
+        Tree shifted = tree.deepCopy();
+        for( Node node : shifted.getNodes() ) {
+            if( node.isSetSpan() ) {
+                node.setSpan( shiftSpan( node.getSpan(), shift ) );
+            }
+        }
+        return shifted;
+    }
+
+    /**
+     * The text of a sentence with each run of whitespace collapsed to a single
+     * space (and none at either end), along with the mapping between offsets
+     * in the sentence and offsets in the normalized text
+     */
+    static class NormalizedSentence {
+        NormalizedSentence( String sentence ) {
+            StringBuilder text = new StringBuilder( sentence.length() );
+            origToNorm = new int[sentence.length() + 1];
+            normToOrig = new int[sentence.length() + 1];
+            boolean pendingSpace = false;
+            for( int i = 0; i < sentence.length(); i++ ) {
+                char c = sentence.charAt( i );
+                if( Character.isWhitespace( c ) ) {
+                    pendingSpace = text.length() > 0;
+                    origToNorm[i] = text.length();
+                    continue;
+                }
+                if( pendingSpace ) {
+                    normToOrig[text.length()] = i - 1;
+                    text.append( ' ' );
+                    pendingSpace = false;
+                }
+                origToNorm[i] = text.length();
+                normToOrig[text.length()] = i;
+                text.append( c );
+            }
+            origToNorm[sentence.length()] = text.length();
+            normToOrig[text.length()] = sentence.length();
+            this.text = text.toString();
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * @param span A span in some record
+         * @param sentStart The offset at which this sentence begins in that
+         *                  record
+         * @return The span, relative to the normalized sentence
+         */
+        Span toNormalized( Span span, int sentStart ) {
+            Span relative = span.deepCopy();
+            int start = span.getStart() - sentStart;
+            int ending = span.getEnding() - sentStart;
+            relative.setStart( origToNorm[start] );
+            relative.setEnding( ending > start ? origToNorm[ending - 1] + 1
+                                               : origToNorm[start] );
+            return relative;
+        }
+
+        /**
+         * @param span A span relative to the normalized sentence
+         * @param sentStart The offset at which this sentence begins in the
+         *                  record the span is going into
+         * @return The span, in that record's coordinates
+         */
+        Span toOriginal( Span span, int sentStart ) {
+            Span rebased = span.deepCopy();
+            int start = Math.min( span.getStart(), text.length() );
+            int ending = Math.min( span.getEnding(), text.length() );
+            rebased.setStart( sentStart + normToOrig[start] );
+            rebased.setEnding( sentStart + ( ending > start
+                    ? normToOrig[ending - 1] + 1 : normToOrig[start] ) );
+            return rebased;
+        }
+
+        private final String text;
+        private final int[] origToNorm;
+        private final int[] normToOrig;
+    }
+
+    private static final String SENTENCE_VIEW = "sentences";
+    private static final int NO_SENTENCE = Integer.MIN_VALUE;
+
+    private final SentenceCache cache;
+    private final String viewName;
+    private final boolean isForest;
+    private final String annotatorSource;
+    private int numDocumentsSkipped = 0;
+    private int numDocumentsAnnotated = 0;
+    private int numSentencesReused = 0;
+}
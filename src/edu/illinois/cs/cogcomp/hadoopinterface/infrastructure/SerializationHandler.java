@@ -2,8 +2,9 @@ package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
 
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions.EmptyInputException;
 import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TIOStreamTransport;
 
 import java.io.*;
@@ -19,9 +20,48 @@ import java.io.*;
  */
 public class SerializationHandler {
     /**
-     * Constructs a serialization handler.
+     * Constructs a serialization handler which writes uncompressed records in
+     * the default protocol (see RecordFileFormat#DEFAULT_PROTOCOL).
      */
     public SerializationHandler( ) {
+        this( RecordCompression.NONE );
+    }
+
+    /**
+     * Constructs a serialization handler which compresses the records it
+     * writes. (Any handler can read compressed records; see RecordFileFormat.)
+     * @param compression The compression to apply to records we write
+     */
+    public SerializationHandler( RecordCompression compression ) {
+        this( compression, RecordFileFormat.DEFAULT_PROTOCOL );
+    }
+
+    /**
+     * Constructs a serialization handler which writes records with the
+     * indicated compression and Thrift protocol. (Records are read with
+     * whatever protocol they were written with.) Use RecordProtocol.BINARY and
+     * RecordCompression.NONE to write records the Curator itself can read.
+     * @param compression The compression to apply to records we write
+     * @param protocol The protocol with which to serialize records we write
+     */
+    public SerializationHandler( RecordCompression compression,
+                                 RecordProtocol protocol ) {
+        this.compression = compression;
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return The compression applied to records we write
+     */
+    public RecordCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return The protocol with which we serialize records we write
+     */
+    public RecordProtocol getProtocol() {
+        return protocol;
     }
 
     /**
@@ -63,14 +103,47 @@ public class SerializationHandler {
      */
     public void serializeToOutputStream( Record data, OutputStream oStream )
             throws TException, IOException {
-        TBinaryProtocol thriftWriter =
-                new TBinaryProtocol( new TIOStreamTransport( oStream ) );
+        oStream = RecordFileFormat.openForWriting( oStream, compression,
+                                                  protocol, getCodecConf() );
+        TProtocol thriftWriter =
+                protocol.wrap( new TIOStreamTransport( oStream ) );
 
         data.write( thriftWriter ); // write to the output stream
         oStream.flush();
         oStream.close();
     }
 
+    /**
+     * Serializes the Record to an in-memory byte array, in exactly the form
+     * that #serialize() would write to disk. Useful when the encoding and the
+     * writing of a record happen at different times (or on different threads).
+     *
+     * This method is the inverse of #deserializeFromBytes().
+     * @param data The Record to serialize
+     * @return The serialized form of the Record
+     */
+    public byte[] serializeToBytes( Record data )
+            throws TException, IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializeToOutputStream( data, bytes );
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuilds a Record from the in-memory serialized form produced by
+     * #serializeToBytes().
+     * @param serializedData The serialized form of the Record
+     * @return The reconstructed Record
+     */
+    public Record deserializeFromBytes( byte[] serializedData )
+            throws TException, IOException {
+        if( serializedData.length == 0 ) {
+            throw new EmptyInputException( "Can't deserialize an empty record." );
+        }
+        return deserializeFromInputStream(
+                new ByteArrayInputStream( serializedData ) );
+    }
+
     /**
      * Rebuilds (i.e., deserializes) a Record data structure from a serialized
      * (file) version of that data structure.
@@ -99,14 +172,20 @@ public class SerializationHandler {
      * <em>not</em> use this unless you have no other choice. Instead, stick
      * to the deserialize() methods.
      *
+     * Records written with or without compression, and in either protocol,
+     * can be read; we tell the difference from the first few bytes.
+     *
      * This method is the inverse of #serializeFromOutputStream().
      * @param in The input stream to read from the serialized file
      * @return The reconstructed Record
      */
     public Record deserializeFromInputStream( InputStream in )
             throws TException, IOException {
-        TBinaryProtocol thriftReader =
-                new TBinaryProtocol( new TIOStreamTransport( in ) );
+        RecordFileFormat.OpenedRecord opened =
+                RecordFileFormat.openForReading( in, getCodecConf() );
+        in = opened.getStream();
+        TProtocol thriftReader =
+                opened.getProtocol().wrap( new TIOStreamTransport( in ) );
 
         Record readVersion = new Record();
         readVersion.read( thriftReader ); // read from the input stream
@@ -115,4 +194,20 @@ public class SerializationHandler {
 
         return readVersion;
     }
+
+    /**
+     * @return The configuration with which to set up compression codecs.
+     *         Created only when first needed, since most handlers never
+     *         compress or decompress anything.
+     */
+    protected Configuration getCodecConf() {
+        if( codecConf == null ) {
+            codecConf = new Configuration();
+        }
+        return codecConf;
+    }
+
+    private final RecordCompression compression;
+    private final RecordProtocol protocol;
+    private Configuration codecConf;
 }
@@ -0,0 +1,184 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+
+/**
+ * Knows where serialized records live within a record directory (the job's
+ * input directory, or the output directory of some annotation job). There are
+ * two layouts:
+ *
+ * <ul>
+ *     <li>Flat: every record is a file directly in the directory, named with
+ *         the document's hash (i.e., [document_hash].txt). This is what the
+ *         Curator itself writes.</li>
+ *     <li>Sharded: each record is filed under two levels of directories named
+ *         with the first characters of its hash, so that the document with
+ *         hash abcdef0123 lives at ab/cd/abcdef0123.txt. With 256 directories
+ *         per level, even millions of records leave only a few dozen files
+ *         per directory, which keeps directory listings and the NameNode's
+ *         per-directory locking cheap.</li>
+ * </ul>
+ *
+ * A sharded directory is marked by a file named "_sharded" at its root; nobody
+ * needs to be told which layout a directory uses in order to read it. Hidden
+ * files and directories (e.g., "_manifest", the "_deferred" side outputs) and
+ * record containers are never sharded, and stay at the root in both layouts.
+ *
+ * Running this class converts existing flat directories to the sharded
+ * layout; see #main().
+ *
+ * @author Tyler Young
+ */
+public class ShardedLayout {
+    /** The name of the file marking a directory as sharded */
+    public static final String MARKER_NAME = "_sharded";
+    /** The number of hash characters naming each level of shard directory */
+    public static final int PREFIX_LENGTH = 2;
+    /** The number of levels of shard directories */
+    public static final int NUM_LEVELS = 2;
+
+    /**
+     * @param documentHash The hash identifying a document
+     * @return The shard directory (relative to the root of the record
+     *         directory) in which that document's record belongs, e.g. "ab/cd"
+     *         for the hash "abcdef0123", or null if the hash is too short to
+     *         be sharded (such records stay at the root).
+     */
+    public static String getShardPath( String documentHash ) {
+        if( documentHash.length() <= PREFIX_LENGTH * NUM_LEVELS ) {
+            return null;
+        }
+        StringBuilder shard = new StringBuilder();
+        for( int level = 0; level < NUM_LEVELS; level++ ) {
+            if( level > 0 ) {
+                shard.append( Path.SEPARATOR );
+            }
+            shard.append( documentHash.substring( level * PREFIX_LENGTH,
+                                                  ( level + 1 ) * PREFIX_LENGTH ) );
+        }
+        return shard.toString();
+    }
+
+    /**
+     * @param recordDir The root of a record directory
+     * @param documentHash The hash identifying a document
+     * @param sharded True if the record directory uses the sharded layout
+     * @return The location of the document's serialized record within the
+     *         directory
+     */
+    public static Path getRecordLoc( Path recordDir, String documentHash,
+                                     boolean sharded ) {
+        String fileName = documentHash + ".txt";
+        String shard = sharded ? getShardPath( documentHash ) : null;
+        if( shard == null ) {
+            return new Path( recordDir, fileName );
+        }
+        return new Path( new Path( recordDir, shard ), fileName );
+    }
+
+    /**
+     * @param name The name of a directory found within a record directory (or
+     *             within one of its shard directories)
+     * @return True if the name could be that of a shard directory
+     */
+    public static boolean isShardName( String name ) {
+        return name.length() == PREFIX_LENGTH
+                && !name.startsWith( "_" ) && !name.startsWith( "." );
+    }
+
+    /**
+     * @param recordDir The root of a record directory
+     * @param fs The file system against which to resolve the path
+     * @return True if the directory uses the sharded layout
+     */
+    public static boolean isSharded( Path recordDir, FileSystem fs )
+            throws IOException {
+        return fs.exists( new Path( recordDir, MARKER_NAME ) );
+    }
+
+    /**
+     * Marks a record directory as using the sharded layout. This does not move
+     * any records; see #migrate() for that.
+     * @param recordDir The root of a record directory. It will be created if
+     *                  it does not exist.
+     * @param fs The file system against which to resolve the path
+     */
+    public static void markSharded( Path recordDir, FileSystem fs )
+            throws IOException {
+        new FileSystemHandler( fs ).writeFileToHDFS(
+                PREFIX_LENGTH + " " + NUM_LEVELS + "\n",
+                new Path( recordDir, MARKER_NAME ) );
+    }
+
+    /**
+     * Converts a flat record directory to the sharded layout, moving each
+     * record at the root into its shard directory and then marking the
+     * directory as sharded. Hidden files and record containers are left
+     * where they are. Since records already in their shard are not touched,
+     * it is safe to run this again on a directory whose migration was
+     * interrupted.
+     * @param recordDir The root of the record directory to convert
+     * @param fs The file system against which to resolve the path
+     * @return The number of records moved
+     */
+    public static int migrate( Path recordDir, FileSystem fs )
+            throws IOException {
+        FileStatus[] statuses = fs.listStatus( recordDir );
+        if( statuses == null ) {
+            throw new IOException( "Record directory " + recordDir.toString()
+                                   + " does not exist." );
+        }
+
+        int numMoved = 0;
+        for( FileStatus status : statuses ) {
+            Path file = status.getPath();
+            String name = file.getName();
+            if( status.isDir() || name.startsWith( "_" ) || name.startsWith( "." )
+                    || !name.endsWith( ".txt" ) ) {
+                continue; // not a record (e.g., a container of records)
+            }
+
+            Path dest = getRecordLoc( recordDir,
+                    FileSystemHandler.stripExtension( name ), true );
+            if( dest.equals( new Path( recordDir, name ) ) ) {
+                continue; // too short a name to shard
+            }
+            fs.mkdirs( dest.getParent() );
+            if( !fs.rename( file, dest ) ) {
+                throw new IOException( "Failed to move record "
+                        + file.toString() + " to " + dest.toString() );
+            }
+            ++numMoved;
+        }
+
+        markSharded( recordDir, fs );
+        return numMoved;
+    }
+
+    /**
+     * Converts flat record directories to the sharded layout from the command
+     * line (see #migrate()). Directories which are already sharded are
+     * finished off, in case an earlier migration was interrupted. Usage:
+     * <pre>
+     *     ShardedLayout [record directory] [another record directory] ...
+     * </pre>
+     * @param args The record directories, as above
+     */
+    public static void main( String[] args ) throws IOException {
+        if( args.length == 0 ) {
+            System.err.println( "Usage: ShardedLayout <record dir> [<record dir> ...]" );
+            System.exit( 1 );
+        }
+        FileSystem fs = FileSystem.get( new Configuration() );
+        for( String dir : args ) {
+            int numMoved = migrate( new Path( dir ), fs );
+            System.out.println( "Moved " + numMoved
+                                + " records into shards in " + dir );
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles records from a ColumnarRecordStore, reading only the view columns
+ * it was asked for. Each column may be made up of many MapFiles (one for each
+ * reduce task of the job that wrote it), so a lookup tries each of the
+ * column's MapFiles in turn; since every MapFile keeps its index in memory,
+ * a miss costs a binary search and no I/O.
+ *
+ * Readers are opened once, when the ColumnReader is constructed, and are
+ * meant to be used to look up documents in key order (as when walking the
+ * text column), so that each MapFile is read sequentially.
+ *
+ * @author Tyler Young
+ */
+public class ColumnReader {
+    /**
+     * Opens the indicated columns of a store
+     * @param store The store's root directory
+     * @param views The Curator names of the views to read. Views which the
+     *              store doesn't have are ignored.
+     * @param fs The file system against which to resolve the paths
+     * @param conf The configuration to use for the MapFile readers
+     */
+    public ColumnReader( Path store, List<String> views, FileSystem fs,
+                         Configuration conf ) throws IOException {
+        readers = new HashMap<String, MapFile.Reader[]>();
+        for( String view : views ) {
+            Path column = ColumnarRecordStore.getColumnDir( store, view );
+            if( !fs.exists( column ) ) {
+                continue;
+            }
+
+            List<Path> parts = ColumnarRecordStore.getColumnParts( column, fs );
+            MapFile.Reader[] columnReaders = new MapFile.Reader[ parts.size() ];
+            for( int i = 0; i < parts.size(); i++ ) {
+                columnReaders[i] = new MapFile.Reader( fs,
+                        parts.get( i ).toString(), conf );
+            }
+            readers.put( view, columnReaders );
+        }
+    }
+
+    /**
+     * Builds a record from its text column entry and whatever views are
+     * present for it in the columns being read
+     * @param key The document's key
+     * @param text The document's text column entry
+     * @return The assembled record
+     */
+    public Record assemble( DocumentHashKey key, BytesWritable text )
+            throws IOException, TException {
+        Record r = ColumnarRecordStore.decodeText( copyOf( text ) );
+        addViews( key, r );
+        return r;
+    }
+
+    /**
+     * Adds to a record whatever views are present for it in the columns being
+     * read, replacing any views of the same name it already had
+     * @param key The document's key
+     * @param r The document's record
+     * @return The number of views added
+     */
+    public int addViews( DocumentHashKey key, Record r )
+            throws IOException, TException {
+        int numAdded = 0;
+        for( Map.Entry<String, MapFile.Reader[]> column : readers.entrySet() ) {
+            for( MapFile.Reader reader : column.getValue() ) {
+                if( reader.get( key, value ) != null ) {
+                    ColumnarRecordStore.decodeViewInto( r, column.getKey(),
+                                                        copyOf( value ) );
+                    ++numAdded;
+                    break;
+                }
+            }
+        }
+        return numAdded;
+    }
+
+    /**
+     * @return The names of the view columns actually being read
+     */
+    public List<String> getViews() {
+        return new ArrayList<String>( readers.keySet() );
+    }
+
+    /**
+     * Closes all the column readers
+     */
+    public void close() throws IOException {
+        for( MapFile.Reader[] columnReaders : readers.values() ) {
+            for( MapFile.Reader reader : columnReaders ) {
+                reader.close();
+            }
+        }
+    }
+
+    private static byte[] copyOf( BytesWritable bytes ) {
+        return Arrays.copyOf( bytes.getBytes(), bytes.getLength() );
+    }
+
+    private final Map<String, MapFile.Reader[]> readers;
+    private final BytesWritable value = new BytesWritable();
+}
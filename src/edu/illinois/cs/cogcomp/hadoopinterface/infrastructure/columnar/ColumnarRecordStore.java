@@ -0,0 +1,373 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ViewType;
+import edu.illinois.cs.cogcomp.thrift.base.Clustering;
+import edu.illinois.cs.cogcomp.thrift.base.Forest;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.View;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A storage layout for records which keeps the raw text and each view in
+ * separate "column" files, rather than one monolithic record per document.
+ * A store is a directory laid out like this:
+ *
+ * <pre>
+ *     store/text/part-00000/        (Hadoop MapFile: hash -> bare record)
+ *     store/pos/part-r-00000/       (Hadoop MapFile: hash -> POS labeling)
+ *     store/charniak/part-r-00000/  (and so on, one directory per view)
+ * </pre>
+ *
+ * The text column holds each document's identifier and raw text (a Record
+ * with no views). Every other column is named for the Curator's name for the
+ * view it stores, and holds just that view's Thrift struct. All columns are
+ * MapFiles keyed by DocumentHashKey, so any column can be looked up by
+ * document without reading the others.
+ *
+ * This means that a job reads only the columns its annotation depends on (see
+ * ColumnarInputFormat), and writes only the one column it produces (see
+ * RecordOutputFormat's "columnarStore" option), instead of re-reading and
+ * re-writing every previous annotation at every stage.
+ *
+ * Use #main() to import a directory of ordinary serialized records into a
+ * store, or to export a store back to one.
+ *
+ * @author Tyler Young
+ */
+public class ColumnarRecordStore {
+    /** The name of the column holding each document's raw text */
+    public static final String TEXT_COLUMN = "text";
+
+    /**
+     * Imports or exports records from the command line. Usage:
+     * <pre>
+     *     ColumnarRecordStore import [record directory] [store directory]
+     *     ColumnarRecordStore export [store directory] [record directory]
+     * </pre>
+     * @param args The command and directories, as above
+     */
+    public static void main( String[] args ) throws IOException, TException {
+        if( args.length != 3 ) {
+            System.err.println( "Usage: ColumnarRecordStore import <record dir> "
+                    + "<store dir>\n   or: ColumnarRecordStore export "
+                    + "<store dir> <record dir>" );
+            System.exit( 1 );
+        }
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.get( conf );
+        if( args[0].equals( "import" ) ) {
+            importRecords( new Path( args[1] ), new Path( args[2] ), fs );
+        }
+        else if( args[0].equals( "export" ) ) {
+            exportRecords( new Path( args[1] ), new Path( args[2] ), fs );
+        }
+        else {
+            System.err.println( "Unknown command " + args[0] );
+            System.exit( 1 );
+        }
+    }
+
+    /**
+     * @param dir A directory in HDFS
+     * @param fs The file system against which to resolve the path
+     * @return True if the directory is a columnar record store (i.e., it has a
+     *         text column)
+     */
+    public static boolean isStore( Path dir, FileSystem fs ) throws IOException {
+        Path textColumn = getColumnDir( dir, TEXT_COLUMN );
+        return fs.exists( textColumn ) && fs.getFileStatus( textColumn ).isDir();
+    }
+
+    /**
+     * @param store The store's root directory
+     * @param column The name of a column (TEXT_COLUMN, or a view's Curator name)
+     * @return The directory holding that column's MapFiles
+     */
+    public static Path getColumnDir( Path store, String column ) {
+        return new Path( store, column );
+    }
+
+    /**
+     * @param store The store's root directory
+     * @param fs The file system against which to resolve the path
+     * @return The names of all the view columns present in the store
+     */
+    public static List<String> getViewColumns( Path store, FileSystem fs )
+            throws IOException {
+        List<String> views = new ArrayList<String>();
+        for( Path dir : new FileSystemHandler( fs ).getSubdirectories( store ) ) {
+            String name = dir.getName();
+            if( !name.equals( TEXT_COLUMN ) && !name.startsWith( "_" )
+                    && !name.startsWith( "." ) ) {
+                views.add( name );
+            }
+        }
+        return views;
+    }
+
+    /**
+     * @param column A column's directory
+     * @param fs The file system against which to resolve the path
+     * @return The MapFiles (one per task that wrote to the column) that make
+     *         up the column, in name order
+     */
+    public static List<Path> getColumnParts( Path column, FileSystem fs )
+            throws IOException {
+        List<Path> parts = new ArrayList<Path>();
+        for( Path dir : new FileSystemHandler( fs ).getSubdirectories( column ) ) {
+            if( dir.getName().startsWith( "part-" ) ) {
+                parts.add( dir );
+            }
+        }
+        Collections.sort( parts, new Comparator<Path>() {
+            public int compare( Path a, Path b ) {
+                return a.getName().compareTo( b.getName() );
+            }
+        } );
+        return parts;
+    }
+
+    /**
+     * Encodes the text column's entry for a record: its identifier, raw text
+     * and whitespacing, without any views. (The view maps are required
+     * fields, so they're written, but empty.)
+     * @param r The record
+     * @return The serialized text entry
+     */
+    public static byte[] encodeText( Record r ) throws TException {
+        Record bare = new Record();
+        bare.setIdentifier( r.getIdentifier() );
+        bare.setRawText( r.getRawText() );
+        if( r.isSetWhitespaced() ) {
+            bare.setWhitespaced( r.isWhitespaced() );
+        }
+        bare.setLabelViews( new HashMap<String, Labeling>() );
+        bare.setClusterViews( new HashMap<String, Clustering>() );
+        bare.setParseViews( new HashMap<String, Forest>() );
+        bare.setViews( new HashMap<String, View>() );
+        return new TSerializer().serialize( bare );
+    }
+
+    /**
+     * Decodes a text column entry into a Record with no views (but with empty
+     * view maps, ready for views to be added)
+     * @param encoded The text entry, as from #encodeText()
+     * @return The record
+     */
+    public static Record decodeText( byte[] encoded ) throws TException {
+        Record r = new Record();
+        new TDeserializer().deserialize( r, encoded );
+        return r;
+    }
+
+    /**
+     * Encodes the column entry for one of a record's views
+     * @param r The record
+     * @param viewName The Curator's name for the view (e.g., "pos")
+     * @return The serialized view
+     * @throws TException If the record has no such view
+     */
+    public static byte[] encodeView( Record r, String viewName )
+            throws TException {
+        TBase<?, ?> view = getViewMap( r, viewName ).get( viewName );
+        if( view == null ) {
+            throw new TException( "Record " + r.getIdentifier()
+                    + " has no view named " + viewName );
+        }
+        return new TSerializer().serialize( view );
+    }
+
+    /**
+     * Decodes a view column entry and adds it to a record
+     * @param r The record to add the view to (e.g., from #decodeText())
+     * @param viewName The Curator's name for the view
+     * @param encoded The view, as from #encodeView()
+     */
+    public static void decodeViewInto( Record r, String viewName, byte[] encoded )
+            throws TException {
+        TDeserializer deserializer = new TDeserializer();
+        switch( getViewType( viewName ) ) {
+            case LABEL:
+                Labeling labeling = new Labeling();
+                deserializer.deserialize( labeling, encoded );
+                r.getLabelViews().put( viewName, labeling );
+                break;
+            case CLUSTER:
+                Clustering clustering = new Clustering();
+                deserializer.deserialize( clustering, encoded );
+                r.getClusterViews().put( viewName, clustering );
+                break;
+            case PARSE:
+                Forest forest = new Forest();
+                deserializer.deserialize( forest, encoded );
+                r.getParseViews().put( viewName, forest );
+                break;
+            default:
+                View view = new View();
+                deserializer.deserialize( view, encoded );
+                r.getViews().put( viewName, view );
+        }
+    }
+
+    /**
+     * Splits a directory of ordinary serialized records (one per file, named
+     * [hash].txt) into a new columnar store
+     * @param recordDir The directory of serialized records
+     * @param store The store to create (must not already exist)
+     * @param fs The file system against which to resolve the paths
+     */
+    public static void importRecords( Path recordDir, Path store, FileSystem fs )
+            throws IOException, TException {
+        if( fs.exists( store ) ) {
+            throw new IOException( "Store " + store.toString()
+                                   + " already exists." );
+        }
+
+        // MapFiles must be written in key order
+        FileSystemHandler fsHandler = new FileSystemHandler( fs );
+        TreeMap<DocumentHashKey, Path> byKey = new TreeMap<DocumentHashKey, Path>();
+        for( Path file : fsHandler.getRecordFiles( recordDir ) ) {
+            byKey.put( DocumentHashKey.fromIdentifier(
+                    FileSystemHandler.getFileNameWithoutExtension( file ) ), file );
+        }
+
+        HadoopSerializationHandler serializer = new HadoopSerializationHandler();
+        Map<String, MapFile.Writer> writers = new HashMap<String, MapFile.Writer>();
+        try {
+            for( Map.Entry<DocumentHashKey, Path> doc : byKey.entrySet() ) {
+                Record r = serializer.deserialize( doc.getValue(), fs );
+                getWriter( writers, TEXT_COLUMN, store, fs ).append(
+                        doc.getKey(), new BytesWritable( encodeText( r ) ) );
+                for( String viewName : getViewNames( r ) ) {
+                    getWriter( writers, viewName, store, fs ).append(
+                            doc.getKey(),
+                            new BytesWritable( encodeView( r, viewName ) ) );
+                }
+            }
+        } finally {
+            for( MapFile.Writer writer : writers.values() ) {
+                writer.close();
+            }
+        }
+        HadoopInterface.logger.log( "Imported " + byKey.size() + " records into "
+                + ( writers.size() - 1 ) + " view columns in " + store.toString() );
+    }
+
+    /**
+     * Reassembles every record in a store into a directory of ordinary
+     * serialized records (one per file, named [hash].txt), with all the
+     * store's views
+     * @param store The store to export
+     * @param recordDir The directory to write the records to
+     * @param fs The file system against which to resolve the paths
+     */
+    public static void exportRecords( Path store, Path recordDir, FileSystem fs )
+            throws IOException, TException {
+        HadoopSerializationHandler serializer = new HadoopSerializationHandler();
+        ColumnReader reader = new ColumnReader( store,
+                getViewColumns( store, fs ), fs, fs.getConf() );
+        int numExported = 0;
+        try {
+            for( Path part : getColumnParts(
+                    getColumnDir( store, TEXT_COLUMN ), fs ) ) {
+                MapFile.Reader text =
+                        new MapFile.Reader( fs, part.toString(), fs.getConf() );
+                try {
+                    DocumentHashKey key = new DocumentHashKey();
+                    BytesWritable value = new BytesWritable();
+                    while( text.next( key, value ) ) {
+                        Record r = reader.assemble( key, value );
+                        serializer.serialize( r, new Path( recordDir,
+                                r.getIdentifier() + ".txt" ), fs );
+                        ++numExported;
+                    }
+                } finally {
+                    text.close();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        HadoopInterface.logger.log( "Exported " + numExported + " records from "
+                + store.toString() );
+    }
+
+    /**
+     * @param r A record
+     * @return The names of all the views in the record
+     */
+    static List<String> getViewNames( Record r ) {
+        List<String> names = new ArrayList<String>();
+        names.addAll( r.getLabelViews().keySet() );
+        names.addAll( r.getClusterViews().keySet() );
+        names.addAll( r.getParseViews().keySet() );
+        names.addAll( r.getViews().keySet() );
+        return names;
+    }
+
+    /**
+     * Looks up the map in which a record keeps a view of the given name
+     */
+    private static Map<String, ? extends TBase<?, ?>> getViewMap( Record r,
+                                                                  String viewName ) {
+        switch( getViewType( viewName ) ) {
+            case LABEL:
+                return r.getLabelViews();
+            case CLUSTER:
+                return r.getClusterViews();
+            case PARSE:
+                return r.getParseViews();
+            default:
+                return r.getViews();
+        }
+    }
+
+    /**
+     * Views we don't have an AnnotationMode for are assumed to be generic
+     * Views (the type the Curator uses for newer annotators).
+     */
+    private static ViewType getViewType( String viewName ) {
+        try {
+            return AnnotationMode.fromString( viewName ).getViewType();
+        } catch ( RuntimeException e ) {
+            return ViewType.VIEW;
+        }
+    }
+
+    private static MapFile.Writer getWriter( Map<String, MapFile.Writer> writers,
+                                             String column, Path store,
+                                             FileSystem fs ) throws IOException {
+        MapFile.Writer writer = writers.get( column );
+        if( writer == null ) {
+            Path part = new Path( getColumnDir( store, column ), "part-00000" );
+            writer = new MapFile.Writer( fs.getConf(), fs, part.toString(),
+                    DocumentHashKey.class, BytesWritable.class );
+            writers.put( column, writer );
+        }
+        return writer;
+    }
+}
@@ -0,0 +1,270 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordFileFormat;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Overlays "delta" output onto a directory of ordinary serialized records.
+ *
+ * A job run in delta mode (the "deltaOutput" configuration option) doesn't
+ * rewrite its input records with the new annotation added. Instead, it writes
+ * only the new view, keyed by document, into the input directory's "_delta"
+ * directory:
+ *
+ * <pre>
+ *     input/[hash].txt                      (base records, untouched)
+ *     input/_delta/pos/part-r-00000/        (MapFile: hash -> POS view)
+ *     input/_delta/chunk/part-r-00000/      (and so on, one per stage)
+ * </pre>
+ *
+ * (These are laid out exactly like the view columns of a ColumnarRecordStore.)
+ * Whoever reads the base records then calls #overlay() on each to add the
+ * views from the deltas. Later stages of a multi-stage plan therefore write
+ * one view per document each, rather than the whole ever-growing record.
+ *
+ * Since every read pays for a lookup in every delta, the deltas should
+ * periodically be folded into the base records with #compact() (see
+ * CuratorJob#compactDeltasIfNeeded()).
+ *
+ * @author Tyler Young
+ */
+public class DeltaOverlay {
+    public static final String DELTA_DIR_NAME = "_delta";
+
+    /**
+     * Compacts a base directory's deltas from the command line. Usage:
+     * <pre>
+     *     DeltaOverlay [base record directory]
+     * </pre>
+     * @param args The base directory, as above
+     */
+    public static void main( String[] args ) throws IOException, TException {
+        if( args.length != 1 ) {
+            System.err.println( "Usage: DeltaOverlay <base record dir>" );
+            System.exit( 1 );
+        }
+        Configuration conf = new Configuration();
+        compact( new Path( args[0] ), FileSystem.get( conf ) );
+    }
+
+    /**
+     * Opens the deltas for a directory of base records
+     * @param baseDir The directory holding the base records
+     * @param views The names of the views to overlay, or null to overlay every
+     *              view that has deltas
+     * @param fs The file system against which to resolve the paths
+     * @param conf The configuration to use for the delta readers
+     */
+    public DeltaOverlay( Path baseDir, Collection<String> views, FileSystem fs,
+                         Configuration conf ) throws IOException {
+        Path deltaDir = getDeltaDir( baseDir );
+        List<String> toRead = new ArrayList<String>();
+        if( fs.exists( deltaDir ) ) {
+            toRead = ColumnarRecordStore.getViewColumns( deltaDir, fs );
+            if( views != null ) {
+                toRead.retainAll( views );
+            }
+        }
+        reader = new ColumnReader( deltaDir, toRead, fs, conf );
+    }
+
+    /**
+     * @param baseDir A directory of base records
+     * @return The directory in which that directory's deltas are kept
+     */
+    public static Path getDeltaDir( Path baseDir ) {
+        return new Path( baseDir, DELTA_DIR_NAME );
+    }
+
+    /**
+     * @param baseDir A directory of base records
+     * @param fs The file system against which to resolve the path
+     * @return The names of the views which have deltas waiting to be compacted
+     */
+    public static List<String> getDeltaViews( Path baseDir, FileSystem fs )
+            throws IOException {
+        Path deltaDir = getDeltaDir( baseDir );
+        if( !fs.exists( deltaDir ) ) {
+            return new ArrayList<String>();
+        }
+        return ColumnarRecordStore.getViewColumns( deltaDir, fs );
+    }
+
+    /**
+     * Adds the views from the deltas to a base record. Where the base record
+     * already has a view of the same name, the delta's version replaces it.
+     * Records are best overlaid in DocumentHashKey order, so that the deltas
+     * are read sequentially.
+     * @param r The base record
+     * @return The number of views added from deltas
+     */
+    public int overlay( Record r ) throws IOException {
+        if( reader.getViews().isEmpty() ) {
+            return 0;
+        }
+        key.set( r.getIdentifier() );
+        try {
+            return reader.addViews( key, r );
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error reading deltas for record "
+                    + r.getIdentifier() + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * @return The names of the views being overlaid
+     */
+    public List<String> getViews() {
+        return reader.getViews();
+    }
+
+    /**
+     * Closes the delta readers
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Folds a directory's deltas into its base records, then deletes the
+     * deltas. Each record (or container of records) is rewritten to a
+     * temporary file which then replaces the original, and the deltas are
+     * only deleted once every record has been rewritten. Overlaying is
+     * idempotent, so an interrupted compaction can simply be run again.
+     * @param baseDir The directory of base records
+     * @param fs The file system against which to resolve the paths
+     */
+    public static void compact( Path baseDir, FileSystem fs )
+            throws IOException, TException {
+        List<String> views = getDeltaViews( baseDir, fs );
+        if( views.isEmpty() ) {
+            return;
+        }
+        HadoopInterface.logger.logStatus( "Compacting deltas for " + views
+                + " into the records in " + baseDir.toString() );
+
+        // Visit records in key order, so that we read the deltas sequentially
+        TreeMap<DocumentHashKey, Path> byKey = new TreeMap<DocumentHashKey, Path>();
+        List<Path> containers = new ArrayList<Path>();
+        for( Path file : new FileSystemHandler( fs ).getRecordFiles( baseDir ) ) {
+            if( file.getName().startsWith( "_" ) ) {
+                continue; // e.g., left over from an interrupted compaction
+            }
+            if( file.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+                containers.add( file );
+            }
+            else {
+                byKey.put( DocumentHashKey.fromIdentifier(
+                        FileSystemHandler.getFileNameWithoutExtension( file ) ),
+                           file );
+            }
+        }
+
+        HadoopSerializationHandler serializer = new HadoopSerializationHandler();
+        DeltaOverlay overlay = new DeltaOverlay( baseDir, null, fs, fs.getConf() );
+        try {
+            for( Path file : byKey.values() ) {
+                Record r = serializer.deserialize( file, fs );
+                if( overlay.overlay( r ) > 0 ) {
+                    // Keep whatever encoding the record was written with
+                    Path tmp = getTempPath( file );
+                    byte[] prefix = RecordFileFormat.readPrefix( file, fs );
+                    new HadoopSerializationHandler(
+                            RecordFileFormat.detectCompression( prefix ),
+                            RecordFileFormat.detectProtocol( prefix ) )
+                            .serialize( r, tmp, fs );
+                    replace( file, tmp, fs );
+                }
+            }
+            for( Path container : containers ) {
+                compactContainer( container, overlay, serializer, fs );
+            }
+        } finally {
+            overlay.close();
+        }
+
+        new FileSystemHandler( fs ).delete( getDeltaDir( baseDir ) );
+        HadoopInterface.logger.logStatus( "Compacted " + byKey.size()
+                + " records and " + containers.size() + " containers." );
+    }
+
+    /**
+     * Rewrites a container of packed records with their deltas overlaid,
+     * keeping the container's compression settings
+     */
+    private static void compactContainer( Path container, DeltaOverlay overlay,
+                                          HadoopSerializationHandler serializer,
+                                          FileSystem fs )
+            throws IOException, TException {
+        SequenceFile.Reader in =
+                new SequenceFile.Reader( fs, container, fs.getConf() );
+        Path tmp = getTempPath( container );
+        SequenceFile.CompressionType compressionType =
+                in.isBlockCompressed() ? SequenceFile.CompressionType.BLOCK
+                : in.isCompressed() ? SequenceFile.CompressionType.RECORD
+                : SequenceFile.CompressionType.NONE;
+        SequenceFile.Writer out = SequenceFile.createWriter( fs, fs.getConf(),
+                tmp, Text.class, BytesWritable.class, compressionType,
+                in.getCompressionCodec() );
+        try {
+            Text hash = new Text();
+            BytesWritable serialized = new BytesWritable();
+            while( in.next( hash, serialized ) ) {
+                Record r = serializer.deserializeFromBytes( Arrays.copyOf(
+                        serialized.getBytes(), serialized.getLength() ) );
+                overlay.overlay( r );
+                out.append( hash,
+                            new BytesWritable( serializer.serializeToBytes( r ) ) );
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        replace( container, tmp, fs );
+    }
+
+    /**
+     * Names the temporary file a record is compacted into. The leading
+     * underscore marks it as something other than a record, in case
+     * compaction is interrupted and it is left behind.
+     */
+    private static Path getTempPath( Path original ) {
+        return new Path( original.getParent(),
+                         "_" + original.getName() + COMPACTING_SUFFIX );
+    }
+
+    /**
+     * HDFS renames don't overwrite, so we delete first
+     */
+    private static void replace( Path original, Path replacement, FileSystem fs )
+            throws IOException {
+        if( !fs.delete( original, false ) || !fs.rename( replacement, original ) ) {
+            throw new IOException( "Unable to replace " + original.toString()
+                    + " with its compacted version " + replacement.toString() );
+        }
+    }
+
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private final ColumnReader reader;
+    private final DocumentHashKey key = new DocumentHashKey();
+}
@@ -0,0 +1,16 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Indicates that the annotation of a single document took longer than the
+ * per-document deadline allowed, and was abandoned.
+ * @author Tyler Young
+ */
+public class AnnotationTimeoutException extends IOException
+{
+    public AnnotationTimeoutException(String s)
+    {
+        super(s);
+    }
+}
@@ -0,0 +1,63 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.ColumnarRecordStore;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The input format for jobs whose input directory is a ColumnarRecordStore
+ * rather than a directory of serialized records. There is one split for each
+ * MapFile in the store's text column, and the record reader assembles each
+ * document from its text plus only those view columns that the job's
+ * annotation needs.
+ *
+ * @author Tyler Young
+ */
+public class ColumnarInputFormat extends InputFormat<Text, HadoopRecord> {
+    @Override
+    public List<InputSplit> getSplits( JobContext context )
+            throws IOException, InterruptedException {
+        Configuration conf = context.getConfiguration();
+        FileSystem fs = FileSystem.get( conf );
+        Path store = new Path( conf.get( "inputDirectory" ) );
+        if( !ColumnarRecordStore.isStore( store, fs ) ) {
+            throw new IOException( "Input directory " + store.toString()
+                    + " is not a columnar record store." );
+        }
+
+        // Split on the text column's data files, so that split sizes and
+        // locations reflect the text we'll actually read
+        List<InputSplit> jobSplits = new LinkedList<InputSplit>();
+        Path textColumn = ColumnarRecordStore.getColumnDir( store,
+                ColumnarRecordStore.TEXT_COLUMN );
+        for( Path part : ColumnarRecordStore.getColumnParts( textColumn, fs ) ) {
+            jobSplits.add( new DirectorySplit(
+                    new Path( part, MapFile.DATA_FILE_NAME ), fs, conf ) );
+        }
+
+        HadoopInterface.logger.log( "Created " + jobSplits.size()
+                + " splits from the text column of " + store.toString() );
+        return jobSplits;
+    }
+
+    @Override
+    public RecordReader<Text, HadoopRecord> createRecordReader(
+            InputSplit inputSplit, TaskAttemptContext context )
+            throws IOException, InterruptedException {
+        return new ColumnarRecordReader();
+    }
+}
@@ -0,0 +1,113 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ProjectingSerializer;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.ColumnReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Reads one MapFile of a ColumnarRecordStore's text column, emitting a
+ * (document hash, HadoopRecord) pair for each document in it. Each record is
+ * assembled from the document's text plus the view columns needed to run the
+ * job's annotation (see ProjectingSerializer#getInputsFor()); every other
+ * column is left unread.
+ *
+ * @author Tyler Young
+ */
+public class ColumnarRecordReader extends RecordReader<Text, HadoopRecord> {
+    @Override
+    public void initialize( InputSplit split, TaskAttemptContext context )
+            throws IOException, InterruptedException {
+        Configuration config = context.getConfiguration();
+        Path dataFile = new Path( split.toString() );
+        Path textPart = dataFile.getParent();
+        Path store = textPart.getParent().getParent();
+        FileSystem fs = textPart.getFileSystem( config );
+
+        AnnotationMode mode =
+                AnnotationMode.fromString( config.get( "annotationMode" ) );
+        ProjectingSerializer projection = ProjectingSerializer.forAnnotation( mode );
+        columns = new ColumnReader( store,
+                new ArrayList<String>( projection.getWantedViews() ), fs, config );
+        HadoopInterface.logger.log( "Reading " + textPart.toString()
+                + " with view columns " + columns.getViews().toString() );
+
+        text = new MapFile.Reader( fs, textPart.toString(), config );
+        textLength = fs.getFileStatus( dataFile ).getLen();
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        if( !text.next( key, textValue ) ) {
+            return false;
+        }
+
+        try {
+            currentRecord = new HadoopRecord( columns.assemble( key, textValue ) );
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error assembling record "
+                    + key.toString() + " from columns: " + e.getMessage() );
+        }
+        currentKey = new Text( currentRecord.getIdentifier() );
+        ++numRead;
+        return true;
+    }
+
+    @Override
+    public Text getCurrentKey() throws IOException, InterruptedException {
+        return currentKey;
+    }
+
+    @Override
+    public HadoopRecord getCurrentValue() throws IOException, InterruptedException {
+        return currentRecord;
+    }
+
+    /**
+     * MapFile.Reader doesn't expose its position, so we estimate progress
+     * from the number of documents read so far and a rough guess at the size
+     * of a text entry.
+     */
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        return textLength > 0 ? Math.min( 1.0f, numRead / (float)Math.max(
+                1, textLength / AVERAGE_TEXT_BYTES ) ) : 0.0f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( text != null ) {
+            text.close();
+        }
+        if( columns != null ) {
+            columns.close();
+        }
+    }
+
+    // A rough guess, used only for progress reporting
+    private static final long AVERAGE_TEXT_BYTES = 4096;
+
+    private MapFile.Reader text;
+    private ColumnReader columns;
+    private long textLength;
+    private long numRead = 0;
+    private final DocumentHashKey key = new DocumentHashKey();
+    private final BytesWritable textValue = new BytesWritable();
+    private Text currentKey;
+    private HadoopRecord currentRecord;
+}
@@ -3,20 +3,36 @@ package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input;
 import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.thrift.TException;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * This class transforms a DirectorySplit into a (Text key, HadoopRecord value)
  * pair (where HadoopRecord is of our own type, denoting a single document in the
  * corpus together with all its annotations).
  *
+ * If the "shuffleReferences" configuration option is set, the value is only a
+ * reference to the document's serialized record (its hash, location and size),
+ * and the record itself is never read here; the reducer reads it instead.
+ *
+ * If the split is a container file (as written by RecordOutputFormat when
+ * packing records), we instead emit one (key, value) pair for every document
+ * packed in the container. These are always full records, since we have to
+ * read them to get at the next one anyway.
+ *
  * @author Tyler Young
  */
 public class CuratorRecordReader extends RecordReader {
@@ -26,10 +42,22 @@ public class CuratorRecordReader extends RecordReader {
         HadoopInterface.logger.log( "Initializing record reader" );
         config = context.getConfiguration();
 
-        String docHash =
-                FileSystemHandler.stripExtension( split.toString() );
-
-        nextKey = new Text( docHash );
+        if( split.toString().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+            Path containerLoc = new Path( split.toString() );
+            FileSystem fs = containerLoc.getFileSystem( config );
+            container = new SequenceFile.Reader( fs, containerLoc, config );
+            containerLength = fs.getFileStatus( containerLoc ).getLen();
+            serializer = new HadoopSerializationHandler();
+            containerKey = new Text();
+            containerValue = new BytesWritable();
+        }
+        else {
+            docLocation = new Path( split.toString() );
+            docSize = split.getLength();
+            nextKey = new Text(
+                    FileSystemHandler.getFileNameWithoutExtension( docLocation ) );
+            shuffleReferences = config.getBoolean( "shuffleReferences", false );
+        }
         progress = 0.0f;
     }
 
@@ -45,26 +73,69 @@ public class CuratorRecordReader extends RecordReader {
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
         HadoopInterface.logger.log( "Checking next KV in RecordReader" );
+        if( container != null ) {
+            return nextFromContainer();
+        }
+
         if( progress < 0.9 ) {
+            if( shuffleReferences ) {
+                // Don't read the record at all; the reducer will read it
+                // directly from HDFS when it's needed.
+                nextRecord = HadoopRecord.reference( nextKey.toString(),
+                                                     docLocation, docSize );
+                return true;
+            }
+
             // Read the next key, value pair from the input split
             // Effectively, construct the Record that we will pass out as a value
-            nextRecord = new HadoopRecord( nextKey.toString(),
-                                     FileSystem.get( config ),
-                                     config );
+            nextRecord = new HadoopRecord( nextKey.toString(), docLocation,
+                                           docLocation.getFileSystem( config ) );
             return true;
         }
         return false;
     }
 
+    /**
+     * Unpacks the next document from the container file
+     * @return TRUE if there was another document in the container
+     */
+    private boolean nextFromContainer() throws IOException {
+        if( !container.next( containerKey, containerValue ) ) {
+            progress = 1.0f;
+            return false;
+        }
+
+        byte[] serialized = Arrays.copyOf( containerValue.getBytes(),
+                                           containerValue.getLength() );
+        try {
+            nextRecord = new HadoopRecord(
+                    serializer.deserializeFromBytes( serialized ) );
+        } catch ( TException e ) {
+            throw new IOException( "Thrift error unpacking record "
+                    + containerKey.toString() + " from container: "
+                    + e.getMessage() );
+        }
+        nextKey = new Text( containerKey );
+        if( containerLength > 0 ) {
+            progress = Math.min( 1.0f,
+                    container.getPosition() / (float)containerLength );
+        }
+        return true;
+    }
+
     @Override
     public Object getCurrentKey() throws IOException, InterruptedException {
-        progress += 0.5f;
+        if( container == null ) {
+            progress += 0.5f;
+        }
         return nextKey;
     }
 
     @Override
     public Object getCurrentValue() throws IOException, InterruptedException {
-        progress += 0.5f;
+        if( container == null ) {
+            progress += 0.5f;
+        }
         return nextRecord;
     }
 
@@ -75,8 +146,11 @@ public class CuratorRecordReader extends RecordReader {
 
     @Override
     public void close() throws IOException {
-        // No files to close (Record should close its stuff as soon as
-        // it's constructed)
+        // Record should close its stuff as soon as it's constructed, so only
+        // containers have anything to close.
+        if( container != null ) {
+            container.close();
+        }
     }
 
     //  The hash identifying the document for which this object generates records
@@ -84,4 +158,16 @@ public class CuratorRecordReader extends RecordReader {
     Configuration config;
     HadoopRecord nextRecord;
     float progress;
+
+    // Only used when reading a single document
+    Path docLocation;
+    long docSize;
+    boolean shuffleReferences;
+
+    // Only used when reading from a container of packed records
+    SequenceFile.Reader container;
+    long containerLength;
+    Text containerKey;
+    BytesWritable containerValue;
+    HadoopSerializationHandler serializer;
 }
@@ -3,15 +3,26 @@ package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input;
 import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ShardedLayout;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.*;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This defines an input type for a Map operation. It splits an input by
@@ -30,40 +41,258 @@ import java.util.List;
  */
 public class DirectoryInputFormat extends InputFormat< Text, HadoopRecord> {
 
+    /**
+     * Creates one split per document in the input directory. The directory is
+     * listed in bulk (a single NameNode call per directory returns every
+     * file's status, size included), and the block locations, which Hadoop
+     * 1.x can only give us one file at a time, are then looked up by a pool
+     * of threads (see the "splitThreads" configuration option). Each split
+     * keeps its size and hosts, so nothing more is asked of the NameNode once
+     * the splits exist.
+     *
+     * Files whose names begin with "_" or "." (e.g., the "_SUCCESS" marker
+     * left by a previous job) are not documents, and are skipped.
+     *
+     * If the input directory uses the sharded layout (see ShardedLayout), the
+     * shard directories are listed level by level on the same pool, and the
+     * documents in each of the innermost shards are found along with those
+     * at the root.
+     *
+     * If the job is resuming an interrupted run (see the
+     * "completedDocumentsFile" configuration option), documents which
+     * already have their output are left out.
+     */
     @Override
     public List<InputSplit> getSplits(JobContext context)
                 throws IOException, InterruptedException {
 
         HadoopInterface.logger.logStatus( "Getting splits." );
-        LinkedList<InputSplit> jobSplits = new LinkedList<InputSplit>();
 
         // Get location of the input document directory from job context
         Configuration conf = context.getConfiguration();
         FileSystem fs = FileSystem.get(conf);
-        FileSystemHandler fsHandler = new FileSystemHandler(fs);
 
         HadoopInterface.logger.log("Input dir is " + conf.get("inputDirectory"));
 
         Path inputDir = new Path( conf.get( "inputDirectory" ) );
-        List<Path> filesInInputDir =
-                fsHandler.getFilesOnlyInDirectory( inputDir );
+        int numThreads = Math.max( 1, conf.getInt( "splitThreads",
+                                                   DEFAULT_SPLIT_THREADS ) );
+        List<Path> dirs = new ArrayList<Path>();
+        dirs.add( inputDir );
 
-        HadoopInterface.logger.log( "Found " + filesInInputDir.size()
-                + " documents in the input directory. "
-                + ( filesInInputDir.size() > 4 ? " One of these is named: "
-                + filesInInputDir.get(3).toString() : "" ) );
+        ExecutorService pool = Executors.newFixedThreadPool( numThreads );
+        try {
+            if( ShardedLayout.isSharded( inputDir, fs ) ) {
+                List<Path> shards = dirs;
+                for( int level = 0; level < ShardedLayout.NUM_LEVELS; level++ ) {
+                    shards = listShards( shards, fs, pool );
+                }
+                HadoopInterface.logger.log( "Input is sharded; found "
+                        + shards.size() + " shard directories." );
+                dirs.addAll( shards );
+            }
 
+            List<FileStatus> docs = listDocuments( dirs, fs, pool );
+            String completedLoc = conf.get( "completedDocumentsFile" );
+            if( completedLoc != null ) {
+                int numListed = docs.size();
+                docs = removeCompleted( docs, readCompleted(
+                        new Path( completedLoc ), fs ) );
+                HadoopInterface.logger.log( "Skipping "
+                        + ( numListed - docs.size() ) + " documents which "
+                        + "were completed by an earlier run." );
+            }
+            HadoopInterface.logger.log( "Found " + docs.size()
+                    + " documents in the input directory. "
+                    + ( docs.size() > 4 ? " One of these is named: "
+                    + docs.get(3).getPath().toString() : "" ) );
 
-        // For each document directory in the directory . . .
-        for( Path filePath : filesInInputDir ) {
-            // Add a directory split for this document directory
-            jobSplits.add( new DirectorySplit( filePath, fs, conf ) );
+            List<InputSplit> jobSplits = createSplits( docs, fs, pool );
+            HadoopInterface.logger.log( "Finished creating splits." );
+            return jobSplits;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the documents in each of the directories, one directory per task
+     * @param dirs The directories to list
+     * @param fs The file system against which to resolve the paths
+     * @param pool The threads on which to do the listing
+     * @return The status of every document in the directories, in the order
+     *         of the directories
+     */
+    static List<FileStatus> listDocuments( List<Path> dirs, final FileSystem fs,
+                                           ExecutorService pool )
+            throws IOException, InterruptedException {
+        List<Future<List<FileStatus>>> listings =
+                new ArrayList<Future<List<FileStatus>>>();
+        for( final Path dir : dirs ) {
+            listings.add( pool.submit( new Callable<List<FileStatus>>() {
+                public List<FileStatus> call() throws IOException {
+                    List<FileStatus> docs = new ArrayList<FileStatus>();
+                    FileStatus[] statuses = fs.listStatus( dir );
+                    if( statuses == null ) {
+                        return docs; // the directory doesn't exist
+                    }
+                    for( FileStatus status : statuses ) {
+                        if( !status.isDir() && !isHidden( status.getPath() ) ) {
+                            docs.add( status );
+                        }
+                    }
+                    return docs;
+                }
+            } ) );
         }
-        HadoopInterface.logger.log( "Finished creating splits." );
 
+        List<FileStatus> allDocs = new ArrayList<FileStatus>();
+        for( Future<List<FileStatus>> listing : listings ) {
+            allDocs.addAll( getResult( listing ) );
+        }
+        return allDocs;
+    }
+
+    /**
+     * Lists the shard directories within each of the directories, one
+     * directory per task
+     * @param dirs The directories to list
+     * @param fs The file system against which to resolve the paths
+     * @param pool The threads on which to do the listing
+     * @return The shard directories found (see ShardedLayout#isShardName())
+     */
+    static List<Path> listShards( List<Path> dirs, final FileSystem fs,
+                                  ExecutorService pool )
+            throws IOException, InterruptedException {
+        List<Future<List<Path>>> listings = new ArrayList<Future<List<Path>>>();
+        for( final Path dir : dirs ) {
+            listings.add( pool.submit( new Callable<List<Path>>() {
+                public List<Path> call() throws IOException {
+                    List<Path> shards = new ArrayList<Path>();
+                    FileStatus[] statuses = fs.listStatus( dir );
+                    if( statuses == null ) {
+                        return shards;
+                    }
+                    for( FileStatus status : statuses ) {
+                        if( status.isDir() && ShardedLayout.isShardName(
+                                status.getPath().getName() ) ) {
+                            shards.add( status.getPath() );
+                        }
+                    }
+                    return shards;
+                }
+            } ) );
+        }
+
+        List<Path> allShards = new ArrayList<Path>();
+        for( Future<List<Path>> listing : listings ) {
+            allShards.addAll( getResult( listing ) );
+        }
+        return allShards;
+    }
+
+    /**
+     * Creates a split for each document, looking up block locations in
+     * batches on the pool's threads
+     * @param docs The status of each document
+     * @param fs The file system against which to resolve the paths
+     * @param pool The threads on which to look up the block locations
+     * @return One split per document, in the same order as the documents
+     */
+    static List<InputSplit> createSplits( final List<FileStatus> docs,
+                                          final FileSystem fs,
+                                          ExecutorService pool )
+            throws IOException, InterruptedException {
+        List<Future<List<InputSplit>>> batches =
+                new ArrayList<Future<List<InputSplit>>>();
+        for( int start = 0; start < docs.size(); start += SPLIT_BATCH_SIZE ) {
+            final List<FileStatus> batch = docs.subList(
+                    start, Math.min( docs.size(), start + SPLIT_BATCH_SIZE ) );
+            batches.add( pool.submit( new Callable<List<InputSplit>>() {
+                public List<InputSplit> call() throws IOException {
+                    List<InputSplit> splits = new ArrayList<InputSplit>();
+                    for( FileStatus doc : batch ) {
+                        splits.add( new DirectorySplit( doc, fs ) );
+                    }
+                    return splits;
+                }
+            } ) );
+        }
+
+        List<InputSplit> jobSplits = new ArrayList<InputSplit>( docs.size() );
+        for( Future<List<InputSplit>> batch : batches ) {
+            jobSplits.addAll( getResult( batch ) );
+        }
         return jobSplits;
     }
 
+    /**
+     * @param completedLoc The file listing the hashes of the completed
+     *                     documents, one per line
+     * @param fs The file system against which to resolve the path
+     * @return The hashes listed in the file
+     */
+    static Set<String> readCompleted( Path completedLoc, FileSystem fs )
+            throws IOException {
+        Set<String> completed = new HashSet<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader( fs.open( completedLoc ), "UTF-8" ) );
+        try {
+            String hash;
+            while( ( hash = reader.readLine() ) != null ) {
+                if( hash.trim().length() > 0 ) {
+                    completed.add( hash.trim() );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return completed;
+    }
+
+    /**
+     * @param docs The status of each document
+     * @param completed The hashes of documents which need no more work
+     * @return The documents whose hashes are not among the completed ones
+     */
+    static List<FileStatus> removeCompleted( List<FileStatus> docs,
+                                             Set<String> completed ) {
+        List<FileStatus> remaining = new ArrayList<FileStatus>( docs.size() );
+        for( FileStatus doc : docs ) {
+            String hash = FileSystemHandler.stripExtension(
+                    doc.getPath().getName() );
+            if( !completed.contains( hash ) ) {
+                remaining.add( doc );
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * @return True if the file is one which Hadoop (by convention) treats as
+     *         hidden: its name begins with "_" or "."
+     */
+    static boolean isHidden( Path file ) {
+        String name = file.getName();
+        return name.startsWith( "_" ) || name.startsWith( "." );
+    }
+
+    /**
+     * Waits for a task's result, passing its IOException along if it threw one
+     */
+    private static <T> T getResult( Future<T> future )
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch ( ExecutionException e ) {
+            if( e.getCause() instanceof IOException ) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException( "Error computing input splits: "
+                    + e.getCause().getMessage() );
+        }
+    }
+
     @Override
     public RecordReader<Text, HadoopRecord>
             createRecordReader( InputSplit inputSplit,
@@ -75,4 +304,7 @@ public class DirectoryInputFormat extends InputFormat< Text, HadoopRecord> {
         return new CuratorRecordReader();
     }
 
+    private static final int DEFAULT_SPLIT_THREADS = 16;
+    // Documents per block location task; enough to make each task worthwhile
+    private static final int SPLIT_BATCH_SIZE = 256;
 }
@@ -1,12 +1,13 @@
 package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input;
 
-import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.InputSplit;
 
 import java.io.DataInput;
@@ -23,6 +24,12 @@ import java.util.Set;
  * the input data, but is just a reference to the data.
  *
  * Represents the data to be processed by an individual Map process.
+ *
+ * Since there is a split for every document, splits are kept small: the
+ * serialized form holds only the document's path, its length, and the hosts
+ * on which its blocks are stored, all of which are looked up once, when the
+ * split is created. (Tasks get their configuration and file system from the
+ * task context, not from the split.)
  * @author Tyler Young
  */
 public class DirectorySplit extends InputSplit implements Writable {
@@ -30,34 +37,57 @@ public class DirectorySplit extends InputSplit implements Writable {
     }
 
     /**
-     * Constructs a DirectorySplit object
+     * Constructs a DirectorySplit object, looking up the document's length and
+     * block locations
      * @param serializedRecInHDFS The location (in HDFS) of the
      *            document's serialized record, complete with all annotations.
      *
      *            This file should be in the job directory, and it should be named
      *            < record hash/ID >.txt.
      * @param fs The filesystem associated with this job
+     * @param config The job's configuration (unused; the split no longer
+     *               carries it)
      */
-    public  DirectorySplit( Path serializedRecInHDFS, FileSystem fs,
-                            Configuration config )
+    public DirectorySplit( Path serializedRecInHDFS, FileSystem fs,
+                           Configuration config )
             throws IOException {
-        this.config = config;
+        this( fs.getFileStatus( serializedRecInHDFS ), fs );
+    }
+
+    /**
+     * Constructs a DirectorySplit object from a file's status (as returned by
+     * a directory listing), which saves asking the NameNode for it again
+     * @param status The status of the document's serialized record
+     * @param fs The filesystem associated with this job
+     */
+    public DirectorySplit( FileStatus status, FileSystem fs )
+            throws IOException {
+        this( status.getPath(), status.getLen(), getHosts( status, fs ) );
+    }
+
+    /**
+     * Constructs a DirectorySplit object from information already known
+     * @param serializedRecInHDFS The location of the document's serialized
+     *                            record
+     * @param length The size of the serialized record, in bytes
+     * @param hosts The nodes on which the record's blocks are stored
+     */
+    public DirectorySplit( Path serializedRecInHDFS, long length,
+                           String[] hosts ) {
         this.inputPath = serializedRecInHDFS;
-        this.fs = fs;
-        hash = FileSystemHandler.getFileNameWithoutExtension( inputPath );
+        this.length = length;
+        this.hosts = hosts;
     }
 
     /**
      * Get the size of this split so that the input splits can be sorted by
-     * size. Here, we calculate the size to be the number of bytes in the
-     * original document (i.e., ignoring all annotations).
+     * size. Here, the size is that of the document's serialized record.
      *
-     * @return The number of characters in the original document
+     * @return The number of bytes in the serialized record
      */
     @Override
     public long getLength() throws IOException, InterruptedException {
-        FileSystemHandler fsHandler = new FileSystemHandler(fs);
-        return fsHandler.getFileSizeInBytes( inputPath );
+        return length;
     }
 
     /**
@@ -66,42 +96,30 @@ public class DirectorySplit extends InputSplit implements Writable {
      * up to Hadoop to decide which one to use.
      *
      * @return An array of the nodes for whom the split is local
-     * @throws IOException
-     * @throws InterruptedException
      */
     @Override
     public String[] getLocations() throws IOException, InterruptedException {
-        FileStatus status = fs.getFileStatus(inputPath);
-
-        BlockLocation[] blockLocs = fs.getFileBlockLocations( status, 0,
-                                                              status.getLen() );
-
-        Set<String> allBlockHosts = new HashSet<String>();
-        for( BlockLocation blockLoc : blockLocs ) {
-            allBlockHosts.addAll( Arrays.asList( blockLoc.getHosts() ) );
-        }
-
-        // Passing the String array causes toArray() to return an array of the
-        // same type
-        return allBlockHosts.toArray( new String[0] );
+        return hosts;
     }
 
     @Override
-    public void write(DataOutput dataOutput) throws IOException {
-        // Serialize our data
-        String stringRep = toString() + "\n";
-        dataOutput.write(stringRep.getBytes());
-        // Have the configuration serialize its data
-        config.write( dataOutput );
+    public void write( DataOutput dataOutput ) throws IOException {
+        Text.writeString( dataOutput, inputPath.toString() );
+        WritableUtils.writeVLong( dataOutput, length );
+        WritableUtils.writeVInt( dataOutput, hosts.length );
+        for( String host : hosts ) {
+            Text.writeString( dataOutput, host );
+        }
     }
 
     @Override
-    public void readFields(DataInput dataInput) throws IOException {
-        inputPath = new Path( dataInput.readLine() );
-        hash = FileSystemHandler.getFileNameWithoutExtension( inputPath );
-        config = new Configuration();
-        config.readFields( dataInput );
-        fs = FileSystem.get(config);
+    public void readFields( DataInput dataInput ) throws IOException {
+        inputPath = new Path( Text.readString( dataInput ) );
+        length = WritableUtils.readVLong( dataInput );
+        hosts = new String[ WritableUtils.readVInt( dataInput ) ];
+        for( int i = 0; i < hosts.length; i++ ) {
+            hosts[i] = Text.readString( dataInput );
+        }
     }
 
     /**
@@ -116,8 +134,25 @@ public class DirectorySplit extends InputSplit implements Writable {
         return inputPath.toString();
     }
 
+    /**
+     * @return Every host storing any block of the file
+     */
+    private static String[] getHosts( FileStatus status, FileSystem fs )
+            throws IOException {
+        BlockLocation[] blockLocs = fs.getFileBlockLocations( status, 0,
+                                                              status.getLen() );
+
+        Set<String> allBlockHosts = new HashSet<String>();
+        for( BlockLocation blockLoc : blockLocs ) {
+            allBlockHosts.addAll( Arrays.asList( blockLoc.getHosts() ) );
+        }
+
+        // Passing the String array causes toArray() to return an array of the
+        // same type
+        return allBlockHosts.toArray( new String[0] );
+    }
+
     private Path inputPath;
-    private Configuration config;
-    private String hash;
-    private FileSystem fs;
+    private long length;
+    private String[] hosts = new String[0];
 }
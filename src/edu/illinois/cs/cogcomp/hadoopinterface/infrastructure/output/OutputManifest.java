@@ -0,0 +1,348 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A record of every document written by a reduce task, along with what we
+ * knew about it at the time it was written: its size, a checksum of the bytes
+ * we wrote, the number of annotations (views) it contained, the length of its
+ * raw text, its numbers of sentences and tokens, and exactly which
+ * annotations it had.
+ *
+ * Since a job's manifest describes every document in its output, the next
+ * job can be planned from the manifest alone: JobHandler reads it to learn
+ * which annotations the documents already have, and DocumentCostEstimator to
+ * estimate what each document will cost to annotate. Neither has to
+ * deserialize a single record.
+ *
+ * Each reduce task writes its own manifest file, named after the task, into
+ * the "_manifest" subdirectory of the job's output directory. Because that is
+ * a directory, it is ignored by everything that treats the output directory
+ * as a collection of serialized records.
+ *
+ * Manifest files are plain text, one document per line, with tab-separated
+ * fields (in this order): document hash, size in bytes, CRC-32 checksum,
+ * number of annotations, raw text length, number of sentences, number of
+ * tokens (-1 if untokenized), and the bitmask of annotations present (in
+ * hex; see AnnotationMode#toBitmask()). Manifests written before the last
+ * four fields existed are still readable; their entries simply lack document
+ * stats (see Entry#hasDocumentStats()).
+ *
+ * @author Tyler Young
+ */
+public class OutputManifest {
+    public static final String MANIFEST_DIR_NAME = "_manifest";
+
+    /**
+     * What we know about a single document that was written
+     */
+    public static class Entry {
+        /**
+         * Constructs a manifest entry
+         * @param hash The document's identifier
+         * @param numBytes The size of the serialized record, in bytes
+         * @param checksum The CRC-32 checksum of the serialized record
+         * @param numAnnotations The number of views in the record
+         */
+        public Entry( String hash, long numBytes, long checksum,
+                      int numAnnotations ) {
+            this( hash, numBytes, checksum, numAnnotations, -1, -1, -1, 0 );
+        }
+
+        /**
+         * Constructs a manifest entry, including the document stats
+         * @param hash The document's identifier
+         * @param numBytes The size of the serialized record, in bytes
+         * @param checksum The CRC-32 checksum of the serialized record
+         * @param numAnnotations The number of views in the record
+         * @param rawTextLength The length of the document's raw text
+         * @param numSentences The number of sentences in the document
+         * @param numTokens The number of tokens in the document, or -1 if it
+         *                  has not been tokenized
+         * @param annotationMask The annotations the document has (see
+         *                       AnnotationMode#toBitmask())
+         */
+        public Entry( String hash, long numBytes, long checksum,
+                      int numAnnotations, int rawTextLength, int numSentences,
+                      int numTokens, long annotationMask ) {
+            this.hash = hash;
+            this.numBytes = numBytes;
+            this.checksum = checksum;
+            this.numAnnotations = numAnnotations;
+            this.rawTextLength = rawTextLength;
+            this.numSentences = numSentences;
+            this.numTokens = numTokens;
+            this.annotationMask = annotationMask;
+        }
+
+        /**
+         * Constructs the manifest entry for a record that was just written
+         * @param written The record, carrying its document stats (see
+         *                SerializedRecord#setDocumentStats())
+         * @param checksum The CRC-32 checksum of the bytes written
+         */
+        public Entry( SerializedRecord written, long checksum ) {
+            this( written.getIdentifier(), written.getData().length, checksum,
+                  written.getNumAnnotations(), written.getRawTextLength(),
+                  written.getNumSentences(), written.getNumTokens(),
+                  written.getAnnotationMask() );
+        }
+
+        /**
+         * Parses a line written by #toString()
+         * @param line A single line from a manifest file
+         * @return The entry the line describes
+         * @throws IllegalArgumentException If the line is not a valid
+         *                                  manifest entry
+         */
+        public static Entry fromString( String line ) {
+            String[] fields = line.split( "\t" );
+            if( fields.length < 4 ) {
+                throw new IllegalArgumentException( "Malformed manifest entry: "
+                                                    + line );
+            }
+            if( fields.length < 8 ) {
+                return new Entry( fields[0], Long.parseLong( fields[1] ),
+                                  Long.parseLong( fields[2] ),
+                                  Integer.parseInt( fields[3] ) );
+            }
+            return new Entry( fields[0], Long.parseLong( fields[1] ),
+                              Long.parseLong( fields[2] ),
+                              Integer.parseInt( fields[3] ),
+                              Integer.parseInt( fields[4] ),
+                              Integer.parseInt( fields[5] ),
+                              Integer.parseInt( fields[6] ),
+                              Long.parseLong( fields[7], 16 ) );
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getNumBytes() {
+            return numBytes;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public int getNumAnnotations() {
+            return numAnnotations;
+        }
+
+        /**
+         * @return True if this entry describes the document itself (its text
+         *         length, sentences, tokens and annotations), and not just
+         *         the bytes written. Entries from older manifests don't.
+         */
+        public boolean hasDocumentStats() {
+            return rawTextLength >= 0;
+        }
+
+        public int getRawTextLength() {
+            return rawTextLength;
+        }
+
+        public int getNumSentences() {
+            return numSentences;
+        }
+
+        public int getNumTokens() {
+            return numTokens;
+        }
+
+        public long getAnnotationMask() {
+            return annotationMask;
+        }
+
+        /**
+         * @return The annotations the document has (empty if this entry has
+         *         no document stats)
+         */
+        public Set<AnnotationMode> getAnnotations() {
+            return AnnotationMode.fromBitmask( annotationMask );
+        }
+
+        @Override
+        public String toString() {
+            return hash + "\t" + numBytes + "\t" + checksum + "\t"
+                   + numAnnotations + "\t" + rawTextLength + "\t"
+                   + numSentences + "\t" + numTokens + "\t"
+                   + Long.toHexString( annotationMask );
+        }
+
+        private final String hash;
+        private final long numBytes;
+        private final long checksum;
+        private final int numAnnotations;
+        private final int rawTextLength;
+        private final int numSentences;
+        private final int numTokens;
+        private final long annotationMask;
+    }
+
+    /**
+     * Constructs an empty manifest
+     */
+    public OutputManifest() {
+        entries = Collections.synchronizedList( new ArrayList<Entry>() );
+    }
+
+    /**
+     * Adds a document to the manifest. Safe to call from multiple threads.
+     * @param e The entry for the document
+     */
+    public void add( Entry e ) {
+        entries.add( e );
+    }
+
+    /**
+     * @return All entries in this manifest, in the order they were added
+     */
+    public List<Entry> getEntries() {
+        synchronized( entries ) {
+            return new ArrayList<Entry>( entries );
+        }
+    }
+
+    /**
+     * @return The number of documents in the manifest
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes this manifest to a single file in HDFS
+     * @param destination The file to write to (will be overwritten)
+     * @param fs The file system against which to resolve the path
+     */
+    public void write( Path destination, FileSystem fs ) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for( Entry e : getEntries() ) {
+            contents.append( e.toString() );
+            contents.append( '\n' );
+        }
+
+        FSDataOutputStream out = fs.create( destination, true );
+        try {
+            out.write( contents.toString().getBytes( "UTF-8" ) );
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return True if the manifest has at least one entry, and every entry
+     *         has document stats; i.e., if a job can be planned from this
+     *         manifest alone
+     */
+    public boolean hasDocumentStats() {
+        synchronized( entries ) {
+            if( entries.isEmpty() ) {
+                return false;
+            }
+            for( Entry e : entries ) {
+                if( !e.hasDocumentStats() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return The annotations which every document in the manifest has. A
+     *         document listed more than once (e.g., by successive jobs
+     *         writing deltas to the same directory) has every annotation any
+     *         of its entries lists.
+     */
+    public Set<AnnotationMode> getCommonAnnotations() {
+        Map<String, Long> byDocument = new HashMap<String, Long>();
+        for( Entry e : getEntries() ) {
+            Long previous = byDocument.get( e.getHash() );
+            byDocument.put( e.getHash(), e.getAnnotationMask()
+                    | ( previous == null ? 0 : previous ) );
+        }
+
+        long common = byDocument.isEmpty() ? 0 : -1L;
+        for( long mask : byDocument.values() ) {
+            common &= mask;
+        }
+        return AnnotationMode.fromBitmask( common );
+    }
+
+    /**
+     * @param outputDir A job's output directory
+     * @return The directory in which that job's manifest files are stored
+     */
+    public static Path getManifestDir( Path outputDir ) {
+        return new Path( outputDir, MANIFEST_DIR_NAME );
+    }
+
+    /**
+     * Reads a single manifest file
+     * @param manifestFile The file to read
+     * @param fs The file system against which to resolve the path
+     * @return The manifest described by the file
+     */
+    public static OutputManifest read( Path manifestFile, FileSystem fs )
+            throws IOException {
+        OutputManifest manifest = new OutputManifest();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader( fs.open( manifestFile ), "UTF-8" ) );
+        try {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                if( line.length() > 0 ) {
+                    manifest.add( Entry.fromString( line ) );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads and combines every manifest file written by a job
+     * @param outputDir The job's output directory (<em>not</em> the manifest
+     *                  directory itself)
+     * @param fs The file system against which to resolve the path
+     * @return A single manifest containing every document the job wrote. This
+     *         will be empty if the job wrote no manifests.
+     */
+    public static OutputManifest readAll( Path outputDir, FileSystem fs )
+            throws IOException {
+        OutputManifest all = new OutputManifest();
+        Path manifestDir = getManifestDir( outputDir );
+        if( !fs.exists( manifestDir ) ) {
+            return all;
+        }
+
+        FileSystemHandler fsHandler = new FileSystemHandler( fs );
+        for( Path manifestFile : fsHandler.getFilesOnlyInDirectory( manifestDir ) ) {
+            for( Entry e : read( manifestFile, fs ).getEntries() ) {
+                all.add( e );
+            }
+        }
+        return all;
+    }
+
+    private final List<Entry> entries;
+}
@@ -0,0 +1,286 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ShardedLayout;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.ColumnarRecordStore;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.DeltaOverlay;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * The output format for annotated document records. The reducer emits
+ * (document hash, serialized record) pairs, and this class writes them to the
+ * job's output directory in one of two layouts:
+ *
+ * <ul>
+ *     <li>One file per document, named [document hash].txt (the default, and
+ *         the layout that the rest of the Curator-Hadoop interface expects
+ *         as input). If the "shardedLayout" configuration option is set, each
+ *         file goes in its shard directory (see ShardedLayout) rather than at
+ *         the root of the output directory.</li>
+ *     <li>"Container" files, which pack all of a reduce task's documents into
+ *         a single Hadoop SequenceFile of (hash, serialized record) pairs named
+ *         part-r-[task number].records. This is far kinder to the NameNode
+ *         when there are millions of small documents, and is enabled by the
+ *         "packRecords" configuration option. Containers may be block
+ *         compressed using the standard FileOutputFormat compression
+ *         settings.</li>
+ *     <li>A view column of a ColumnarRecordStore, enabled by the
+ *         "columnarStore" configuration option. In this case the job's output
+ *         directory is the store itself, the reducer sends only the one view
+ *         it produced, and each reduce task writes a MapFile of (document key,
+ *         view) pairs to [view name]/part-r-[task number]. Nothing else in
+ *         the store is rewritten.</li>
+ *     <li>Deltas, enabled by the "deltaOutput" configuration option. This is
+ *         the same as writing a view column, except that the column goes in
+ *         the "_delta" directory of a directory of ordinary records (see
+ *         DeltaOverlay).</li>
+ * </ul>
+ *
+ * Everything a task writes (including its manifest) goes to a task-attempt
+ * specific temporary directory, and is promoted to the output directory by
+ * the FileOutputCommitter only if the attempt succeeds. This means that failed
+ * or speculative attempts never leave partial output behind.
+ *
+ * @author Tyler Young
+ */
+public class RecordOutputFormat extends FileOutputFormat<Text, SerializedRecord> {
+    public static final String CONTAINER_EXTENSION = ".records";
+
+    @Override
+    public RecordWriter<Text, SerializedRecord> getRecordWriter(
+            TaskAttemptContext context ) throws IOException, InterruptedException {
+        Configuration conf = context.getConfiguration();
+        Path workDir = ( (FileOutputCommitter)getOutputCommitter( context ) )
+                .getWorkPath();
+        FileSystem fs = workDir.getFileSystem( conf );
+        Path manifestLoc = new Path( OutputManifest.getManifestDir( workDir ),
+                context.getTaskAttemptID().toString() + ".txt" );
+
+        boolean deltaOutput = conf.getBoolean( "deltaOutput", false );
+        if( conf.getBoolean( "columnarStore", false ) || deltaOutput ) {
+            String viewName = AnnotationMode.fromString(
+                    conf.get( "annotationMode" ) ).toCuratorString();
+            Path columnRoot = deltaOutput ? DeltaOverlay.getDeltaDir( workDir )
+                                          : workDir;
+            Path columnPart = new Path(
+                    ColumnarRecordStore.getColumnDir( columnRoot, viewName ),
+                    getUniqueFile( context, "part", "" ) );
+            HadoopInterface.logger.log( "Writing the " + viewName
+                    + " column to " + columnPart.toString() );
+
+            MapFile.Writer column = new MapFile.Writer( conf, fs,
+                    columnPart.toString(), DocumentHashKey.class,
+                    BytesWritable.class );
+            return new ColumnWriter( column, fs, manifestLoc );
+        }
+
+        if( conf.getBoolean( "packRecords", false ) ) {
+            Path containerLoc = getDefaultWorkFile( context, CONTAINER_EXTENSION );
+            HadoopInterface.logger.log( "Packing output records into container "
+                                        + containerLoc.toString() );
+
+            SequenceFile.CompressionType compressionType =
+                    SequenceFile.CompressionType.NONE;
+            CompressionCodec codec = null;
+            if( getCompressOutput( context ) ) {
+                compressionType = SequenceFile.CompressionType.BLOCK;
+                codec = ReflectionUtils.newInstance(
+                        getOutputCompressorClass( context, DefaultCodec.class ),
+                        conf );
+            }
+
+            SequenceFile.Writer container = SequenceFile.createWriter(
+                    fs, conf, containerLoc, Text.class, BytesWritable.class,
+                    compressionType, codec, context );
+            return new ContainerWriter( container, fs, manifestLoc );
+        }
+
+        return new PerDocumentWriter( workDir, fs, manifestLoc,
+                                      conf.getFloat( "deepVerifyRate", 0 ),
+                                      conf.getBoolean( "shardedLayout", false ) );
+    }
+
+    /**
+     * Unlike the standard FileOutputFormat, we allow the output directory to
+     * already exist. Job output is promoted into it file-by-file by the
+     * committer, so existing contents are only overwritten for documents
+     * which were processed again.
+     * @param context The job context
+     * @throws IOException If no output directory was set
+     */
+    @Override
+    public void checkOutputSpecs( JobContext context ) throws IOException {
+        if( getOutputPath( context ) == null ) {
+            throw new IOException( "Output directory not set." );
+        }
+    }
+
+    /**
+     * Functionality shared by all our record writers: keeping the manifest of
+     * what was written, and writing that manifest when the task finishes.
+     */
+    private static abstract class ManifestingWriter
+            extends RecordWriter<Text, SerializedRecord> {
+        protected ManifestingWriter( FileSystem fs, Path manifestLoc ) {
+            this.fs = fs;
+            this.manifestLoc = manifestLoc;
+            this.manifest = new OutputManifest();
+        }
+
+        @Override
+        public void write( Text key, SerializedRecord value ) throws IOException {
+            if( value.getNumAnnotations() == 0 ) {
+                throw new IOException( "Refusing to write record "
+                        + value.getIdentifier() + ", which has no annotations." );
+            }
+            manifest.add( writeRecord( value ) );
+        }
+
+        /**
+         * Writes a single record to wherever it belongs.
+         * @param value The record to write
+         * @return The manifest entry describing what was written
+         */
+        protected abstract OutputManifest.Entry writeRecord( SerializedRecord value )
+                throws IOException;
+
+        @Override
+        public void close( TaskAttemptContext context ) throws IOException {
+            manifest.write( manifestLoc, fs );
+        }
+
+        protected final FileSystem fs;
+        private final Path manifestLoc;
+        private final OutputManifest manifest;
+    }
+
+    /**
+     * Writes each document to its own file, [document hash].txt, either at the
+     * root of the output directory or in its shard directory
+     */
+    private static class PerDocumentWriter extends ManifestingWriter {
+        public PerDocumentWriter( Path workDir, FileSystem fs, Path manifestLoc,
+                                  double deepVerifyRate, boolean sharded ) {
+            super( fs, manifestLoc );
+            this.workDir = workDir;
+            this.deepVerifyRate = deepVerifyRate;
+            this.sharded = sharded;
+            this.serializer = new HadoopSerializationHandler();
+        }
+
+        @Override
+        protected OutputManifest.Entry writeRecord( SerializedRecord value )
+                throws IOException {
+            Path fileLoc = ShardedLayout.getRecordLoc(
+                    workDir, value.getIdentifier(), sharded );
+            long checksum = serializer.writeSerialized( value.getData(),
+                                                        fileLoc, fs );
+            OutputManifest.Entry entry = new OutputManifest.Entry( value, checksum );
+
+            if( deepVerifyRate > 0 && rng.nextDouble() < deepVerifyRate ) {
+                try {
+                    serializer.verifyWritten( fileLoc, fs, entry );
+                } catch ( TException e ) {
+                    throw new IOException( "Record written to " + fileLoc
+                            + " could not be deserialized: " + e.getMessage() );
+                }
+            }
+            return entry;
+        }
+
+        private final Path workDir;
+        private final double deepVerifyRate;
+        private final boolean sharded;
+        private final HadoopSerializationHandler serializer;
+        private final Random rng = new Random();
+    }
+
+    /**
+     * Packs every document into a single SequenceFile container. SequenceFiles
+     * carry their own sync markers (and HDFS its own block checksums), so we
+     * don't offer deep verification here; the manifest checksum is computed
+     * from the in-memory bytes.
+     */
+    private static class ContainerWriter extends ManifestingWriter {
+        public ContainerWriter( SequenceFile.Writer container, FileSystem fs,
+                                Path manifestLoc ) {
+            super( fs, manifestLoc );
+            this.container = container;
+        }
+
+        @Override
+        protected OutputManifest.Entry writeRecord( SerializedRecord value )
+                throws IOException {
+            CRC32 checksum = new CRC32();
+            checksum.update( value.getData() );
+
+            container.append( new Text( value.getIdentifier() ),
+                              new BytesWritable( value.getData() ) );
+            return new OutputManifest.Entry( value, checksum.getValue() );
+        }
+
+        @Override
+        public void close( TaskAttemptContext context ) throws IOException {
+            container.close();
+            super.close( context );
+        }
+
+        private final SequenceFile.Writer container;
+    }
+
+    /**
+     * Appends each document's new view to this task's MapFile in the view's
+     * column. MapFiles require keys in sorted order; the reducer receives
+     * documents sorted by DocumentHashKey, and its pipeline preserves that
+     * order, so this holds as long as we key the column the same way.
+     */
+    private static class ColumnWriter extends ManifestingWriter {
+        public ColumnWriter( MapFile.Writer column, FileSystem fs,
+                             Path manifestLoc ) {
+            super( fs, manifestLoc );
+            this.column = column;
+        }
+
+        @Override
+        protected OutputManifest.Entry writeRecord( SerializedRecord value )
+                throws IOException {
+            CRC32 checksum = new CRC32();
+            checksum.update( value.getData() );
+
+            key.set( value.getIdentifier() );
+            column.append( key, new BytesWritable( value.getData() ) );
+            return new OutputManifest.Entry( value, checksum.getValue() );
+        }
+
+        @Override
+        public void close( TaskAttemptContext context ) throws IOException {
+            column.close();
+            super.close( context );
+        }
+
+        private final MapFile.Writer column;
+        private final DocumentHashKey key = new DocumentHashKey();
+    }
+}
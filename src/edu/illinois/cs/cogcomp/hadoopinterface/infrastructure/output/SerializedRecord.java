@@ -0,0 +1,157 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition.DocumentCostEstimator;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * An annotated document record which has already been serialized (e.g., by
+ * SerializationHandler#serializeToBytes()), ready to be written out by a
+ * RecordOutputFormat. Carrying the bytes rather than the Record itself means
+ * the (expensive) encoding can happen before the record reaches the output
+ * format, on a different thread than the one doing the writing.
+ *
+ * Since the output format never sees the Record itself, whoever encodes it
+ * should also describe the document with #setDocumentStats(), so that the
+ * job's manifest (see OutputManifest) can say what each document holds.
+ *
+ * @author Tyler Young
+ */
+public class SerializedRecord implements Writable {
+    /**
+     * Zero-argument constructor for use by the Hadoop backend, which will fill
+     * in the fields through readFields().
+     */
+    public SerializedRecord() {
+        this( "", new byte[0], 0 );
+    }
+
+    /**
+     * Constructs a serialized record
+     * @param identifier The identifier (hash) of the document
+     * @param data The serialized form of the record
+     * @param numAnnotations The number of annotations (views) in the record
+     */
+    public SerializedRecord( String identifier, byte[] data, int numAnnotations ) {
+        this.identifier = identifier;
+        this.data = data;
+        this.numAnnotations = numAnnotations;
+    }
+
+    /**
+     * Records what the job manifest should know about the document: the
+     * length of its text, its numbers of sentences and tokens, and which
+     * annotations it has
+     * @param document The (annotated) document this is the serialized form of
+     * @param annotations Every annotation the document has, including any
+     *                    views that weren't decoded (and so aren't present in
+     *                    the document object)
+     */
+    public void setDocumentStats( Record document,
+                                  Collection<AnnotationMode> annotations ) {
+        rawTextLength = document.getRawText() == null
+                        ? 0 : document.getRawText().length();
+        numSentences = DocumentCostEstimator.countSentences( document );
+        numTokens = RecordTools.getNumLabels( document, AnnotationMode.TOKEN );
+        annotationMask = AnnotationMode.toBitmask( annotations );
+    }
+
+    /**
+     * @return The identifier (hash) of the document
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return The serialized form of the record
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return The number of annotations (views) in the record
+     */
+    public int getNumAnnotations() {
+        return numAnnotations;
+    }
+
+    /**
+     * @return The length of the document's raw text, or -1 if the document
+     *         stats were never set
+     */
+    public int getRawTextLength() {
+        return rawTextLength;
+    }
+
+    /**
+     * @return The number of sentences in the document (see
+     *         DocumentCostEstimator#countSentences()), or -1 if the document
+     *         stats were never set
+     */
+    public int getNumSentences() {
+        return numSentences;
+    }
+
+    /**
+     * @return The number of tokens in the document, or -1 if it has not been
+     *         tokenized (or the document stats were never set)
+     */
+    public int getNumTokens() {
+        return numTokens;
+    }
+
+    /**
+     * @return The annotations the document has, as a bitmask (see
+     *         AnnotationMode#toBitmask())
+     */
+    public long getAnnotationMask() {
+        return annotationMask;
+    }
+
+    @Override
+    public void write( DataOutput out ) throws IOException {
+        Text.writeString( out, identifier );
+        out.writeInt( numAnnotations );
+        out.writeInt( rawTextLength );
+        out.writeInt( numSentences );
+        out.writeInt( numTokens );
+        out.writeLong( annotationMask );
+        out.writeInt( data.length );
+        out.write( data );
+    }
+
+    @Override
+    public void readFields( DataInput in ) throws IOException {
+        identifier = Text.readString( in );
+        numAnnotations = in.readInt();
+        rawTextLength = in.readInt();
+        numSentences = in.readInt();
+        numTokens = in.readInt();
+        annotationMask = in.readLong();
+        data = new byte[ in.readInt() ];
+        in.readFully( data );
+    }
+
+    @Override
+    public String toString() {
+        return identifier;
+    }
+
+    private String identifier;
+    private byte[] data;
+    private int numAnnotations;
+    private int rawTextLength = -1;
+    private int numSentences = -1;
+    private int numTokens = -1;
+    private long annotationMask = 0;
+}
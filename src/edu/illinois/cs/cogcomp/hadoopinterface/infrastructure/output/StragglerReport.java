@@ -0,0 +1,78 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of the documents which took unusually long to annotate (or which
+ * blew through the per-document deadline altogether). Useful for finding the
+ * pathological documents that hold up a whole job.
+ *
+ * Each reduce task writes its own report into the "_stragglers" subdirectory
+ * of the job's output directory. Reports are plain text, one document per
+ * line, with tab-separated fields (in this order): document hash, raw text
+ * length in characters, time spent annotating in milliseconds, and either
+ * SLOW (annotated, but slowly) or DEFERRED (abandoned at the deadline and set
+ * aside in the "_deferred" directory for a later job).
+ *
+ * @author Tyler Young
+ */
+public class StragglerReport {
+    public static final String STRAGGLER_DIR_NAME = "_stragglers";
+    public static final String DEFERRED_DIR_NAME = "_deferred";
+
+    /**
+     * Constructs an empty report
+     */
+    public StragglerReport() {
+        lines = new ArrayList<String>();
+    }
+
+    /**
+     * Adds a document to the report
+     * @param hash The document's identifier
+     * @param numChars The length of the document's raw text
+     * @param elapsedMillis The time spent annotating the document
+     * @param deferred True if the document was abandoned at the deadline
+     */
+    public synchronized void add( String hash, int numChars,
+                                  long elapsedMillis, boolean deferred ) {
+        lines.add( hash + "\t" + numChars + "\t" + elapsedMillis + "\t"
+                   + ( deferred ? "DEFERRED" : "SLOW" ) );
+    }
+
+    /**
+     * @return The number of documents in the report
+     */
+    public synchronized int size() {
+        return lines.size();
+    }
+
+    /**
+     * Writes this report to a single file in HDFS
+     * @param destination The file to write to (will be overwritten)
+     * @param fs The file system against which to resolve the path
+     */
+    public synchronized void write( Path destination, FileSystem fs )
+            throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for( String line : lines ) {
+            contents.append( line );
+            contents.append( '\n' );
+        }
+
+        FSDataOutputStream out = fs.create( destination, true );
+        try {
+            out.write( contents.toString().getBytes( "UTF-8" ) );
+        } finally {
+            out.close();
+        }
+    }
+
+    private final List<String> lines;
+}
@@ -0,0 +1,220 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Assigns documents to reducers so that every reducer has roughly the same
+ * amount of <em>work</em> to do, rather than the same number of documents.
+ * Since the job isn't done until the slowest reducer is done, a single reducer
+ * which drew a handful of 200-page reports while its peers drew tweets can
+ * double the length of the job.
+ *
+ * Before the job is submitted, the client estimates the cost of every document
+ * (see DocumentCostEstimator) and packs them greedily into reducers: documents
+ * are taken from most to least expensive, and each goes to whichever reducer
+ * currently has the least work. The resulting (document hash, reducer) table
+ * is written to HDFS, and its location stored in the job configuration as
+ * "costAssignmentFile". Each map task loads the table when Hadoop configures
+ * its partitioner.
+ *
+ * Documents missing from the table (e.g., because they couldn't be read
+ * during the pre-pass) fall back to the usual hash partitioning.
+ *
+ * @author Tyler Young
+ */
+public class CostBalancedPartitioner
+        extends Partitioner<DocumentHashKey, HadoopRecord>
+        implements Configurable {
+    /**
+     * Assigns each document to one of the reducers, greedily balancing the
+     * total cost assigned to each (the "longest processing time first" rule).
+     * @param costs A map from document hash to the estimated cost of that
+     *              document
+     * @param numReduces The number of reducers in the job
+     * @return A map from document hash to the index of the reducer that should
+     *         handle it
+     */
+    public static Map<String, Integer> assign( final Map<String, Double> costs,
+                                               int numReduces ) {
+        List<String> byCost = new ArrayList<String>( costs.keySet() );
+        Collections.sort( byCost, new Comparator<String>() {
+            public int compare( String a, String b ) {
+                int result = costs.get( b ).compareTo( costs.get( a ) );
+                return result != 0 ? result : a.compareTo( b );
+            }
+        } );
+
+        PriorityQueue<ReducerLoad> loads = new PriorityQueue<ReducerLoad>();
+        for( int i = 0; i < numReduces; i++ ) {
+            loads.add( new ReducerLoad( i ) );
+        }
+
+        Map<String, Integer> assignment = new HashMap<String, Integer>();
+        for( String hash : byCost ) {
+            ReducerLoad lightest = loads.poll();
+            assignment.put( hash, lightest.reducer );
+            lightest.cost += costs.get( hash );
+            loads.add( lightest );
+        }
+
+        logBalance( loads );
+        return assignment;
+    }
+
+    /**
+     * Writes a document-to-reducer assignment to a file, one "hash TAB reducer"
+     * pair per line
+     * @param assignment The assignment to write
+     * @param destination The file to write to (will be overwritten)
+     * @param fs The file system against which to resolve the path
+     */
+    public static void writeAssignment( Map<String, Integer> assignment,
+                                        Path destination, FileSystem fs )
+            throws IOException {
+        FSDataOutputStream out = fs.create( destination, true );
+        Writer writer = new OutputStreamWriter( out, "UTF-8" );
+        try {
+            for( Map.Entry<String, Integer> entry : assignment.entrySet() ) {
+                writer.write( entry.getKey() );
+                writer.write( '\t' );
+                writer.write( entry.getValue().toString() );
+                writer.write( '\n' );
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads an assignment written by #writeAssignment()
+     * @param source The file to read
+     * @param fs The file system against which to resolve the path
+     * @return A map from document hash to reducer index
+     */
+    public static Map<String, Integer> readAssignment( Path source,
+                                                       FileSystem fs )
+            throws IOException {
+        Map<String, Integer> assignment = new HashMap<String, Integer>();
+        FSDataInputStream in = fs.open( source );
+        BufferedReader reader =
+                new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+        try {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                int tab = line.lastIndexOf( '\t' );
+                if( tab > 0 ) {
+                    assignment.put( line.substring( 0, tab ),
+                            Integer.parseInt( line.substring( tab + 1 ) ) );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return assignment;
+    }
+
+    @Override
+    public int getPartition( DocumentHashKey key, HadoopRecord value,
+                             int numPartitions ) {
+        Integer assigned = assignment.get( key );
+        if( assigned != null ) {
+            return assigned % numPartitions;
+        }
+        // Same as Hadoop's HashPartitioner
+        return ( key.hashCode() & Integer.MAX_VALUE ) % numPartitions;
+    }
+
+    /**
+     * Loads the document-to-reducer assignment named in the configuration
+     * @param conf The job configuration
+     */
+    public void setConf( Configuration conf ) {
+        this.conf = conf;
+        String assignmentFile = conf.get( "costAssignmentFile" );
+        if( assignmentFile == null ) {
+            HadoopInterface.logger.logWarning( "No cost assignment file was "
+                    + "configured. Falling back to hash partitioning." );
+            assignment = new HashMap<DocumentHashKey, Integer>();
+            return;
+        }
+
+        try {
+            Path assignmentLoc = new Path( assignmentFile );
+            Map<String, Integer> byIdentifier = readAssignment( assignmentLoc,
+                    assignmentLoc.getFileSystem( conf ) );
+
+            // Look documents up by their keys, so that partitioning doesn't
+            // have to convert each key back to a string
+            assignment = new HashMap<DocumentHashKey, Integer>();
+            for( Map.Entry<String, Integer> entry : byIdentifier.entrySet() ) {
+                assignment.put( DocumentHashKey.fromIdentifier( entry.getKey() ),
+                                entry.getValue() );
+            }
+        } catch ( IOException e ) {
+            throw new RuntimeException( "Unable to read the cost assignment "
+                    + "file " + assignmentFile + ": " + e.getMessage(), e );
+        }
+    }
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    /**
+     * Logs how evenly the work was spread across the reducers
+     * @param loads The final load on each reducer
+     */
+    private static void logBalance( PriorityQueue<ReducerLoad> loads ) {
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for( ReducerLoad load : loads ) {
+            min = Math.min( min, load.cost );
+            max = Math.max( max, load.cost );
+        }
+        HadoopInterface.logger.log( "Balanced documents across " + loads.size()
+                + " reducers. Lightest reducer's estimated cost: " + min
+                + "; heaviest: " + max );
+    }
+
+    /**
+     * The total estimated cost of the documents assigned to a reducer so far
+     */
+    private static class ReducerLoad implements Comparable<ReducerLoad> {
+        public ReducerLoad( int reducer ) {
+            this.reducer = reducer;
+        }
+
+        public int compareTo( ReducerLoad other ) {
+            int result = Double.compare( cost, other.cost );
+            return result != 0 ? result : reducer - other.reducer;
+        }
+
+        private final int reducer;
+        private double cost = 0;
+    }
+
+    private Configuration conf;
+    private Map<DocumentHashKey, Integer> assignment;
+}
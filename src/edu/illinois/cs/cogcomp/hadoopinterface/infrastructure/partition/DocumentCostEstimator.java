@@ -0,0 +1,262 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.HadoopInterface;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ProjectingSerializer;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.thrift.TException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates how much work it will be to annotate a document, in arbitrary
+ * "cost units" which are only meaningful relative to one another. The estimate
+ * depends on the document's raw text length, its number of sentences, and the
+ * annotation being run:
+ *
+ * <ul>
+ *     <li>Tokenizing, tagging, chunking, NER and the Wikifier do a roughly
+ *         constant amount of work per character, so their cost is linear in
+ *         the length of the document.</li>
+ *     <li>The parsers (and the SRL systems, which parse as part of their work)
+ *         are superlinear in sentence length, so a document's cost is the sum
+ *         over its sentences of the square of the sentence length. Knowing only
+ *         the document length and sentence count, we assume sentences of
+ *         average length.</li>
+ *     <li>Coreference compares mentions across the whole document, so it is
+ *         superlinear in the document length itself.</li>
+ * </ul>
+ *
+ * Every document also pays a fixed overhead (the round trip to the Curator,
+ * writing the output, etc.), so that a million tweets aren't treated as free.
+ *
+ * @author Tyler Young
+ */
+public class DocumentCostEstimator {
+    /**
+     * Constructs an estimator for the cost of running a particular annotation
+     * @param mode The annotation to be run
+     */
+    public DocumentCostEstimator( AnnotationMode mode ) {
+        this.mode = mode;
+    }
+
+    /**
+     * Estimates the cost of annotating a single document
+     * @param r The document, as read from the job's input
+     * @return The estimated cost of annotating the document
+     */
+    public double estimateCost( Record r ) {
+        String text = r.getRawText() == null ? "" : r.getRawText();
+        return estimateCost( mode, text.length(), countSentences( r ) );
+    }
+
+    /**
+     * Estimates the cost of annotating a document with the indicated properties
+     * @param mode The annotation to be run
+     * @param numChars The length of the document's raw text
+     * @param numSentences The number of sentences in the document (at least 1)
+     * @return The estimated cost of annotating the document
+     */
+    public static double estimateCost( AnnotationMode mode, int numChars,
+                                       int numSentences ) {
+        numSentences = Math.max( 1, numSentences );
+        double work;
+        switch( mode ) {
+            case PARSE:
+            case STANFORD_PARSE:
+            case VERB_SRL:
+            case NOM_SRL:
+                double avgSentenceLength = numChars / (double)numSentences;
+                work = numSentences * avgSentenceLength * avgSentenceLength
+                       / SENTENCE_LENGTH_SCALE;
+                break;
+            case COREF:
+                work = numChars + (double)numChars * numChars
+                                  / DOCUMENT_LENGTH_SCALE;
+                break;
+            default:
+                work = numChars;
+        }
+        return PER_DOCUMENT_OVERHEAD + work;
+    }
+
+    /**
+     * Counts the sentences in a document. If the document has already been
+     * split into sentences, we use that; otherwise, we count sentence-ending
+     * punctuation followed by white space, which is close enough for
+     * estimating cost.
+     * @param r The document in question
+     * @return The (approximate) number of sentences in the document; always
+     *         at least 1
+     */
+    public static int countSentences( Record r ) {
+        if( r.isSetLabelViews() ) {
+            Labeling sentences = r.getLabelViews()
+                    .get( AnnotationMode.SENTENCE.toCuratorString() );
+            if( sentences != null && sentences.getLabelsSize() > 0 ) {
+                return sentences.getLabelsSize();
+            }
+        }
+
+        String text = r.getRawText();
+        if( text == null ) {
+            return 1;
+        }
+        int count = 0;
+        for( int i = 0; i < text.length() - 1; i++ ) {
+            char c = text.charAt( i );
+            if( ( c == '.' || c == '!' || c == '?' )
+                    && Character.isWhitespace( text.charAt( i + 1 ) ) ) {
+                ++count;
+            }
+        }
+        return count + 1;
+    }
+
+    /**
+     * The pre-pass over a job's input: estimates the cost of annotating each
+     * document in the input directory (including documents packed in
+     * containers). If the input is the output of an earlier job, whose
+     * manifest describes every document (see OutputManifest), the estimates
+     * come from the manifest alone. Otherwise, we read every document, several
+     * files at a time, decoding only its raw text and sentences.
+     * @param inputDir The job's input directory
+     * @param fs The file system against which to resolve the input directory
+     * @return A map from document hash (i.e., the key it will be given by the
+     *         mapper) to its estimated cost
+     * @throws IOException If the input cannot be read
+     */
+    public Map<String, Double> estimateAll( Path inputDir, final FileSystem fs )
+            throws IOException {
+        Map<String, Double> costs = new HashMap<String, Double>();
+        OutputManifest manifest = OutputManifest.readAll( inputDir, fs );
+        if( manifest.hasDocumentStats() ) {
+            for( OutputManifest.Entry e : manifest.getEntries() ) {
+                costs.put( e.getHash(), estimateCost(
+                        mode, e.getRawTextLength(), e.getNumSentences() ) );
+            }
+            HadoopInterface.logger.log( "Estimated the cost of " + costs.size()
+                    + " documents from the input's manifest" );
+            return costs;
+        }
+
+        FileSystemHandler fsHandler = new FileSystemHandler( fs );
+        List<Path> inputFiles = fsHandler.getRecordFiles( inputDir );
+        ExecutorService pool = Executors.newFixedThreadPool( READ_THREADS );
+        try {
+            List<Future<Map<String, Double>>> estimates =
+                    new ArrayList<Future<Map<String, Double>>>();
+            for( final Path file : inputFiles ) {
+                estimates.add( pool.submit( new Callable<Map<String, Double>>() {
+                    public Map<String, Double> call() throws IOException {
+                        return estimateFile( file, fs );
+                    }
+                } ) );
+            }
+            for( Future<Map<String, Double>> estimate : estimates ) {
+                costs.putAll( getResult( estimate ) );
+            }
+        } catch ( InterruptedException e ) {
+            throw new IOException( "Interrupted while estimating document "
+                                   + "costs" );
+        } finally {
+            pool.shutdownNow();
+        }
+        return costs;
+    }
+
+    /**
+     * Estimates the cost of each document in a single input file (either one
+     * document or a container of them). Only the raw text and the sentences
+     * are decoded (see ProjectingSerializer); every other view is skipped.
+     * @param file The input file
+     * @param fs The file system against which to resolve the file
+     * @return A map from document hash to its estimated cost. If the file
+     *         can't be decoded, this is empty, and the partitioner will fall
+     *         back to hashing for its documents.
+     * @throws IOException If the file cannot be read
+     */
+    private Map<String, Double> estimateFile( Path file, FileSystem fs )
+            throws IOException {
+        Map<String, Double> costs = new HashMap<String, Double>();
+        ProjectingSerializer projector = new ProjectingSerializer(
+                EnumSet.of( AnnotationMode.SENTENCE ) );
+        try {
+            if( file.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+                SequenceFile.Reader reader =
+                        new SequenceFile.Reader( fs, file, fs.getConf() );
+                try {
+                    Text hash = new Text();
+                    BytesWritable serialized = new BytesWritable();
+                    while( reader.next( hash, serialized ) ) {
+                        Record r = projector.deserializeFromInputStream(
+                                new ByteArrayInputStream( serialized.getBytes(),
+                                        0, serialized.getLength() ) ).getRecord();
+                        costs.put( r.getIdentifier(), estimateCost( r ) );
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            else {
+                Record r = projector.deserializeFromInputStream(
+                        fs.open( file ) ).getRecord();
+                costs.put( FileSystemHandler.getFileNameWithoutExtension( file ),
+                           estimateCost( r ) );
+            }
+        } catch ( TException e ) {
+            // Leave it out; the partitioner will fall back to hashing
+            HadoopInterface.logger.logWarning( "Couldn't read " + file
+                    + " to estimate its cost: " + e.getMessage() );
+        }
+        return costs;
+    }
+
+    private static <T> T getResult( Future<T> future )
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch ( ExecutionException e ) {
+            if( e.getCause() instanceof IOException ) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException( "Error estimating document costs: "
+                    + e.getCause().getMessage() );
+        }
+    }
+
+    // Per-document costs are in units of "characters tokenized"
+    private static final double PER_DOCUMENT_OVERHEAD = 2000;
+    // A sentence of this many characters costs as much to parse as to
+    // tokenize; longer sentences cost quadratically more
+    private static final double SENTENCE_LENGTH_SCALE = 150;
+    // A document of this many characters costs twice as much for coreference
+    // as it does to tokenize
+    private static final double DOCUMENT_LENGTH_SCALE = 20000;
+
+    // The number of input files read at once when there is no manifest
+    private static final int READ_THREADS = 16;
+
+    private final AnnotationMode mode;
+}
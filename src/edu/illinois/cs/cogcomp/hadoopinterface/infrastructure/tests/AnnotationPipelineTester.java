@@ -0,0 +1,80 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.AnnotationPipeline;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Tyler Young
+ */
+public class AnnotationPipelineTester {
+    @Test
+    public void documentsLeaveInTheOrderTheyEntered() throws Exception {
+        final List<String> written =
+                Collections.synchronizedList( new ArrayList<String>() );
+
+        // A queue capacity of 1 makes sure back-pressure doesn't deadlock us
+        AnnotationPipeline pipeline = new AnnotationPipeline( 1 );
+        pipeline.addStage( "slow", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc )
+                    throws InterruptedException {
+                Thread.sleep( 2 );
+                doc.setAnnotated( doc.getInput() );
+            }
+        } );
+        pipeline.addStage( "write", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc ) {
+                assert( doc.getAnnotated() == doc.getInput() );
+                written.add( doc.getHash() );
+            }
+        } );
+        pipeline.start();
+
+        List<String> submitted = new ArrayList<String>();
+        for( int i = 0; i < 20; i++ ) {
+            AnnotationPipeline.Document doc = new AnnotationPipeline.Document(
+                    RecordTools.generateNew( "Document number " + i ) );
+            submitted.add( doc.getHash() );
+            pipeline.submit( doc );
+        }
+        pipeline.finish();
+
+        assert( written.equals( submitted ) );
+        assert( pipeline.getNumCompleted() == 20 );
+    }
+
+    @Test
+    public void stageFailureIsRethrown() throws Exception {
+        AnnotationPipeline pipeline = new AnnotationPipeline( 2 );
+        pipeline.addStage( "fail", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc )
+                    throws IOException {
+                throw new IOException( "Expected failure" );
+            }
+        } );
+        pipeline.addStage( "never", new AnnotationPipeline.Stage() {
+            public void process( AnnotationPipeline.Document doc ) {
+                assert( false );
+            }
+        } );
+        pipeline.start();
+
+        boolean threw = false;
+        try {
+            for( int i = 0; i < 10; i++ ) {
+                pipeline.submit( new AnnotationPipeline.Document(
+                        RecordTools.generateNew( "Text " + i ) ) );
+            }
+            pipeline.finish();
+        } catch ( IOException e ) {
+            threw = e.getMessage().equals( "Expected failure" );
+        }
+        assert( threw );
+        assert( pipeline.getNumCompleted() == 0 );
+    }
+}
@@ -0,0 +1,38 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.columnar.ColumnarRecordStore;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.thrift.TException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Tyler Young
+ */
+public class ColumnarRecordStoreTester {
+    @Test
+    public void columnsReassembleIntoTheOriginalRecord() throws TException {
+        Record original = RecordTools.generateNew( "Columns, not rows." );
+        List<Span> labels = new ArrayList<Span>();
+        labels.add( new Span( 0, 7 ) );
+        original.getLabelViews().put( "pos", new Labeling( labels ) );
+
+        byte[] text = ColumnarRecordStore.encodeText( original );
+        byte[] pos = ColumnarRecordStore.encodeView( original, "pos" );
+
+        // The text column carries no views at all
+        Record bare = ColumnarRecordStore.decodeText( text );
+        assert( bare.getRawText().equals( original.getRawText() ) );
+        assert( RecordTools.getNumViews( bare ) == 0 );
+
+        ColumnarRecordStore.decodeViewInto( bare, "pos", pos );
+        assert( bare.getLabelViews().get( "pos" )
+                    .equals( original.getLabelViews().get( "pos" ) ) );
+        assert( bare.getIdentifier().equals( original.getIdentifier() ) );
+    }
+}
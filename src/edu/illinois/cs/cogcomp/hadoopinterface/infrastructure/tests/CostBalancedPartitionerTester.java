@@ -0,0 +1,107 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition.CostBalancedPartitioner;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.partition.DocumentCostEstimator;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.thrift.TException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Tyler Young
+ */
+public class CostBalancedPartitionerTester {
+    @Test
+    public void parsingLongSentencesCostsMoreThanShortOnes() {
+        // Same amount of text, but in 10 sentences rather than 100
+        double longSentences =
+                DocumentCostEstimator.estimateCost( AnnotationMode.PARSE, 10000, 10 );
+        double shortSentences =
+                DocumentCostEstimator.estimateCost( AnnotationMode.PARSE, 10000, 100 );
+        assert( longSentences > shortSentences );
+
+        // Tokenizing doesn't care how the text is split up
+        assert( DocumentCostEstimator.estimateCost( AnnotationMode.TOKEN, 10000, 10 )
+                == DocumentCostEstimator.estimateCost( AnnotationMode.TOKEN, 10000, 100 ) );
+    }
+
+    @Test
+    public void expensiveDocumentsAreSpreadAcrossReducers() {
+        Map<String, Double> costs = new HashMap<String, Double>();
+        costs.put( "report1", 100.0 );
+        costs.put( "report2", 100.0 );
+        for( int i = 0; i < 100; i++ ) {
+            costs.put( "tweet" + i, 2.0 );
+        }
+
+        Map<String, Integer> assignment = CostBalancedPartitioner.assign( costs, 2 );
+        assert( assignment.size() == costs.size() );
+        assert( !assignment.get( "report1" ).equals( assignment.get( "report2" ) ) );
+
+        double[] loads = new double[2];
+        for( Map.Entry<String, Integer> entry : assignment.entrySet() ) {
+            loads[ entry.getValue() ] += costs.get( entry.getKey() );
+        }
+        assert( loads[0] == loads[1] );
+    }
+
+    @Test
+    public void inputWithoutManifestIsEstimatedFromSentencesAlone()
+            throws IOException, TException {
+        FileSystem fs = FileSystem.getLocal( new Configuration() );
+        Path dir = new Path( new File( System.getProperty( "java.io.tmpdir" ),
+                "cost_" + System.currentTimeMillis() ).getAbsolutePath() );
+        HadoopSerializationHandler serializer = new HadoopSerializationHandler();
+        try {
+            // Three sentences by their view, but one by its punctuation
+            Record single = RecordTools.generateNew( "One two three four" );
+            Labeling sentences = new Labeling( new ArrayList<Span>() );
+            sentences.getLabels().add( new Span( 0, 7 ) );
+            sentences.getLabels().add( new Span( 8, 13 ) );
+            sentences.getLabels().add( new Span( 14, 18 ) );
+            single.getLabelViews().put(
+                    AnnotationMode.SENTENCE.toCuratorString(), sentences );
+            single.getLabelViews().put(
+                    AnnotationMode.TOKEN.toCuratorString(), sentences );
+            serializer.serialize( single,
+                    new Path( dir, single.getIdentifier() + ".txt" ), fs );
+
+            Record packed = RecordTools.generateNew( "Packed. In a container." );
+            SequenceFile.Writer container = SequenceFile.createWriter( fs,
+                    fs.getConf(), new Path( dir, "part-r-00000"
+                            + RecordOutputFormat.CONTAINER_EXTENSION ),
+                    Text.class, BytesWritable.class );
+            container.append( new Text( packed.getIdentifier() ),
+                    new BytesWritable( serializer.serializeToBytes( packed ) ) );
+            container.close();
+
+            DocumentCostEstimator estimator =
+                    new DocumentCostEstimator( AnnotationMode.PARSE );
+            Map<String, Double> costs = estimator.estimateAll( dir, fs );
+            assert( costs.size() == 2 );
+            assert( costs.get( single.getIdentifier() )
+                    == estimator.estimateCost( single ) );
+            assert( costs.get( packed.getIdentifier() )
+                    == estimator.estimateCost( packed ) );
+        } finally {
+            fs.delete( dir, true );
+        }
+    }
+}
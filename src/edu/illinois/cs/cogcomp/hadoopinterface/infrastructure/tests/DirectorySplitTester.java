@@ -0,0 +1,36 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.input.DirectorySplit;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Tyler Young
+ */
+public class DirectorySplitTester {
+    @Test
+    public void splitsSurviveSerialization() throws IOException,
+                                                     InterruptedException {
+        DirectorySplit split = new DirectorySplit(
+                new Path( "/user/someone/job/0123abcd.txt" ), 123456L,
+                new String[] { "node1", "node2" } );
+        DataOutputBuffer out = new DataOutputBuffer();
+        split.write( out );
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset( out.getData(), out.getLength() );
+
+        DirectorySplit read = new DirectorySplit();
+        read.readFields( in );
+        assert( read.toString().equals( split.toString() ) );
+        assert( read.getLength() == 123456L );
+        assert( Arrays.equals( read.getLocations(), split.getLocations() ) );
+
+        // Path, length and hosts only: no Configuration along for the ride
+        assert( out.getLength() < 64 );
+    }
+}
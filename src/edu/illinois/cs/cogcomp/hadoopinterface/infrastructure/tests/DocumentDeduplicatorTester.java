@@ -0,0 +1,63 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentDeduplicator;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.LocalFileSystemHandler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * @author Tyler Young
+ */
+public class DocumentDeduplicatorTester {
+    @Test
+    public void duplicatesAreFannedOutToEveryName() throws IOException {
+        DocumentDeduplicator dedup = new DocumentDeduplicator();
+        boolean firstAdded = dedup.add( "abcdef", "/corpus/a.txt" );
+        boolean secondAdded = dedup.add( "012345", "/corpus/b.txt" );
+        boolean duplicateAdded = dedup.add( "abcdef", "/corpus/c.txt" );
+        assertTrue( firstAdded );
+        assertTrue( secondAdded );
+        assertFalse( duplicateAdded );
+        assertEquals( 2, dedup.getNumUnique() );
+        assertEquals( 1, dedup.getNumDuplicates() );
+
+        File dir = new File( System.getProperty( "java.io.tmpdir" ),
+                             "dedup_" + System.currentTimeMillis() );
+        boolean created = dir.mkdir();
+        assertTrue( created );
+        try {
+            File sources = new File( dir, "_sources.tsv" );
+            dedup.write( sources );
+            DocumentDeduplicator read = DocumentDeduplicator.read( sources );
+            assertEquals( 2, read.getSources( "abcdef" ).size() );
+            assertEquals( 1, read.getNumDuplicates() );
+
+            // Only the first document made it through annotation
+            LocalFileSystemHandler.writeStringToFile(
+                    new File( dir, "abcdef.txt" ), "annotated", true );
+            int numFannedOut = read.fanOut( dir );
+            assertEquals( 2, numFannedOut );
+            File byName = new File( dir, DocumentDeduplicator.FAN_OUT_DIR_NAME );
+            assertEquals( "annotated", LocalFileSystemHandler.readFileToString(
+                    new File( byName, "c.txt" ) ).trim() );
+            assertFalse( new File( byName, "b.txt" ).exists() );
+        } finally {
+            File byName = new File( dir, DocumentDeduplicator.FAN_OUT_DIR_NAME );
+            if( byName.isDirectory() ) {
+                for( File inner : byName.listFiles() ) {
+                    inner.delete();
+                }
+            }
+            for( File inner : dir.listFiles() ) {
+                inner.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * @author Tyler Young
+ */
+public class DocumentHashKeyTester {
+    @Test
+    public void hexHashesRoundTrip() {
+        String hash = "22b0d6e6194bbe98faffb10893d0b29fdfcf18d4";
+        assert( DocumentHashKey.fromIdentifier( hash ).toString().equals( hash ) );
+
+        // Anything else gets hashed, but consistently
+        DocumentHashKey odd = DocumentHashKey.fromIdentifier( "not-a-hash" );
+        assert( odd.equals( DocumentHashKey.fromIdentifier( "not-a-hash" ) ) );
+        assert( odd.toString().length() == 40 );
+    }
+
+    @Test
+    public void rawComparisonMatchesCompareTo() throws IOException {
+        String[] hashes = { "0000000000000000000000000000000000000001",
+                            "7fffffffffffffffffffffffffffffffffffffff",
+                            "8000000000000000000000000000000000000000",
+                            "ffffffffffffffffffffffffffffffffffffffff" };
+        // Loading the class registers its comparator
+        new DocumentHashKey();
+        WritableComparator comparator =
+                WritableComparator.get( DocumentHashKey.class );
+        assert( comparator instanceof DocumentHashKey.Comparator );
+
+        for( String a : hashes ) {
+            for( String b : hashes ) {
+                DocumentHashKey keyA = DocumentHashKey.fromIdentifier( a );
+                DocumentHashKey keyB = DocumentHashKey.fromIdentifier( b );
+                DataOutputBuffer bufA = new DataOutputBuffer();
+                DataOutputBuffer bufB = new DataOutputBuffer();
+                keyA.write( bufA );
+                keyB.write( bufB );
+
+                int raw = comparator.compare( bufA.getData(), 0, bufA.getLength(),
+                                              bufB.getData(), 0, bufB.getLength() );
+                assert( Integer.signum( raw )
+                        == Integer.signum( keyA.compareTo( keyB ) ) );
+                assert( Integer.signum( raw ) == Integer.signum( a.compareTo( b ) ) );
+            }
+        }
+    }
+}
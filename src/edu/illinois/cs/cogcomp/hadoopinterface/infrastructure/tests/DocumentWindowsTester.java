@@ -0,0 +1,100 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentWindows;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Tyler Young
+ */
+public class DocumentWindowsTester {
+    /**
+     * @return A record with one sentence per piece of text (separated by a
+     *         space), and a token for each word
+     */
+    private static Record makeRecord( String... sentences ) {
+        StringBuilder text = new StringBuilder();
+        Labeling sentenceView = new Labeling( new ArrayList<Span>() );
+        Labeling tokens = new Labeling( new ArrayList<Span>() );
+        for( String sentence : sentences ) {
+            if( text.length() > 0 ) {
+                text.append( ' ' );
+            }
+            int start = text.length();
+            text.append( sentence );
+            sentenceView.getLabels().add( new Span( start, text.length() ) );
+            int wordStart = start;
+            for( String word : sentence.split( " " ) ) {
+                tokens.getLabels().add(
+                        new Span( wordStart, wordStart + word.length() ) );
+                wordStart += word.length() + 1;
+            }
+        }
+        Record r = RecordTools.generateNew( text.toString() );
+        r.getLabelViews().put( "sentences", sentenceView );
+        r.getLabelViews().put( "tokens", tokens );
+        return r;
+    }
+
+    /**
+     * "Tags" each token of a window with its own text, upper-cased
+     */
+    private static Record tag( Record window ) {
+        Record tagged = window.deepCopy();
+        Labeling pos = new Labeling( new ArrayList<Span>() );
+        for( Span token : window.getLabelViews().get( "tokens" ).getLabels() ) {
+            Span tag = new Span( token.getStart(), token.getEnding() );
+            tag.setLabel( window.getRawText().substring(
+                    token.getStart(), token.getEnding() ).toUpperCase() );
+            pos.getLabels().add( tag );
+        }
+        tagged.getLabelViews().put( "pos", pos );
+        return tagged;
+    }
+
+    @Test
+    public void windowsAreWholeSentences() {
+        Record doc = makeRecord( "One two three.", "Four five.", "Six seven.",
+                                 "A much longer eighth sentence." );
+        List<Record> windows = DocumentWindows.split( doc, 25, "pos" );
+        assert( windows.size() == 3 );
+        assert( windows.get( 0 ).getRawText().equals( "One two three. Four five." ) );
+        assert( windows.get( 1 ).getRawText().equals( "Six seven." ) );
+        assert( windows.get( 2 ).getRawText().equals(
+                "A much longer eighth sentence." ) );
+        for( Record w : windows ) {
+            assert( DocumentWindows.isWindow( w.getIdentifier() ) );
+            assert( DocumentWindows.getDocumentIdentifier( w.getIdentifier() )
+                    .equals( doc.getIdentifier() ) );
+            assert( w.getLabelViews().get( "tokens" ).getLabels().get( 0 )
+                    .getStart() == 0 );
+        }
+        assert( !DocumentWindows.isWindow( doc.getIdentifier() ) );
+
+        // Documents that fit in a window aren't split
+        assert( DocumentWindows.split( doc, 1000, "pos" ).isEmpty() );
+    }
+
+    @Test
+    public void mergedViewIsInDocumentCoordinates() throws IOException {
+        Record doc = makeRecord( "One two three.", "Four five.", "Six seven." );
+        List<Record> tagged = new ArrayList<Record>();
+        for( Record w : DocumentWindows.split( doc, 12, "pos" ) ) {
+            tagged.add( tag( w ) );
+        }
+        assert( tagged.size() == 3 );
+
+        Record merged = DocumentWindows.merge( doc, tagged, "pos", false );
+        assert( merged.getIdentifier().equals( doc.getIdentifier() ) );
+        assert( merged.getRawText().equals( doc.getRawText() ) );
+        assert( merged.getLabelViews().get( "pos" ).equals(
+                tag( doc ).getLabelViews().get( "pos" ) ) );
+    }
+}
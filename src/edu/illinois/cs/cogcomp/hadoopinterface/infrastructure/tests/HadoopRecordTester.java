@@ -0,0 +1,161 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.thrift.base.Clustering;
+import edu.illinois.cs.cogcomp.thrift.base.Forest;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Node;
+import edu.illinois.cs.cogcomp.thrift.base.Relation;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.base.Tree;
+import edu.illinois.cs.cogcomp.thrift.base.View;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * @author Tyler Young
+ */
+public class HadoopRecordTester {
+    @Test
+    public void referencesSurviveTheShuffle() throws IOException {
+        HadoopRecord ref = HadoopRecord.reference( "abc123",
+                new Path( "/input/abc123.txt" ), 4096 );
+        HadoopRecord read = roundTrip( ref );
+
+        assert( read.isReference() );
+        assert( read.getIdentifier().equals( "abc123" ) );
+        assert( read.getReferencedPath().toString().equals( "/input/abc123.txt" ) );
+        assert( read.getReferencedSize() == 4096 );
+    }
+
+    @Test
+    public void fullRecordsSurviveTheShuffle() throws IOException {
+        HadoopRecord full = new HadoopRecord(
+                RecordTools.generateNew( "Some text to annotate." ) );
+        HadoopRecord read = roundTrip( full );
+
+        assert( !read.isReference() );
+        assert( read.getIdentifier().equals( full.getIdentifier() ) );
+        assert( read.getRawText().equals( "Some text to annotate." ) );
+    }
+
+    @Test
+    public void reusedRecordsReadConsecutiveFrames() throws IOException {
+        // Hadoop reuses one value object (and so one serializer and its
+        // buffers) for every record in a reduce group
+        DataOutputBuffer out = new DataOutputBuffer();
+        new HadoopRecord( RecordTools.generateNew( "A much longer first "
+                + "document, which grows the buffers." ) ).write( out );
+        new HadoopRecord( RecordTools.generateNew( "Short." ) ).write( out );
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset( out.getData(), out.getLength() );
+
+        HadoopRecord read = new HadoopRecord();
+        read.readFields( in );
+        assert( read.getRawText().startsWith( "A much longer" ) );
+        read.getLabelViews().put( "tokens", new Labeling() );
+        Record first = read.detach();
+        read.readFields( in );
+        assert( read.getRawText().equals( "Short." ) );
+        assert( read.getLabelViews().isEmpty() );
+
+        // What was detached is untouched by the next read
+        assert( first.getRawText().startsWith( "A much longer" ) );
+        assert( first.getLabelViews().containsKey( "tokens" ) );
+    }
+
+    @Test
+    public void readsEveryFieldLikeTheGeneratedReader() throws TException {
+        Record full = RecordTools.generateNew( "Every field is set." );
+        Labeling tokens = new Labeling( new ArrayList<Span>() );
+        tokens.getLabels().add( new Span( 0, 5 ) );
+        full.getLabelViews().put( "tokens", tokens );
+        full.getClusterViews().put( "coref",
+                new Clustering( new ArrayList<Labeling>() ) );
+        Tree tree = new Tree( Arrays.asList( new Node( "S" ) ), 0 );
+        Forest forest = new Forest( Arrays.asList( tree ) );
+        forest.setSource( "parser" );
+        full.getParseViews().put( "charniak", forest );
+        full.getViews().put( "srl", new View( new ArrayList<Span>(),
+                                              new ArrayList<Relation>() ) );
+        TMemoryBuffer fullForm = new TMemoryBuffer( 256 );
+        full.write( new TBinaryProtocol( fullForm ) );
+        byte[] fullBytes = Arrays.copyOf( fullForm.getArray(),
+                                          fullForm.length() );
+
+        // A record with no view maps at all, which the generated writer won't
+        // produce (so we write it ourselves), and both readers reject
+        TMemoryBuffer bareForm = new TMemoryBuffer( 64 );
+        TProtocol out = new TBinaryProtocol( bareForm );
+        out.writeStructBegin( new TStruct( "Record" ) );
+        out.writeFieldBegin( new TField( "identifier", TType.STRING,
+                Record._Fields.IDENTIFIER.getThriftFieldId() ) );
+        out.writeString( "bare" );
+        out.writeFieldEnd();
+        out.writeFieldBegin( new TField( "whitespaced", TType.BOOL,
+                Record._Fields.WHITESPACED.getThriftFieldId() ) );
+        out.writeBool( true );
+        out.writeFieldEnd();
+        out.writeFieldStop();
+        out.writeStructEnd();
+        byte[] bareBytes = Arrays.copyOf( bareForm.getArray(),
+                                          bareForm.length() );
+
+        // One record reads them all in turn, reusing its maps, as Hadoop does
+        HadoopRecord reused = new HadoopRecord();
+        for( byte[] form : Arrays.asList( fullBytes, bareBytes, fullBytes,
+                                          fullBytes, bareBytes ) ) {
+            Record generated = new Record();
+            boolean generatedFailed = readInto( generated, form );
+            boolean ourFailed = readInto( reused, form );
+            assert( generatedFailed == ourFailed );
+            for( Record._Fields field : Record._Fields.values() ) {
+                assert( generated.isSet( field ) == reused.isSet( field ) );
+                Object expected = generated.getFieldValue( field );
+                Object actual = reused.getFieldValue( field );
+                assert( expected == null ? actual == null
+                                         : expected.equals( actual ) );
+            }
+        }
+    }
+
+    /**
+     * @return True if the read failed (as it should for invalid records)
+     */
+    private static boolean readInto( Record r, byte[] serialized ) {
+        TMemoryBuffer in = new TMemoryBuffer( serialized.length );
+        try {
+            in.write( serialized );
+            r.read( new TBinaryProtocol( in ) );
+        } catch ( TException e ) {
+            return true;
+        }
+        return false;
+    }
+
+    private HadoopRecord roundTrip( HadoopRecord r ) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        r.write( out );
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset( out.getData(), out.getLength() );
+
+        HadoopRecord read = new HadoopRecord();
+        read.readFields( in );
+        return read;
+    }
+}
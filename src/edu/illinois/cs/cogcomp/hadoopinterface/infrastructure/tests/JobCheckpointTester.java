@@ -0,0 +1,37 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.JobCheckpoint;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * @author Tyler Young
+ */
+public class JobCheckpointTester {
+    @Test
+    public void progressSurvivesARestart() throws IOException {
+        File file = new File( System.getProperty( "java.io.tmpdir" ),
+                              "checkpoint_" + System.currentTimeMillis() + ".txt" );
+        try {
+            JobCheckpoint checkpoint = new JobCheckpoint( file, "plan A" );
+            checkpoint.markStarted( "copy_input" );
+            checkpoint.markDone( "copy_input" );
+            checkpoint.markStarted( "POS" );
+
+            JobCheckpoint reloaded = new JobCheckpoint( file, "plan A" );
+            assert( reloaded.isDone( "copy_input" ) );
+            assert( reloaded.isStarted( "POS" ) );
+            assert( !reloaded.isDone( "POS" ) );
+            assert( !reloaded.isStarted( "NER" ) );
+
+            // Another plan's progress doesn't count
+            JobCheckpoint other = new JobCheckpoint( file, "plan B" );
+            assert( !other.isDone( "copy_input" ) );
+            assert( !new JobCheckpoint( file, "plan A" ).isDone( "copy_input" ) );
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * @author Tyler Young
+ */
+public class OutputManifestTester {
+    @Test
+    public void entriesSurviveTheRoundTrip() {
+        long mask = AnnotationMode.toBitmask( Arrays.asList(
+                AnnotationMode.TOKEN, AnnotationMode.POS ) );
+        OutputManifest.Entry e = new OutputManifest.Entry(
+                "abcdef", 1234, 5678, 2, 900, 12, 180, mask );
+        OutputManifest.Entry read =
+                OutputManifest.Entry.fromString( e.toString() );
+        assert( read.hasDocumentStats() );
+        assert( read.getRawTextLength() == 900 );
+        assert( read.getNumSentences() == 12 );
+        assert( read.getNumTokens() == 180 );
+        assert( read.getAnnotations().equals(
+                EnumSet.of( AnnotationMode.TOKEN, AnnotationMode.POS ) ) );
+
+        // Manifests from before the document stats existed are still readable
+        OutputManifest.Entry legacy =
+                OutputManifest.Entry.fromString( "abcdef\t1234\t5678\t2" );
+        assert( !legacy.hasDocumentStats() );
+        assert( legacy.getNumAnnotations() == 2 );
+    }
+
+    @Test
+    public void commonAnnotationsAreExact() {
+        OutputManifest manifest = new OutputManifest();
+        manifest.add( new OutputManifest.Entry( "a", 1, 1, 2, 10, 1, 3,
+                AnnotationMode.toBitmask( Arrays.asList(
+                        AnnotationMode.TOKEN, AnnotationMode.NER ) ) ) );
+        manifest.add( new OutputManifest.Entry( "b", 1, 1, 1, 10, 1, 3,
+                AnnotationMode.toBitmask( Arrays.asList(
+                        AnnotationMode.TOKEN ) ) ) );
+        // A later entry for the same document adds to what it has
+        manifest.add( new OutputManifest.Entry( "b", 1, 1, 1, 10, 1, 3,
+                AnnotationMode.toBitmask( Arrays.asList(
+                        AnnotationMode.NER ) ) ) );
+        assert( manifest.hasDocumentStats() );
+        assert( manifest.getCommonAnnotations().equals(
+                EnumSet.of( AnnotationMode.TOKEN, AnnotationMode.NER ) ) );
+
+        manifest.add( new OutputManifest.Entry( "c", 1, 1, 0 ) );
+        assert( !manifest.hasDocumentStats() );
+    }
+}
@@ -0,0 +1,64 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ProjectingSerializer;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.SerializationHandler;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.thrift.TException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Tyler Young
+ */
+public class ProjectingSerializerTester {
+    @Test
+    public void skippedViewsSurviveARoundTrip() throws TException, IOException {
+        Record original = RecordTools.generateNew( "A short document. Two sentences." );
+        original.getLabelViews().put( "tokens", makeLabeling( 3 ) );
+        original.getLabelViews().put( "ner", makeLabeling( 2 ) );
+        SerializationHandler handler = new SerializationHandler();
+        byte[] serialized = handler.serializeToBytes( original );
+
+        ProjectingSerializer projector = new ProjectingSerializer(
+                Arrays.asList( AnnotationMode.TOKEN ) );
+        ProjectingSerializer.ProjectedRecord projected =
+                projector.deserializeFromInputStream(
+                        new ByteArrayInputStream( serialized ) );
+        assert( projected.getRecord().getLabelViews().containsKey( "tokens" ) );
+        assert( !projected.getRecord().getLabelViews().containsKey( "ner" ) );
+        assert( projected.getSkippedViews().size() == 1 );
+        assert( projected.getAnnotationsList().contains( AnnotationMode.NER ) );
+
+        // Annotate, then write back out: the skipped view must be untouched
+        Record annotated = projected.getRecord().deepCopy();
+        annotated.getLabelViews().put( "pos", makeLabeling( 3 ) );
+        Record merged = handler.deserializeFromBytes(
+                projector.serializeToBytes( annotated, projected ) );
+
+        assert( merged.getLabelViews().get( "ner" )
+                      .equals( original.getLabelViews().get( "ner" ) ) );
+        assert( merged.getLabelViews().containsKey( "pos" ) );
+        assert( merged.getRawText().equals( original.getRawText() ) );
+        assert( projected.getNumViews( annotated ) == 3 );
+        assert( RecordTools.getNumViews( merged ) == 3 );
+    }
+
+    private static Labeling makeLabeling( int numLabels ) {
+        List<Span> labels = new ArrayList<Span>();
+        for( int i = 0; i < numLabels; i++ ) {
+            Span span = new Span( i, i + 1 );
+            span.setLabel( "L" + i );
+            labels.add( span );
+        }
+        return new Labeling( labels );
+    }
+}
@@ -0,0 +1,79 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopSerializationHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.LocalFileSystemHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RawTextIngester;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.OutputManifest;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.output.RecordOutputFormat;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.thrift.TException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author Tyler Young
+ */
+public class RawTextIngesterTester {
+    @Test
+    public void everyUniqueFileBecomesOneRecord()
+            throws IOException, InterruptedException, TException {
+        FileSystem fs = FileSystem.getLocal( new Configuration() );
+        File dir = new File( System.getProperty( "java.io.tmpdir" ),
+                             "ingest_" + System.currentTimeMillis() );
+        File in = new File( dir, "in" );
+        boolean created = in.mkdirs();
+        assertTrue( created );
+        try {
+            for( int i = 0; i < 20; i++ ) {
+                LocalFileSystemHandler.writeStringToFile(
+                        new File( in, "doc" + i + ".txt" ),
+                        "Document number " + ( i % 15 ) + ".", true );
+            }
+
+            // One file per record
+            Path flat = new Path( new File( dir, "flat" ).getAbsolutePath() );
+            RawTextIngester ingester = new RawTextIngester( fs, flat, 4,
+                                                            false, false );
+            int numWritten = ingester.ingest( in );
+            assertEquals( 15, numWritten );
+            assertEquals( 5, ingester.getDeduplicator().getNumDuplicates() );
+            OutputManifest manifest = OutputManifest.readAll( flat, fs );
+            assertEquals( 15, manifest.size() );
+            assertTrue( manifest.hasDocumentStats() );
+            Set<String> texts = new HashSet<String>();
+            for( OutputManifest.Entry e : manifest.getEntries() ) {
+                Record r = new HadoopSerializationHandler().deserialize(
+                        new Path( flat, e.getHash() + ".txt" ), fs );
+                assertEquals( e.getHash(), r.getIdentifier() );
+                texts.add( r.getRawText() );
+            }
+            assertEquals( 15, texts.size() );
+
+            // Packed into containers, one per thread
+            Path packed = new Path( new File( dir, "packed" ).getAbsolutePath() );
+            int numIngested = new RawTextIngester( fs, packed, 3, true, false )
+                    .ingest( in );
+            assertEquals( 15, numIngested );
+            int numPacked = 0;
+            for( File f : new File( packed.toUri().getPath() ).listFiles() ) {
+                if( f.getName().endsWith( RecordOutputFormat.CONTAINER_EXTENSION ) ) {
+                    numPacked += new HadoopSerializationHandler().readContainer(
+                            new Path( f.getAbsolutePath() ), fs ).size();
+                }
+            }
+            assertEquals( 15, numPacked );
+        } finally {
+            fs.delete( new Path( dir.getAbsolutePath() ), true );
+        }
+    }
+}
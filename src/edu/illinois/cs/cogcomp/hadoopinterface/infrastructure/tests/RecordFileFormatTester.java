@@ -0,0 +1,78 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ProjectingSerializer;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordCompression;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordFileFormat;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordProtocol;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.SerializationHandler;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.apache.thrift.TException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * @author Tyler Young
+ */
+public class RecordFileFormatTester {
+    @Test
+    public void compressedRecordsAreDetectedOnRead() throws TException, IOException {
+        Record original = RecordTools.generateNew( "Some text. Some more text. "
+                + "Some more text, which compresses well. Some more text." );
+        SerializationHandler plainReader = new SerializationHandler();
+
+        for( RecordCompression compression : new RecordCompression[] {
+                RecordCompression.NONE, RecordCompression.DEFLATE,
+                RecordCompression.GZIP } ) {
+            byte[] written = new SerializationHandler( compression )
+                    .serializeToBytes( original );
+            assert( RecordFileFormat.detectCompression( written ) == compression );
+
+            Record read = plainReader.deserializeFromBytes( written );
+            assert( read.getRawText().equals( original.getRawText() ) );
+            assert( read.getIdentifier().equals( original.getIdentifier() ) );
+        }
+
+        // Uncompressed binary records keep the Curator's headerless format
+        assert( new SerializationHandler( RecordCompression.NONE,
+                RecordProtocol.BINARY ).serializeToBytes( original )[0] != 'C' );
+    }
+
+    @Test
+    public void bothProtocolsAreReadable() throws TException, IOException {
+        Record original = RecordTools.generateNew( "A short document." );
+        Labeling tokens = new Labeling( new ArrayList<Span>() );
+        for( int i = 0; i < 100; i++ ) {
+            tokens.getLabels().add( new Span( i * 2, i * 2 + 1 ) );
+        }
+        original.getLabelViews().put( "tokens", tokens );
+
+        byte[] binary = new SerializationHandler( RecordCompression.NONE,
+                RecordProtocol.BINARY ).serializeToBytes( original );
+        byte[] compact = new SerializationHandler( RecordCompression.NONE,
+                RecordProtocol.COMPACT ).serializeToBytes( original );
+        assert( RecordFileFormat.detectProtocol( binary ) == RecordProtocol.BINARY );
+        assert( RecordFileFormat.detectProtocol( compact ) == RecordProtocol.COMPACT );
+        assert( compact.length < binary.length );
+
+        SerializationHandler reader = new SerializationHandler();
+        assert( reader.deserializeFromBytes( binary ).equals( original ) );
+        assert( reader.deserializeFromBytes( compact ).equals( original ) );
+
+        // Rewriting a legacy binary record in the compact protocol through a
+        // projection must carry the skipped views across
+        ProjectingSerializer projector = new ProjectingSerializer(
+                new ArrayList<AnnotationMode>() );
+        ProjectingSerializer.ProjectedRecord projected =
+                projector.deserializeFromInputStream(
+                        new ByteArrayInputStream( binary ) );
+        assert( reader.deserializeFromBytes( projector.serializeToBytes(
+                projected.getRecord(), projected ) ).equals( original ) );
+    }
+}
@@ -10,6 +10,7 @@
 package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
 
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.DocumentHashKey;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.HadoopRecord;
 import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.MessageLogger;
 import edu.illinois.cs.cogcomp.thrift.base.Labeling;
@@ -32,7 +33,8 @@ import java.util.Random;
  * @author Lisa Bao
  * @author Tyler Young
  */
-public class RecordTesterMapper extends Mapper<Text, HadoopRecord, Text, HadoopRecord> {
+public class RecordTesterMapper
+        extends Mapper<Text, HadoopRecord, DocumentHashKey, HadoopRecord> {
 
 
     /**
@@ -81,7 +83,8 @@ public class RecordTesterMapper extends Mapper<Text, HadoopRecord, Text, HadoopR
             throw new Error( "Error checking dependencies in Record." );
         }
 
-        testContext.write(testKey, testValue);
+        testContext.write( DocumentHashKey.fromIdentifier( testKey.toString() ),
+                           testValue );
 
         logger.beginWritingToDisk();
     }
@@ -0,0 +1,126 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.AnnotationMode;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.RecordTools;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.SentenceCache;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.SentenceCachingAnnotator;
+import edu.illinois.cs.cogcomp.thrift.base.Labeling;
+import edu.illinois.cs.cogcomp.thrift.base.Span;
+import edu.illinois.cs.cogcomp.thrift.curator.Record;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Tyler Young
+ */
+public class SentenceCachingAnnotatorTester {
+    /**
+     * "Tags" each token with its own text, upper-cased, and remembers the text
+     * of every record it was asked to annotate
+     */
+    private static class FakeTagger implements SentenceCachingAnnotator.Annotator {
+        public Record annotate( Record record ) {
+            seen.add( record.getRawText() );
+            Record annotated = record.deepCopy();
+            Labeling pos = new Labeling( new ArrayList<Span>() );
+            pos.setSource( "fake" );
+            for( Span token : record.getLabelViews().get( "tokens" ).getLabels() ) {
+                Span tag = new Span( token.getStart(), token.getEnding() );
+                tag.setLabel( record.getRawText().substring(
+                        token.getStart(), token.getEnding() ).toUpperCase() );
+                pos.getLabels().add( tag );
+            }
+            annotated.getLabelViews().put( "pos", pos );
+            return annotated;
+        }
+
+        final List<String> seen = new ArrayList<String>();
+    }
+
+    /**
+     * @return A record with one sentence per piece of text (joined by the
+     *         separator), and a token for each word
+     */
+    private static Record makeRecord( String separator, String... sentences ) {
+        StringBuilder text = new StringBuilder();
+        Labeling sentenceView = new Labeling( new ArrayList<Span>() );
+        Labeling tokens = new Labeling( new ArrayList<Span>() );
+        for( String sentence : sentences ) {
+            if( text.length() > 0 ) {
+                text.append( separator );
+            }
+            int start = text.length();
+            text.append( sentence );
+            sentenceView.getLabels().add( new Span( start, text.length() ) );
+            for( int i = start; i < text.length(); i++ ) {
+                if( !Character.isWhitespace( text.charAt( i ) )
+                        && ( i == start
+                             || Character.isWhitespace( text.charAt( i - 1 ) ) ) ) {
+                    int end = i;
+                    while( end < text.length()
+                            && !Character.isWhitespace( text.charAt( end ) ) ) {
+                        end++;
+                    }
+                    tokens.getLabels().add( new Span( i, end ) );
+                }
+            }
+        }
+        Record r = RecordTools.generateNew( text.toString() );
+        r.getLabelViews().put( "sentences", sentenceView );
+        r.getLabelViews().put( "tokens", tokens );
+        return r;
+    }
+
+    @Test
+    public void repeatedSentencesAreNotAnnotatedAgain() throws IOException {
+        SentenceCachingAnnotator annotator = new SentenceCachingAnnotator(
+                new SentenceCache( 100 ), AnnotationMode.POS, "fake" );
+        FakeTagger tagger = new FakeTagger();
+
+        annotator.annotate( makeRecord( " ", "Read this first.",
+                                        "Buy now!" ), tagger );
+        // The boilerplate comes back, wrapped differently
+        Record second = makeRecord( "\n", "Something new here.", "Buy \n  now!" );
+        Record annotated = annotator.annotate( second, tagger );
+
+        assert( tagger.seen.size() == 2 );
+        assert( tagger.seen.get( 1 ).equals( "Something new here." ) );
+        assert( annotator.getNumSentencesReused() == 1 );
+
+        // Exactly what the tagger would have said about the whole document
+        Labeling expected = tagger.annotate( second ).getLabelViews().get( "pos" );
+        Labeling actual = annotated.getLabelViews().get( "pos" );
+        assert( actual.getLabels().equals( expected.getLabels() ) );
+        assert( actual.getSource().equals( "fake" ) );
+
+        // Nothing new at all: no call to the tagger
+        annotator.annotate( makeRecord( "  ", "Buy now!", "Read this first." ),
+                            tagger );
+        assert( annotator.getNumDocumentsSkipped() == 1 );
+        assert( tagger.seen.size() == 3 ); // the call for "expected"
+    }
+
+    @Test
+    public void evictedEntriesAreSpilledToDisk() {
+        File spillDir = new File( System.getProperty( "java.io.tmpdir" ),
+                                  "sentence_cache_" + System.currentTimeMillis() );
+        SentenceCache cache = new SentenceCache( 2, spillDir, 1 );
+        try {
+            cache.put( "a", new byte[] { 1 } );
+            cache.put( "b", new byte[] { 2 } );
+            cache.put( "c", new byte[] { 3 } ); // spills a
+            assert( cache.get( "a" )[0] == 1 ); // brings a back, spills b
+            cache.put( "d", new byte[] { 4 } ); // spills c, which pushes out b
+            assert( cache.get( "b" ) == null );
+            assert( cache.get( "c" )[0] == 3 );
+            assert( cache.getNumHits() == 2 );
+        } finally {
+            cache.close();
+        }
+        assert( !spillDir.exists() );
+    }
+}
@@ -0,0 +1,57 @@
+package edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.tests;
+
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.FileSystemHandler;
+import edu.illinois.cs.cogcomp.hadoopinterface.infrastructure.ShardedLayout;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @author Tyler Young
+ */
+public class ShardedLayoutTester {
+    @Test
+    public void recordsAreFiledByHashPrefix() {
+        Path root = new Path( "/user/someone/job" );
+        assert( ShardedLayout.getRecordLoc( root, "abcdef0123", true ).toString()
+                .equals( "/user/someone/job/ab/cd/abcdef0123.txt" ) );
+        assert( ShardedLayout.getRecordLoc( root, "abcdef0123", false ).toString()
+                .equals( "/user/someone/job/abcdef0123.txt" ) );
+        // Too short to shard
+        assert( ShardedLayout.getRecordLoc( root, "abc", true ).toString()
+                .equals( "/user/someone/job/abc.txt" ) );
+    }
+
+    @Test
+    public void migratedDirectoriesListTheSameRecords() throws IOException {
+        FileSystem fs = FileSystem.getLocal( new Configuration() );
+        FileSystemHandler fsHandler = new FileSystemHandler( fs );
+        Path root = new Path( System.getProperty( "java.io.tmpdir" ),
+                              "sharded_" + System.currentTimeMillis() );
+        try {
+            String[] hashes = { "0123456789", "01239999", "ffee0000" };
+            for( String hash : hashes ) {
+                fsHandler.writeFileToHDFS( hash, new Path( root, hash + ".txt" ) );
+            }
+            fsHandler.writeFileToHDFS( "", new Path( root, "_SUCCESS" ) );
+            assert( fsHandler.getRecordFiles( root ).size() == hashes.length );
+
+            assert( ShardedLayout.migrate( root, fs ) == hashes.length );
+            assert( ShardedLayout.isSharded( root, fs ) );
+            List<Path> records = fsHandler.getRecordFiles( root );
+            assert( records.size() == hashes.length );
+            for( String hash : hashes ) {
+                assert( fs.exists( ShardedLayout.getRecordLoc( root, hash, true ) ) );
+            }
+
+            // Running it again has nothing left to move
+            assert( ShardedLayout.migrate( root, fs ) == 0 );
+        } finally {
+            fs.delete( root, true );
+        }
+    }
+}
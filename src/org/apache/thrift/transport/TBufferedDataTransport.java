@@ -0,0 +1,208 @@
+package org.apache.thrift.transport;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A buffered variant of TDataTransport. Rather than passing every tiny
+ * Thrift read and write (a byte here, an int there) through to the
+ * underlying DataInput or DataOutput, it works on whole frames: a 4-byte
+ * length followed by that many bytes of Thrift data.
+ *
+ * Writes are collected in memory and written out as a single frame by
+ * #flush(). The first read after #setInput() (or construction) pulls in the
+ * next frame with a single readFully(), and every read after that is served
+ * from the buffer. Since the buffer is exposed through #getBuffer() and
+ * friends, TBinaryProtocol and TCompactProtocol can read primitives straight
+ * out of it without copying. (Note that this means a protocol's
+ * readBinary() may hand back a slice of our buffer, which the next frame will
+ * overwrite. The Curator's structures have no binary fields, so this is of no
+ * concern for Records.)
+ *
+ * Both buffers grow as needed and are kept between frames, so a transport
+ * that is reused (by calling #setInput() or #setOutput() for each new
+ * object) stops allocating once it has seen the largest object.
+ *
+ * A frame written by this transport can only be read by this transport; it
+ * is not interchangeable with TDataTransport.
+ */
+public class TBufferedDataTransport extends TDataTransport {
+    /**
+     * Constructs a transport with neither an input nor an output. Set one with
+     * #setInput() or #setOutput() before use.
+     */
+    public TBufferedDataTransport() {
+    }
+
+    /**
+     * Input constructor.
+     *
+     * @param din Input to read frames from
+     */
+    public TBufferedDataTransport( DataInput din ) {
+        setInput( din );
+    }
+
+    /**
+     * Output constructor.
+     *
+     * @param dout Output to write frames to
+     */
+    public TBufferedDataTransport( DataOutput dout ) {
+        setOutput( dout );
+    }
+
+    /**
+     * Points the transport at a new input. The next read will pull in a new
+     * frame from it; anything left of the previous frame is discarded.
+     *
+     * @param din Input to read frames from
+     */
+    public void setInput( DataInput din ) {
+        din_ = din;
+        readPos_ = 0;
+        readLimit_ = 0;
+        frameRead_ = false;
+    }
+
+    /**
+     * Points the transport at a new output. Anything written but not yet
+     * flushed is discarded.
+     *
+     * @param dout Output to write frames to
+     */
+    public void setOutput( DataOutput dout ) {
+        dout_ = dout;
+        writeLen_ = 0;
+    }
+
+    /**
+     * Serves the read from the current frame, reading the frame in first if
+     * we haven't yet
+     */
+    @Override
+    public int read( byte[] buf, int off, int len ) throws TTransportException {
+        ensureFrame();
+        int available = readLimit_ - readPos_;
+        if( available <= 0 ) {
+            throw new TTransportException( TTransportException.END_OF_FILE,
+                                           "Read past the end of the frame" );
+        }
+        int toRead = Math.min( len, available );
+        System.arraycopy( readBuf_, readPos_, buf, off, toRead );
+        readPos_ += toRead;
+        return toRead;
+    }
+
+    /**
+     * Adds the bytes to the frame being written. Nothing reaches the
+     * underlying output until #flush().
+     */
+    @Override
+    public void write( byte[] buf, int off, int len ) throws TTransportException {
+        if ( dout_ == null ) {
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                                           "Cannot write to null output" );
+        }
+        if( writeLen_ + len > writeBuf_.length ) {
+            writeBuf_ = grow( writeBuf_, writeLen_, writeLen_ + len );
+        }
+        System.arraycopy( buf, off, writeBuf_, writeLen_, len );
+        writeLen_ += len;
+    }
+
+    /**
+     * Writes everything written since the last flush to the underlying output
+     * as one frame
+     */
+    @Override
+    public void flush() throws TTransportException {
+        if ( dout_ == null ) {
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                                           "Cannot write to null output" );
+        }
+        try {
+            dout_.writeInt( writeLen_ );
+            dout_.write( writeBuf_, 0, writeLen_ );
+        } catch ( IOException iox ) {
+            throw new TTransportException( TTransportException.UNKNOWN, iox );
+        }
+        writeLen_ = 0;
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return frameRead_ ? readBuf_ : null;
+    }
+
+    @Override
+    public int getBufferPosition() {
+        return readPos_;
+    }
+
+    /**
+     * @return The number of bytes left in the current frame, or -1 if the
+     *         frame hasn't been read in yet (which makes protocols fall back
+     *         to #read(), which reads it)
+     */
+    @Override
+    public int getBytesRemainingInBuffer() {
+        return frameRead_ ? readLimit_ - readPos_ : -1;
+    }
+
+    @Override
+    public void consumeBuffer( int len ) {
+        readPos_ += len;
+    }
+
+    /**
+     * Reads the next frame from the underlying input, unless we already have
+     * it
+     */
+    private void ensureFrame() throws TTransportException {
+        if( frameRead_ ) {
+            return;
+        }
+        if ( din_ == null ) {
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                                           "Cannot read from null input" );
+        }
+        try {
+            int frameSize = din_.readInt();
+            if( frameSize < 0 ) {
+                throw new TTransportException( TTransportException.UNKNOWN,
+                        "Read a negative frame size (" + frameSize + ")" );
+            }
+            if( frameSize > readBuf_.length ) {
+                readBuf_ = grow( readBuf_, 0, frameSize );
+            }
+            din_.readFully( readBuf_, 0, frameSize );
+            readPos_ = 0;
+            readLimit_ = frameSize;
+            frameRead_ = true;
+        } catch ( IOException iox ) {
+            throw new TTransportException( TTransportException.UNKNOWN, iox );
+        }
+    }
+
+    /**
+     * @return A buffer of at least the needed size (and at least double the
+     *         old one's), holding the first numToKeep bytes of the old one
+     */
+    private static byte[] grow( byte[] old, int numToKeep, int needed ) {
+        byte[] bigger = new byte[ Math.max( needed, old.length * 2 ) ];
+        System.arraycopy( old, 0, bigger, 0, numToKeep );
+        return bigger;
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private byte[] readBuf_ = new byte[ INITIAL_BUFFER_SIZE ];
+    private int readPos_ = 0;
+    private int readLimit_ = 0;
+    private boolean frameRead_ = false;
+
+    private byte[] writeBuf_ = new byte[ INITIAL_BUFFER_SIZE ];
+    private int writeLen_ = 0;
+}
@@ -0,0 +1,74 @@
+package org.apache.thrift.transport;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A read-only transport which wraps another transport and, when asked to,
+ * keeps a copy of every byte read through it. This lets a protocol skip over a
+ * value it doesn't care to decode (see TProtocolUtil.skip()) while we hang on
+ * to that value's encoded bytes, to be written back out verbatim later.
+ *
+ * Note that we deliberately don't expose the underlying transport's buffer
+ * (getBuffer() et al.), so protocols can't read around the recording.
+ * @author Tyler Young
+ */
+public class TRecordingTransport extends TTransport {
+    /**
+     * Constructs a recording transport
+     * @param underlying The transport to read from
+     */
+    public TRecordingTransport( TTransport underlying ) {
+        this.underlying = underlying;
+        this.recording = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Starts keeping a copy of the bytes read. Any bytes kept from a previous
+     * recording are discarded.
+     */
+    public void startRecording() {
+        recording.reset();
+        isRecording = true;
+    }
+
+    /**
+     * Stops keeping a copy of the bytes read
+     * @return Every byte read since the last call to #startRecording()
+     */
+    public byte[] stopRecording() {
+        isRecording = false;
+        return recording.toByteArray();
+    }
+
+    public boolean isOpen() {
+        return underlying.isOpen();
+    }
+
+    public void open() throws TTransportException {
+        underlying.open();
+    }
+
+    public void close() {
+        underlying.close();
+    }
+
+    public int read( byte[] buf, int off, int len ) throws TTransportException {
+        int numRead = underlying.read( buf, off, len );
+        if( isRecording && numRead > 0 ) {
+            recording.write( buf, off, numRead );
+        }
+        return numRead;
+    }
+
+    /**
+     * This transport is read-only.
+     */
+    public void write( byte[] buf, int off, int len ) throws TTransportException {
+        throw new TTransportException( TTransportException.UNKNOWN,
+                                       "Cannot write to a recording transport" );
+    }
+
+    private final TTransport underlying;
+    private final ByteArrayOutputStream recording;
+    private boolean isRecording = false;
+}